@@ -0,0 +1,146 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.martiansoftware.nailgun.Alias;
+import com.martiansoftware.nailgun.AliasManager;
+
+/**
+ * <p>Title: AliasManagerBenchmark</p>
+ * <p>Description: Measures {@link AliasManager#getAlias(String)} throughput from concurrent session threads, 
+ * alone and while another thread keeps adding and removing an alias, and the time to load a large alias file.</p> 
+ * <p>Run with <code>java -jar nailgun-bench/target/benchmarks.jar AliasManagerBenchmark</code></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.AliasManagerBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AliasManagerBenchmark {
+	/** The number of configured aliases */
+	@Param({"1000"})
+	public int aliases;
+	
+	/** The alias manager under test */
+	private AliasManager aliasManager;
+	/** The alias properties */
+	private Properties properties;
+	/** The alias added and removed by the writer */
+	private Alias churn;
+	
+	/**
+	 * Creates the alias properties and loads them
+	 */
+	@Setup
+	public void setup() {
+		properties = new Properties();
+		for(int i = 0; i < aliases; i++) {
+			// classes that do not exist: loading the file must not try to load them
+			properties.setProperty("alias" + i, "com.example.nails.Nail" + i);
+			properties.setProperty("alias" + i + ".desc", "Runs nail " + i);
+		}
+		aliasManager = new AliasManager();
+		aliasManager.loadFromProperties(properties);
+		churn = new Alias("churn", "", AliasManagerBenchmark.class);
+	}
+	
+	/**
+	 * <p>Title: Cursor</p>
+	 * <p>Description: The next alias name each thread looks up</p> 
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		/** The lookup counter */
+		int next = 0;
+	}
+	
+	/**
+	 * Looks up aliases from 4 threads
+	 * @param cursor The thread's cursor
+	 * @return the alias
+	 */
+	@Benchmark
+	@Threads(4)
+	public Alias getAlias(Cursor cursor) {
+		return aliasManager.getAlias("alias" + ((cursor.next++) & 511));
+	}
+	
+	/**
+	 * Looks up aliases from 3 threads while {@link #churnAliases()} updates them
+	 * @param cursor The thread's cursor
+	 * @return the alias
+	 */
+	@Benchmark
+	@Group("readWrite")
+	@GroupThreads(3)
+	public Alias getAliasWhileChanging(Cursor cursor) {
+		return aliasManager.getAlias("alias" + ((cursor.next++) & 511));
+	}
+	
+	/**
+	 * Adds and removes an alias
+	 */
+	@Benchmark
+	@Group("readWrite")
+	@GroupThreads(1)
+	public void churnAliases() {
+		aliasManager.addAlias(churn);
+		aliasManager.removeAlias("churn");
+	}
+	
+	/**
+	 * Loads the alias file into a new manager
+	 * @return the manager
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	public AliasManager loadAliases() {
+		AliasManager manager = new AliasManager();
+		manager.loadFromProperties(properties);
+		return manager;
+	}
+}
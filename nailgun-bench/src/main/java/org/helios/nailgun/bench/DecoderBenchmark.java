@@ -0,0 +1,136 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.helios.nailgun.NailgunConstants;
+import org.helios.nailgun.codecs.NailgunRequestDecoder;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: DecoderBenchmark</p>
+ * <p>Description: Compares the frame decoding {@link NailgunRequestDecoder} against the original replaying decoder 
+ * ({@link LegacyNailgunRequestDecoder}) decoding a complete request header with a varying number of environment chunks.
+ * The request is delivered in reads of <code>readSize</code> bytes so that chunks are split across reads the way
+ * they are on a real socket.</p> 
+ * <p>Run with <code>java -jar nailgun-bench/target/benchmarks.jar DecoderBenchmark -prof gc</code></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.DecoderBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+	/** The number of environment chunks in the request */
+	@Param({"1", "100", "1000"})
+	public int envChunks;
+	/** The number of bytes delivered per read */
+	@Param({"1460", "65536"})
+	public int readSize;
+	
+	/** The encoded request */
+	private ChannelBuffer request;
+	
+	/**
+	 * Builds the encoded request
+	 */
+	@Setup
+	public void setup() {
+		request = ChannelBuffers.dynamicBuffer();
+		chunk(NailgunConstants.CHUNKTYPE_ARGUMENT, "java.lang:type=Memory");
+		chunk(NailgunConstants.CHUNKTYPE_ARGUMENT, "HeapMemoryUsage");
+		for(int i = 0; i < envChunks; i++) {
+			chunk(NailgunConstants.CHUNKTYPE_ENVIRONMENT, "ENVIRONMENT_VARIABLE_" + i + "=/usr/local/some/fairly/typical/value/" + i);
+		}
+		chunk(NailgunConstants.CHUNKTYPE_WORKINGDIRECTORY, "/home/nailgun/workspace");
+		chunk(NailgunConstants.CHUNKTYPE_COMMAND, "jmxattr");
+	}
+	
+	private void chunk(byte type, String text) {
+		byte[] bytes = text.getBytes();
+		request.writeInt(bytes.length);
+		request.writeByte(type);
+		request.writeBytes(bytes);
+	}
+	
+	/**
+	 * Decodes the request with the frame decoder, leaving the environment unparsed
+	 * @return the decoded request
+	 */
+	@Benchmark
+	public Object frameDecoder() {
+		return decode(new NailgunRequestDecoder());
+	}
+	
+	/**
+	 * Decodes the request with the frame decoder, parsing the environment as it is decoded
+	 * @return the decoded request
+	 */
+	@Benchmark
+	public Object frameDecoderEagerEnvironment() {
+		return decode(new NailgunRequestDecoder(new DefaultChannelGroup(), false));
+	}
+	
+	/**
+	 * Decodes the request with the legacy replaying decoder
+	 * @return the decoded request
+	 */
+	@Benchmark
+	public Object replayingDecoder() {
+		return decode(new LegacyNailgunRequestDecoder());
+	}
+	
+	private Object decode(ChannelUpstreamHandler decoder) {
+		DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(decoder);
+		ChannelBuffer in = request.duplicate();
+		while(in.readable()) {
+			// each read is a fresh buffer, as delivered by the NIO worker
+			embedder.offer(in.readBytes(Math.min(readSize, in.readableBytes())));
+		}
+		Object decoded = embedder.poll();
+		if(decoded==null) throw new IllegalStateException("Request was not decoded");
+		return decoded;
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Title: LegacyNGOutputStream</p>
+ * <p>Description: A copy of the original <code>com.martiansoftware.nailgun.NGOutputStream</code>, retained as the baseline 
+ * for {@link NGOutputStreamBenchmark}. Each write sends the length, the chunk type and the payload to the socket stream 
+ * separately and then flushes.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.LegacyNGOutputStream</code></p>
+ */
+
+public class LegacyNGOutputStream extends DataOutputStream {
+	/** The lock shared by the streams of one socket */
+	private final Object lock;
+	/** The chunk type */
+	private final byte streamCode;
+
+	/**
+	 * Creates a new LegacyNGOutputStream
+	 * @param out The socket stream
+	 * @param streamCode The chunk type
+	 */
+	public LegacyNGOutputStream(OutputStream out, byte streamCode) {
+		super(out);
+		this.lock = out;
+		this.streamCode = streamCode;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.FilterOutputStream#write(byte[])
+	 */
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.DataOutputStream#write(int)
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		byte[] b2 = {(byte) b};
+		write(b2, 0, 1);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.DataOutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(byte[] b, int offset, int len) throws IOException {
+		synchronized(lock) {
+			writeInt(len);
+			writeByte(streamCode);
+			out.write(b, offset, len);
+		}
+		flush();
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import org.helios.nailgun.DefaultNailgunRequestImpl;
+import org.helios.nailgun.NailgunConstants;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
+
+/**
+ * <p>Title: LegacyNailgunRequestDecoder</p>
+ * <p>Description: A copy of the header decoding loop of the original {@link ReplayingDecoder} based 
+ * <code>NailgunRequestDecoder</code>, retained as the baseline for {@link DecoderBenchmark}.
+ * Each chunk payload is copied into a new byte array and then into a new String.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.LegacyNailgunRequestDecoder</code></p>
+ */
+
+public class LegacyNailgunRequestDecoder extends ReplayingDecoder<LegacyNailgunRequestDecoder.State> {
+	/** The request being decoded */
+	private DefaultNailgunRequestImpl message = new DefaultNailgunRequestImpl();
+	/** The number of bytes in the current chunk */
+	private int bytesToRead = -1;
+	
+	/**
+	 * <p>Title: State</p>
+	 * <p>Description: The reduced set of decoding states used by the legacy decoder</p> 
+	 */
+	enum State {
+		BYTES, TYPE, COMMAND, WORKING_DIR, ENVIRONMENT, ARGUMENTS; 
+	}
+	
+	/**
+	 * Creates a new LegacyNailgunRequestDecoder
+	 */
+	public LegacyNailgunRequestDecoder() {
+		super(State.BYTES);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.handler.codec.replay.ReplayingDecoder#decode(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.Channel, org.jboss.netty.buffer.ChannelBuffer, java.lang.Enum)
+	 */
+	@Override
+	protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer, State state) throws Exception {
+		State current = state;
+		while(true) {
+			switch(current) {
+				case BYTES:
+					bytesToRead = buffer.readInt();
+					current = State.TYPE;
+					checkpoint(current);
+					break;
+				case TYPE:
+					byte type = buffer.readByte();
+					switch(type) {
+						case NailgunConstants.CHUNKTYPE_ARGUMENT: current = State.ARGUMENTS; break;
+						case NailgunConstants.CHUNKTYPE_ENVIRONMENT: current = State.ENVIRONMENT; break;
+						case NailgunConstants.CHUNKTYPE_WORKINGDIRECTORY: current = State.WORKING_DIR; break;
+						case NailgunConstants.CHUNKTYPE_COMMAND: current = State.COMMAND; break;
+						default: throw new IllegalStateException("Invalid ChunkType [" + (char)type + "]");
+					}
+					checkpoint(current);
+					break;
+				case WORKING_DIR:
+					message.setWorkingDirectory(new String(readBytes(buffer)));
+					current = State.BYTES;
+					checkpoint(current);
+					break;
+				case ENVIRONMENT:
+					message.addToEnvironment(new String(readBytes(buffer)));
+					current = State.BYTES;
+					checkpoint(current);
+					break;
+				case ARGUMENTS:
+					message.addArgument(new String(readBytes(buffer)));
+					current = State.BYTES;
+					checkpoint(current);
+					break;
+				case COMMAND:
+					message.setCommand(new String(readBytes(buffer)));
+					DefaultNailgunRequestImpl decoded = message;
+					message = new DefaultNailgunRequestImpl();
+					checkpoint(State.BYTES);
+					return decoded;
+			}
+		}
+	}
+	
+	/**
+	 * Reads the current chunk's payload into a new byte array
+	 * @param buffer The buffer to read from
+	 * @return the payload bytes
+	 */
+	private byte[] readBytes(ChannelBuffer buffer) {
+		byte[] bytes = new byte[bytesToRead];
+		buffer.readBytes(bytes);
+		return bytes;
+	}
+}
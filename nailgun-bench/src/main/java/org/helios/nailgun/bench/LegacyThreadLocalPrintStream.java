@@ -0,0 +1,99 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.io.PrintStream;
+
+/**
+ * <p>Title: LegacyThreadLocalPrintStream</p>
+ * <p>Description: The original <code>com.martiansoftware.nailgun.ThreadLocalPrintStream</code> routing, retained as the 
+ * baseline for {@link StreamRedirectionBenchmark}. Every call looks up the calling thread's stream in an 
+ * <code>InheritableThreadLocal</code>, whether or not any nail is running. Only the methods the benchmark calls are 
+ * delegated.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.LegacyThreadLocalPrintStream</code></p>
+ */
+
+public class LegacyThreadLocalPrintStream extends PrintStream {
+	/** The streams of the threads that have called {@link #init(PrintStream)} */
+	private final InheritableThreadLocal<PrintStream> streams = new InheritableThreadLocal<PrintStream>();
+	/** The stream used by threads with none set */
+	private final PrintStream defaultPrintStream;
+
+	/**
+	 * Creates a new LegacyThreadLocalPrintStream
+	 * @param defaultPrintStream The stream used by threads with none set
+	 */
+	public LegacyThreadLocalPrintStream(PrintStream defaultPrintStream) {
+		super(defaultPrintStream);
+		this.defaultPrintStream = defaultPrintStream;
+		init(null);
+	}
+	
+	/**
+	 * Sets the stream for the current thread
+	 * @param streamForCurrentThread The stream, or null for the default
+	 */
+	public void init(PrintStream streamForCurrentThread) {
+		streams.set(streamForCurrentThread);
+	}
+	
+	/**
+	 * Returns the current thread's stream
+	 * @return the current thread's stream
+	 */
+	PrintStream getPrintStream() {
+		PrintStream result = streams.get();
+		return result == null ? defaultPrintStream : result;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#println(java.lang.String)
+	 */
+	@Override
+	public void println(String x) {
+		getPrintStream().println(x);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(byte[] buf, int off, int len) {
+		getPrintStream().write(buf, off, len);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.PrintStream#write(int)
+	 */
+	@Override
+	public void write(int b) {
+		getPrintStream().write(b);
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.martiansoftware.nailgun.NGChunkWriter;
+import com.martiansoftware.nailgun.NGConstants;
+
+/**
+ * <p>Title: NGOutputStreamBenchmark</p>
+ * <p>Description: Compares a nail printing a line by line response through the original <code>NGOutputStream</code> 
+ * against the same response through an {@link NGChunkWriter}. Both write to a stand in for the socket stream that 
+ * counts the calls reaching it: each <code>write</code> on a socket stream is one <code>write(2)</code> system call, 
+ * so <code>writes / responses</code> is the number of system calls per response.</p> 
+ * <p>Run with <code>java -jar nailgun-bench/target/benchmarks.jar NGOutputStreamBenchmark</code></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.NGOutputStreamBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NGOutputStreamBenchmark {
+	/** The number of lines printed by the nail */
+	@Param({"100000"})
+	public int lines;
+	
+	/** The stand in for the socket stream */
+	private final SocketStream socket = new SocketStream();
+	
+	/**
+	 * <p>Title: SocketStream</p>
+	 * <p>Description: Counts and discards the writes that would reach the socket</p> 
+	 */
+	static class SocketStream extends OutputStream {
+		/** The number of write calls */
+		long writes = 0;
+		/** The number of bytes written */
+		long bytes = 0;
+		
+		@Override
+		public void write(int b) {
+			writes++;
+			bytes++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			writes++;
+			bytes += len;
+		}
+	}
+	
+	/**
+	 * <p>Title: WriteCounters</p>
+	 * <p>Description: The per response write and byte counts reported by JMH</p> 
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class WriteCounters {
+		/** The number of socket writes */
+		public long writes;
+		/** The number of bytes written to the socket */
+		public long bytes;
+		/** The number of responses written */
+		public long responses;
+		
+		/**
+		 * Resets the counters for each iteration
+		 */
+		@Setup(Level.Iteration)
+		public void reset() {
+			writes = 0;
+			bytes = 0;
+			responses = 0;
+		}
+	}
+	
+	/**
+	 * Prints the response through the original per write chunk framing
+	 * @param counters The write counters
+	 * @throws IOException never thrown
+	 */
+	@Benchmark
+	public void legacyOutputStream(WriteCounters counters) throws IOException {
+		// the session wraps the socket stream in a DataOutputStream that the chunk streams share
+		DataOutputStream sockout = new DataOutputStream(socket);
+		PrintStream out = new PrintStream(new LegacyNGOutputStream(sockout, NGConstants.CHUNKTYPE_STDOUT));
+		PrintStream exit = new PrintStream(new LegacyNGOutputStream(sockout, NGConstants.CHUNKTYPE_EXIT));
+		nail(out);
+		exit.println(0);
+		sockout.flush();
+		count(counters);
+	}
+	
+	/**
+	 * Prints the response through the buffering chunk writer
+	 * @param counters The write counters
+	 * @throws IOException never thrown
+	 */
+	@Benchmark
+	public void chunkWriter(WriteCounters counters) throws IOException {
+		NGChunkWriter writer = new NGChunkWriter(socket);
+		PrintStream out = new PrintStream(writer.newOutputStream(NGConstants.CHUNKTYPE_STDOUT));
+		PrintStream exit = new PrintStream(writer.newOutputStream(NGConstants.CHUNKTYPE_EXIT));
+		nail(out);
+		exit.println(0);
+		writer.close();
+		count(counters);
+	}
+	
+	/**
+	 * The nail body: prints short lines
+	 * @param out The nail's stdout
+	 */
+	private void nail(PrintStream out) {
+		for(int i = 0; i < lines; i++) {
+			out.println("line " + i);
+		}
+	}
+	
+	/**
+	 * Adds the current response's counts to the counters
+	 * @param counters The write counters
+	 */
+	private void count(WriteCounters counters) {
+		counters.writes += socket.writes;
+		counters.bytes += socket.bytes;
+		counters.responses++;
+		socket.writes = 0;
+		socket.bytes = 0;
+	}
+}
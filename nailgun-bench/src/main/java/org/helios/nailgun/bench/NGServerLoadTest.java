@@ -0,0 +1,201 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.martiansoftware.nailgun.NGConstants;
+import com.martiansoftware.nailgun.NGContext;
+import com.martiansoftware.nailgun.NGServer;
+import com.martiansoftware.nailgun.NGSessionExecutors;
+
+/**
+ * <p>Title: NGServerLoadTest</p>
+ * <p>Description: Load driver for the blocking {@link NGServer}. Starts a server with the selected session mode and drives it 
+ * with concurrent clients, each connecting, running a trivial nail and reading the response until its exit code, in a loop. 
+ * Reports connections per second and the p50/p99/max connection latency.</p>
+ * <p>Session modes:<ul>
+ * 	<li><b>legacy</b>: the {@link NGServer}'s own session pool</li>
+ * 	<li><b>pool</b>: {@link NGSessionExecutors#newPooledExecutor(int)}</li>
+ * 	<li><b>virtual</b>: {@link NGSessionExecutors#newVirtualThreadExecutor()} (Java 21+)</li>
+ * </ul></p>
+ * <p>Run with <code>java -Djava.security.manager=allow -cp nailgun-bench/target/benchmarks.jar org.helios.nailgun.bench.NGServerLoadTest [mode] [clients] [seconds]</code>.
+ * The <code>java.security.manager</code> property is only needed on Java 18+, where the {@link NGServer} cannot otherwise install its security manager.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.NGServerLoadTest</code></p>
+ */
+
+public class NGServerLoadTest {
+	/** The number of latency samples each client keeps */
+	private static final int MAX_SAMPLES = 1 << 16;
+	/** The client connect and read timeout in ms */
+	private static final int TIMEOUT = 30000;
+	
+	/**
+	 * The nail run by the load test clients
+	 */
+	public static class Hello {
+		/**
+		 * Writes a single line
+		 * @param context The nail context
+		 */
+		public static void nailMain(NGContext context) {
+			context.out.println("hello");
+		}
+	}
+	
+	/**
+	 * Runs the load test
+	 * @param args [legacy|pool|virtual] [clients] [seconds]
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "legacy";
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		
+		final NGServer server = new NGServer(InetAddress.getLoopbackAddress(), 0, NGServer.DEFAULT_SESSIONPOOLSIZE);
+		server.setBacklog(clients);
+		if("pool".equals(mode)) {
+			server.setSessionExecutor(NGSessionExecutors.newPooledExecutor(NGServer.DEFAULT_SESSIONPOOLSIZE));
+		} else if("virtual".equals(mode)) {
+			server.setSessionExecutor(NGSessionExecutors.newVirtualThreadExecutor());
+		} else if(!"legacy".equals(mode)) {
+			throw new IllegalArgumentException("Invalid mode [" + mode + "], expected legacy, pool or virtual", new Throwable());
+		}
+		Thread serverThread = new Thread(server, "NGServerLoadTest");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		while(server.getPort()==0) {
+			Thread.sleep(50);
+		}
+		final int port = server.getPort();
+		
+		final long[][] samples = new long[clients][MAX_SAMPLES];
+		final int[] counts = new int[clients];
+		final AtomicLong errors = new AtomicLong();
+		final CountDownLatch started = new CountDownLatch(clients);
+		final CountDownLatch done = new CountDownLatch(clients);
+		final long end = System.nanoTime() + (seconds * 1000000000L);
+		for(int i = 0; i < clients; i++) {
+			final int client = i;
+			Thread t = new Thread("LoadClient#" + i) {
+				@Override
+				public void run() {
+					started.countDown();
+					try { started.await(); } catch (InterruptedException ie) { return; }
+					while(System.nanoTime() < end) {
+						long start = System.nanoTime();
+						try {
+							call(port, Hello.class.getName());
+							if(counts[client] < MAX_SAMPLES) {
+								samples[client][counts[client]++] = System.nanoTime() - start;
+							}
+						} catch (IOException ioe) {
+							if(errors.incrementAndGet()==1) System.err.println("First client error:" + ioe);
+						}
+					}
+					done.countDown();
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+		done.await();
+		server.shutdown(false);
+		
+		int total = 0;
+		for(int count: counts) total += count;
+		long[] latencies = new long[total];
+		int index = 0;
+		for(int i = 0; i < clients; i++) {
+			System.arraycopy(samples[i], 0, latencies, index, counts[i]);
+			index += counts[i];
+		}
+		Arrays.sort(latencies);
+		System.out.println(String.format("mode=%s java=%s clients=%d seconds=%d connections=%d errors=%d conn/s=%.0f p50=%.2fms p99=%.2fms max=%.2fms",
+				mode, System.getProperty("java.version"), clients, seconds, total, errors.get(), total / (double)seconds,
+				percentile(latencies, 0.50), percentile(latencies, 0.99), total==0 ? 0d : latencies[total-1] / 1000000d));
+	}
+	
+	/**
+	 * Returns a latency percentile in ms
+	 * @param sorted The sorted latencies in ns
+	 * @param percentile The percentile
+	 * @return the percentile in ms
+	 */
+	private static double percentile(long[] sorted, double percentile) {
+		if(sorted.length==0) return 0d;
+		return sorted[Math.min(sorted.length-1, (int)(sorted.length * percentile))] / 1000000d;
+	}
+	
+	/**
+	 * Runs one nailgun command and reads the response up to the exit chunk
+	 * @param port The server port
+	 * @param command The command to run
+	 * @throws IOException thrown on any I/O error or a non zero exit code
+	 */
+	private static void call(int port, String command) throws IOException {
+		Socket socket = new Socket();
+		try {
+			// an abortive close keeps the client side from filling the ephemeral port range with TIME_WAIT sockets
+			socket.setSoLinger(true, 0);
+			socket.setSoTimeout(TIMEOUT);
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), TIMEOUT);
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			byte[] cwd = "/".getBytes("US-ASCII");
+			out.writeInt(cwd.length);
+			out.writeByte(NGConstants.CHUNKTYPE_WORKINGDIRECTORY);
+			out.write(cwd);
+			byte[] cmd = command.getBytes("US-ASCII");
+			out.writeInt(cmd.length);
+			out.writeByte(NGConstants.CHUNKTYPE_COMMAND);
+			out.write(cmd);
+			out.flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			while(true) {
+				int length = in.readInt();
+				byte type = in.readByte();
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				if(type==NGConstants.CHUNKTYPE_EXIT) {
+					if(!"0".equals(new String(payload, "US-ASCII").trim())) throw new IOException("Exit code " + new String(payload, "US-ASCII").trim());
+					return;
+				}
+			}
+		} finally {
+			socket.close();
+		}
+	}
+}
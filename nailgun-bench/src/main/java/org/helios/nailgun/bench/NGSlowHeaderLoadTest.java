@@ -0,0 +1,219 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.martiansoftware.nailgun.NGConstants;
+import com.martiansoftware.nailgun.NGServer;
+
+/**
+ * <p>Title: NGSlowHeaderLoadTest</p>
+ * <p>Description: Load driver for {@link NGServer#setSelectorFrontEnd(boolean)}. Opens thousands of client connections at once and
+ * dribbles each client's argument chunks over several rounds before sending its working directory and command, as slow or distant
+ * clients do. Every client then reads its response up to the exit chunk. Meanwhile a single fast client runs complete requests back to
+ * back. Reports the completed and failed slow requests, the elapsed time, the fast client's request count and worst latency, and the
+ * peak number of live threads in the JVM, which are all server threads apart from the two driving threads.</p>
+ * <p>Server modes:<ul>
+ * 	<li><b>nio</b>: the selector front end handing complete requests to a fixed pool of 4 workers</li>
+ * 	<li><b>blocking</b>: the blocking accept loop handing connections to the same fixed pool of 4 workers</li>
+ * 	<li><b>legacy</b>: the blocking accept loop with the {@link NGServer}'s own session pool</li>
+ * </ul></p>
+ * <p>Run with <code>java -Djava.security.manager=allow -cp nailgun-bench/target/benchmarks.jar org.helios.nailgun.bench.NGSlowHeaderLoadTest [mode] [clients] [rounds] [interval ms]</code>.
+ * The <code>java.security.manager</code> property is only needed on Java 18+. The process needs a file descriptor limit above twice the client count.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.NGSlowHeaderLoadTest</code></p>
+ */
+
+public class NGSlowHeaderLoadTest {
+	/** The number of workers in the nio and blocking modes */
+	private static final int WORKERS = 4;
+	/** The client connect and read timeout in ms */
+	private static final int TIMEOUT = 120000;
+	
+	/**
+	 * Runs the load test
+	 * @param args [nio|blocking|legacy] [clients] [rounds] [interval ms]
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "nio";
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		long interval = args.length > 3 ? Long.parseLong(args[3]) : 200;
+		
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final NGServer server = new NGServer(InetAddress.getLoopbackAddress(), 0, NGServer.DEFAULT_SESSIONPOOLSIZE);
+		server.setBacklog(clients);
+		ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+		if("nio".equals(mode)) {
+			server.setSessionExecutor(workers);
+			server.setSelectorFrontEnd(true);
+		} else if("blocking".equals(mode)) {
+			server.setSessionExecutor(workers);
+		} else if(!"legacy".equals(mode)) {
+			throw new IllegalArgumentException("Invalid mode [" + mode + "], expected nio, blocking or legacy", new Throwable());
+		}
+		Thread serverThread = new Thread(server, "NGSlowHeaderLoadTest");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		while(server.getPort()==0) {
+			Thread.sleep(50);
+		}
+		final int port = server.getPort();
+		threads.resetPeakThreadCount();
+		
+		final AtomicBoolean slowDone = new AtomicBoolean(false);
+		final long[] fast = new long[2]; // calls, max latency ns
+		Thread fastClient = new Thread("FastClient") {
+			@Override
+			public void run() {
+				while(!slowDone.get()) {
+					long start = System.nanoTime();
+					try {
+						Socket socket = connect(port);
+						try {
+							DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+							writeChunk(out, NGConstants.CHUNKTYPE_WORKINGDIRECTORY, "/");
+							writeChunk(out, NGConstants.CHUNKTYPE_COMMAND, NGServerLoadTest.Hello.class.getName());
+							readResponse(socket);
+						} finally {
+							socket.close();
+						}
+					} catch (IOException ioe) {
+						System.err.println("Fast client error:" + ioe);
+						return;
+					}
+					fast[0]++;
+					fast[1] = Math.max(fast[1], System.nanoTime() - start);
+				}
+			}
+		};
+		fastClient.setDaemon(true);
+		
+		long start = System.nanoTime();
+		Socket[] sockets = new Socket[clients];
+		DataOutputStream[] outs = new DataOutputStream[clients];
+		int errors = 0, completed = 0;
+		try {
+			for(int i = 0; i < clients; i++) {
+				sockets[i] = connect(port);
+				outs[i] = new DataOutputStream(sockets[i].getOutputStream());
+			}
+			fastClient.start();
+			for(int r = 0; r < rounds; r++) {
+				for(int i = 0; i < clients; i++) {
+					writeChunk(outs[i], NGConstants.CHUNKTYPE_ARGUMENT, "arg" + r);
+				}
+				Thread.sleep(interval);
+			}
+			slowDone.set(true);
+			for(int i = 0; i < clients; i++) {
+				writeChunk(outs[i], NGConstants.CHUNKTYPE_WORKINGDIRECTORY, "/");
+				writeChunk(outs[i], NGConstants.CHUNKTYPE_COMMAND, NGServerLoadTest.Hello.class.getName());
+			}
+			for(int i = 0; i < clients; i++) {
+				try {
+					readResponse(sockets[i]);
+					completed++;
+				} catch (IOException ioe) {
+					if(errors++==0) System.err.println("First client error:" + ioe);
+				}
+			}
+			fastClient.join();
+		} finally {
+			slowDone.set(true);
+			for(Socket socket: sockets) {
+				if(socket!=null) try { socket.close(); } catch (IOException iex) {}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		int peakThreads = threads.getPeakThreadCount();
+		server.shutdown(false);
+		workers.shutdown();
+		System.out.println(String.format("mode=%s java=%s clients=%d rounds=%d interval=%dms completed=%d errors=%d elapsed=%.0fms fastCalls=%d fastMax=%.2fms peakThreads=%d",
+				mode, System.getProperty("java.version"), clients, rounds, interval, completed, errors, elapsed / 1000000d, fast[0], fast[1] / 1000000d, peakThreads));
+	}
+	
+	/**
+	 * Opens a client connection
+	 * @param port The server port
+	 * @return the connected socket
+	 * @throws IOException thrown on any I/O error
+	 */
+	private static Socket connect(int port) throws IOException {
+		Socket socket = new Socket();
+		// an abortive close keeps the client side from filling the ephemeral port range with TIME_WAIT sockets
+		socket.setSoLinger(true, 0);
+		socket.setSoTimeout(TIMEOUT);
+		socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), TIMEOUT);
+		return socket;
+	}
+	
+	/**
+	 * Writes and flushes one chunk
+	 * @param out The client stream
+	 * @param type The chunk type
+	 * @param payload The chunk payload
+	 * @throws IOException thrown on any I/O error
+	 */
+	private static void writeChunk(DataOutputStream out, byte type, String payload) throws IOException {
+		byte[] bytes = payload.getBytes("US-ASCII");
+		out.writeInt(bytes.length);
+		out.writeByte(type);
+		out.write(bytes);
+		out.flush();
+	}
+	
+	/**
+	 * Reads a response up to the exit chunk
+	 * @param socket The client socket
+	 * @throws IOException thrown on any I/O error or a non zero exit code
+	 */
+	private static void readResponse(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		while(true) {
+			int length = in.readInt();
+			byte type = in.readByte();
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			if(type==NGConstants.CHUNKTYPE_EXIT) {
+				if(!"0".equals(new String(payload, "US-ASCII").trim())) throw new IOException("Exit code " + new String(payload, "US-ASCII").trim());
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.martiansoftware.nailgun.NGClasspaths;
+import com.martiansoftware.nailgun.NGServer;
+
+/**
+ * <p>Title: NailClasspathBenchmark</p>
+ * <p>Description: Measures resource lookups through a classpath of many jars, in the last jar and in none of them, 
+ * with a {@link URLClassLoader} and with the class loader of an {@link NGClasspaths} named classpath, which indexes 
+ * each jar once.</p> 
+ * <p>Run with <code>java -jar nailgun-bench/target/benchmarks.jar NailClasspathBenchmark</code></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.NailClasspathBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NailClasspathBenchmark {
+	/** The number of jars on the classpath */
+	@Param({"10", "200"})
+	public int jars;
+	/** The class loader: <b>url</b> for a URLClassLoader, <b>nailgun</b> for a named nail classpath */
+	@Param({"url", "nailgun"})
+	public String loader;
+	
+	/** The number of entries in each jar */
+	private static final int ENTRIES = 50;
+	/** The directory holding the jars */
+	private File dir;
+	/** The server owning the named classpath */
+	private NGServer server;
+	/** The class loader under test */
+	private ClassLoader classLoader;
+	/** An entry of the last jar */
+	private String last;
+	
+	/**
+	 * Writes the jars and creates the class loader
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		dir = File.createTempFile("nailcp", "");
+		dir.delete();
+		dir.mkdirs();
+		File[] files = new File[jars];
+		URL[] urls = new URL[jars];
+		for(int j = 0; j < jars; j++) {
+			files[j] = new File(dir, "lib" + j + ".jar");
+			urls[j] = files[j].toURI().toURL();
+			JarOutputStream out = new JarOutputStream(new FileOutputStream(files[j]));
+			try {
+				for(int e = 0; e < ENTRIES; e++) {
+					out.putNextEntry(new JarEntry("com/example/lib" + j + "/Resource" + e + ".txt"));
+					out.write(("resource " + e).getBytes("US-ASCII"));
+					out.closeEntry();
+				}
+			} finally {
+				out.close();
+			}
+		}
+		last = "com/example/lib" + (jars - 1) + "/Resource" + (ENTRIES - 1) + ".txt";
+		if("url".equals(loader)) {
+			classLoader = new URLClassLoader(urls, NGServer.class.getClassLoader());
+		} else {
+			server = new NGServer();
+			server.getNailClasspaths().add("bench", files);
+			classLoader = server.getNailClasspaths().getClassLoader("bench");
+		}
+	}
+	
+	/**
+	 * Releases the class loader and deletes the jars
+	 */
+	@TearDown
+	public void tearDown() {
+		if(server!=null) {
+			server.getNailClasspaths().remove("bench");
+		}
+		classLoader = null;
+		System.gc();
+		for(File f: dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+	
+	/**
+	 * Finds a resource in the last jar
+	 * @return the resource URL
+	 */
+	@Benchmark
+	public URL findInLastJar() {
+		return classLoader.getResource(last);
+	}
+	
+	/**
+	 * Looks for a resource in no jar
+	 * @return null
+	 */
+	@Benchmark
+	public URL findMissing() {
+		return classLoader.getResource("com/example/Missing.txt");
+	}
+}
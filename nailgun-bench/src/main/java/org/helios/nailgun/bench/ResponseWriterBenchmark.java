@@ -0,0 +1,172 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.nailgun.NailgunConstants;
+import org.helios.nailgun.codecs.NailgunChunkFramer;
+import org.helios.nailgun.codecs.NailgunResponseWriter;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: ResponseWriterBenchmark</p>
+ * <p>Description: Compares writing a line by line response with one chunk write per line, as <code>request.out(...)</code> 
+ * did before the response writer, against the coalescing {@link NailgunResponseWriter}. Besides the time per response, 
+ * the <code>writes</code> counter reports the number of buffers that reach the channel sink, 
+ * and <code>writes / responses</code> is the number per response. On an NIO socket 
+ * that is not backed up each of those is one <code>write(2)</code> call and, with TCP_NODELAY, at least one TCP segment.</p> 
+ * <p>Run with <code>java -jar nailgun-bench/target/benchmarks.jar ResponseWriterBenchmark</code></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.ResponseWriterBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWriterBenchmark {
+	/** The number of lines in the response */
+	@Param({"10000"})
+	public int lines;
+	
+	/** The response lines */
+	private String[] response;
+	/** The embedder providing the channel */
+	private EncoderEmbedder<ChannelBuffer> embedder;
+	/** The embedder's channel */
+	private Channel channel;
+	/** The number of writes in the current response */
+	private long responseWrites = 0;
+	/** The number of bytes in the current response */
+	private long responseBytes = 0;
+	
+	/**
+	 * <p>Title: WriteCounters</p>
+	 * <p>Description: The per response write and byte counts reported by JMH</p> 
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class WriteCounters {
+		/** The number of buffers written to the channel sink */
+		public long writes;
+		/** The number of bytes written to the channel sink */
+		public long bytes;
+		/** The number of responses written */
+		public long responses;
+		
+		/**
+		 * Resets the counters for each iteration
+		 */
+		@Setup(Level.Iteration)
+		public void reset() {
+			writes = 0;
+			bytes = 0;
+			responses = 0;
+		}
+	}
+	
+	/**
+	 * Creates the response lines and the channel
+	 */
+	@Setup
+	public void setup() {
+		response = new String[lines];
+		for(int i = 0; i < lines; i++) {
+			response[i] = "java.lang:type=MemoryPool,name=Pool" + i + " Usage=" + (i * 1048576L) + "\n";
+		}
+		// counts and drops the writes so the embedder does not accumulate them
+		embedder = new EncoderEmbedder<ChannelBuffer>(new SimpleChannelDownstreamHandler(){
+			@Override
+			public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+				responseWrites++;
+				responseBytes += ((ChannelBuffer)e.getMessage()).readableBytes();
+				e.getFuture().setSuccess();
+			}
+		});
+		channel = embedder.getPipeline().getChannel();
+	}
+	
+	/**
+	 * Writes each line as its own chunk
+	 * @param counters The write counters
+	 */
+	@Benchmark
+	public void chunkPerLine(WriteCounters counters) {
+		NailgunChunkFramer framer = new NailgunChunkFramer(channel);
+		for(String line: response) {
+			framer.write(NailgunConstants.CHUNKTYPE_STDOUT, line);
+		}
+		framer.write(NailgunConstants.CHUNKTYPE_EXIT, "0\n");
+		count(counters);
+	}
+	
+	/**
+	 * Writes the lines through the coalescing response writer
+	 * @param counters The write counters
+	 */
+	@Benchmark
+	public void responseWriter(WriteCounters counters) {
+		NailgunResponseWriter writer = new NailgunResponseWriter(channel, Charset.defaultCharset(), NailgunConstants.DEFAULT_MAX_CHUNK_SIZE);
+		for(String line: response) {
+			writer.out(line);
+		}
+		writer.end(0);
+		count(counters);
+	}
+	
+	/**
+	 * Adds the current response's counts to the counters
+	 * @param counters The write counters
+	 */
+	private void count(WriteCounters counters) {
+		counters.writes += responseWrites;
+		counters.bytes += responseBytes;
+		counters.responses++;
+		responseWrites = 0;
+		responseBytes = 0;
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.martiansoftware.nailgun.NGExitAgent;
+import com.martiansoftware.nailgun.NGSecurityManager;
+
+/**
+ * <p>Title: SecurityManagerBenchmark</p>
+ * <p>Description: Measures reflection, file and system property access, the paths every in-process caller pays
+ * permission checks on, with no security manager, as when nail exits are trapped by {@link NGExitAgent}, and with the
+ * {@link NGSecurityManager} the server otherwise installs.</p> 
+ * <p>Run with <code>java -jar nailgun-bench/target/benchmarks.jar SecurityManagerBenchmark</code>. On Java 18+ add 
+ * <code>-jvmArgsAppend -Djava.security.manager=allow</code> so the security manager can be installed.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.SecurityManagerBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecurityManagerBenchmark {
+	/** The exit trapping mode: <b>agent</b> runs without a security manager, <b>securitymanager</b> installs the {@link NGSecurityManager} */
+	@Param({"agent", "securitymanager"})
+	public String exits;
+	
+	/** The reflectively invoked method */
+	private Method method;
+	/** The reflectively read field */
+	private Field field;
+	/** The probed file */
+	private File file;
+	
+	/**
+	 * The reflection target
+	 */
+	public static class Target {
+		/** A private field */
+		private int value = 42;
+		/**
+		 * A private method
+		 * @param x The argument
+		 * @return the argument plus the field
+		 */
+		private int add(int x) {
+			return x + value;
+		}
+	}
+	
+	/**
+	 * Installs the security manager if selected
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		method = Target.class.getDeclaredMethod("add", int.class);
+		field = Target.class.getDeclaredField("value");
+		file = new File(System.getProperty("java.io.tmpdir"));
+		if("securitymanager".equals(exits)) {
+			System.setSecurityManager(new NGSecurityManager(null));
+		}
+	}
+	
+	/**
+	 * Removes the security manager
+	 */
+	@TearDown
+	public void tearDown() {
+		if("securitymanager".equals(exits)) {
+			System.setSecurityManager(null);
+		}
+	}
+	
+	/**
+	 * Looks up, opens and invokes a private method, as frameworks do when binding to application code
+	 * @return the result
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public Object lookupAndInvoke() throws Exception {
+		Method m = Target.class.getDeclaredMethod("add", int.class);
+		m.setAccessible(true);
+		return m.invoke(new Target(), 1);
+	}
+	
+	/**
+	 * Opens a cached private method and field and uses them
+	 * @return the result
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public int setAccessibleAndInvoke() throws Exception {
+		method.setAccessible(true);
+		field.setAccessible(true);
+		Target target = new Target();
+		return (Integer)method.invoke(target, 1) + field.getInt(target);
+	}
+	
+	/**
+	 * Lists the declared fields of a JDK class
+	 * @return the fields
+	 */
+	@Benchmark
+	public Field[] declaredFields() {
+		return Thread.class.getDeclaredFields();
+	}
+	
+	/**
+	 * Checks that a file exists
+	 * @return true if the file exists
+	 */
+	@Benchmark
+	public boolean fileExists() {
+		return file.exists();
+	}
+	
+	/**
+	 * Reads a system property
+	 * @return the property value
+	 */
+	@Benchmark
+	public String getProperty() {
+		return System.getProperty("java.io.tmpdir");
+	}
+	
+	/**
+	 * Loads an already loaded class through the context class loader
+	 * @return the class
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public Class<?> forName() throws Exception {
+		return Class.forName("org.helios.nailgun.bench.SecurityManagerBenchmark$Target", false, Thread.currentThread().getContextClassLoader());
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.martiansoftware.nailgun.NGConstants;
+import com.martiansoftware.nailgun.NGContext;
+import com.martiansoftware.nailgun.NGServer;
+
+/**
+ * <p>Title: SessionGarbageBenchmark</p>
+ * <p>Description: Runs a trivial context nail through an in-process {@link NGServer} over loopback, with the session 
+ * threads recycling their per-request objects and without. Run with the GC profiler to compare the bytes allocated 
+ * per invocation: the client side allocates the same in both modes, so the difference in 
+ * <code>gc.alloc.rate.norm</code> is the server's per-request garbage saved.</p> 
+ * <p>Run with <code>java -jar nailgun-bench/target/benchmarks.jar SessionGarbageBenchmark -prof gc</code>. On Java 18+ 
+ * add <code>-jvmArgsAppend -Djava.security.manager=allow</code> so the server can install its security manager.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.SessionGarbageBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionGarbageBenchmark {
+	/** True if the session threads recycle their per-request objects */
+	@Param({"true", "false"})
+	public boolean recycle;
+	
+	/** The server */
+	private NGServer server;
+	/** The request chunks, sent as one write */
+	private byte[] request;
+	/** The buffer response payloads are read into */
+	private final byte[] payload = new byte[65536];
+	
+	/**
+	 * The benchmarked nail: prints its argument and an environment variable
+	 */
+	public static class Hello {
+		/**
+		 * The nail entry point
+		 * @param context The nail context
+		 */
+		public static void nailMain(NGContext context) {
+			context.out.println("Hello " + context.getArgs()[0] + " from " + context.getEnv().getProperty("USER"));
+		}
+	}
+	
+	/**
+	 * Starts the server and builds the request
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		server = new NGServer(InetAddress.getLoopbackAddress(), 0, NGServer.DEFAULT_SESSIONPOOLSIZE);
+		server.setRecycleSessionObjects(recycle);
+		Thread t = new Thread(server, "NGServer");
+		t.setDaemon(true);
+		t.start();
+		while(server.getPort()==0) Thread.sleep(10);
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		chunk(dos, NGConstants.CHUNKTYPE_ARGUMENT, "world");
+		chunk(dos, NGConstants.CHUNKTYPE_ENVIRONMENT, "USER=bench");
+		chunk(dos, NGConstants.CHUNKTYPE_WORKINGDIRECTORY, "/");
+		chunk(dos, NGConstants.CHUNKTYPE_COMMAND, Hello.class.getName());
+		chunk(dos, NGConstants.CHUNKTYPE_STDIN_EOF, "");
+		dos.flush();
+		request = baos.toByteArray();
+	}
+	
+	/**
+	 * Writes a request chunk
+	 * @param out The stream to write to
+	 * @param type The chunk type
+	 * @param payload The chunk payload
+	 * @throws IOException thrown on any IO error
+	 */
+	private static void chunk(DataOutputStream out, byte type, String payload) throws IOException {
+		byte[] bytes = payload.getBytes("US-ASCII");
+		out.writeInt(bytes.length);
+		out.writeByte(type);
+		out.write(bytes);
+	}
+	
+	/**
+	 * Stops the server
+	 */
+	@TearDown
+	public void tearDown() {
+		server.shutdown(false);
+	}
+	
+	/**
+	 * Runs the nail once and reads the response up to the exit chunk
+	 * @return the number of response bytes read
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public int invoke() throws Exception {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+		try {
+			BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream(), request.length);
+			out.write(request);
+			out.flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			int total = 0;
+			while(true) {
+				int len = in.readInt();
+				byte type = in.readByte();
+				in.readFully(payload, 0, len);
+				total += len;
+				if(type==NGConstants.CHUNKTYPE_EXIT) return total;
+			}
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.nailgun.streams.ChunkQueueInputStream;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: StdinStreamBenchmark</p>
+ * <p>Description: Measures the time to move client STDIN from a producer thread, standing in for the I/O worker, 
+ * to a handler thread reading 8KB at a time: through the original piped streams, where every chunk is copied into the 
+ * pipe's ring buffer, versus through the {@link ChunkQueueInputStream}, where the received chunks are queued as is.</p> 
+ * <p>Run with <code>java -jar nailgun-bench/target/benchmarks.jar StdinStreamBenchmark</code></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.StdinStreamBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StdinStreamBenchmark {
+	/** The number of MB transferred per operation */
+	@Param({"64"})
+	public int megabytes;
+	/** The size of each STDIN chunk */
+	@Param({"65536"})
+	public int chunkSize;
+	
+	/** The chunk payload */
+	private ChannelBuffer chunk;
+	/** The handler's read buffer */
+	private final byte[] readBuffer = new byte[8192];
+	
+	/**
+	 * Creates the chunk payload
+	 */
+	@Setup
+	public void setup() {
+		byte[] bytes = new byte[chunkSize];
+		for(int i = 0; i < bytes.length; i++) bytes[i] = (byte)i;
+		chunk = ChannelBuffers.wrappedBuffer(bytes);
+	}
+	
+	/**
+	 * Transfers the input through the piped streams
+	 * @return the number of bytes read
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public long pipedStreams() throws Exception {
+		final PipedOutputStream out = new PipedOutputStream();
+		PipedInputStream in = new PipedInputStream(chunkSize);
+		in.connect(out);
+		final int chunks = chunkCount();
+		Thread producer = new Thread("PipedProducer") {
+			public void run() {
+				try {
+					byte[] bytes = new byte[chunkSize];
+					for(int i = 0; i < chunks; i++) {
+						// the decoder copied each chunk out of the cumulation buffer before writing it to the pipe
+						chunk.getBytes(0, bytes);
+						out.write(bytes);
+						out.flush();
+					}
+					out.close();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		producer.start();
+		long read = drain(in);
+		producer.join();
+		return read;
+	}
+	
+	/**
+	 * Transfers the input through the chunk queue stream
+	 * @return the number of bytes read
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public long chunkQueueStream() throws Exception {
+		final ChunkQueueInputStream in = new ChunkQueueInputStream(10, TimeUnit.SECONDS);
+		final int chunks = chunkCount();
+		Thread producer = new Thread("ChunkQueueProducer") {
+			public void run() {
+				for(int i = 0; i < chunks; i++) {
+					in.offer(chunk.duplicate());
+				}
+				in.end();
+			}
+		};
+		producer.start();
+		long read = drain(in);
+		producer.join();
+		return read;
+	}
+	
+	/**
+	 * Returns the number of chunks per operation
+	 * @return the chunk count
+	 */
+	private int chunkCount() {
+		return (int)((megabytes * 1048576L) / chunkSize);
+	}
+	
+	/**
+	 * Reads the passed stream to its end
+	 * @param in The stream to read
+	 * @return the number of bytes read
+	 * @throws IOException thrown on any read error
+	 */
+	private long drain(InputStream in) throws IOException {
+		long total = 0;
+		int read = 0;
+		while((read = in.read(readBuffer))!=-1) {
+			total += read;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Title: StreamRedirectionBenchmark</p>
+ * <p>Description: Measures <code>System.out.println</code> through the stream the NailGun server installs as 
+ * <code>System.out</code>, from a nail's thread and from a server thread with no nail, comparing the 
+ * <code>NGStreamScope</code> routing with the original {@link LegacyThreadLocalPrintStream}. Both route to a stream 
+ * that discards its output, so the difference is the routing. The redirecting streams are package private and are 
+ * created reflectively.</p> 
+ * <p>Run with <code>java -jar nailgun-bench/target/benchmarks.jar StreamRedirectionBenchmark</code>.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.bench.StreamRedirectionBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamRedirectionBenchmark {
+	/** The routing: <b>scope</b> for <code>NGStreamScope</code>, <b>legacy</b> for the inheritable thread local per stream */
+	@Param({"scope", "legacy"})
+	public String routing;
+	/** 
+	 * The calling thread: <b>idle</b> is a server thread with no nail running anywhere, <b>busy</b> a server thread 
+	 * while another thread runs a nail, and <b>nail</b> the thread running a nail 
+	 */
+	@Param({"idle", "busy", "nail"})
+	public String thread;
+	
+	/** The stream installed as <code>System.out</code> */
+	private PrintStream systemOut;
+	/** The scope bound to the benchmark thread or open elsewhere, if any */
+	private Object scope;
+	/** The scope bound before {@link #scope} */
+	private Object priorScope;
+	/** The package private NGStreamScope class */
+	private Class<?> scopeClass;
+	
+	/**
+	 * Creates a stream that discards its output
+	 * @return the stream
+	 */
+	private static PrintStream discard() {
+		return new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {}
+			@Override
+			public void write(byte[] b, int off, int len) {}
+		});
+	}
+	
+	/**
+	 * Creates the redirecting stream and binds the nail's streams as selected
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		PrintStream nailOut = discard();
+		if("legacy".equals(routing)) {
+			LegacyThreadLocalPrintStream legacy = new LegacyThreadLocalPrintStream(discard());
+			if("nail".equals(thread)) legacy.init(nailOut);
+			systemOut = legacy;
+			return;
+		}
+		Class<?> streamClass = Class.forName("com.martiansoftware.nailgun.ThreadLocalPrintStream");
+		Constructor<?> streamCtor = streamClass.getDeclaredConstructor(PrintStream.class, boolean.class);
+		streamCtor.setAccessible(true);
+		systemOut = (PrintStream)streamCtor.newInstance(discard(), false);
+		if("idle".equals(thread)) return;
+		scopeClass = Class.forName("com.martiansoftware.nailgun.NGStreamScope");
+		Constructor<?> scopeCtor = scopeClass.getDeclaredConstructor(InputStream.class, PrintStream.class, PrintStream.class, PrintStream.class);
+		scopeCtor.setAccessible(true);
+		scope = scopeCtor.newInstance(System.in, nailOut, nailOut, nailOut);
+		if("nail".equals(thread)) {
+			priorScope = invoke("bind", scope);
+		}
+	}
+	
+	/**
+	 * Closes and unbinds the scope
+	 * @throws Exception thrown on any error
+	 */
+	@TearDown
+	public void tearDown() throws Exception {
+		if(scope == null) return;
+		invoke("close", scope);
+		if("nail".equals(thread)) {
+			Method restore = scopeClass.getDeclaredMethod("restore", scopeClass);
+			restore.setAccessible(true);
+			restore.invoke(null, priorScope);
+		}
+	}
+	
+	/**
+	 * Invokes a package private no-arg method of the scope
+	 * @param name The method name
+	 * @param target The scope
+	 * @return the method's result
+	 * @throws Exception thrown on any error
+	 */
+	private Object invoke(String name, Object target) throws Exception {
+		Method method = scopeClass.getDeclaredMethod(name);
+		method.setAccessible(true);
+		return method.invoke(target);
+	}
+	
+	/**
+	 * Prints a line through the redirecting stream
+	 */
+	@Benchmark
+	public void println() {
+		systemOut.println("The quick brown fox");
+	}
+}
@@ -26,11 +26,12 @@ package org.helios.nailgun;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -41,13 +42,12 @@ import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 import org.helios.nailgun.codecs.NailgunRequestDecoder;
-import org.helios.nailgun.streams.ConnectTimeoutPipedInputStream;
+import org.helios.nailgun.codecs.NailgunResponseWriter;
+import org.helios.nailgun.streams.ChunkQueueInputStream;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFutureListener;
-import org.jboss.netty.channel.Channels;
-import org.jboss.netty.channel.DownstreamMessageEvent;
 
 /**
  * <p>Title: DefaultNailgunRequestImpl</p>
@@ -66,13 +66,21 @@ public class DefaultNailgunRequestImpl implements Serializable, NailgunRequest {
 	private String workingDirectory;
 	/** The caller's environment  */
 	private final Properties environment = new Properties();
+	/** The caller's raw environment chunks, each stored as a length prefixed <code>KEY=VALUE</code> line, until the environment is first read */
+	private transient ChannelBuffer rawEnvironment = null;
 	/** The caller's command line arguments */
 	private final List<String> arguments = new ArrayList<String>();
     /** The netty channel through which the client is communicating */
     private transient Channel channel = null;
     /** The presumed exit code set based on the last output */
     private transient int exitCode = 0;
+    /** The buffered writer for the response */
+    private transient NailgunResponseWriter writer = null;
     
+	/** The default time in ms to wait for the client to start sending STDIN */
+	private static final long DEFAULT_STDIN_TIMEOUT = 10000;
+	/** The initial size of the raw environment buffer */
+	private static final int INITIAL_RAW_ENVIRONMENT_SIZE = 2048;
 	/** The name of the response encoding channel handler */
 	public static final String RESP_HANDLER = "response-encoder";
 	
@@ -155,8 +163,98 @@ public class DefaultNailgunRequestImpl implements Serializable, NailgunRequest {
 	 */
 	@Override
 	public Properties getEnvironment() {
+		materializeEnvironment();
 		return environment;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>If the raw environment has not been materialized yet, it is scanned for the key without building the environment properties.
+	 * Keys the raw environment does not hold are looked up in the properties set through the constructor or the setters.
+	 * @see org.helios.nailgun.NailgunRequest#getEnv(java.lang.String)
+	 */
+	@Override
+	public String getEnv(String key) {
+		if(key==null) throw new IllegalArgumentException("The passed key was null", new Throwable());
+		synchronized(environment) {
+			if(rawEnvironment==null || key.length()==0) {
+				return environment.getProperty(key);
+			}
+			byte[] prefix = (key + "=").getBytes(Charset.defaultCharset());
+			String value = null;
+			int index = rawEnvironment.readerIndex();
+			final int end = rawEnvironment.writerIndex();
+			while(index < end) {
+				int length = rawEnvironment.getInt(index);
+				index += 4;
+				if(length >= prefix.length && startsWith(rawEnvironment, index, prefix)) {
+					// keep scanning since a repeated key overrides an earlier one, as it does in the properties
+					value = rawEnvironment.toString(index + prefix.length, length - prefix.length, Charset.defaultCharset());
+				}
+				index += length;
+			}
+			return value!=null ? value : environment.getProperty(key);
+		}
+	}
+	
+	/**
+	 * Returns the number of environment entries, counting raw entries that have not been materialized yet
+	 * @return the number of environment entries
+	 */
+	private int environmentSize() {
+		synchronized(environment) {
+			int size = environment.size();
+			if(rawEnvironment!=null) {
+				int index = rawEnvironment.readerIndex();
+				final int end = rawEnvironment.writerIndex();
+				while(index < end) {
+					index += 4 + rawEnvironment.getInt(index);
+					size++;
+				}
+			}
+			return size;
+		}
+	}
+	
+	/**
+	 * Determines if the region of the passed buffer starting at the passed index starts with the passed prefix
+	 * @param buffer The buffer to test
+	 * @param index The index of the region in the buffer
+	 * @param prefix The prefix to test for
+	 * @return true if the region starts with the prefix, false otherwise
+	 */
+	private static boolean startsWith(ChannelBuffer buffer, int index, byte[] prefix) {
+		for(int i = 0; i < prefix.length; i++) {
+			if(buffer.getByte(index + i)!=prefix[i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Parses any raw environment chunks into the environment properties
+	 */
+	private void materializeEnvironment() {
+		synchronized(environment) {
+			if(rawEnvironment==null) return;
+			ChannelBuffer raw = rawEnvironment;
+			rawEnvironment = null;
+			while(raw.readable()) {
+				int length = raw.readInt();
+				addToEnvironment(raw.toString(raw.readerIndex(), length, Charset.defaultCharset()));
+				raw.skipBytes(length);
+			}
+		}
+	}
+	
+	/**
+	 * Materializes the environment before this request is serialized
+	 * @param out The object output stream
+	 * @throws IOException thrown on errors writing the request
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		materializeEnvironment();
+		out.defaultWriteObject();
+	}
 
 
 	/**
@@ -191,6 +289,7 @@ public class DefaultNailgunRequestImpl implements Serializable, NailgunRequest {
 	 * @param environment the environment to set
 	 */
 	public void setEnvironment(Properties environment) {
+		materializeEnvironment();
 		this.environment.putAll(environment);
 	}
 	
@@ -200,14 +299,32 @@ public class DefaultNailgunRequestImpl implements Serializable, NailgunRequest {
 	 * @param value The property value
 	 */
 	public void addToEnvironment(String key, String value) {
+		materializeEnvironment();
 		this.environment.setProperty(key, value);
 	}
 	
+	/**
+	 * Appends a raw environment chunk to the remote environment without decoding it. 
+	 * The chunk is parsed when the environment is first read through {@link #getEnvironment()}.
+	 * @param buffer The buffer to read the chunk from, starting at its reader index
+	 * @param length The number of bytes in the chunk (i.e. <code>KEY=VALUE</code>)
+	 */
+	public void addToEnvironment(ChannelBuffer buffer, int length) {
+		synchronized(environment) {
+			if(rawEnvironment==null) {
+				rawEnvironment = ChannelBuffers.dynamicBuffer(INITIAL_RAW_ENVIRONMENT_SIZE);
+			}
+			rawEnvironment.writeInt(length);
+			rawEnvironment.writeBytes(buffer, length);
+		}
+	}
+	
 	/**
 	 * Adds a property to the remote environment
 	 * @param line The property line (i.e. <code>KEY=VALUE</code>)
 	 */
 	public void addToEnvironment(String line) {
+		materializeEnvironment();
 		int equalsIndex = line.indexOf('=');
 		if (equalsIndex > 0) {
 			environment.setProperty(line.substring(0, equalsIndex),line.substring(equalsIndex + 1));
@@ -240,10 +357,12 @@ public class DefaultNailgunRequestImpl implements Serializable, NailgunRequest {
 	 */
 	@Override
 	public InetAddress getRemoteAddress() {
-		return channel==null ? null : ((InetSocketAddress)channel.getRemoteAddress()).getAddress();
+		SocketAddress address = channel==null ? null : channel.getRemoteAddress();
+		return (address instanceof InetSocketAddress) ? ((InetSocketAddress)address).getAddress() : null;
 	}
 	
 	public String printEnvironment() {
+		materializeEnvironment();
 		StringBuilder b = new StringBuilder(environment.size()*30);
 		TreeMap<?, ?> env = new TreeMap<Object, Object>(environment); 
 		for(Map.Entry<?, ?> entry: env.entrySet()) {
@@ -258,7 +377,8 @@ public class DefaultNailgunRequestImpl implements Serializable, NailgunRequest {
 	 */
 	@Override
 	public int getRemotePort() {
-		return channel==null ? -1: ((InetSocketAddress)channel.getRemoteAddress()).getPort();
+		SocketAddress address = channel==null ? null : channel.getRemoteAddress();
+		return (address instanceof InetSocketAddress) ? ((InetSocketAddress)address).getPort() : -1;
 	}
 	
 	/**
@@ -297,42 +417,78 @@ public class DefaultNailgunRequestImpl implements Serializable, NailgunRequest {
 
 	 */
 	
-	/** The input stream used when the command handler wishes to read the nailgun input stream as an output stream */
-	protected transient ConnectTimeoutPipedInputStream pipeIn = null;
+	/** The stream of the nailgun client's STDIN, created on first use by the decoder or the command handler */
+	protected transient ChunkQueueInputStream stdIn = null;
+	/** Indicates if the client has been signalled to start sending STDIN */
+	protected transient boolean stdInRequested = false;
+	/** The number of unread STDIN bytes at which reading from the client is suspended, or 0 for no flow control */
+	protected transient long stdInHighWaterMark = 0;
+	/** The number of unread STDIN bytes at which reading from the client is resumed */
+	protected transient long stdInLowWaterMark = 0;
+	
+	/**
+	 * Sets the STDIN water marks applied when the STDIN stream is created
+	 * @param highWaterMark The number of unread STDIN bytes at which reading from the client is suspended, or 0 for no flow control
+	 * @param lowWaterMark The number of unread STDIN bytes at which reading from the client is resumed
+	 */
+	public synchronized void setStdInFlowControl(long highWaterMark, long lowWaterMark) {
+		this.stdInHighWaterMark = highWaterMark;
+		this.stdInLowWaterMark = lowWaterMark;
+	}
 	
+	/**
+	 * Returns the stream of the nailgun client's STDIN, creating it on first use
+	 * @return the STDIN stream
+	 */
+	public synchronized ChunkQueueInputStream getStdIn() {
+		if(stdIn==null) {
+			stdIn = new ChunkQueueInputStream(DEFAULT_STDIN_TIMEOUT, TimeUnit.MILLISECONDS);
+			if(channel!=null && stdInHighWaterMark > 0) {
+				stdIn.setFlowControl(channel, stdInHighWaterMark, stdInLowWaterMark);
+			}
+		}
+		return stdIn;
+	}
 	
 	/**
 	 * {@inheritDoc}
-	 * @see org.helios.nailgun.NailgunRequest#getInputStream()
+	 * @see org.helios.nailgun.NailgunRequest#getInputStream(long, java.util.concurrent.TimeUnit)
 	 */
 	@Override
 	public InputStream getInputStream(long timeout, TimeUnit unit) {
-		if(pipeIn==null) {
-			pipeIn = new ConnectTimeoutPipedInputStream(timeout, unit);
-			sendStartStdInSignal();
+		ChunkQueueInputStream in = getStdIn();
+		in.setConnectTimeout(timeout, unit);
+		boolean request = false;
+		synchronized(this) {
+			request = !stdInRequested;
+			stdInRequested = true;
 		}
-		return pipeIn;
+		if(request) sendStartStdInSignal();
+		return in;
 	}
 	
 	/**
 	 * Sends a signal back to the nailgun client indicating that we're ready to accept the input stream
-	 * @param ctx The ChannelHandlerContext
-	 * @param channel The channel
 	 */
 	protected void sendStartStdInSignal() {
-		DownstreamMessageEvent dme = new DownstreamMessageEvent(channel, Channels.future(channel), STREAM_IN_READY, channel.getRemoteAddress());
-		//channel.getPipeline().sendDownstream(dme);
-		System.out.println("Sending STDIN READY");
+		// buffered output must reach the client ahead of the signal
+		if(writer!=null) writer.flush();
 		channel.write(STREAM_IN_READY).awaitUninterruptibly();
-		System.out.println("Sent STDIN READY");
 	}
 	
-	public void connectPipes(PipedOutputStream pipeOut, PipedInputStream delegatePipeIn) throws IOException {
-		delegatePipeIn.connect(pipeOut);
-		pipeIn.setPipeIn(delegatePipeIn);		
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.NailgunRequest#getWriter()
+	 */
+	@Override
+	public synchronized NailgunResponseWriter getWriter() {
+		if(writer==null) {
+			if(channel==null) throw new IllegalStateException("The request has no channel", new Throwable());
+			writer = new NailgunResponseWriter(channel);
+		}
+		return writer;
 	}
 	
-	
 	/**
 	 * {@inheritDoc}
 	 * @see org.helios.nailgun.NailgunRequest#out(java.lang.CharSequence)
@@ -340,15 +496,29 @@ public class DefaultNailgunRequestImpl implements Serializable, NailgunRequest {
 	@Override
 	public NailgunRequest out(CharSequence message) {
 		exitCode = 0;
-		ChannelBuffer header = ChannelBuffers.buffer(5);
-		header.writeInt(message.length());
-		header.writeByte(NailgunConstants.CHUNKTYPE_STDOUT);
-		
-		ChannelBuffer response = ChannelBuffers.wrappedBuffer(
-				header,
-				ChannelBuffers.copiedBuffer(message, Charset.defaultCharset())
-		);
-		channel.getPipeline().sendDownstream(new DownstreamMessageEvent(channel, Channels.future(channel), response, channel.getRemoteAddress()));
+		getWriter().out(message);
+		return this;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.NailgunRequest#out(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	public NailgunRequest out(ChannelBuffer message) {
+		exitCode = 0;
+		getWriter().out(message);
+		return this;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.NailgunRequest#out(java.nio.ByteBuffer)
+	 */
+	@Override
+	public NailgunRequest out(ByteBuffer message) {
+		exitCode = 0;
+		getWriter().out(message);
 		return this;
 	}
 	
@@ -359,15 +529,29 @@ public class DefaultNailgunRequestImpl implements Serializable, NailgunRequest {
 	@Override
 	public NailgunRequest err(CharSequence message) {
 		exitCode = 1;
-		ChannelBuffer header = ChannelBuffers.buffer(5);
-		header.writeInt(message.length());
-		header.writeByte(NailgunConstants.CHUNKTYPE_STDERR);
-		
-		ChannelBuffer response = ChannelBuffers.wrappedBuffer(
-				header,
-				ChannelBuffers.copiedBuffer(message, Charset.defaultCharset())
-		);
-		channel.getPipeline().sendDownstream(new DownstreamMessageEvent(channel, Channels.future(channel), response, channel.getRemoteAddress()));
+		getWriter().err(message);
+		return this;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.NailgunRequest#err(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	public NailgunRequest err(ChannelBuffer message) {
+		exitCode = 1;
+		getWriter().err(message);
+		return this;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.NailgunRequest#err(java.nio.ByteBuffer)
+	 */
+	@Override
+	public NailgunRequest err(ByteBuffer message) {
+		exitCode = 1;
+		getWriter().err(message);
 		return this;
 	}
 	
@@ -386,15 +570,8 @@ public class DefaultNailgunRequestImpl implements Serializable, NailgunRequest {
 	 */
 	@Override
 	public void end(int exitCode) {
-		byte[] msg = ("" + exitCode + "\n").getBytes();
-		ChannelBuffer header = ChannelBuffers.buffer(msg.length + 5);
-		header.writeInt(msg.length);
-		header.writeByte(NailgunConstants.CHUNKTYPE_EXIT);
-		header.writeBytes(msg);
-		
-		//channel.getPipeline().sendDownstream(new DownstreamMessageEvent(channel, Channels.future(channel), header, channel.getRemoteAddress()));
-		channel.write(header).addListener(ChannelFutureListener.CLOSE);
-		//channel.close();		
+		// buffered output and the exit chunk go out in one write
+		getWriter().end(exitCode).addListener(ChannelFutureListener.CLOSE);
 	}
 
 
@@ -413,7 +590,7 @@ public class DefaultNailgunRequestImpl implements Serializable, NailgunRequest {
 	    	.append(TAB).append("channel:").append(this.channel)
 	        .append(TAB).append("command:").append(this.command)
 	        .append(TAB).append("workingDirectory:").append(this.workingDirectory)
-	        .append(TAB).append("environment:").append(this.environment.size()).append(" properties")
+	        .append(TAB).append("environment:").append(environmentSize()).append(" properties")
 	        .append(TAB).append("arguments:").append(this.arguments)
 	        .append(TAB).append("remoteAddress:").append(getRemoteAddress())
 	        .append(TAB).append("remotePort:").append(getRemotePort())
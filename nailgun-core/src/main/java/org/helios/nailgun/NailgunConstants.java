@@ -46,6 +46,32 @@ public class NailgunConstants {
 	//=========================================================================================
 	/** The default listening port */
 	public static final int DEFAULT_PORT = 2113;
+	/** The size of a chunk header: a 4 byte payload length followed by the 1 byte chunk type */
+	public static final int CHUNK_HEADER_SIZE = 5;
+	/** The default maximum payload size of a response chunk. Larger responses are streamed as multiple chunks */
+	public static final int DEFAULT_MAX_CHUNK_SIZE = 65536;
+	/** The default number of buffered bytes at which a response writer flushes */
+	public static final int DEFAULT_WRITER_FLUSH_SIZE = 8192;
+	/** The default time in ms that a response writer holds buffered bytes before flushing */
+	public static final long DEFAULT_WRITER_FLUSH_TIME = 10;
+	/** The default number of unread STDIN bytes at which reading from the client is suspended */
+	public static final long DEFAULT_STDIN_HIGH_WATER_MARK = 1048576;
+	/** The default number of unread STDIN bytes at which reading from the client is resumed */
+	public static final long DEFAULT_STDIN_LOW_WATER_MARK = 262144;
+	/** The exit code sent to the client when the requested command is saturated and the request was refused */
+	public static final int EXIT_SERVER_BUSY = 897;
+	/** The exit code sent to the client when its request was still running at the end of a draining server shutdown */
+	public static final int EXIT_SERVER_SHUTDOWN = 896;
+	/** The default time in ms a draining server shutdown lets in-flight requests finish */
+	public static final long DEFAULT_DRAIN_TIMEOUT = 10000;
+	/** The default number of synthetic warm-up requests per batch, over which a command's median latency is measured */
+	public static final int DEFAULT_WARMUP_BATCH_SIZE = 50;
+	/** The default maximum number of synthetic warm-up requests per command */
+	public static final int DEFAULT_WARMUP_MAX_RUNS = 2000;
+	/** The default relative change in median latency between two warm-up batches under which a command is settled */
+	public static final double DEFAULT_WARMUP_TOLERANCE = 0.1D;
+	/** The default time in ms a synthetic warm-up request is given to end */
+	public static final long DEFAULT_WARMUP_RUN_TIMEOUT = 5000;
 	//=========================================================================================
 	//		Payload Type Chunks
 	//=========================================================================================
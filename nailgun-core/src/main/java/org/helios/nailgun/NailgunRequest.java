@@ -2,9 +2,13 @@ package org.helios.nailgun;
 
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 
+import org.helios.nailgun.codecs.NailgunResponseWriter;
+import org.jboss.netty.buffer.ChannelBuffer;
+
 /**
  * <p>Title: NailgunRequest</p>
  * <p>Description: Defines a read-only nailgun request</p> 
@@ -31,6 +35,13 @@ public interface NailgunRequest {
 	 * @return the environment
 	 */
 	public abstract Properties getEnvironment();
+	
+	/**
+	 * Returns the value of one variable in the caller's environment
+	 * @param key The name of the environment variable
+	 * @return the value of the variable or null if it was not set
+	 */
+	public abstract String getEnv(String key);
 
 	/**
 	 * Returns the caller's command line arguments
@@ -67,6 +78,22 @@ public interface NailgunRequest {
 	 */
 	public abstract NailgunRequest out(CharSequence message);
 	
+	/**
+	 * Returns pre-encoded bytes back to the nail gun client's StdOut without copying them.
+	 * The buffer's reader index is not modified.
+	 * @param message The bytes to return
+	 * @return this request
+	 */
+	public abstract NailgunRequest out(ChannelBuffer message);
+	
+	/**
+	 * Returns pre-encoded bytes back to the nail gun client's StdOut without copying them.
+	 * The byte buffer's position is not modified.
+	 * @param message The bytes to return
+	 * @return this request
+	 */
+	public abstract NailgunRequest out(ByteBuffer message);
+	
 	/**
 	 * Returns a message back to the nail gun client's StdErr
 	 * @param message The message to return
@@ -75,7 +102,30 @@ public interface NailgunRequest {
 	public abstract NailgunRequest err(CharSequence message);
 	
 	/**
-	 * Terminates the response stream
+	 * Returns pre-encoded bytes back to the nail gun client's StdErr without copying them.
+	 * The buffer's reader index is not modified.
+	 * @param message The bytes to return
+	 * @return this request
+	 */
+	public abstract NailgunRequest err(ChannelBuffer message);
+	
+	/**
+	 * Returns pre-encoded bytes back to the nail gun client's StdErr without copying them.
+	 * The byte buffer's position is not modified.
+	 * @param message The bytes to return
+	 * @return this request
+	 */
+	public abstract NailgunRequest err(ByteBuffer message);
+	
+	/**
+	 * Returns the buffered writer for the response to the nail gun client. 
+	 * The {@link #out(CharSequence)} and {@link #err(CharSequence)} methods write through the same writer. 
+	 * @return the response writer
+	 */
+	public abstract NailgunResponseWriter getWriter();
+	
+	/**
+	 * Terminates the response stream, flushing any buffered output
 	 * @param exitCode The exit code to send the nailgun client
 	 */
 	public abstract void end(int exitCode);
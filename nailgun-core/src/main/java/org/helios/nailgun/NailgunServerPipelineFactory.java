@@ -26,13 +26,24 @@ package org.helios.nailgun;
 
 import static org.jboss.netty.channel.Channels.pipeline;
 
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 import org.helios.nailgun.codecs.NailgunRequestDecoder;
 import org.helios.nailgun.codecs.NailgunRequestDispatcher;
+import org.helios.nailgun.execution.ExecutionStage;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.handler.codec.string.StringEncoder;
-import org.jboss.netty.handler.execution.ExecutionHandler;
-import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.handler.logging.LoggingHandler;
 import org.jboss.netty.logging.InternalLogLevel;
 
@@ -45,15 +56,28 @@ import org.jboss.netty.logging.InternalLogLevel;
  */
 
 public class NailgunServerPipelineFactory implements ChannelPipelineFactory {
-	/** The request dispatcher */
-	protected final NailgunRequestDispatcher requestDispatcher = new NailgunRequestDispatcher();
-	/** The request executor which hands off the request to be processed by another thread */
-	protected final ExecutionHandler executionHandler = new ExecutionHandler(
-            new OrderedMemoryAwareThreadPoolExecutor(16, 1048576, 1048576));
-	/** The shareable nailgun request decoder */
-	protected final NailgunRequestDecoder requestDecoder = new NailgunRequestDecoder();
+	/** The interval in ms at which a draining shutdown checks for open client channels */
+	protected static final long DRAIN_POLL_INTERVAL = 20;
+	/** The time in ms a draining shutdown waits for the exit chunks sent to stragglers to be written */
+	protected static final long STRAGGLER_WRITE_TIMEOUT = 1000;
+	/** The execution stage which hands off the request to be processed by another thread */
+	protected final ExecutionStage executionStage = new ExecutionStage();
+	/** The request dispatcher, which hands requests queued by command bulkheads to the execution stage's pools */
+	protected final NailgunRequestDispatcher requestDispatcher = new NailgunRequestDispatcher(executionStage);
+	/** The channel group where all active client channels are maintained */
+	protected final ChannelGroup channelGroup = new DefaultChannelGroup("NailgunServer");
 	/** The shareable response encoder */
 	protected final StringEncoder responseEncoder = new StringEncoder();
+	/** Indicates if request environments are parsed lazily */
+	protected volatile boolean lazyEnvironment = true;
+	/** The number of unread STDIN bytes at which reading from a client is suspended, or 0 for no flow control */
+	protected volatile long stdInHighWaterMark = NailgunConstants.DEFAULT_STDIN_HIGH_WATER_MARK;
+	/** The number of unread STDIN bytes at which reading from a client is resumed */
+	protected volatile long stdInLowWaterMark = NailgunConstants.DEFAULT_STDIN_LOW_WATER_MARK;
+	/** The warm-up run before the server is bound */
+	protected final NailgunWarmup warmup = new NailgunWarmup();
+	/** Indicates if the server has been warmed up and bound, and is not shut down */
+	protected volatile boolean ready = false;
 	
 	/**
 	 * {@inheritDoc}
@@ -66,10 +90,163 @@ public class NailgunServerPipelineFactory implements ChannelPipelineFactory {
 		//pipeline.addLast("nailgun-logger", new LoggingHandler(InternalLogLevel.INFO, false));
 		//pipeline.addLast("nailgun-logger", new LoggingHandler(InternalLogLevel.INFO, false));
 		//pipeline.addLast("response-encoder", responseEncoder);
-		pipeline.addLast("nailgun-decoder", requestDecoder);
-		pipeline.addLast("nailgun-executor", executionHandler);
+		NailgunRequestDecoder decoder = new NailgunRequestDecoder(channelGroup, lazyEnvironment);
+		decoder.setStdInWaterMarks(stdInHighWaterMark, stdInLowWaterMark);
+		pipeline.addLast("nailgun-decoder", decoder);
+		pipeline.addLast("nailgun-executor", executionStage);
 		pipeline.addLast("nailgun-dispatcher", requestDispatcher);
 		return pipeline;
 	}
+	
+	/**
+	 * Starts the server: warms it up, then binds the bootstrap, which must use this pipeline factory. 
+	 * The server reports ready once it is bound, so clients connecting after that are served by warmed code.
+	 * @param bootstrap The server bootstrap
+	 * @param localAddress The address to bind to
+	 * @return the bound server channel
+	 */
+	public Channel start(ServerBootstrap bootstrap, SocketAddress localAddress) {
+		warmUp();
+		Channel serverChannel = bootstrap.bind(localAddress);
+		ready = true;
+		return serverChannel;
+	}
+	
+	/**
+	 * Warms up the server without binding it: loads the pipeline's handler classes, then runs the {@link NailgunWarmup}
+	 * @return the outcome for each command warmed up, keyed by command name
+	 */
+	public Map<String, NailgunWarmup.WarmupResult> warmUp() {
+		try {
+			getPipeline();
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed to create a pipeline", e);
+		}
+		return warmup.run();
+	}
+	
+	/**
+	 * Indicates if the server has been started through {@link #start(ServerBootstrap, SocketAddress)} and has not been shut down
+	 * @return true if the server is ready
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+	
+	/**
+	 * Returns the warm-up, through which the synthetic requests sent before the server is bound are configured
+	 * @return the warm-up
+	 */
+	public NailgunWarmup getWarmup() {
+		return warmup;
+	}
+	
+	/**
+	 * Shuts the server down, draining it first. The server channel is closed so no more connections are accepted, 
+	 * then requests already accepted are given until the timeout to finish. Requests still running after that are 
+	 * ended with {@link NailgunConstants#EXIT_SERVER_SHUTDOWN}, so their clients can tell a server restart from a 
+	 * failed command, and connections that have not sent a complete request are closed. Finally the execution 
+	 * pools are shut down. The caller remains responsible for releasing its bootstrap's channel factory.
+	 * Must not be called from a request handler thread.
+	 * @param serverChannel The bound server channel, or null if it has already been closed
+	 * @param timeout The time to let in-flight requests finish
+	 * @param unit The unit of the timeout
+	 * @return the number of requests that were ended with the shutdown exit code
+	 */
+	public int shutdown(Channel serverChannel, long timeout, TimeUnit unit) {
+		ready = false;
+		if(serverChannel!=null) {
+			serverChannel.close().awaitUninterruptibly();
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		// the group holds every client channel, including those still sending their request
+		while(!channelGroup.isEmpty() && System.nanoTime() < deadline) {
+			try {
+				Thread.sleep(DRAIN_POLL_INTERVAL);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		List<ChannelFuture> ends = new ArrayList<ChannelFuture>();
+		for(NailgunRequest request: requestDispatcher.getInFlightRequests()) {
+			try {
+				request.err("Server shutting down\n");
+				ChannelFuture end = request.getWriter().end(NailgunConstants.EXIT_SERVER_SHUTDOWN);
+				end.addListener(ChannelFutureListener.CLOSE);
+				ends.add(end);
+			} catch (IllegalStateException ise) {
+				// the handler ended the request meanwhile
+			}
+		}
+		long writeDeadline = System.currentTimeMillis() + STRAGGLER_WRITE_TIMEOUT;
+		for(ChannelFuture end: ends) {
+			end.awaitUninterruptibly(Math.max(1, writeDeadline - System.currentTimeMillis()));
+		}
+		channelGroup.close().awaitUninterruptibly(STRAGGLER_WRITE_TIMEOUT);
+		executionStage.releaseExternalResources();
+		return ends.size();
+	}
+	
+	/**
+	 * Returns the channel group where all active client channels are maintained
+	 * @return the channel group
+	 */
+	public ChannelGroup getChannelGroup() {
+		return channelGroup;
+	}
+	
+	/**
+	 * Returns the execution stage, through which the default pool can be replaced and isolated pools added for individual commands
+	 * @return the execution stage
+	 */
+	public ExecutionStage getExecutionStage() {
+		return executionStage;
+	}
+	
+	/**
+	 * Indicates if request environments are retained raw and only parsed when first read
+	 * @return true if request environments are parsed lazily
+	 */
+	public boolean isLazyEnvironment() {
+		return lazyEnvironment;
+	}
+	
+	/**
+	 * Sets the environment parsing mode for new connections
+	 * @param lazyEnvironment true to parse request environments when first read, false to parse them as they are decoded
+	 */
+	public void setLazyEnvironment(boolean lazyEnvironment) {
+		this.lazyEnvironment = lazyEnvironment;
+	}
+	
+	/**
+	 * Returns the number of unread STDIN bytes at which reading from a client is suspended
+	 * @return the STDIN high water mark, or 0 if STDIN is not flow controlled
+	 */
+	public long getStdInHighWaterMark() {
+		return stdInHighWaterMark;
+	}
+	
+	/**
+	 * Returns the number of unread STDIN bytes at which reading from a client is resumed
+	 * @return the STDIN low water mark
+	 */
+	public long getStdInLowWaterMark() {
+		return stdInLowWaterMark;
+	}
+	
+	/**
+	 * Sets the STDIN water marks for new connections. A handler that reads STDIN slower than the client sends it 
+	 * stops the connection being read once the high water mark of unread bytes is buffered, until it has read them 
+	 * down to the low water mark.
+	 * @param highWaterMark The number of unread STDIN bytes at which reading from a client is suspended, or 0 to disable flow control
+	 * @param lowWaterMark The number of unread STDIN bytes at which reading from a client is resumed
+	 */
+	public void setStdInWaterMarks(long highWaterMark, long lowWaterMark) {
+		if(highWaterMark < 0 || lowWaterMark < 0 || (highWaterMark > 0 && lowWaterMark >= highWaterMark)) throw new IllegalArgumentException("Invalid water marks. High:" + highWaterMark + " Low:" + lowWaterMark, new Throwable());
+		this.stdInHighWaterMark = highWaterMark;
+		this.stdInLowWaterMark = lowWaterMark;
+	}
 
 }
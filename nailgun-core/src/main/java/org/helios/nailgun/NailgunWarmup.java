@@ -0,0 +1,389 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.nailgun.handler.NailgunRequestHandler;
+import org.helios.nailgun.handler.RequestHandlerRegistry;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+
+/**
+ * <p>Title: NailgunWarmup</p>
+ * <p>Description: Warms up the registered request handlers before a server reports ready, so the first client requests 
+ * after a start are not served by interpreted code. Each command given argument sets is sent synthetic requests, 
+ * cycling through its argument sets, in batches. The argument sets only come from configuration: client traffic is 
+ * never captured. A synthetic request has no client: its STDIN is empty, its output is written to a channel that 
+ * discards it, and it completes when the handler ends it. A command is settled when the median latency of a batch is within the tolerance of the previous 
+ * batch's, and is abandoned when a request fails or does not end within the run timeout.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.NailgunWarmup</code></p>
+ */
+
+public class NailgunWarmup {
+	/** The internal logger */
+	protected final InternalLogger log = InternalLoggerFactory.getInstance(getClass());
+	/** The argument sets to send each command, keyed by command name */
+	protected final Map<String, List<String[]>> argumentSets = new LinkedHashMap<String, List<String[]>>();
+	/** The number of synthetic requests per batch */
+	protected volatile int batchSize = NailgunConstants.DEFAULT_WARMUP_BATCH_SIZE;
+	/** The maximum number of synthetic requests per command */
+	protected volatile int maxRuns = NailgunConstants.DEFAULT_WARMUP_MAX_RUNS;
+	/** The relative change in median latency between two batches under which a command is settled */
+	protected volatile double tolerance = NailgunConstants.DEFAULT_WARMUP_TOLERANCE;
+	/** The time in ms a synthetic request is given to end */
+	protected volatile long runTimeout = NailgunConstants.DEFAULT_WARMUP_RUN_TIMEOUT;
+	
+	/** The suffix of warm-up property names */
+	public static final String WARMUP_SUFFIX = ".warmup";
+	
+	/**
+	 * Adds an argument set to send a command during the warm-up
+	 * @param commandName The command name
+	 * @param arguments The arguments of one synthetic request
+	 * @return this warm-up
+	 */
+	public NailgunWarmup addArguments(String commandName, String...arguments) {
+		if(commandName==null || commandName.trim().isEmpty()) throw new IllegalArgumentException("Passed command name was empty or null", new Throwable());
+		String key = commandName.trim();
+		synchronized(argumentSets) {
+			List<String[]> sets = argumentSets.get(key);
+			if(sets==null) {
+				sets = new ArrayList<String[]>();
+				argumentSets.put(key, sets);
+			}
+			sets.add(arguments==null ? new String[0] : arguments.clone());
+		}
+		return this;
+	}
+	
+	/**
+	 * Removes the argument sets of a command, so it is no longer sent synthetic requests
+	 * @param commandName The command name
+	 */
+	public void removeArguments(String commandName) {
+		if(commandName==null) return;
+		synchronized(argumentSets) {
+			argumentSets.remove(commandName.trim());
+		}
+	}
+	
+	/**
+	 * Returns a copy of the argument sets keyed by command name
+	 * @return a map of argument set lists
+	 */
+	public Map<String, List<String[]>> getArguments() {
+		synchronized(argumentSets) {
+			Map<String, List<String[]>> copy = new LinkedHashMap<String, List<String[]>>();
+			for(Map.Entry<String, List<String[]>> entry: argumentSets.entrySet()) {
+				copy.put(entry.getKey(), new ArrayList<String[]>(entry.getValue()));
+			}
+			return copy;
+		}
+	}
+	
+	/**
+	 * Adds the argument sets defined by <code>[command].warmup</code> properties. The value holds one or more 
+	 * argument sets separated by <code>;</code>, each a whitespace separated argument list. Other properties are ignored.
+	 * @param properties The properties to load
+	 */
+	public void loadFromProperties(Properties properties) {
+		for(String key: properties.stringPropertyNames()) {
+			if(!key.endsWith(WARMUP_SUFFIX)) continue;
+			String commandName = key.substring(0, key.length() - WARMUP_SUFFIX.length());
+			for(String set: properties.getProperty(key).split(";")) {
+				String trimmed = set.trim();
+				addArguments(commandName, trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+"));
+			}
+		}
+	}
+	
+	/**
+	 * Sets how long each command is warmed up
+	 * @param batchSize The number of synthetic requests over which the median latency is measured
+	 * @param maxRuns The maximum number of synthetic requests per command
+	 * @param tolerance The relative change in median latency between two batches under which a command is settled
+	 */
+	public void setRuns(int batchSize, int maxRuns, double tolerance) {
+		if(batchSize<1) throw new IllegalArgumentException("Invalid batch size [" + batchSize + "]", new Throwable());
+		if(maxRuns<0) throw new IllegalArgumentException("Invalid max runs [" + maxRuns + "]", new Throwable());
+		if(tolerance<0) throw new IllegalArgumentException("Invalid tolerance [" + tolerance + "]", new Throwable());
+		this.batchSize = batchSize;
+		this.maxRuns = maxRuns;
+		this.tolerance = tolerance;
+	}
+	
+	/**
+	 * Sets the time a synthetic request is given to end before its command is abandoned
+	 * @param timeout The run timeout
+	 * @param unit The unit of the timeout
+	 */
+	public void setRunTimeout(long timeout, TimeUnit unit) {
+		if(timeout<1) throw new IllegalArgumentException("Invalid run timeout [" + timeout + "]", new Throwable());
+		this.runTimeout = unit.toMillis(timeout);
+	}
+	
+	/**
+	 * Returns the number of synthetic requests per batch
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * Returns the maximum number of synthetic requests per command
+	 * @return the max runs
+	 */
+	public int getMaxRuns() {
+		return maxRuns;
+	}
+	
+	/**
+	 * Returns the relative change in median latency between two batches under which a command is settled
+	 * @return the tolerance
+	 */
+	public double getTolerance() {
+		return tolerance;
+	}
+	
+	/**
+	 * Returns the time in ms a synthetic request is given to end
+	 * @return the run timeout
+	 */
+	public long getRunTimeout() {
+		return runTimeout;
+	}
+	
+	/**
+	 * Runs the warm-up on the calling thread
+	 * @return the outcome for each command given argument sets, keyed by command name
+	 */
+	public Map<String, WarmupResult> run() {
+		RequestHandlerRegistry registry = RequestHandlerRegistry.getInstance();
+		Map<String, WarmupResult> results = new LinkedHashMap<String, WarmupResult>();
+		for(Map.Entry<String, List<String[]>> entry: getArguments().entrySet()) {
+			WarmupResult result = warmUp(registry, entry.getKey(), entry.getValue());
+			log.info("Warm-up " + result);
+			results.put(entry.getKey(), result);
+		}
+		return results;
+	}
+	
+	/**
+	 * Sends one command synthetic requests until its latency settles
+	 * @param registry The handler registry
+	 * @param commandName The command name
+	 * @param sets The argument sets to cycle through
+	 * @return the outcome
+	 */
+	protected WarmupResult warmUp(RequestHandlerRegistry registry, String commandName, List<String[]> sets) {
+		NailgunRequestHandler handler = registry.lookup(commandName);
+		if(handler==null) return new WarmupResult(commandName, 0, -1, false, "no request handler");
+		int batch = batchSize, max = maxRuns;
+		long[] latencies = new long[batch];
+		long priorMedian = -1;
+		int runs = 0;
+		while(runs < max) {
+			int size = Math.min(batch, max - runs);
+			for(int i = 0; i < size; i++, runs++) {
+				long latency;
+				try {
+					latency = invoke(handler, commandName, sets.get(runs % sets.size()));
+				} catch (Throwable t) {
+					log.warn("Warm-up request for command [" + commandName + "] failed", t);
+					return new WarmupResult(commandName, runs, priorMedian, false, "failed: " + t);
+				}
+				if(latency<0) return new WarmupResult(commandName, runs, priorMedian, false, "timed out");
+				latencies[i] = latency;
+			}
+			if(size < batch) break;
+			Arrays.sort(latencies);
+			long median = latencies[batch/2];
+			if(priorMedian >= 0 && Math.abs(median - priorMedian) <= priorMedian * tolerance) {
+				return new WarmupResult(commandName, runs, median, true, null);
+			}
+			priorMedian = median;
+		}
+		return new WarmupResult(commandName, runs, priorMedian, false, null);
+	}
+	
+	/**
+	 * Sends a handler one synthetic request and waits for it to end
+	 * @param handler The request handler
+	 * @param commandName The command name
+	 * @param arguments The request arguments
+	 * @return the latency in ns, or -1 if the request did not end within the run timeout
+	 * @throws InterruptedException thrown if the thread is interrupted while waiting
+	 */
+	protected long invoke(NailgunRequestHandler handler, String commandName, String[] arguments) throws InterruptedException {
+		NullSink sink = new NullSink();
+		EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(sink);
+		DefaultNailgunRequestImpl request = new DefaultNailgunRequestImpl(commandName, System.getProperty("user.dir"), new Properties(), arguments);
+		request.setChannel(embedder.getPipeline().getChannel());
+		request.getStdIn().end();
+		long start = System.nanoTime();
+		handler.onNailgunRequest(request);
+		if(!sink.ended.await(runTimeout, TimeUnit.MILLISECONDS)) return -1;
+		return System.nanoTime() - start;
+	}
+	
+	/**
+	 * <p>Title: NullSink</p>
+	 * <p>Description: Discards the output written to a synthetic request's channel and signals when the request ends, 
+	 * which is when its channel is closed.</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.nailgun.NailgunWarmup.NullSink</code></p>
+	 */
+	private static class NullSink extends SimpleChannelDownstreamHandler {
+		/** Counted down when the request ends */
+		final CountDownLatch ended = new CountDownLatch(1);
+		
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelDownstreamHandler#writeRequested(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+		 */
+		@Override
+		public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) {
+			e.getFuture().setSuccess();
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelDownstreamHandler#closeRequested(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+		 */
+		@Override
+		public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) {
+			e.getFuture().setSuccess();
+			ended.countDown();
+		}
+	}
+	
+	/**
+	 * <p>Title: WarmupResult</p>
+	 * <p>Description: The outcome of warming up one command</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.nailgun.NailgunWarmup.WarmupResult</code></p>
+	 */
+	public static class WarmupResult {
+		/** The command name */
+		private final String commandName;
+		/** The number of synthetic requests sent */
+		private final int runs;
+		/** The median latency in ns of the last complete batch */
+		private final long medianLatency;
+		/** Indicates if the latency settled */
+		private final boolean settled;
+		/** The reason the command was abandoned */
+		private final String failure;
+		
+		/**
+		 * Creates a new WarmupResult
+		 * @param commandName The command name
+		 * @param runs The number of synthetic requests sent
+		 * @param medianLatency The median latency in ns of the last complete batch, or -1 if no batch completed
+		 * @param settled Indicates if the latency settled
+		 * @param failure The reason the command was abandoned, or null if it was not
+		 */
+		WarmupResult(String commandName, int runs, long medianLatency, boolean settled, String failure) {
+			this.commandName = commandName;
+			this.runs = runs;
+			this.medianLatency = medianLatency;
+			this.settled = settled;
+			this.failure = failure;
+		}
+		
+		/**
+		 * Returns the command name
+		 * @return the command name
+		 */
+		public String getCommandName() {
+			return commandName;
+		}
+		
+		/**
+		 * Returns the number of synthetic requests sent
+		 * @return the number of runs
+		 */
+		public int getRuns() {
+			return runs;
+		}
+		
+		/**
+		 * Returns the median latency of the last complete batch
+		 * @param unit The unit to return the latency in
+		 * @return the median latency, or -1 if no batch completed
+		 */
+		public long getMedianLatency(TimeUnit unit) {
+			return medianLatency<0 ? -1 : unit.convert(medianLatency, TimeUnit.NANOSECONDS);
+		}
+		
+		/**
+		 * Indicates if the command's latency settled before the max runs were sent
+		 * @return true if the latency settled
+		 */
+		public boolean isSettled() {
+			return settled;
+		}
+		
+		/**
+		 * Returns the reason the command was abandoned
+		 * @return the failure, or null if the command was not abandoned
+		 */
+		public String getFailure() {
+			return failure;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			StringBuilder b = new StringBuilder("[").append(commandName).append("] runs:").append(runs)
+				.append(" median:").append(getMedianLatency(TimeUnit.MICROSECONDS)).append("us");
+			if(failure!=null) b.append(" abandoned:").append(failure);
+			else b.append(settled ? " settled" : " unsettled");
+			return b.toString();
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.codecs;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import org.helios.nailgun.NailgunConstants;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+
+/**
+ * <p>Title: NailgunChunkFramer</p>
+ * <p>Description: Frames response payloads into nailgun chunks and writes them to a client channel.
+ * Character payloads are encoded straight into a buffer from the channel's buffer factory behind a reserved header,
+ * and the header is filled in with the encoded byte count. Byte payloads are framed without being copied.
+ * Payloads larger than the maximum chunk size are written as a sequence of chunks.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.codecs.NailgunChunkFramer</code></p>
+ */
+
+public class NailgunChunkFramer {
+	/** The channel the chunks are written to */
+	private final Channel channel;
+	/** The maximum payload size of one chunk */
+	private final int maxChunkSize;
+	/** The reusable encoder for character payloads */
+	private final CharsetEncoder encoder;
+	/** A surrogate pair, which an encoder must fit into one chunk as a unit */
+	private static final String SURROGATE_PAIR = new String(Character.toChars(0x1F600));
+	
+	/**
+	 * Creates a new NailgunChunkFramer using the default charset and maximum chunk size
+	 * @param channel The channel the chunks are written to
+	 */
+	public NailgunChunkFramer(Channel channel) {
+		this(channel, Charset.defaultCharset(), NailgunConstants.DEFAULT_MAX_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Creates a new NailgunChunkFramer
+	 * @param channel The channel the chunks are written to
+	 * @param charset The charset character payloads are encoded in
+	 * @param maxChunkSize The maximum payload size of one chunk
+	 */
+	public NailgunChunkFramer(Channel channel, Charset charset, int maxChunkSize) {
+		if(channel==null) throw new IllegalArgumentException("The passed channel was null", new Throwable());
+		if(charset==null) throw new IllegalArgumentException("The passed charset was null", new Throwable());
+		this.channel = channel;
+		this.encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		int minChunkSize = minChunkSize(encoder);
+		if(maxChunkSize < minChunkSize) throw new IllegalArgumentException("Invalid max chunk size [" + maxChunkSize + "], the minimum for charset [" + charset + "] is [" + minChunkSize + "]", new Throwable());
+		this.maxChunkSize = maxChunkSize;
+	}
+	
+	/**
+	 * Returns the smallest chunk payload that any single character, or surrogate pair, encodes into with the passed encoder.
+	 * A smaller chunk could never hold the character, so encoding it would make no progress.
+	 * @param encoder The encoder, which is left reset
+	 * @return the minimum max chunk size for the encoder
+	 */
+	static int minChunkSize(CharsetEncoder encoder) {
+		int min = (int)Math.ceil(encoder.maxBytesPerChar());
+		try {
+			// the per-char maximum does not cover a surrogate pair, e.g. 3 bytes per char in UTF-8 but 4 for a pair
+			min = Math.max(min, encoder.encode(CharBuffer.wrap(SURROGATE_PAIR)).remaining());
+		} catch (CharacterCodingException cce) {
+			// the replacing encoder does not report coding errors
+		} finally {
+			encoder.reset();
+		}
+		return min;
+	}
+	
+	/**
+	 * Encodes the passed message and writes it as one or more chunks of the passed type
+	 * @param chunkType The chunk type (e.g. {@link NailgunConstants#CHUNKTYPE_STDOUT})
+	 * @param message The message to write
+	 * @return the future of the last chunk written, or a succeeded future if the message was empty
+	 */
+	public synchronized ChannelFuture write(byte chunkType, CharSequence message) {
+		if(message==null || message.length()==0) return Channels.succeededFuture(channel);
+		final ChannelBufferFactory factory = channel.getConfig().getBufferFactory();
+		final CharBuffer in = CharBuffer.wrap(message);
+		ChannelFuture future = null;
+		boolean flushed = false;
+		encoder.reset();
+		while(!flushed) {
+			int estimate = (int)Math.ceil(in.remaining() * (double)encoder.maxBytesPerChar());
+			ChannelBuffer chunk = factory.getBuffer(NailgunConstants.CHUNK_HEADER_SIZE + Math.max(1, Math.min(maxChunkSize, estimate)));
+			ByteBuffer out = region(chunk, NailgunConstants.CHUNK_HEADER_SIZE, chunk.capacity() - NailgunConstants.CHUNK_HEADER_SIZE);
+			final int start = out.position();
+			CoderResult result = encoder.encode(in, out, true);
+			if(result.isUnderflow()) {
+				result = encoder.flush(out);
+				flushed = result.isUnderflow();
+			}
+			if(result.isError()) throwUnchecked(result);
+			int encoded = out.position() - start;
+			if(encoded > 0) {
+				chunk.setInt(0, encoded);
+				chunk.setByte(4, chunkType);
+				chunk.writerIndex(NailgunConstants.CHUNK_HEADER_SIZE + encoded);
+				future = Channels.write(channel, chunk);
+			}
+		}
+		return future==null ? Channels.succeededFuture(channel) : future;
+	}
+	
+	/**
+	 * Writes the readable bytes of the passed buffer as one or more chunks of the passed type without copying them.
+	 * The buffer's reader index is not modified.
+	 * @param chunkType The chunk type (e.g. {@link NailgunConstants#CHUNKTYPE_STDOUT})
+	 * @param payload The encoded payload
+	 * @return the future of the last chunk written, or a succeeded future if the payload was empty
+	 */
+	public ChannelFuture write(byte chunkType, ChannelBuffer payload) {
+		if(payload==null || !payload.readable()) return Channels.succeededFuture(channel);
+		ChannelFuture future = null;
+		int index = payload.readerIndex();
+		final int end = payload.writerIndex();
+		while(index < end) {
+			int length = Math.min(maxChunkSize, end - index);
+			future = Channels.write(channel, ChannelBuffers.wrappedBuffer(header(chunkType, length), payload.slice(index, length)));
+			index += length;
+		}
+		return future;
+	}
+	
+	/**
+	 * Writes the remaining bytes of the passed byte buffer as one or more chunks of the passed type without copying them.
+	 * The byte buffer's position is not modified.
+	 * @param chunkType The chunk type (e.g. {@link NailgunConstants#CHUNKTYPE_STDOUT})
+	 * @param payload The encoded payload
+	 * @return the future of the last chunk written, or a succeeded future if the payload was empty
+	 */
+	public ChannelFuture write(byte chunkType, ByteBuffer payload) {
+		if(payload==null || !payload.hasRemaining()) return Channels.succeededFuture(channel);
+		return write(chunkType, ChannelBuffers.wrappedBuffer(payload));
+	}
+	
+	/**
+	 * Returns the maximum payload size of one chunk
+	 * @return the maximum chunk size
+	 */
+	public int getMaxChunkSize() {
+		return maxChunkSize;
+	}
+	
+	/**
+	 * Creates a chunk header
+	 * @param chunkType The chunk type
+	 * @param length The payload length
+	 * @return the header buffer
+	 */
+	private static ChannelBuffer header(byte chunkType, int length) {
+		ChannelBuffer header = ChannelBuffers.buffer(NailgunConstants.CHUNK_HEADER_SIZE);
+		header.writeInt(length);
+		header.writeByte(chunkType);
+		return header;
+	}
+	
+	/**
+	 * Returns a writable view of a region of the passed buffer which shares its content. 
+	 * The region starts at the returned byte buffer's position.
+	 * @param buffer A buffer allocated from a channel buffer factory
+	 * @param index The index of the region
+	 * @param length The length of the region
+	 * @return a byte buffer sharing the region's content
+	 */
+	static ByteBuffer region(ChannelBuffer buffer, int index, int length) {
+		if(buffer.hasArray()) {
+			return ByteBuffer.wrap(buffer.array(), buffer.arrayOffset() + index, length);
+		}
+		return buffer.toByteBuffer(index, length);
+	}
+	
+	/**
+	 * Rethrows a coding error result, which the replacing encoder is not expected to report
+	 * @param result The coding error result
+	 */
+	static void throwUnchecked(CoderResult result) {
+		try {
+			result.throwException();
+		} catch (CharacterCodingException cce) {
+			throw new IllegalStateException("Failed to encode response", cce);
+		}
+	}
+}
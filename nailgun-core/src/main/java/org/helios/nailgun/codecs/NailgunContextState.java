@@ -24,9 +24,11 @@
  */
 package org.helios.nailgun.codecs;
 
-import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
 import org.helios.nailgun.DefaultNailgunRequestImpl;
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -53,8 +55,10 @@ import org.jboss.netty.buffer.ChannelBuffer;
 public class NailgunContextState {
 	/** The request created */
 	private DefaultNailgunRequestImpl message;
-	/** byte array buffer */
-	private byte[] bytes = null;
+	/** The reusable char buffer that chunk payloads are decoded into */
+	private char[] chars = new char[INITIAL_CHAR_BUFFER_SIZE];
+	/** The decoder for chunk payloads that are not plain ASCII, created on first use */
+	private CharsetDecoder decoder = null;
 	/** The type decoding state */
 	private DecodingState state = null;
 	/** The current chunk type */
@@ -62,30 +66,16 @@ public class NailgunContextState {
 	/** The number of bytes to read in the next event */
 	private int bytesToRead;
 	
+	/** The initial size of the reusable char buffer */
+	private static final int INITIAL_CHAR_BUFFER_SIZE = 256;
+	/** The charset that the nailgun client encodes chunk payloads in */
+	private static final Charset CHARSET = Charset.defaultCharset();
+	/** Indicates if {@link #CHARSET} encodes the 7 bit ASCII range as single identical bytes */
+	private static final boolean ASCII_COMPATIBLE = isAsciiCompatible(CHARSET);
+	
 	/** Indicates if the request decoder is ready to stream STDIN */
 	private boolean stdInReady = false;
 
-	/** The piped output stream to stream the nailgun client's input stream */
-	private PipedOutputStream pipeOut = null;
-	
-	/**
-	 * Initializes the piped output stream
-	 * @param initialSize The nailgun supplied byte count
-	 */
-	protected void initOutputStream(int initialSize) {
-		if(pipeOut==null) {
-			pipeOut = new PipedOutputStream();
-			PipedInputStream pipeIn = new PipedInputStream(initialSize);
-			try {
-				message.connectPipes(pipeOut, pipeIn);
-			} catch (IOException ioe) {
-				throw new RuntimeException("Failed to initialize nailgun stream pipe", ioe);
-			}
-		}
-	}
-	
-	
-
 	/**
 	 * Creates a new NailgunContextState
 	 */
@@ -116,12 +106,9 @@ public class NailgunContextState {
 	 * Cleans up any remaining state
 	 */
 	protected void cleanup() {
-		bytes = null;
 		state = null;
 		chunkType = -10;
 		bytesToRead = -1;
-		try { pipeOut.close(); } catch (Exception e) {}
-		pipeOut = null;
 		message = new DefaultNailgunRequestImpl();
 	}
 
@@ -144,25 +131,6 @@ public class NailgunContextState {
 		this.message = message;
 	}
 
-	/**
-	 * Returns
-	 * 
-	 * @return the bytes
-	 */
-	byte[] getBytes() {
-		return bytes;
-	}
-
-	/**
-	 * Sets
-	 * 
-	 * @param bytes
-	 *            the bytes to set
-	 */
-	void setBytes(byte[] bytes) {
-		this.bytes = bytes;
-	}
-
 	/**
 	 * Returns
 	 * 
@@ -213,39 +181,100 @@ public class NailgunContextState {
 	}
 
 	/**
-	 * Creates a new byte array sized by the current value of
-	 * <code>bytesToRead</code> and fills the array from the passed buffer
+	 * Reads <code>bytesToRead</code> bytes from the passed buffer and decodes them into a String.
+	 * The bytes are decoded straight out of the buffer into a reused char buffer, so the only allocation
+	 * is the returned String. Payloads that are not plain ASCII fall back to a reused {@link CharsetDecoder}.
 	 * 
 	 * @param buffer
 	 *            The channel buffer to read from
+	 * @return the decoded String
 	 */
-	void readBytes(ChannelBuffer buffer) {
-		bytes = new byte[bytesToRead];
-		buffer.readBytes(bytes);
+	String readString(ChannelBuffer buffer) {
+		final int len = bytesToRead;
+		if(len==0) return "";
+		// a view of the payload, which only copies if the payload spans cumulation buffer components
+		final ByteBuffer in = buffer.toByteBuffer(buffer.readerIndex(), len);
+		buffer.skipBytes(len);
+		if(ASCII_COMPATIBLE) {
+			if(chars.length < len) chars = new char[Math.max(len, chars.length << 1)];
+			final char[] c = chars;
+			int i = 0;
+			if(in.hasArray()) {
+				final byte[] b = in.array();
+				final int offset = in.arrayOffset() + in.position();
+				for(; i < len; i++) {
+					byte x = b[offset + i];
+					if(x < 0) break;
+					c[i] = (char)x;
+				}
+			} else {
+				final int offset = in.position();
+				for(; i < len; i++) {
+					byte x = in.get(offset + i);
+					if(x < 0) break;
+					c[i] = (char)x;
+				}
+			}
+			if(i==len) return new String(c, 0, len);
+		}
+		return decode(in, len);
 	}
 	
 	/**
-	 * Writes a chunk of nailgun client supplied stdin to the command handler's input stream
-	 * @param stdin The bytes to write
-	 * @throws IOException thrown on a stream write exception
+	 * Decodes the passed payload using the reusable charset decoder
+	 * @param in The payload to decode
+	 * @param len The number of bytes in the payload
+	 * @return the decoded String
 	 */
-	public void writeStdin(byte[] stdin) throws IOException {
-		pipeOut.write(stdin);
-		pipeOut.flush();
+	private String decode(ByteBuffer in, int len) {
+		if(decoder==null) {
+			decoder = CHARSET.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		int maxChars = (int)Math.ceil(len * (double)decoder.maxCharsPerByte());
+		if(chars.length < maxChars) chars = new char[Math.max(maxChars, chars.length << 1)];
+		CharBuffer out = CharBuffer.wrap(chars);
+		decoder.reset();
+		decoder.decode(in, out, true);
+		decoder.flush(out);
+		return new String(chars, 0, out.position());
 	}
 	
 	/**
-	 * Closes the nailgun client's std in stream
+	 * Determines if the passed charset encodes the 7 bit ASCII range as the same single bytes
+	 * @param charset The charset to test
+	 * @return true if ASCII bytes can be mapped directly to chars
 	 */
-	public void closeStdIn() {
+	private static boolean isAsciiCompatible(Charset charset) {
+		char[] ascii = new char[128];
+		for(int i = 0; i < ascii.length; i++) ascii[i] = (char)i;
 		try {
-			//pipeOut.write(-1);
-			pipeOut.flush();
-			pipeOut.close();
+			byte[] encoded = new String(ascii).getBytes(charset.name());
+			if(encoded.length!=ascii.length) return false;
+			for(int i = 0; i < encoded.length; i++) {
+				if(encoded[i]!=i) return false;
+			}
+			return true;
 		} catch (Exception e) {
-			
+			return false;
 		}
 	}
+	
+	/**
+	 * Passes a chunk of nailgun client supplied stdin to the command handler's input stream
+	 * @param stdin The chunk payload, which is handed to the stream without being copied
+	 */
+	public void writeStdin(ChannelBuffer stdin) {
+		message.getStdIn().offer(stdin);
+	}
+	
+	/**
+	 * Ends the nailgun client's std in stream
+	 */
+	public void closeStdIn() {
+		message.getStdIn().end();
+	}
 
 	/**
 	 * Returns
@@ -276,8 +305,7 @@ public class NailgunContextState {
 		final String TAB = "\n\t";
 		StringBuilder retValue = new StringBuilder("NailgunContextState [")
 				.append(TAB).append("message:").append(this.message)
-				.append(TAB).append("bytes:").append(this.bytes).append(TAB)
-				.append("state:").append(this.state).append(TAB)
+				.append(TAB).append("state:").append(this.state).append(TAB)
 				.append("chunkType:").append(this.chunkType).append(TAB)
 				.append("bytesToRead:").append(this.bytesToRead).append("\n]");
 		return retValue.toString();
@@ -29,15 +29,13 @@ import org.helios.nailgun.NailgunRequest;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.DownstreamMessageEvent;
-import org.jboss.netty.channel.UpstreamMessageEvent;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
-import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
 
@@ -54,24 +52,31 @@ import org.jboss.netty.logging.InternalLoggerFactory;
  * 	<li><b>WORKING_DIR</b></li>
  * 	<li><b>COMMAND</b></li>
  *  </ol></p>
+ * <p>Chunks are only consumed once the 5 byte header and the full payload are readable, so a chunk split across
+ * several TCP reads is simply left in the cumulation buffer until the remainder arrives, rather than being re-parsed.
+ * Since the decoder keeps per-connection cumulation state, a new instance is required for each pipeline.</p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>org.helios.nailgun.codecs.NailgunRequestDecoder</code></p>
  */
 
-public class NailgunRequestDecoder extends ReplayingDecoder<DecodingState>  {
-	/** The internal logger */
-	protected final InternalLogger log = InternalLoggerFactory.getInstance(getClass());
-	/** The request context */
-	//protected NailgunContextState ngcontext = new NailgunContextState();
+public class NailgunRequestDecoder extends FrameDecoder  {
+	/** The internal logger, static since a decoder is created for every connection */
+	protected static final InternalLogger log = InternalLoggerFactory.getInstance(NailgunRequestDecoder.class);
 	
 	/** The signal to send the client when we're ready to handle the stream input */
 	private static final ChannelBuffer STREAM_IN_READY = ChannelBuffers.buffer(5);
 	/** The signal to send the client when the stream input procesing is complete */
 	private static final ChannelBuffer STREAM_IN_DONE = ChannelBuffers.buffer(5);
 
-	/** THe channel group where all active channels are maintained */
-	private final ChannelGroup channelGroup = new DefaultChannelGroup("NailgunServer");
+	/** The channel group where all active channels are maintained */
+	private final ChannelGroup channelGroup;
+	/** Indicates if environment chunks are retained raw and only parsed when the request's environment is read */
+	private final boolean lazyEnvironment;
+	/** The number of unread STDIN bytes at which reading from the client is suspended, or 0 for no flow control */
+	private long stdInHighWaterMark = NailgunConstants.DEFAULT_STDIN_HIGH_WATER_MARK;
+	/** The number of unread STDIN bytes at which reading from the client is resumed */
+	private long stdInLowWaterMark = NailgunConstants.DEFAULT_STDIN_LOW_WATER_MARK;
 	
 	
 	static {
@@ -99,14 +104,42 @@ public class NailgunRequestDecoder extends ReplayingDecoder<DecodingState>  {
 	
 	/**
 	 * Creates a new NailgunRequestDecoder
+	 * @param channelGroup The channel group where all active channels are maintained
+	 * @param lazyEnvironment true to retain environment chunks raw until the request's environment is read, false to parse them as they arrive
 	 */
-	public NailgunRequestDecoder() {
+	public NailgunRequestDecoder(ChannelGroup channelGroup, boolean lazyEnvironment) {
+		if(channelGroup==null) throw new IllegalArgumentException("The passed channel group was null", new Throwable());
+		this.channelGroup = channelGroup;
+		this.lazyEnvironment = lazyEnvironment;
 		if(log.isDebugEnabled()) log.debug("Created NailgunRequestDecoder Instance");
-		checkpoint(DecodingState.BYTES);
-		//System.out.println("Created NailgunRequestDecoder Instance");
-		//reset();
+	}
+	
+	/**
+	 * Creates a new NailgunRequestDecoder with a lazily parsed environment
+	 * @param channelGroup The channel group where all active channels are maintained
+	 */
+	public NailgunRequestDecoder(ChannelGroup channelGroup) {
+		this(channelGroup, true);
+	}
+	
+	/**
+	 * Creates a new NailgunRequestDecoder with a private channel group and a lazily parsed environment
+	 */
+	public NailgunRequestDecoder() {
+		this(new DefaultChannelGroup("NailgunServer"));
 	}
 
+	/**
+	 * Sets the STDIN water marks of the requests decoded by this decoder
+	 * @param highWaterMark The number of unread STDIN bytes at which reading from the client is suspended, or 0 to disable flow control
+	 * @param lowWaterMark The number of unread STDIN bytes at which reading from the client is resumed
+	 */
+	public void setStdInWaterMarks(long highWaterMark, long lowWaterMark) {
+		if(highWaterMark < 0 || lowWaterMark < 0 || (highWaterMark > 0 && lowWaterMark >= highWaterMark)) throw new IllegalArgumentException("Invalid water marks. High:" + highWaterMark + " Low:" + lowWaterMark, new Throwable());
+		this.stdInHighWaterMark = highWaterMark;
+		this.stdInLowWaterMark = lowWaterMark;
+	}
+	
 	/**
 	 * Resets the decoder
 	 * @param ctx The channel handler context 
@@ -114,158 +147,79 @@ public class NailgunRequestDecoder extends ReplayingDecoder<DecodingState>  {
 	private void reset(ChannelHandlerContext ctx) {
 		if(log.isDebugEnabled()) log.debug("NailgunRequestDecoder Reset");
 		getContext(ctx).cleanup();
-        checkpoint(DecodingState.BYTES);        
     }
 
 	/**
-	 * Copies the decoding state into the current context and delegates the checkpoint to the super.
-	 * @param ctx The channel handler context 
-	 * @param state The current decoding state
-	 */
-	protected void checkpoint(ChannelHandlerContext ctx, DecodingState state) {
-		getContext(ctx).setState(state);
-		checkpoint(state);
-		if(log.isDebugEnabled()) log.debug("checkpoint:" + state);
-	}
-	
-	@Override
-	protected void checkpoint(DecodingState state) {
-		super.checkpoint(state);
-	}
-	
-	/**
+	 * Decodes at most one nailgun chunk from the passed buffer. Returns null without consuming anything 
+	 * if the header or payload of the next chunk is not fully readable yet.
 	 * {@inheritDoc}
-	 * @see org.jboss.netty.handler.codec.replay.ReplayingDecoder#decode(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.Channel, org.jboss.netty.buffer.ChannelBuffer, java.lang.Enum)
+	 * @see org.jboss.netty.handler.codec.frame.FrameDecoder#decode(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.Channel, org.jboss.netty.buffer.ChannelBuffer)
 	 */
 	@Override
-	protected NailgunRequest decode(final ChannelHandlerContext ctx, final Channel channel, ChannelBuffer buffer, DecodingState decodeState) throws Exception {
-		if(decodeState==null) return null;
+	protected Object decode(final ChannelHandlerContext ctx, final Channel channel, ChannelBuffer buffer) throws Exception {
 		NailgunContextState context = getContext(ctx);
-		context.setState(decodeState);
-		if(context.getMessage().getRemoteAddress()==null) {
-			channelGroup.add(channel);
-			channel.getCloseFuture().addListener(new ChannelFutureListener(){
-				@Override
-				public void operationComplete(ChannelFuture future) throws Exception {
-					channelGroup.remove(future.getChannel());
-				}
-			});
+		if(context.getMessage().getChannel()==null) {
 			context.getMessage().setChannel(channel);
 		}
-		while(true) {
-			switch(context.getState()) {
-				case BYTES:
-					// set the output stream in the nailgun request,
-					// create the piped input stream and connect it to the output stream
-					// and send the request upstream		
-					int bytesToRead = buffer.readInt();
-					if(log.isDebugEnabled()) log.debug("NG Chunk [BYTES]:" + bytesToRead);
-					context.setBytesToRead(bytesToRead);  
-//					if(context.isStdInReady()) {
-//						context.initOutputStream(bytesToRead);
-//						ctx.sendUpstream(new UpstreamMessageEvent(channel, context.getMessage(), channel.getRemoteAddress()));												
-//					}
-					checkpoint(ctx, DecodingState.TYPE);
-					break;
-				case TYPE:
-					byte type = buffer.readByte();
-					context.setChunkType(type);
-					checkpoint(ctx, context.getState());
-					if(log.isDebugEnabled()) log.debug("NG Chunk [TYPE]:" + NailgunConstants.decode(type));					
-					break;
-				case WORKING_DIR:
-					context.readBytes(buffer);
-					context.getMessage().setWorkingDirectory(new String(context.getBytes()));
-					checkpoint(ctx, DecodingState.BYTES);
-					if(log.isDebugEnabled()) log.debug("NG Chunk [WORKING_DIR]:" + context.getMessage().getWorkingDirectory());
-					break;
-				case ENVIRONMENT:
-					context.readBytes(buffer);
-					context.getMessage().addToEnvironment(new String(context.getBytes()));
-					checkpoint(ctx, DecodingState.BYTES);
-					//if(log.isDebugEnabled()) log.debug("NG Chunk [ENVIRONMENT]:" + new String(bytes));
-					break;
-				case ARGUMENTS:
-					context.readBytes(buffer);
-					context.getMessage().addArgument(new String(context.getBytes()));
-					checkpoint(ctx, DecodingState.BYTES);
-					if(log.isDebugEnabled()) log.debug("NG Chunk [ARGUMENTS]:" + new String(context.getBytes()));
-					break;			
-				case COMMAND:
-					context.readBytes(buffer);
-					context.getMessage().setCommand(new String(context.getBytes()));					
-					if(log.isDebugEnabled()) log.debug("NG Chunk [COMMAND]:" + context.getMessage().getCommand());
-					
-					
-					// at this point, we can complete the Nailgun request
-					// and send it for dispatch. However, since we have to kep processing
-					// a possible input stream from the client, we will keep the decoder looping
-					// on this request and simply send the NailgunRequest upstream. 
-					if(log.isDebugEnabled()) log.debug("Nailgun Client Complete:\n" + context.getMessage());
-					ctx.sendUpstream(new UpstreamMessageEvent(channel, context.getMessage(), channel.getRemoteAddress()));
-					checkpoint(ctx, DecodingState.BYTES);
-					context.setStdInReady(true);
-//					sendStartStdInSignal(ctx, channel);
-					
-					// If the client has input to send:
-					// 		1. It will send a DecodingState.BYTES with the number of bytes to read
-					//		2. It will send a DecodingState.TYPE which will be either:
-					//			2a.  STDIN the bytes to be read
-					//			2b.  STDIN_EOF indicating that the input stream is ended and no further bytes will be sent.
-					break;
-				case STDIN:
-					log.info("STDIN Bytes To Read:" + context.getBytesToRead());
-					context.initOutputStream(context.getBytesToRead());
-					byte[] stdin = new byte[context.getBytesToRead()-2];					
-					buffer.readBytes(stdin);
-					buffer.readByte();  buffer.readByte();
-					context.writeStdin(stdin);
-					checkpoint(ctx, DecodingState.TYPE);							
-				case STDIN_EOF:
-					// this means that the std in has completed
-					if(log.isDebugEnabled()) log.debug("STDIN EOF: NG Chunk [" + context.getState() + "]");
-					context.closeStdIn();
-					reset(ctx);
-					//sendCompletedStdInSignal(ctx, channel);
-					return null;
-//				case STARTINPUT:
-//					channel.write(NailgunConstants.CHUNKTYPE_STARTINPUT).awaitUninterruptibly();
-//					checkpoint(DecodingState.DEBUG);
-//					break;
-//				case STDIN_EOF:
-//					// the request is complete
-//					System.out.println(state);
-//				case STDIN:
-//					// starting to stream input
-//					System.out.println(state);
-//				case EXIT:
-//					// exit code from client
-//					System.out.println(state);
-//				case STARTINPUT:
-//					System.out.println(state);
-//				case STDERR:
-//					System.out.println(state);
-//				case STDOUT:
-//					System.out.println(state);
-				default:
-					
-					System.out.println("DEBUG:" + (char)buffer.readByte());
-//					while(true) {
-//						StringBuilder b = new StringBuilder();
-//						try {
-//							b.append((char)buffer.readByte());
-//							System.out.println(b);
-//						} catch (Throwable t) {
-//							System.out.println(b);
-//							done = true;
-//							break;
-//						}
-//						
-//					}
-//					done = true;
-					break;
-//					throw new IllegalStateException("Unhandled Decoding State: [" + state + "]", new Throwable());
-			}
+		int readable = buffer.readableBytes();
+		if(readable < NailgunConstants.CHUNK_HEADER_SIZE) return null;
+		int readerIndex = buffer.readerIndex();
+		int bytesToRead = buffer.getInt(readerIndex);
+		if(bytesToRead < 0) throw new IllegalStateException("Invalid chunk length [" + bytesToRead + "]", new Throwable());
+		if(readable - NailgunConstants.CHUNK_HEADER_SIZE < bytesToRead) return null;
+		// the whole chunk is available so consume the header
+		byte type = buffer.getByte(readerIndex + 4);
+		buffer.skipBytes(NailgunConstants.CHUNK_HEADER_SIZE);
+		context.setBytesToRead(bytesToRead);
+		context.setChunkType(type);
+		if(log.isDebugEnabled()) log.debug("NG Chunk [" + NailgunConstants.decode(type) + "]:" + bytesToRead);
+		switch(context.getState()) {
+			case WORKING_DIR:
+				context.getMessage().setWorkingDirectory(context.readString(buffer));
+				if(log.isDebugEnabled()) log.debug("NG Chunk [WORKING_DIR]:" + context.getMessage().getWorkingDirectory());
+				return null;
+			case ENVIRONMENT:
+				if(lazyEnvironment) {
+					context.getMessage().addToEnvironment(buffer, bytesToRead);
+				} else {
+					context.getMessage().addToEnvironment(context.readString(buffer));
+				}
+				return null;
+			case ARGUMENTS:
+				String arg = context.readString(buffer);
+				context.getMessage().addArgument(arg);
+				if(log.isDebugEnabled()) log.debug("NG Chunk [ARGUMENTS]:" + arg);
+				return null;
+			case COMMAND:
+				context.getMessage().setCommand(context.readString(buffer));					
+				if(log.isDebugEnabled()) log.debug("NG Chunk [COMMAND]:" + context.getMessage().getCommand());
+				// at this point, we can complete the Nailgun request
+				// and send it for dispatch. However, since we have to keep processing
+				// a possible input stream from the client, the decoder keeps decoding
+				// chunks on this connection once the request has been passed upstream. 
+				if(log.isDebugEnabled()) log.debug("Nailgun Client Complete:\n" + context.getMessage());
+				context.setStdInReady(true);
+				context.getMessage().setStdInFlowControl(stdInHighWaterMark, stdInLowWaterMark);
+				// If the client has input to send, each chunk will be either:
+				//		STDIN the bytes to be read
+				//		STDIN_EOF indicating that the input stream is ended and no further bytes will be sent.
+				return context.getMessage();
+			case STDIN:
+				if(log.isDebugEnabled()) log.debug("STDIN Bytes To Read:" + bytesToRead);
+				// the payload is handed to the request's stream as a slice of the received bytes
+				context.writeStdin(buffer.readSlice(bytesToRead));
+				return null;
+			case STDIN_EOF:
+				// this means that the std in has completed
+				if(log.isDebugEnabled()) log.debug("STDIN EOF: NG Chunk [" + context.getState() + "]");
+				buffer.skipBytes(bytesToRead);
+				context.closeStdIn();
+				reset(ctx);
+				return null;
+			default:
+				log.warn("Discarding unexpected NG Chunk [" + NailgunConstants.decode(type) + "] (" + bytesToRead + " bytes)");
+				buffer.skipBytes(bytesToRead);
+				return null;
 		}
 	}
 	
@@ -283,6 +237,30 @@ CHUNKTYPE_STARTINPUT:83:S
 
 	 */
 	
+	/**
+	 * Adds the channel to the channel group as soon as it opens, so a draining shutdown also waits for and closes 
+	 * connections that have not sent any data yet. The group removes the channel itself when it closes.
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#channelOpen(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+	 */
+	@Override
+	public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		channelGroup.add(e.getChannel());
+		super.channelOpen(ctx, e);
+	}
+	
+	/**
+	 * Ends the STDIN stream of the request in flight so that a handler reading it is not left waiting on a closed connection
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.handler.codec.frame.FrameDecoder#channelClosed(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+	 */
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		NailgunContextState context = (NailgunContextState) ctx.getAttachment();
+		if(context!=null) context.closeStdIn();
+		super.channelClosed(ctx, e);
+	}
+	
 	/**
 	 * Sends a signal back to the nailgun client indicating that we're ready to accept the input stream
 	 * @param ctx The ChannelHandlerContext
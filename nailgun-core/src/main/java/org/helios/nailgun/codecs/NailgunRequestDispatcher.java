@@ -24,9 +24,22 @@
  */
 package org.helios.nailgun.codecs;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.helios.nailgun.NailgunConstants;
 import org.helios.nailgun.NailgunRequest;
+import org.helios.nailgun.execution.ExecutionStage;
+import org.helios.nailgun.handler.CommandBulkhead;
 import org.helios.nailgun.handler.NailgunRequestHandler;
 import org.helios.nailgun.handler.RequestHandlerRegistry;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
@@ -52,7 +65,26 @@ import org.jboss.netty.logging.InternalLoggerFactory;
 public class NailgunRequestDispatcher extends SimpleChannelUpstreamHandler {
 	/** The internal logger */
 	protected final InternalLogger log = InternalLoggerFactory.getInstance(getClass());
-
+	/** The requests dispatched to handlers, keyed by their channel, until the channel closes */
+	protected final Map<Channel, NailgunRequest> inFlight = new ConcurrentHashMap<Channel, NailgunRequest>();
+	/** The execution stage whose pools run queued requests once they are admitted, or null to run each on a new thread */
+	protected final ExecutionStage executionStage;
+	
+	/**
+	 * Creates a new NailgunRequestDispatcher that runs requests queued by a command bulkhead on the pool of the passed 
+	 * execution stage that runs the command
+	 * @param executionStage The execution stage of the pipeline
+	 */
+	public NailgunRequestDispatcher(ExecutionStage executionStage) {
+		this.executionStage = executionStage;
+	}
+	
+	/**
+	 * Creates a new NailgunRequestDispatcher that runs each request queued by a command bulkhead on a new thread once it is admitted
+	 */
+	public NailgunRequestDispatcher() {
+		this(null);
+	}
 	
 	/**
 	 * Processes a {@link NailgunRequest}.
@@ -62,17 +94,184 @@ public class NailgunRequestDispatcher extends SimpleChannelUpstreamHandler {
 	 */
 	@Override
 	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
-		System.out.println("[" + Thread.currentThread().toString() + "] Processing NailgunRequest:\n" + e.getMessage());
+		if(log.isDebugEnabled()) log.debug("[" + Thread.currentThread().toString() + "] Processing NailgunRequest:\n" + e.getMessage());
 		Object message = e.getMessage();
 		if(message==null || !(message instanceof NailgunRequest)) {
 			log.warn("RequestDispatcher received invalid message [" + message + "]");
+			return;
 		}
 		NailgunRequest request = (NailgunRequest)message;
-		NailgunRequestHandler handler = RequestHandlerRegistry.getInstance().lookup(request);
+		RequestHandlerRegistry registry = RequestHandlerRegistry.getInstance();
+		NailgunRequestHandler handler = registry.lookup(request);
 		if(handler==null) {
 			request.err("No Command Handler for " + request.getCommand()+"\n").end();
-		} else {
+			return;
+		}
+		final Channel channel = ctx.getChannel();
+		inFlight.put(channel, request);
+		channel.getCloseFuture().addListener(new ChannelFutureListener() {
+			public void operationComplete(ChannelFuture future) {
+				inFlight.remove(channel);
+			}
+		});
+		final CommandBulkhead bulkhead = registry.getBulkhead(request.getCommand());
+		if(bulkhead==null) {
+			handler.onNailgunRequest(request);
+			return;
+		}
+		// the dispatching pool thread never waits for a permit: a saturated command queues the request in its bulkhead
+		final QueuedDispatch dispatch = new QueuedDispatch(handler, request, channel, bulkhead);
+		switch(bulkhead.submit(dispatch)) {
+			case ADMITTED:
+				runAdmitted(handler, request, channel, bulkhead);
+				break;
+			case QUEUED:
+				if(log.isDebugEnabled()) log.debug("Queued request for saturated command:" + bulkhead);
+				channel.getCloseFuture().addListener(new ChannelFutureListener() {
+					public void operationComplete(ChannelFuture future) {
+						// a client that disconnects while queued gives up its place
+						bulkhead.cancel(dispatch);
+					}
+				});
+				break;
+			default:
+				log.warn("Refused request for saturated command:" + bulkhead);
+				request.err("Server busy: command " + request.getCommand() + " is at capacity\n").end(NailgunConstants.EXIT_SERVER_BUSY);
+		}
+	}
+	
+	/**
+	 * Runs a request that holds a bulkhead permit
+	 * @param handler The request handler
+	 * @param request The request
+	 * @param channel The request's channel
+	 * @param bulkhead The bulkhead the permit was taken from
+	 */
+	protected void runAdmitted(NailgunRequestHandler handler, NailgunRequest request, Channel channel, CommandBulkhead bulkhead) {
+		// Handlers may complete the request asynchronously, so the permit is held until the client channel closes
+		BulkheadRelease release = new BulkheadRelease(bulkhead);
+		channel.getCloseFuture().addListener(release);
+		try {
 			handler.onNailgunRequest(request);
+		} catch (RuntimeException re) {
+			release.operationComplete(null);
+			throw re;
+		}
+	}
+	
+	/**
+	 * <p>Title: QueuedDispatch</p>
+	 * <p>Description: The dispatch task of a request queued by a saturated command's bulkhead. When the bulkhead gives it a 
+	 * permit, on the thread that freed the permit, it hands the request off to the pool that runs the command.</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.nailgun.codecs.NailgunRequestDispatcher.QueuedDispatch</code></p>
+	 */
+	protected class QueuedDispatch implements Runnable {
+		/** The request handler */
+		private final NailgunRequestHandler handler;
+		/** The queued request */
+		private final NailgunRequest request;
+		/** The request's channel */
+		private final Channel channel;
+		/** The bulkhead the request is queued in */
+		private final CommandBulkhead bulkhead;
+		
+		/**
+		 * Creates a new QueuedDispatch
+		 * @param handler The request handler
+		 * @param request The queued request
+		 * @param channel The request's channel
+		 * @param bulkhead The bulkhead the request is queued in
+		 */
+		QueuedDispatch(NailgunRequestHandler handler, NailgunRequest request, Channel channel, CommandBulkhead bulkhead) {
+			this.handler = handler;
+			this.request = request;
+			this.channel = channel;
+			this.bulkhead = bulkhead;
+		}
+		
+		/**
+		 * Hands the admitted request off to the pool that runs the command. If the pool refuses it, 
+		 * the request's permit is returned and its client is told the server is busy.
+		 * {@inheritDoc}
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			Runnable task = new Runnable() {
+				public void run() {
+					if(!channel.isOpen()) {
+						// the client left between the permit being freed and the hand off
+						bulkhead.release();
+						return;
+					}
+					try {
+						runAdmitted(handler, request, channel, bulkhead);
+					} catch (RuntimeException re) {
+						log.error("Exception handling queued request for command [" + request.getCommand() + "]", re);
+					}
+				}
+			};
+			if(executionStage==null) {
+				Thread t = new Thread(task, "NailgunQueuedRequest[" + request.getCommand() + "]");
+				t.setDaemon(true);
+				t.start();
+				return;
+			}
+			try {
+				executionStage.getPool(request.getCommand()).execute(task);
+			} catch (RejectedExecutionException ree) {
+				// the permit handed to this request is returned, or the next queued request would never start
+				bulkhead.release();
+				log.warn("Pool refused queued request for command [" + request.getCommand() + "]:" + bulkhead);
+				try {
+					request.err("Server busy: command " + request.getCommand() + " is at capacity\n").end(NailgunConstants.EXIT_SERVER_BUSY);
+				} catch (IllegalStateException ise) {
+					// the request was ended meanwhile
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the requests dispatched to handlers whose client channels are still open
+	 * @return a live, read only view of the in-flight requests
+	 */
+	public Collection<NailgunRequest> getInFlightRequests() {
+		return Collections.unmodifiableCollection(inFlight.values());
+	}
+	
+	/**
+	 * <p>Title: BulkheadRelease</p>
+	 * <p>Description: Returns a bulkhead permit exactly once, when the request's channel closes or the handler fails.</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.nailgun.codecs.NailgunRequestDispatcher.BulkheadRelease</code></p>
+	 */
+	private static class BulkheadRelease extends AtomicBoolean implements ChannelFutureListener {
+		/**  */
+		private static final long serialVersionUID = -3403617043745178196L;
+		/** The bulkhead to release the permit to */
+		private final CommandBulkhead bulkhead;
+		
+		/**
+		 * Creates a new BulkheadRelease
+		 * @param bulkhead The bulkhead to release the permit to
+		 */
+		BulkheadRelease(CommandBulkhead bulkhead) {
+			this.bulkhead = bulkhead;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.ChannelFutureListener#operationComplete(org.jboss.netty.channel.ChannelFuture)
+		 */
+		@Override
+		public void operationComplete(ChannelFuture future) {
+			if(compareAndSet(false, true)) {
+				bulkhead.release();
+			}
 		}
 	}
 	
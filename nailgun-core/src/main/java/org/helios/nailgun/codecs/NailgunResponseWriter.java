@@ -0,0 +1,400 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.codecs;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.helios.nailgun.NailgunConstants;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * <p>Title: NailgunResponseWriter</p>
+ * <p>Description: A buffered writer for a nailgun response. StdOut and StdErr output is gathered, in the order it is written, 
+ * as chunk frames in one buffer which is written to the client when it reaches the flush size, when the oldest buffered output 
+ * reaches the flush time, when {@link #flush()} is called, or when the response is ended. Consecutive writes to the same stream 
+ * are merged into one chunk up to the maximum chunk size.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.codecs.NailgunResponseWriter</code></p>
+ */
+
+public class NailgunResponseWriter {
+	/** The channel the response is written to */
+	private final Channel channel;
+	/** The maximum payload size of one chunk */
+	private final int maxChunkSize;
+	/** The reusable encoder for character output */
+	private final CharsetEncoder encoder;
+	/** The framer for pre-encoded output that is too large to buffer */
+	private final NailgunChunkFramer framer;
+	/** The number of buffered bytes at which the buffer is flushed */
+	private volatile int flushSize = NailgunConstants.DEFAULT_WRITER_FLUSH_SIZE;
+	/** The time in ms that buffered bytes are held before being flushed */
+	private volatile long flushTime = NailgunConstants.DEFAULT_WRITER_FLUSH_TIME;
+	/** The buffer the chunk frames are gathered in */
+	private ChannelBuffer buffer = null;
+	/** The index of the header of the open chunk frame in the buffer, or -1 if there is no open frame */
+	private int frameIndex = -1;
+	/** The chunk type of the open chunk frame */
+	private byte frameType = 0;
+	/** The scheduled timed flush, or null if none is scheduled */
+	private Timeout flushTimeout = null;
+	/** Indicates if the response has been ended */
+	private boolean ended = false;
+	
+	/** The task that flushes the buffer when the flush time elapses */
+	private final TimerTask flushTask = new TimerTask() {
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			synchronized(NailgunResponseWriter.this) {
+				if(flushTimeout==timeout) {
+					flushTimeout = null;
+					flush();
+				}
+			}
+		}
+	};
+	
+	/** The timer that schedules timed flushes */
+	private static volatile Timer timer = null;
+	/** The timer creation lock */
+	private static final Object lock = new Object();
+	/** A serial number factory for the timer threads */
+	private static final AtomicLong serial = new AtomicLong(0L);
+	
+	/**
+	 * Creates a new NailgunResponseWriter using the default charset and maximum chunk size
+	 * @param channel The channel the response is written to
+	 */
+	public NailgunResponseWriter(Channel channel) {
+		this(channel, Charset.defaultCharset(), NailgunConstants.DEFAULT_MAX_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Creates a new NailgunResponseWriter
+	 * @param channel The channel the response is written to
+	 * @param charset The charset character output is encoded in
+	 * @param maxChunkSize The maximum payload size of one chunk
+	 */
+	public NailgunResponseWriter(Channel channel, Charset charset, int maxChunkSize) {
+		if(channel==null) throw new IllegalArgumentException("The passed channel was null", new Throwable());
+		if(charset==null) throw new IllegalArgumentException("The passed charset was null", new Throwable());
+		this.channel = channel;
+		this.encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		// a frame must hold any one encoded character or output would never make progress
+		int minChunkSize = NailgunChunkFramer.minChunkSize(encoder);
+		if(maxChunkSize < minChunkSize) throw new IllegalArgumentException("Invalid max chunk size [" + maxChunkSize + "], the minimum for charset [" + charset + "] is [" + minChunkSize + "]", new Throwable());
+		this.maxChunkSize = maxChunkSize;
+		this.framer = new NailgunChunkFramer(channel, charset, maxChunkSize);
+	}
+	
+	/**
+	 * Returns the shared flush timer, creating it on first use
+	 * @return the flush timer
+	 */
+	private static Timer getTimer() {
+		if(timer==null) {
+			synchronized(lock) {
+				if(timer==null) {
+					timer = new HashedWheelTimer(new ThreadFactory(){
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "NailgunResponseWriterFlushThread#" + serial.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					}, 5, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		return timer;
+	}
+	
+	/**
+	 * Writes output to the client's StdOut
+	 * @param message The output
+	 * @return this writer
+	 */
+	public NailgunResponseWriter out(CharSequence message) {
+		return write(NailgunConstants.CHUNKTYPE_STDOUT, message);
+	}
+	
+	/**
+	 * Writes output to the client's StdErr
+	 * @param message The output
+	 * @return this writer
+	 */
+	public NailgunResponseWriter err(CharSequence message) {
+		return write(NailgunConstants.CHUNKTYPE_STDERR, message);
+	}
+	
+	/**
+	 * Writes pre-encoded output to the client's StdOut. The buffer's reader index is not modified.
+	 * @param message The output
+	 * @return this writer
+	 */
+	public NailgunResponseWriter out(ChannelBuffer message) {
+		return write(NailgunConstants.CHUNKTYPE_STDOUT, message);
+	}
+	
+	/**
+	 * Writes pre-encoded output to the client's StdErr. The buffer's reader index is not modified.
+	 * @param message The output
+	 * @return this writer
+	 */
+	public NailgunResponseWriter err(ChannelBuffer message) {
+		return write(NailgunConstants.CHUNKTYPE_STDERR, message);
+	}
+	
+	/**
+	 * Writes pre-encoded output to the client's StdOut. The byte buffer's position is not modified.
+	 * @param message The output
+	 * @return this writer
+	 */
+	public NailgunResponseWriter out(ByteBuffer message) {
+		return write(NailgunConstants.CHUNKTYPE_STDOUT, message==null ? null : ChannelBuffers.wrappedBuffer(message));
+	}
+	
+	/**
+	 * Writes pre-encoded output to the client's StdErr. The byte buffer's position is not modified.
+	 * @param message The output
+	 * @return this writer
+	 */
+	public NailgunResponseWriter err(ByteBuffer message) {
+		return write(NailgunConstants.CHUNKTYPE_STDERR, message==null ? null : ChannelBuffers.wrappedBuffer(message));
+	}
+	
+	/**
+	 * Encodes and buffers output of the passed chunk type. The buffer is flushed whenever it reaches the flush size, 
+	 * so a message larger than the flush size is never held whole.
+	 * @param chunkType The chunk type
+	 * @param message The output
+	 * @return this writer
+	 */
+	public synchronized NailgunResponseWriter write(byte chunkType, CharSequence message) {
+		if(message==null || message.length()==0) return this;
+		checkEnded();
+		final CharBuffer in = CharBuffer.wrap(message);
+		boolean flushed = false;
+		encoder.reset();
+		while(!flushed) {
+			int room = openFrame(chunkType);
+			int estimate = (int)Math.ceil(in.remaining() * (double)encoder.maxBytesPerChar());
+			int size = Math.max(1, Math.min(room, estimate));
+			buffer.ensureWritableBytes(size);
+			ByteBuffer out = NailgunChunkFramer.region(buffer, buffer.writerIndex(), size);
+			final int start = out.position();
+			CoderResult result = encoder.encode(in, out, true);
+			if(result.isUnderflow()) {
+				result = encoder.flush(out);
+				flushed = result.isUnderflow();
+			}
+			if(result.isError()) NailgunChunkFramer.throwUnchecked(result);
+			int encoded = out.position() - start;
+			buffer.writerIndex(buffer.writerIndex() + encoded);
+			int frameLength = buffer.getInt(frameIndex) + encoded;
+			buffer.setInt(frameIndex, frameLength);
+			// the next character did not fit in the room left in this frame
+			if(result.isOverflow() && size==room) frameIndex = -1;
+			// a large message is streamed out in flush sized writes rather than gathered whole
+			if(!flushed && buffer.readableBytes() >= flushSize) flush();
+		}
+		written();
+		return this;
+	}
+	
+	/**
+	 * Buffers pre-encoded output of the passed chunk type. Output larger than the flush size is not copied,
+	 * but written as framed slices after the buffered output.
+	 * @param chunkType The chunk type
+	 * @param message The output
+	 * @return this writer
+	 */
+	public synchronized NailgunResponseWriter write(byte chunkType, ChannelBuffer message) {
+		if(message==null || !message.readable()) return this;
+		checkEnded();
+		int index = message.readerIndex();
+		final int end = message.writerIndex();
+		if(end - index >= flushSize) {
+			flush();
+			framer.write(chunkType, message);
+			return this;
+		}
+		while(index < end) {
+			int length = Math.min(openFrame(chunkType), end - index);
+			buffer.writeBytes(message, index, length);
+			buffer.setInt(frameIndex, buffer.getInt(frameIndex) + length);
+			index += length;
+		}
+		written();
+		return this;
+	}
+	
+	/**
+	 * Writes any buffered output to the client
+	 * @return the future of the write, or a succeeded future if nothing was buffered
+	 */
+	public synchronized ChannelFuture flush() {
+		if(flushTimeout!=null) {
+			flushTimeout.cancel();
+			flushTimeout = null;
+		}
+		frameIndex = -1;
+		if(buffer==null || !buffer.readable()) return Channels.succeededFuture(channel);
+		ChannelBuffer flushing = buffer;
+		// the flushed buffer is owned by the channel until it is written so the next output needs a new one
+		buffer = null;
+		return Channels.write(channel, flushing);
+	}
+	
+	/**
+	 * Ends the response, writing any buffered output followed by the exit chunk, and closes the channel once written.
+	 * Subsequent writes are rejected.
+	 * @param exitCode The exit code to send the client
+	 * @return the future of the final write
+	 */
+	public synchronized ChannelFuture end(int exitCode) {
+		checkEnded();
+		byte[] msg = ("" + exitCode + "\n").getBytes();
+		frameIndex = -1;
+		ensureBuffer(NailgunConstants.CHUNK_HEADER_SIZE + msg.length);
+		buffer.writeInt(msg.length);
+		buffer.writeByte(NailgunConstants.CHUNKTYPE_EXIT);
+		buffer.writeBytes(msg);
+		ended = true;
+		ChannelFuture future = flush();
+		return future;
+	}
+	
+	/**
+	 * Indicates if the response has been ended
+	 * @return true if the response has been ended
+	 */
+	public synchronized boolean isEnded() {
+		return ended;
+	}
+	
+	/**
+	 * Returns the number of buffered bytes at which the buffer is flushed
+	 * @return the flush size
+	 */
+	public int getFlushSize() {
+		return flushSize;
+	}
+	
+	/**
+	 * Sets the number of buffered bytes at which the buffer is flushed
+	 * @param flushSize the flush size. A size of 1 flushes on every write
+	 * @return this writer
+	 */
+	public NailgunResponseWriter setFlushSize(int flushSize) {
+		if(flushSize < 1) throw new IllegalArgumentException("Invalid flush size [" + flushSize + "]", new Throwable());
+		this.flushSize = flushSize;
+		return this;
+	}
+	
+	/**
+	 * Returns the time in ms that buffered bytes are held before being flushed
+	 * @return the flush time in ms
+	 */
+	public long getFlushTime() {
+		return flushTime;
+	}
+	
+	/**
+	 * Sets the time that buffered bytes are held before being flushed
+	 * @param time The flush time. A time of 0 disables timed flushes so that output is only flushed by size, {@link #flush()} or at the end of the response
+	 * @param unit The unit of the flush time
+	 * @return this writer
+	 */
+	public NailgunResponseWriter setFlushTime(long time, TimeUnit unit) {
+		if(time < 0) throw new IllegalArgumentException("Invalid flush time [" + time + "]", new Throwable());
+		this.flushTime = TimeUnit.MILLISECONDS.convert(time, unit);
+		return this;
+	}
+	
+	/**
+	 * Ensures that a chunk frame of the passed type with room for more payload is open at the end of the buffer
+	 * @param chunkType The chunk type
+	 * @return the number of payload bytes that can be added to the open frame
+	 */
+	private int openFrame(byte chunkType) {
+		if(frameIndex!=-1 && frameType==chunkType) {
+			int room = maxChunkSize - buffer.getInt(frameIndex);
+			if(room > 0) return room;
+		}
+		ensureBuffer(NailgunConstants.CHUNK_HEADER_SIZE);
+		frameIndex = buffer.writerIndex();
+		frameType = chunkType;
+		buffer.writeInt(0);
+		buffer.writeByte(chunkType);
+		return maxChunkSize;
+	}
+	
+	/**
+	 * Allocates the buffer if there is none
+	 * @param minSize The minimum initial capacity
+	 */
+	private void ensureBuffer(int minSize) {
+		if(buffer==null) {
+			buffer = ChannelBuffers.dynamicBuffer(Math.max(minSize, Math.min(flushSize, maxChunkSize) + NailgunConstants.CHUNK_HEADER_SIZE), channel.getConfig().getBufferFactory());
+		}
+	}
+	
+	/**
+	 * Flushes the buffer if it has reached the flush size, otherwise schedules a timed flush if none is scheduled
+	 */
+	private void written() {
+		if(buffer.readableBytes() >= flushSize) {
+			flush();
+		} else if(flushTimeout==null && flushTime > 0) {
+			flushTimeout = getTimer().newTimeout(flushTask, flushTime, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Rejects output after the response has ended
+	 */
+	private void checkEnded() {
+		if(ended) throw new IllegalStateException("The response has already ended", new Throwable());
+	}
+}
@@ -0,0 +1,410 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.execution;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.util.internal.ExecutorUtil;
+
+/**
+ * <p>Title: ExecutionPool</p>
+ * <p>Description: A named executor which runs channel events handed off by an {@link ExecutionStage}, and tasks such as 
+ * the requests released by command bulkheads, and keeps queue length, active count, rejection and queue wait time 
+ * metrics, which are exposed through JMX as <code>org.helios.nailgun:service=ExecutionPool,name=&lt;name&gt;</code>.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.execution.ExecutionPool</code></p>
+ */
+
+public class ExecutionPool implements ExecutionPoolMBean {
+	/** The internal logger */
+	protected final InternalLogger log = InternalLoggerFactory.getInstance(getClass());
+	/** The pool name */
+	protected final String name;
+	/** The executor strategy */
+	protected final ExecutorStrategy strategy;
+	/** The configured number of threads */
+	protected final int threads;
+	/** The executor running the events */
+	protected final Executor executor;
+	/** The JMX ObjectName of this pool */
+	protected final ObjectName objectName;
+	
+	/** The number of events accepted */
+	protected final AtomicLong submitted = new AtomicLong(0L);
+	/** The number of events started */
+	protected final AtomicLong started = new AtomicLong(0L);
+	/** The number of events completed */
+	protected final AtomicLong completed = new AtomicLong(0L);
+	/** The number of events rejected */
+	protected final AtomicLong rejected = new AtomicLong(0L);
+	/** The total queue wait time of started events in ns */
+	protected final AtomicLong totalWait = new AtomicLong(0L);
+	/** The longest queue wait time of a started event in ns */
+	protected final AtomicLong maxWait = new AtomicLong(0L);
+	/** A serial number factory for the pool threads */
+	protected final AtomicLong serial = new AtomicLong(0L);
+	
+	/** The default number of threads */
+	public static final int DEFAULT_THREADS = 16;
+	/** The default maximum total size of the queued events per channel */
+	public static final long DEFAULT_MAX_CHANNEL_MEMORY = 1048576;
+	/** The default maximum total size of the queued events */
+	public static final long DEFAULT_MAX_TOTAL_MEMORY = 1048576;
+	
+	/**
+	 * Creates a new ExecutionPool with the default memory limits
+	 * @param name The pool name
+	 * @param strategy The executor strategy
+	 * @param threads The number of threads
+	 */
+	public ExecutionPool(String name, ExecutorStrategy strategy, int threads) {
+		this(name, strategy, threads, DEFAULT_MAX_CHANNEL_MEMORY, DEFAULT_MAX_TOTAL_MEMORY);
+	}
+	
+	/**
+	 * Creates a new ExecutionPool
+	 * @param name The pool name
+	 * @param strategy The executor strategy
+	 * @param threads The number of threads
+	 * @param maxChannelMemory The maximum total size of the queued events per channel, or 0 to disable
+	 * @param maxTotalMemory The maximum total size of the queued events, or 0 to disable
+	 */
+	public ExecutionPool(final String name, ExecutorStrategy strategy, int threads, long maxChannelMemory, long maxTotalMemory) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed name was null or empty", new Throwable());
+		if(strategy==null) throw new IllegalArgumentException("The passed strategy was null", new Throwable());
+		if(threads < 1) throw new IllegalArgumentException("Invalid thread count [" + threads + "]", new Throwable());
+		this.name = name.trim();
+		this.strategy = strategy;
+		this.threads = threads;
+		this.executor = strategy.create(threads, maxChannelMemory, maxTotalMemory, new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "NailgunExecution[" + ExecutionPool.this.name + "]#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.objectName = register();
+	}
+	
+	/**
+	 * Hands off the passed event to be sent upstream from the passed context by a pool thread
+	 * @param ctx The channel handler context the event is sent upstream from
+	 * @param e The channel event
+	 */
+	public void execute(ChannelHandlerContext ctx, ChannelEvent e) {
+		submitted.incrementAndGet();
+		try {
+			executor.execute(new PoolEventRunnable(ctx, e, executor));
+		} catch (RejectedExecutionException ree) {
+			submitted.decrementAndGet();
+			rejected.incrementAndGet();
+			throw ree;
+		}
+	}
+	
+	/**
+	 * Hands off the passed task to be run by a pool thread, recording it in the same metrics as handed off events
+	 * @param task The task to run
+	 * @throws RejectedExecutionException thrown if the executor refuses the task, for example because it has been shut down
+	 */
+	public void execute(Runnable task) {
+		if(task==null) throw new IllegalArgumentException("The passed task was null", new Throwable());
+		submitted.incrementAndGet();
+		try {
+			executor.execute(new PoolTaskRunnable(task));
+		} catch (RejectedExecutionException ree) {
+			submitted.decrementAndGet();
+			rejected.incrementAndGet();
+			throw ree;
+		}
+	}
+	
+	/**
+	 * Records the start of a handed off event or task
+	 * @param queuedAt The time the event or task was handed off in ns
+	 */
+	protected void recordStart(long queuedAt) {
+		long wait = System.nanoTime() - queuedAt;
+		started.incrementAndGet();
+		totalWait.addAndGet(wait);
+		long max = maxWait.get();
+		while(wait > max && !maxWait.compareAndSet(max, wait)) {
+			max = maxWait.get();
+		}
+	}
+	
+	/**
+	 * Shuts down the executor and unregisters the management interface
+	 */
+	public void shutdown() {
+		ExecutorUtil.terminate(executor);
+		if(objectName!=null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				log.debug("Failed to unregister ExecutionPool [" + objectName + "]", e);
+			}
+		}
+	}
+	
+	/**
+	 * Indicates if the executor has been shut down
+	 * @return true if the executor has been shut down
+	 */
+	public boolean isShutdown() {
+		return ExecutorUtil.isShutdown(executor);
+	}
+	
+	/**
+	 * Returns the executor running the events
+	 * @return the executor
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * Registers this pool's management interface, replacing a previously registered pool of the same name
+	 * @return the ObjectName or null if registration failed
+	 */
+	protected ObjectName register() {
+		try {
+			ObjectName on = new ObjectName("org.helios.nailgun:service=ExecutionPool,name=" + ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(on)) server.unregisterMBean(on);
+			server.registerMBean(this, on);
+			return on;
+		} catch (Exception e) {
+			log.warn("Failed to register ExecutionPool [" + name + "] management interface", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * <p>Title: PoolEventRunnable</p>
+	 * <p>Description: Sends a handed off event upstream and records its queue wait and completion. Since it is a 
+	 * {@link ChannelEventRunnable}, the ordered and memory aware executors order and size it by its channel event.</p> 
+	 */
+	protected class PoolEventRunnable extends ChannelEventRunnable {
+		/** The time the event was handed off in ns */
+		private final long queuedAt = System.nanoTime();
+		
+		/**
+		 * Creates a new PoolEventRunnable
+		 * @param ctx The channel handler context the event is sent upstream from
+		 * @param e The channel event
+		 * @param executor The executor running the event
+		 */
+		PoolEventRunnable(ChannelHandlerContext ctx, ChannelEvent e, Executor executor) {
+			super(ctx, e, executor);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.handler.execution.ChannelEventRunnable#doRun()
+		 */
+		@Override
+		protected void doRun() {
+			recordStart(queuedAt);
+			try {
+				ctx.sendUpstream(e);
+			} finally {
+				completed.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * <p>Title: PoolTaskRunnable</p>
+	 * <p>Description: Runs a handed off task and records its queue wait and completion</p> 
+	 */
+	protected class PoolTaskRunnable implements Runnable {
+		/** The time the task was handed off in ns */
+		private final long queuedAt = System.nanoTime();
+		/** The task */
+		private final Runnable task;
+		
+		/**
+		 * Creates a new PoolTaskRunnable
+		 * @param task The task
+		 */
+		PoolTaskRunnable(Runnable task) {
+			this.task = task;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			recordStart(queuedAt);
+			try {
+				task.run();
+			} finally {
+				completed.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.execution.ExecutionPoolMBean#getName()
+	 */
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.execution.ExecutionPoolMBean#getStrategy()
+	 */
+	@Override
+	public String getStrategy() {
+		return strategy.name();
+	}
+	
+	/**
+	 * Returns the executor strategy
+	 * @return the executor strategy
+	 */
+	public ExecutorStrategy getExecutorStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.execution.ExecutionPoolMBean#getThreads()
+	 */
+	@Override
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.execution.ExecutionPoolMBean#getQueueLength()
+	 */
+	@Override
+	public long getQueueLength() {
+		return Math.max(0, submitted.get() - started.get());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.execution.ExecutionPoolMBean#getActiveCount()
+	 */
+	@Override
+	public long getActiveCount() {
+		return Math.max(0, started.get() - completed.get());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.execution.ExecutionPoolMBean#getSubmittedCount()
+	 */
+	@Override
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.execution.ExecutionPoolMBean#getCompletedCount()
+	 */
+	@Override
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.execution.ExecutionPoolMBean#getRejectedCount()
+	 */
+	@Override
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.execution.ExecutionPoolMBean#getAverageWaitTime()
+	 */
+	@Override
+	public double getAverageWaitTime() {
+		long count = started.get();
+		return count==0 ? 0D : (totalWait.get() / (double)count) / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.helios.nailgun.execution.ExecutionPoolMBean#getMaxWaitTime()
+	 */
+	@Override
+	public double getMaxWaitTime() {
+		return maxWait.get() / (double)TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>Queued and active events are kept so that the queue length and active count stay accurate.
+	 * @see org.helios.nailgun.execution.ExecutionPoolMBean#resetMetrics()
+	 */
+	@Override
+	public void resetMetrics() {
+		long active = getActiveCount();
+		long queued = getQueueLength();
+		completed.set(0);
+		started.set(active);
+		submitted.set(active + queued);
+		rejected.set(0);
+		totalWait.set(0);
+		maxWait.set(0);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ExecutionPool [" + name + "/" + strategy + "/" + threads + "] queued:" + getQueueLength() + " active:" + getActiveCount() + " rejected:" + rejected.get();
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.execution;
+
+/**
+ * <p>Title: ExecutionPoolMBean</p>
+ * <p>Description: JMX management interface for {@link ExecutionPool}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.execution.ExecutionPoolMBean</code></p>
+ */
+
+public interface ExecutionPoolMBean {
+	/**
+	 * Returns the pool name
+	 * @return the pool name
+	 */
+	public String getName();
+	
+	/**
+	 * Returns the name of the executor strategy of the pool
+	 * @return the executor strategy name
+	 */
+	public String getStrategy();
+	
+	/**
+	 * Returns the configured number of threads
+	 * @return the number of threads
+	 */
+	public int getThreads();
+	
+	/**
+	 * Returns the number of events waiting to be run
+	 * @return the queue length
+	 */
+	public long getQueueLength();
+	
+	/**
+	 * Returns the number of events being run
+	 * @return the active count
+	 */
+	public long getActiveCount();
+	
+	/**
+	 * Returns the number of events accepted by the pool
+	 * @return the submitted count
+	 */
+	public long getSubmittedCount();
+	
+	/**
+	 * Returns the number of events the pool has run
+	 * @return the completed count
+	 */
+	public long getCompletedCount();
+	
+	/**
+	 * Returns the number of events the pool rejected
+	 * @return the rejected count
+	 */
+	public long getRejectedCount();
+	
+	/**
+	 * Returns the average time events waited in the queue before being run, in ms
+	 * @return the average wait time in ms
+	 */
+	public double getAverageWaitTime();
+	
+	/**
+	 * Returns the longest time an event waited in the queue before being run, in ms
+	 * @return the maximum wait time in ms
+	 */
+	public double getMaxWaitTime();
+	
+	/**
+	 * Resets the submitted, completed and rejected counts and the wait times
+	 */
+	public void resetMetrics();
+}
@@ -0,0 +1,183 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.execution;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.helios.nailgun.NailgunRequest;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.util.ExternalResourceReleasable;
+
+/**
+ * <p>Title: ExecutionStage</p>
+ * <p>Description: The pipeline stage that hands decoded requests off the I/O threads. A request is run by the 
+ * {@link ExecutionPool} registered for its command, if there is one, so that a slow command cannot starve the others, 
+ * and otherwise by the default pool. All other upstream events are run by the default pool.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.execution.ExecutionStage</code></p>
+ */
+@Sharable
+public class ExecutionStage implements ChannelUpstreamHandler, ExternalResourceReleasable {
+	/** The internal logger */
+	protected final InternalLogger log = InternalLoggerFactory.getInstance(getClass());
+	/** The pool for requests of commands without their own pool */
+	protected volatile ExecutionPool defaultPool;
+	/** The isolated pools keyed by command name */
+	protected final Map<String, ExecutionPool> commandPools = new ConcurrentHashMap<String, ExecutionPool>();
+	
+	/**
+	 * Creates a new ExecutionStage with a default ordered pool of {@link ExecutionPool#DEFAULT_THREADS} threads
+	 */
+	public ExecutionStage() {
+		this(new ExecutionPool("default", ExecutorStrategy.ORDERED, ExecutionPool.DEFAULT_THREADS));
+	}
+	
+	/**
+	 * Creates a new ExecutionStage
+	 * @param defaultPool The pool for requests of commands without their own pool
+	 */
+	public ExecutionStage(ExecutionPool defaultPool) {
+		if(defaultPool==null) throw new IllegalArgumentException("The passed default pool was null", new Throwable());
+		this.defaultPool = defaultPool;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.channel.ChannelUpstreamHandler#handleUpstream(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelEvent)
+	 */
+	@Override
+	public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+		ExecutionPool pool = null;
+		if(e instanceof MessageEvent && !commandPools.isEmpty()) {
+			Object message = ((MessageEvent)e).getMessage();
+			if(message instanceof NailgunRequest) {
+				String command = ((NailgunRequest)message).getCommand();
+				if(command!=null) pool = commandPools.get(command);
+			}
+		}
+		(pool==null ? defaultPool : pool).execute(ctx, e);
+	}
+	
+	/**
+	 * Replaces the default pool and shuts down the one it replaces
+	 * @param pool The new default pool
+	 */
+	public void setDefaultPool(ExecutionPool pool) {
+		if(pool==null) throw new IllegalArgumentException("The passed pool was null", new Throwable());
+		ExecutionPool prior = defaultPool;
+		defaultPool = pool;
+		if(prior!=pool) prior.shutdown();
+	}
+	
+	/**
+	 * Returns the pool for requests of commands without their own pool
+	 * @return the default pool
+	 */
+	public ExecutionPool getDefaultPool() {
+		return defaultPool;
+	}
+	
+	/**
+	 * Creates and registers an isolated pool for the passed command, replacing and shutting down any existing one. 
+	 * The pool is named after the command.
+	 * @param command The command name
+	 * @param strategy The executor strategy
+	 * @param threads The number of threads
+	 * @return the new pool
+	 */
+	public ExecutionPool addCommandPool(String command, ExecutorStrategy strategy, int threads) {
+		if(command==null || command.trim().isEmpty()) throw new IllegalArgumentException("The passed command was null or empty", new Throwable());
+		return addCommandPool(command, new ExecutionPool(command.trim(), strategy, threads));
+	}
+	
+	/**
+	 * Registers an isolated pool for the passed command, replacing and shutting down any existing one
+	 * @param command The command name
+	 * @param pool The pool to run the command's requests
+	 * @return the pool
+	 */
+	public ExecutionPool addCommandPool(String command, ExecutionPool pool) {
+		if(command==null || command.trim().isEmpty()) throw new IllegalArgumentException("The passed command was null or empty", new Throwable());
+		if(pool==null) throw new IllegalArgumentException("The passed pool was null", new Throwable());
+		ExecutionPool prior = commandPools.put(command.trim(), pool);
+		if(prior!=null && prior!=pool) prior.shutdown();
+		log.debug("Added execution pool [" + pool + "] for command [" + command + "]");
+		return pool;
+	}
+	
+	/**
+	 * Removes and shuts down the isolated pool for the passed command, if there is one. Subsequent requests for the command run in the default pool.
+	 * @param command The command name
+	 * @return true if a pool was removed
+	 */
+	public boolean removeCommandPool(String command) {
+		if(command==null) return false;
+		ExecutionPool prior = commandPools.remove(command.trim());
+		if(prior==null) return false;
+		prior.shutdown();
+		return true;
+	}
+	
+	/**
+	 * Returns the pool that runs requests for the passed command
+	 * @param command The command name
+	 * @return the command's pool, or the default pool if the command has no pool of its own
+	 */
+	public ExecutionPool getPool(String command) {
+		ExecutionPool pool = command==null ? null : commandPools.get(command.trim());
+		return pool==null ? defaultPool : pool;
+	}
+	
+	/**
+	 * Returns the isolated pools keyed by command name
+	 * @return a read only map of the command pools
+	 */
+	public Map<String, ExecutionPool> getCommandPools() {
+		return Collections.unmodifiableMap(commandPools);
+	}
+
+	/**
+	 * Shuts down all the pools
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.util.ExternalResourceReleasable#releaseExternalResources()
+	 */
+	@Override
+	public void releaseExternalResources() {
+		for(ExecutionPool pool: commandPools.values()) {
+			pool.shutdown();
+		}
+		commandPools.clear();
+		defaultPool.shutdown();
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.execution;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.logging.InternalLoggerFactory;
+
+/**
+ * <p>Title: ExecutorStrategy</p>
+ * <p>Description: Enumerates the kinds of executor that can run the requests handed off by an {@link ExecutionStage}.
+ * Strategies that need a newer JVM than the one running fall back to {@link #UNORDERED}.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.execution.ExecutorStrategy</code></p>
+ */
+
+public enum ExecutorStrategy {
+	/** A fixed, memory aware pool which runs the events of each channel in order */
+	ORDERED {
+		@Override
+		public Executor create(int threads, long maxChannelMemory, long maxTotalMemory, ThreadFactory threadFactory) {
+			return new OrderedMemoryAwareThreadPoolExecutor(threads, maxChannelMemory, maxTotalMemory, KEEP_ALIVE, TimeUnit.SECONDS, threadFactory);
+		}
+	},
+	/** A fixed, memory aware pool with no ordering between events */
+	UNORDERED {
+		@Override
+		public Executor create(int threads, long maxChannelMemory, long maxTotalMemory, ThreadFactory threadFactory) {
+			return new MemoryAwareThreadPoolExecutor(threads, maxChannelMemory, maxTotalMemory, KEEP_ALIVE, TimeUnit.SECONDS, threadFactory);
+		}
+	},
+	/** A work stealing <code>java.util.concurrent.ForkJoinPool</code> (Java 7+). Memory limits and the thread factory do not apply */
+	FORK_JOIN {
+		@Override
+		public boolean isAvailable() {
+			return FORK_JOIN_POOL!=null;
+		}
+		
+		@Override
+		public Executor create(int threads, long maxChannelMemory, long maxTotalMemory, ThreadFactory threadFactory) {
+			if(!isAvailable()) return fallback(threads, maxChannelMemory, maxTotalMemory, threadFactory);
+			try {
+				return (ExecutorService)FORK_JOIN_POOL.getConstructor(int.class).newInstance(threads);
+			} catch (Exception e) {
+				throw new RuntimeException("Failed to create ForkJoinPool", e);
+			}
+		}
+	},
+	/** A new virtual thread per request (Java 21+). Thread count, memory limits and the thread factory do not apply */
+	VIRTUAL {
+		@Override
+		public boolean isAvailable() {
+			return NEW_VIRTUAL_EXECUTOR!=null;
+		}
+		
+		@Override
+		public Executor create(int threads, long maxChannelMemory, long maxTotalMemory, ThreadFactory threadFactory) {
+			if(!isAvailable()) return fallback(threads, maxChannelMemory, maxTotalMemory, threadFactory);
+			try {
+				return (ExecutorService)NEW_VIRTUAL_EXECUTOR.invoke(null);
+			} catch (Exception e) {
+				throw new RuntimeException("Failed to create virtual thread executor", e);
+			}
+		}
+	};
+	
+	/**
+	 * Creates a new executor for this strategy
+	 * @param threads The number of threads in the pool
+	 * @param maxChannelMemory The maximum total size of the queued events per channel, or 0 to disable
+	 * @param maxTotalMemory The maximum total size of the queued events, or 0 to disable
+	 * @param threadFactory The factory for the pool's threads
+	 * @return the new executor
+	 */
+	public abstract Executor create(int threads, long maxChannelMemory, long maxTotalMemory, ThreadFactory threadFactory);
+	
+	/**
+	 * Indicates if this strategy is supported by the running JVM. If not, {@link #create(int, long, long, ThreadFactory)} falls back to {@link #UNORDERED}.
+	 * @return true if this strategy is supported
+	 */
+	public boolean isAvailable() {
+		return true;
+	}
+	
+	/**
+	 * Creates the fallback executor for a strategy the running JVM does not support
+	 * @param threads The number of threads in the pool
+	 * @param maxChannelMemory The maximum total size of the queued events per channel, or 0 to disable
+	 * @param maxTotalMemory The maximum total size of the queued events, or 0 to disable
+	 * @param threadFactory The factory for the pool's threads
+	 * @return the fallback executor
+	 */
+	protected Executor fallback(int threads, long maxChannelMemory, long maxTotalMemory, ThreadFactory threadFactory) {
+		InternalLoggerFactory.getInstance(ExecutorStrategy.class).warn("Executor strategy [" + name() + "] is not supported by this JVM. Falling back to [" + UNORDERED.name() + "]");
+		return UNORDERED.create(threads, maxChannelMemory, maxTotalMemory, threadFactory);
+	}
+	
+	/**
+	 * Decodes the passed name to an ExecutorStrategy, ignoring case
+	 * @param name The strategy name
+	 * @return the decoded ExecutorStrategy
+	 */
+	public static ExecutorStrategy forName(CharSequence name) {
+		if(name==null) throw new IllegalArgumentException("The passed name was null", new Throwable());
+		try {
+			return ExecutorStrategy.valueOf(name.toString().trim().toUpperCase());
+		} catch (Exception e) {
+			throw new IllegalArgumentException("The passed name [" + name + "] is not a valid ExecutorStrategy", new Throwable());
+		}
+	}
+	
+	/** The idle thread keep alive time in seconds for the thread pool strategies */
+	private static final long KEEP_ALIVE = 30;
+	/** The ForkJoinPool class, or null if the JVM does not have it */
+	private static final Class<?> FORK_JOIN_POOL = forkJoinPool();
+	/** The <code>Executors.newVirtualThreadPerTaskExecutor</code> method, or null if the JVM does not have it */
+	private static final Method NEW_VIRTUAL_EXECUTOR = newVirtualExecutor();
+	
+	/**
+	 * Looks up the ForkJoinPool class
+	 * @return the ForkJoinPool class or null if the JVM does not have it
+	 */
+	private static Class<?> forkJoinPool() {
+		try {
+			return Class.forName("java.util.concurrent.ForkJoinPool");
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Looks up the virtual thread executor factory method
+	 * @return the factory method or null if the JVM does not have it
+	 */
+	private static Method newVirtualExecutor() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+}
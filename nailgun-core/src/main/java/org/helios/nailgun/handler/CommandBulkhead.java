@@ -0,0 +1,247 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.handler;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>Title: CommandBulkhead</p>
+ * <p>Description: Bounds the number of concurrently executing and queued requests for one command.
+ * No thread ever waits for a permit: a request beyond the concurrency limit leaves a dispatch task in the bulkhead's 
+ * bounded queue and its dispatching thread moves on, and requests beyond the queue limit are refused outright so the 
+ * caller can fail fast. A queued dispatch is started, holding a permit, by the thread that frees the permit or raises 
+ * the limit, so dispatch tasks must only hand their request off to an executor. Both limits can be changed at any time.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.handler.CommandBulkhead</code></p>
+ */
+
+public class CommandBulkhead {
+	/** The command name this bulkhead guards */
+	private final String commandName;
+	/** The maximum number of concurrently executing requests */
+	private int maxConcurrent;
+	/** The maximum number of requests waiting for a permit */
+	private int maxQueued;
+	/** The number of executing requests */
+	private int active = 0;
+	/** The dispatch tasks of the requests waiting for a permit, in arrival order */
+	private final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+	/** The number of refused requests */
+	private long rejected = 0;
+	
+	/**
+	 * <p>Title: Admission</p>
+	 * <p>Description: The outcome of submitting a request to a bulkhead</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>org.helios.nailgun.handler.CommandBulkhead.Admission</code></p>
+	 */
+	public static enum Admission {
+		/** A permit was taken and the caller runs the request */
+		ADMITTED,
+		/** The dispatch task was queued and will be started when a permit is free */
+		QUEUED,
+		/** The command is saturated and the request was refused */
+		REJECTED;
+	}
+	
+	/**
+	 * Creates a new CommandBulkhead
+	 * @param commandName The command name this bulkhead guards
+	 * @param maxConcurrent The maximum number of concurrently executing requests
+	 * @param maxQueued The maximum number of requests waiting for a permit
+	 */
+	public CommandBulkhead(String commandName, int maxConcurrent, int maxQueued) {
+		if(commandName==null || commandName.trim().isEmpty()) throw new IllegalArgumentException("Passed command name was empty or null", new Throwable());
+		this.commandName = commandName.trim();
+		setLimits(maxConcurrent, maxQueued);
+	}
+	
+	/**
+	 * Changes the limits of this bulkhead. Raising the concurrency limit starts queued requests immediately, on the calling thread.
+	 * Lowering it lets executing requests complete, and queued requests are started as the active count drops below the new limit.
+	 * @param maxConcurrent The maximum number of concurrently executing requests
+	 * @param maxQueued The maximum number of requests waiting for a permit
+	 */
+	public void setLimits(int maxConcurrent, int maxQueued) {
+		if(maxConcurrent<1) throw new IllegalArgumentException("Invalid max concurrent [" + maxConcurrent + "] for command [" + commandName + "]", new Throwable());
+		if(maxQueued<0) throw new IllegalArgumentException("Invalid max queued [" + maxQueued + "] for command [" + commandName + "]", new Throwable());
+		List<Runnable> started;
+		synchronized(this) {
+			this.maxConcurrent = maxConcurrent;
+			this.maxQueued = maxQueued;
+			started = admitQueued();
+		}
+		start(started);
+	}
+	
+	/**
+	 * Submits a request. If a permit is free it is taken and the caller runs the request. Otherwise, if the queue has room, 
+	 * the passed dispatch task is queued and the caller must leave the request alone: the task is run once a permit has been 
+	 * taken for it. Every admitted request, and every started dispatch task, must be matched by exactly one call to {@link #release()}.
+	 * @param dispatch The task that hands the request off to be run, if it has to be queued
+	 * @return the admission of the request
+	 */
+	public synchronized Admission submit(Runnable dispatch) {
+		if(dispatch==null) throw new IllegalArgumentException("The passed dispatch task was null", new Throwable());
+		if(active < maxConcurrent) {
+			active++;
+			return Admission.ADMITTED;
+		}
+		if(queue.size() >= maxQueued) {
+			rejected++;
+			return Admission.REJECTED;
+		}
+		queue.add(dispatch);
+		return Admission.QUEUED;
+	}
+	
+	/**
+	 * Takes a permit if one is free, without queueing.
+	 * A successful acquire must be matched by exactly one call to {@link #release()}.
+	 * @return true if a permit was acquired, false if the concurrency limit has been reached
+	 */
+	public synchronized boolean tryAcquire() {
+		if(active < maxConcurrent) {
+			active++;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Removes a queued dispatch task, for example when the request's client disconnects while it waits
+	 * @param dispatch The dispatch task passed to {@link #submit(Runnable)}
+	 * @return true if the task was queued and has been removed, false if it has been started or was never queued
+	 */
+	public synchronized boolean cancel(Runnable dispatch) {
+		return queue.remove(dispatch);
+	}
+	
+	/**
+	 * Returns an execution permit, and starts the next queued request with it, on the calling thread, if one is waiting
+	 */
+	public void release() {
+		List<Runnable> started;
+		synchronized(this) {
+			if(active>0) active--;
+			started = admitQueued();
+		}
+		start(started);
+	}
+	
+	/**
+	 * Takes permits for as many queued dispatch tasks as the concurrency limit allows. Must be called holding the lock.
+	 * @return the dispatch tasks to start
+	 */
+	private List<Runnable> admitQueued() {
+		List<Runnable> started = null;
+		while(active < maxConcurrent && !queue.isEmpty()) {
+			if(started==null) started = new ArrayList<Runnable>(1);
+			started.add(queue.removeFirst());
+			active++;
+		}
+		return started;
+	}
+	
+	/**
+	 * Runs dispatch tasks that have been given permits. A task that fails returns its permit, and the others are still started.
+	 * @param started The dispatch tasks, or null if there are none
+	 * @throws RuntimeException the first exception thrown by a dispatch task
+	 */
+	private void start(List<Runnable> started) {
+		if(started==null) return;
+		RuntimeException failure = null;
+		for(Runnable dispatch: started) {
+			try {
+				dispatch.run();
+			} catch (RuntimeException re) {
+				if(failure==null) failure = re;
+				release();
+			}
+		}
+		if(failure!=null) throw failure;
+	}
+
+	/**
+	 * Returns the command name this bulkhead guards
+	 * @return the command name
+	 */
+	public String getCommandName() {
+		return commandName;
+	}
+
+	/**
+	 * Returns the maximum number of concurrently executing requests
+	 * @return the maximum number of concurrently executing requests
+	 */
+	public synchronized int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * Returns the maximum number of requests waiting for a permit
+	 * @return the maximum number of requests waiting for a permit
+	 */
+	public synchronized int getMaxQueued() {
+		return maxQueued;
+	}
+
+	/**
+	 * Returns the number of executing requests
+	 * @return the number of executing requests
+	 */
+	public synchronized int getActive() {
+		return active;
+	}
+
+	/**
+	 * Returns the number of requests waiting for a permit
+	 * @return the number of requests waiting for a permit
+	 */
+	public synchronized int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of refused requests
+	 * @return the number of refused requests
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		return "CommandBulkhead [" + commandName + "] active:" + active + "/" + maxConcurrent + " queued:" + queue.size() + "/" + maxQueued + " rejected:" + rejected;
+	}
+}
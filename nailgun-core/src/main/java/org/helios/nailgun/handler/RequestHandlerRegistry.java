@@ -24,6 +24,7 @@
  */
 package org.helios.nailgun.handler;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -46,6 +47,8 @@ public class RequestHandlerRegistry {
 	private final InternalLogger log = InternalLoggerFactory.getInstance(getClass());	
 	/** A map of request handlers keyed by command name */
 	private final Map<String, NailgunRequestHandler> requestHandlers = new ConcurrentHashMap<String, NailgunRequestHandler>();
+	/** A map of command bulkheads keyed by command name */
+	private final Map<String, CommandBulkhead> bulkheads = new ConcurrentHashMap<String, CommandBulkhead>();
 	/** The singleton instance */
 	private static volatile RequestHandlerRegistry instance = null;
 	/** The singleton instance ctor lock */
@@ -127,6 +130,69 @@ public class RequestHandlerRegistry {
 	}
 	
 	
+	/**
+	 * Returns a copy of the request handlers keyed by command name
+	 * @return a map of request handlers
+	 */
+	public Map<String, NailgunRequestHandler> getHandlers() {
+		return new HashMap<String, NailgunRequestHandler>(requestHandlers);
+	}
+
+	/**
+	 * Sets the concurrency and queue limits for a command. If the command already has a bulkhead, 
+	 * its limits are changed in place so in-flight and waiting requests are unaffected.
+	 * @param commandName The command name to limit
+	 * @param maxConcurrent The maximum number of concurrently executing requests for the command
+	 * @param maxQueued The maximum number of requests for the command waiting to execute
+	 * @return the command's bulkhead
+	 */
+	public CommandBulkhead setLimits(String commandName, int maxConcurrent, int maxQueued) {
+		if(commandName==null || commandName.trim().isEmpty()) throw new IllegalArgumentException("Passed command name was empty or null", new Throwable());
+		String key = commandName.trim();
+		synchronized(bulkheads) {
+			CommandBulkhead bulkhead = bulkheads.get(key);
+			if(bulkhead==null) {
+				bulkhead = new CommandBulkhead(key, maxConcurrent, maxQueued);
+				bulkheads.put(key, bulkhead);
+			} else {
+				bulkhead.setLimits(maxConcurrent, maxQueued);
+			}
+			log.debug("Set limits for command [" + key + "]:" + bulkhead);
+			return bulkhead;
+		}
+	}
+	
+	/**
+	 * Removes the limits for a command. Requests already holding or waiting for a permit complete normally.
+	 * @param commandName The command name to remove the limits for
+	 */
+	public void removeLimits(String commandName) {
+		if(commandName==null || commandName.trim().isEmpty()) return;
+		CommandBulkhead bulkhead = bulkheads.remove(commandName.trim());
+		if(bulkhead!=null) {
+			log.debug("Removed limits for command [" + commandName + "]");
+		}
+	}
+	
+	/**
+	 * Returns the bulkhead limiting the passed command
+	 * @param commandName The command name
+	 * @return the command's bulkhead or null if the command is not limited
+	 */
+	public CommandBulkhead getBulkhead(String commandName) {
+		if(commandName==null || bulkheads.isEmpty()) return null;
+		return bulkheads.get(commandName.trim());
+	}
+	
+	/**
+	 * Returns a copy of the bulkheads keyed by command name
+	 * @return a map of bulkheads
+	 */
+	public Map<String, CommandBulkhead> getBulkheads() {
+		return new HashMap<String, CommandBulkhead>(bulkheads);
+	}
+	
+	
 	/**
 	 * Acquires the RequestHandlerRegistry singleton
 	 * @return the RequestHandlerRegistry singleton
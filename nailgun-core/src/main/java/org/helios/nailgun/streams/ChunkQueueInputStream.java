@@ -0,0 +1,296 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+
+/**
+ * <p>Title: ChunkQueueInputStream</p>
+ * <p>Description: An input stream over the STDIN chunks received from a nailgun client. The decoder offers the payload 
+ * slices of the chunks as they arrive without copying them, and the bytes are only copied out when the consumer reads them.
+ * Offering never blocks. A reader blocked waiting for bytes is woken as soon as a chunk is offered or the stream is ended.</p>
+ * <p>Until the first chunk arrives or the stream is ended, a read waits at most for the connect timeout and then fails with a 
+ * {@link SocketTimeoutException}. Once the client has started sending, reads block until more input or the end of the stream.</p>
+ * <p>When flow control is enabled, the stream stops reading from the client's channel once the buffered bytes reach the high 
+ * water mark and resumes once the consumer has read them down to the low water mark, so the memory held per connection is 
+ * bounded and the I/O thread offering chunks never blocks.</p>
+ * <p>The stream supports one producer and one consumer thread.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.streams.ChunkQueueInputStream</code></p>
+ */
+
+public class ChunkQueueInputStream extends InputStream {
+	/** The received chunks not yet fully read */
+	private final ConcurrentLinkedQueue<ChannelBuffer> chunks = new ConcurrentLinkedQueue<ChannelBuffer>();
+	/** The thread parked waiting for input, if any */
+	private volatile Thread waiter = null;
+	/** Indicates that the client has sent its last chunk */
+	private volatile boolean ended = false;
+	/** Indicates that the consumer has closed the stream */
+	private volatile boolean closed = false;
+	/** Indicates that the first chunk has been received */
+	private volatile boolean started = false;
+	/** The time to wait in ns for the client to start sending */
+	private volatile long connectTimeout;
+	/** The number of bytes received but not yet read */
+	private final AtomicLong buffered = new AtomicLong(0L);
+	/** Indicates that reading from the channel has been suspended by this stream */
+	private final AtomicBoolean suspended = new AtomicBoolean(false);
+	/** The channel the chunks are read from, or null if flow control is disabled */
+	private volatile Channel channel = null;
+	/** The buffered byte count at which reading from the channel is suspended */
+	private volatile long highWaterMark = 0;
+	/** The buffered byte count at which reading from the channel is resumed */
+	private volatile long lowWaterMark = 0;
+	
+	/**
+	 * Creates a new ChunkQueueInputStream
+	 * @param timeout The time to wait for the client to start sending
+	 * @param unit The unit of the timeout
+	 */
+	public ChunkQueueInputStream(long timeout, TimeUnit unit) {
+		setConnectTimeout(timeout, unit);
+	}
+	
+	/**
+	 * Sets the time to wait for the client to start sending
+	 * @param timeout The timeout
+	 * @param unit The unit of the timeout
+	 */
+	public void setConnectTimeout(long timeout, TimeUnit unit) {
+		if(unit==null) throw new IllegalArgumentException("The passed unit was null", new Throwable());
+		connectTimeout = unit.toNanos(timeout);
+	}
+	
+	/**
+	 * Enables flow control against the channel the chunks are read from
+	 * @param channel The channel the chunks are read from
+	 * @param highWaterMark The buffered byte count at which reading from the channel is suspended
+	 * @param lowWaterMark The buffered byte count at which reading from the channel is resumed
+	 */
+	public void setFlowControl(Channel channel, long highWaterMark, long lowWaterMark) {
+		if(channel==null) throw new IllegalArgumentException("The passed channel was null", new Throwable());
+		if(highWaterMark < 1 || lowWaterMark < 0 || lowWaterMark >= highWaterMark) throw new IllegalArgumentException("Invalid water marks. High:" + highWaterMark + " Low:" + lowWaterMark, new Throwable());
+		this.highWaterMark = highWaterMark;
+		this.lowWaterMark = lowWaterMark;
+		this.channel = channel;
+	}
+	
+	/**
+	 * Indicates if reading from the channel is currently suspended by this stream
+	 * @return true if reading is suspended
+	 */
+	public boolean isSuspended() {
+		return suspended.get();
+	}
+	
+	/**
+	 * Adds a received chunk payload to the stream and wakes the reader. Chunks offered after the consumer has closed the stream are discarded.
+	 * @param chunk The chunk payload, which the stream takes ownership of
+	 */
+	public void offer(ChannelBuffer chunk) {
+		if(ended) throw new IllegalStateException("The stream has already ended", new Throwable());
+		if(closed || !chunk.readable()) return;
+		long total = buffered.addAndGet(chunk.readableBytes());
+		chunks.offer(chunk);
+		started = true;
+		LockSupport.unpark(waiter);
+		if(channel!=null && total >= highWaterMark && suspended.compareAndSet(false, true)) {
+			channel.setReadable(false);
+			// the consumer may have drained below the low water mark before reading was suspended
+			consumed(0);
+		}
+	}
+	
+	/**
+	 * Accounts for bytes removed from the stream and resumes reading from the channel if the buffered bytes have reached the low water mark
+	 * @param bytes The number of bytes removed
+	 */
+	private void consumed(long bytes) {
+		long total = bytes==0 ? buffered.get() : buffered.addAndGet(-bytes);
+		if(channel!=null && total <= lowWaterMark && suspended.compareAndSet(true, false)) {
+			channel.setReadable(true);
+		}
+	}
+	
+	/**
+	 * Marks the end of the client's input and wakes the reader
+	 */
+	public void end() {
+		ended = true;
+		LockSupport.unpark(waiter);
+	}
+	
+	/**
+	 * Indicates if the client has sent its last chunk
+	 * @return true if the input has ended
+	 */
+	public boolean isEnded() {
+		return ended;
+	}
+	
+	/**
+	 * Returns the number of bytes received but not yet read
+	 * @return the number of buffered bytes
+	 */
+	public long getBufferedBytes() {
+		return buffered.get();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		ChannelBuffer chunk = awaitChunk();
+		if(chunk==null) return -1;
+		int b = chunk.readByte() & 0xFF;
+		if(!chunk.readable()) chunks.poll();
+		consumed(1);
+		return b;
+	}
+	
+	/**
+	 * Reads up to <code>len</code> bytes, from as many received chunks as are readable without blocking
+	 * {@inheritDoc}
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+		if(len==0) return 0;
+		ChannelBuffer chunk = awaitChunk();
+		if(chunk==null) return -1;
+		int read = 0;
+		while(chunk!=null && read < len) {
+			int n = Math.min(len - read, chunk.readableBytes());
+			chunk.readBytes(b, off + read, n);
+			read += n;
+			if(!chunk.readable()) {
+				chunks.poll();
+				chunk = chunks.peek();
+			}
+		}
+		consumed(read);
+		return read;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.io.InputStream#skip(long)
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		ChannelBuffer chunk = chunks.peek();
+		while(chunk!=null && skipped < n) {
+			int s = (int)Math.min(n - skipped, chunk.readableBytes());
+			chunk.skipBytes(s);
+			skipped += s;
+			if(!chunk.readable()) {
+				chunks.poll();
+				chunk = chunks.peek();
+			}
+		}
+		if(skipped > 0) consumed(skipped);
+		return skipped;
+	}
+	
+	/**
+	 * Returns the number of bytes readable from the head chunk
+	 * {@inheritDoc}
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public int available() throws IOException {
+		ChannelBuffer chunk = chunks.peek();
+		return chunk==null ? 0 : chunk.readableBytes();
+	}
+	
+	/**
+	 * Closes the stream, discarding any unread and subsequently received input
+	 * {@inheritDoc}
+	 * @see java.io.InputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		chunks.clear();
+		// discarded input no longer holds back the channel
+		buffered.set(0);
+		consumed(0);
+		LockSupport.unpark(waiter);
+	}
+	
+	/**
+	 * Returns the head chunk, waiting for one if none is readable
+	 * @return the head chunk or null if the stream has ended
+	 * @throws IOException thrown if the stream is closed, if the client did not start sending before the connect timeout or if the reader was interrupted
+	 */
+	private ChannelBuffer awaitChunk() throws IOException {
+		ChannelBuffer chunk = chunks.peek();
+		if(chunk!=null) return chunk;
+		final long deadline = started ? 0 : System.nanoTime() + connectTimeout;
+		waiter = Thread.currentThread();
+		try {
+			while(true) {
+				if(closed) throw new IOException("Stream closed");
+				chunk = chunks.peek();
+				if(chunk!=null) return chunk;
+				// checked after the queue so that chunks offered before the end are read first
+				if(ended) {
+					chunk = chunks.peek();
+					return chunk;
+				}
+				if(started) {
+					LockSupport.park(this);
+				} else {
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) throw new SocketTimeoutException("Timed out waiting for the nailgun client to send input");
+					LockSupport.parkNanos(this, remaining);
+				}
+				if(Thread.interrupted()) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for input");
+				}
+			}
+		} finally {
+			waiter = null;
+		}
+	}
+}
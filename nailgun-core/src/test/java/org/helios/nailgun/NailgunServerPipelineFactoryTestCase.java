@@ -0,0 +1,176 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.nailgun.codecs.NailgunRequestDecoderTestCase;
+import org.helios.nailgun.handler.NailgunRequestHandler;
+import org.helios.nailgun.handler.RequestHandlerRegistry;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * <p>Title: NailgunServerPipelineFactoryTestCase</p>
+ * <p>Description: Test cases for the draining shutdown of {@link NailgunServerPipelineFactory}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.NailgunServerPipelineFactoryTestCase</code></p>
+ */
+
+public class NailgunServerPipelineFactoryTestCase {
+	/** A command that finishes shortly after the shutdown starts */
+	private static final String FINISHING = "drain-finishing";
+	/** A command that never finishes */
+	private static final String STUCK = "drain-stuck";
+	
+	/**
+	 * Removes the test handlers
+	 */
+	@After
+	public void tearDown() {
+		RequestHandlerRegistry.getInstance().remove(FINISHING, STUCK);
+	}
+	
+	/**
+	 * Sends a request for the passed command
+	 * @param port The server port
+	 * @param command The command
+	 * @return the connected client socket
+	 * @throws IOException thrown on any I/O error
+	 */
+	private static Socket send(int port, String command) throws IOException {
+		Socket socket = new Socket("127.0.0.1", port);
+		socket.setSoTimeout(10000);
+		ChannelBuffer request = NailgunRequestDecoderTestCase.request(command, 0);
+		socket.getOutputStream().write(request.array(), request.readerIndex(), request.readableBytes());
+		socket.getOutputStream().flush();
+		return socket;
+	}
+	
+	/**
+	 * Reads the response until the exit chunk
+	 * @param socket The client socket
+	 * @return the stderr output followed by the exit code
+	 * @throws IOException thrown on any I/O error
+	 */
+	private static String exit(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		StringBuilder err = new StringBuilder();
+		try {
+			while(true) {
+				byte[] payload = new byte[in.readInt()];
+				byte type = in.readByte();
+				in.readFully(payload);
+				if(type==NailgunConstants.CHUNKTYPE_STDERR) err.append(new String(payload, "UTF-8"));
+				if(type==NailgunConstants.CHUNKTYPE_EXIT) return err + new String(payload, "UTF-8").trim();
+			}
+		} finally {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Validates that a draining shutdown stops accepting connections, lets a running request finish
+	 * and ends a request still running at the deadline with the shutdown exit code. A connection that 
+	 * never sent any data is closed too.
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=20000)
+	public void testDrainingShutdown() throws Exception {
+		final CountDownLatch finishingStarted = new CountDownLatch(1);
+		final CountDownLatch stuckStarted = new CountDownLatch(1);
+		RequestHandlerRegistry registry = RequestHandlerRegistry.getInstance();
+		registry.register(new NailgunRequestHandler() {
+			public void onNailgunRequest(NailgunRequest request) {
+				finishingStarted.countDown();
+				try { Thread.sleep(500); } catch (InterruptedException ie) {}
+				request.out("finished\n").end();
+			}
+			public String getCommandName() {
+				return FINISHING;
+			}
+		});
+		registry.register(new NailgunRequestHandler() {
+			public void onNailgunRequest(NailgunRequest request) {
+				// leaves the request open
+				stuckStarted.countDown();
+			}
+			public String getCommandName() {
+				return STUCK;
+			}
+		});
+		NailgunServerPipelineFactory pipelineFactory = new NailgunServerPipelineFactory();
+		ServerBootstrap bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+		bootstrap.setPipelineFactory(pipelineFactory);
+		Channel serverChannel = bootstrap.bind(new InetSocketAddress("127.0.0.1", 0));
+		int port = ((InetSocketAddress)serverChannel.getLocalAddress()).getPort();
+		try {
+			Socket stuck = send(port, STUCK);
+			Socket finishing = send(port, FINISHING);
+			Socket silent = new Socket("127.0.0.1", port);
+			silent.setSoTimeout(10000);
+			assertTrue("Requests not dispatched", stuckStarted.await(5, TimeUnit.SECONDS) && finishingStarted.await(5, TimeUnit.SECONDS));
+			long joinDeadline = System.currentTimeMillis() + 5000;
+			while(pipelineFactory.getChannelGroup().size() < 3 && System.currentTimeMillis() < joinDeadline) {
+				Thread.sleep(10);
+			}
+			assertEquals("Silent connection not in the channel group", 3, pipelineFactory.getChannelGroup().size());
+			
+			long start = System.currentTimeMillis();
+			int stragglers = pipelineFactory.shutdown(serverChannel, 2, TimeUnit.SECONDS);
+			long elapsed = System.currentTimeMillis() - start;
+			assertEquals("Stragglers", 1, stragglers);
+			assertTrue("Shutdown did not wait for the drain:" + elapsed, elapsed >= 1900);
+			assertEquals("0", exit(finishing));
+			assertEquals("Server shutting down\n" + NailgunConstants.EXIT_SERVER_SHUTDOWN, exit(stuck));
+			assertEquals("Silent connection not closed", -1, silent.getInputStream().read());
+			silent.close();
+			assertTrue("Channels left open", pipelineFactory.getChannelGroup().isEmpty());
+			try {
+				new Socket("127.0.0.1", port).close();
+				fail("Connection accepted after shutdown");
+			} catch (ConnectException expected) {
+			}
+		} finally {
+			bootstrap.releaseExternalResources();
+		}
+	}
+}
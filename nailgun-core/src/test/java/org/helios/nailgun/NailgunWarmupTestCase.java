@@ -0,0 +1,195 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.nailgun.handler.NailgunRequestHandler;
+import org.helios.nailgun.handler.RequestHandlerRegistry;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * <p>Title: NailgunWarmupTestCase</p>
+ * <p>Description: Test cases for {@link NailgunWarmup} and the warmed start of {@link NailgunServerPipelineFactory}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.NailgunWarmupTestCase</code></p>
+ */
+
+public class NailgunWarmupTestCase {
+	/** A command that echoes its arguments */
+	private static final String ECHO = "warmup-echo";
+	/** A command that never ends its requests */
+	private static final String STUCK = "warmup-stuck";
+	/** The arguments of the requests received by the echo command */
+	private final List<String[]> received = new CopyOnWriteArrayList<String[]>();
+	
+	/**
+	 * Removes the test handlers
+	 */
+	@After
+	public void tearDown() {
+		RequestHandlerRegistry.getInstance().remove(ECHO, STUCK);
+	}
+	
+	/**
+	 * Registers the echo command
+	 */
+	private void registerEcho() {
+		RequestHandlerRegistry.getInstance().register(new NailgunRequestHandler() {
+			public void onNailgunRequest(NailgunRequest request) {
+				received.add(request.getArguments());
+				StringBuilder b = new StringBuilder();
+				for(String arg: request.getArguments()) {
+					b.append(arg).append("\n");
+				}
+				request.out(b).end();
+			}
+			public String getCommandName() {
+				return ECHO;
+			}
+		});
+	}
+	
+	/**
+	 * Validates that a command is sent its argument sets in turn, in batches, until its latency settles
+	 */
+	@Test(timeout=20000)
+	public void testSettles() {
+		registerEcho();
+		NailgunWarmup warmup = new NailgunWarmup();
+		warmup.addArguments(ECHO, "a", "b").addArguments(ECHO, "c");
+		// any change in latency is within the tolerance, so the second batch settles
+		warmup.setRuns(10, 1000, Double.MAX_VALUE);
+		Map<String, NailgunWarmup.WarmupResult> results = warmup.run();
+		NailgunWarmup.WarmupResult result = results.get(ECHO);
+		assertNotNull(result);
+		assertTrue(result.toString(), result.isSettled());
+		assertEquals(20, result.getRuns());
+		assertEquals(20, received.size());
+		assertArrayEquals(new String[]{"a", "b"}, received.get(0));
+		assertArrayEquals(new String[]{"c"}, received.get(1));
+		assertArrayEquals(new String[]{"a", "b"}, received.get(2));
+	}
+	
+	/**
+	 * Validates that a command whose latency does not settle is sent the max runs
+	 */
+	@Test(timeout=20000)
+	public void testMaxRuns() {
+		registerEcho();
+		NailgunWarmup warmup = new NailgunWarmup();
+		warmup.addArguments(ECHO);
+		// one complete batch has nothing to settle against and the partial second batch is not measured
+		warmup.setRuns(10, 15, 0D);
+		NailgunWarmup.WarmupResult result = warmup.run().get(ECHO);
+		assertEquals(15, received.size());
+		assertEquals(15, result.getRuns());
+		assertFalse(result.isSettled());
+		assertTrue(result.getMedianLatency(TimeUnit.NANOSECONDS) > 0);
+	}
+	
+	/**
+	 * Validates that a command whose requests do not end, and a command without a handler, are abandoned
+	 */
+	@Test(timeout=20000)
+	public void testAbandoned() {
+		RequestHandlerRegistry.getInstance().register(new NailgunRequestHandler() {
+			public void onNailgunRequest(NailgunRequest request) {
+				// leaves the request open
+			}
+			public String getCommandName() {
+				return STUCK;
+			}
+		});
+		NailgunWarmup warmup = new NailgunWarmup();
+		warmup.addArguments(STUCK).addArguments("warmup-unknown");
+		warmup.setRunTimeout(100, TimeUnit.MILLISECONDS);
+		Map<String, NailgunWarmup.WarmupResult> results = warmup.run();
+		assertEquals("timed out", results.get(STUCK).getFailure());
+		assertEquals(0, results.get(STUCK).getRuns());
+		assertEquals("no request handler", results.get("warmup-unknown").getFailure());
+		assertFalse(results.get("warmup-unknown").isSettled());
+	}
+	
+	/**
+	 * Validates the parsing of <code>[command].warmup</code> properties
+	 */
+	@Test
+	public void testLoadFromProperties() {
+		Properties p = new Properties();
+		p.setProperty(ECHO + NailgunWarmup.WARMUP_SUFFIX, "-v  one ; two;");
+		p.setProperty(ECHO + ".limit", "2");
+		NailgunWarmup warmup = new NailgunWarmup();
+		warmup.loadFromProperties(p);
+		Map<String, List<String[]>> arguments = warmup.getArguments();
+		assertEquals(1, arguments.size());
+		List<String[]> sets = arguments.get(ECHO);
+		assertEquals(2, sets.size());
+		assertArrayEquals(new String[]{"-v", "one"}, sets.get(0));
+		assertArrayEquals(new String[]{"two"}, sets.get(1));
+	}
+	
+	/**
+	 * Validates that a server started through its pipeline factory is warmed up before it is bound and reports ready
+	 * until it is shut down
+	 */
+	@Test(timeout=20000)
+	public void testWarmedStart() {
+		registerEcho();
+		NailgunServerPipelineFactory pipelineFactory = new NailgunServerPipelineFactory();
+		pipelineFactory.getWarmup().addArguments(ECHO, "x");
+		pipelineFactory.getWarmup().setRuns(5, 10, Double.MAX_VALUE);
+		ServerBootstrap bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+		bootstrap.setPipelineFactory(pipelineFactory);
+		assertFalse(pipelineFactory.isReady());
+		try {
+			Channel serverChannel = pipelineFactory.start(bootstrap, new InetSocketAddress("127.0.0.1", 0));
+			assertTrue(serverChannel.isBound());
+			assertTrue(pipelineFactory.isReady());
+			assertEquals(10, received.size());
+			pipelineFactory.shutdown(serverChannel, 1, TimeUnit.SECONDS);
+			assertFalse(pipelineFactory.isReady());
+		} finally {
+			bootstrap.releaseExternalResources();
+		}
+	}
+}
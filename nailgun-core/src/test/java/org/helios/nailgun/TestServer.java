@@ -59,14 +59,15 @@ public class TestServer {
 				new NioServerSocketChannelFactory(
 				Executors.newCachedThreadPool(),
 				Executors.newCachedThreadPool()));
-		bootstrap.setPipelineFactory(new NailgunServerPipelineFactory());
+		NailgunServerPipelineFactory pipelineFactory = new NailgunServerPipelineFactory();
+		bootstrap.setPipelineFactory(pipelineFactory);
 		bootstrap.setOption("child.tcpNoDelay", true);
 		bootstrap.setOption("child.receiveBufferSize", 1048576);
+		RequestHandlerRegistry.getInstance().register(new JMXCommandHandler());
 		 
-		// Bind and start to accept incoming connections.
+		// Warm up, then bind and start to accept incoming connections.
 		InetSocketAddress isock = new InetSocketAddress("0.0.0.0", NailgunConstants.DEFAULT_PORT);
-		bootstrap.bind(isock);
-		RequestHandlerRegistry.getInstance().register(new JMXCommandHandler());
+		pipelineFactory.start(bootstrap, isock);
 		System.out.println("Nailgun Server Started on [" + isock + "]");		
 	}
 	
@@ -0,0 +1,149 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.codecs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.helios.nailgun.NailgunConstants;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Title: NailgunChunkFramerTestCase</p>
+ * <p>Description: Test cases for {@link NailgunChunkFramer}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.codecs.NailgunChunkFramerTestCase</code></p>
+ */
+
+public class NailgunChunkFramerTestCase {
+	/** The UTF-8 charset */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** The embedder collecting the written chunks */
+	private EncoderEmbedder<ChannelBuffer> embedder;
+	
+	/**
+	 * Creates a new embedder for each test
+	 */
+	@Before
+	public void setUp() {
+		embedder = new EncoderEmbedder<ChannelBuffer>(new SimpleChannelDownstreamHandler());
+	}
+	
+	/**
+	 * Reads all the chunks written to the embedder, validating each header
+	 * @param chunkType The expected chunk type
+	 * @param maxChunkSize The maximum expected payload size
+	 * @return the concatenated payloads
+	 */
+	private ChannelBuffer readChunks(byte chunkType, int maxChunkSize) {
+		ChannelBuffer payloads = ChannelBuffers.dynamicBuffer();
+		ChannelBuffer chunk = null;
+		while((chunk = embedder.poll())!=null) {
+			int length = chunk.readInt();
+			assertEquals(chunkType, chunk.readByte());
+			assertEquals("Chunk length does not match payload", length, chunk.readableBytes());
+			assertEquals("Chunk exceeded max size", true, length <= maxChunkSize);
+			payloads.writeBytes(chunk);
+		}
+		return payloads;
+	}
+	
+	/**
+	 * Validates that the chunk length is the encoded byte count for multi-byte characters
+	 */
+	@Test
+	public void testMultiByteLength() {
+		NailgunChunkFramer framer = new NailgunChunkFramer(embedder.getPipeline().getChannel(), UTF8, 1024);
+		String message = "Gr\u00fc\u00dfe \u20ac\u20ac\u20ac\n";
+		framer.write(NailgunConstants.CHUNKTYPE_STDOUT, message);
+		ChannelBuffer chunk = embedder.poll();
+		assertEquals(message.getBytes(UTF8).length, chunk.getInt(0));
+		assertNull("Unexpected extra chunk", embedder.poll());
+		chunk.skipBytes(NailgunConstants.CHUNK_HEADER_SIZE);
+		assertEquals(message, chunk.toString(UTF8));
+	}
+	
+	/**
+	 * Validates that a large message is written as bounded chunks
+	 */
+	@Test
+	public void testBoundedChunks() {
+		NailgunChunkFramer framer = new NailgunChunkFramer(embedder.getPipeline().getChannel(), UTF8, 100);
+		StringBuilder b = new StringBuilder();
+		for(int i = 0; i < 1000; i++) {
+			b.append("java.lang:type=MemoryPool,name=Pool").append(i).append(" \u00e9\n");
+		}
+		framer.write(NailgunConstants.CHUNKTYPE_STDERR, b);
+		assertEquals(b.toString(), readChunks(NailgunConstants.CHUNKTYPE_STDERR, 100).toString(UTF8));
+	}
+	
+	/**
+	 * Validates that pre-encoded payloads are framed and split without changing their indexes
+	 */
+	@Test
+	public void testPreEncodedPayloads() {
+		NailgunChunkFramer framer = new NailgunChunkFramer(embedder.getPipeline().getChannel(), UTF8, 64);
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+		for(int i = 0; i < 50; i++) buffer.writeBytes("0123456789".getBytes());
+		framer.write(NailgunConstants.CHUNKTYPE_STDOUT, buffer);
+		assertEquals(0, buffer.readerIndex());
+		assertEquals(buffer, readChunks(NailgunConstants.CHUNKTYPE_STDOUT, 64));
+		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(200);
+		while(byteBuffer.hasRemaining()) byteBuffer.put((byte)'x');
+		byteBuffer.flip();
+		framer.write(NailgunConstants.CHUNKTYPE_STDOUT, byteBuffer);
+		assertEquals(0, byteBuffer.position());
+		assertEquals(ChannelBuffers.wrappedBuffer(byteBuffer), readChunks(NailgunConstants.CHUNKTYPE_STDOUT, 64));
+	}
+
+	
+	/**
+	 * Validates that a max chunk size too small for one encoded character is refused, since the encoder could never 
+	 * make progress, and that the smallest valid size frames surrogate pairs whole
+	 */
+	@Test
+	public void testMinimumChunkSize() {
+		try {
+			new NailgunChunkFramer(embedder.getPipeline().getChannel(), UTF8, 3);
+			fail("A chunk size too small for a surrogate pair was accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+		String message = "a\u00e9\u20ac" + new String(Character.toChars(0x1F600)) + "z";
+		new NailgunChunkFramer(embedder.getPipeline().getChannel(), UTF8, 4).write(NailgunConstants.CHUNKTYPE_STDOUT, message);
+		assertEquals(message, readChunks(NailgunConstants.CHUNKTYPE_STDOUT, 4).toString(UTF8));
+		new NailgunChunkFramer(embedder.getPipeline().getChannel(), Charset.forName("US-ASCII"), 1).write(NailgunConstants.CHUNKTYPE_STDOUT, "ab");
+		assertEquals("ab", readChunks(NailgunConstants.CHUNKTYPE_STDOUT, 1).toString(UTF8));
+	}
+}
@@ -0,0 +1,249 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.codecs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.helios.nailgun.DefaultNailgunRequestImpl;
+import org.helios.nailgun.NailgunConstants;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+/**
+ * <p>Title: NailgunRequestDecoderTestCase</p>
+ * <p>Description: Test cases for {@link NailgunRequestDecoder}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.codecs.NailgunRequestDecoderTestCase</code></p>
+ */
+
+public class NailgunRequestDecoderTestCase {
+	
+	/**
+	 * Appends a nailgun chunk to the passed buffer
+	 * @param buffer The buffer to write to
+	 * @param chunkType The chunk type
+	 * @param payload The chunk payload
+	 * @return the buffer
+	 */
+	public static ChannelBuffer chunk(ChannelBuffer buffer, byte chunkType, byte[] payload) {
+		buffer.writeInt(payload.length);
+		buffer.writeByte(chunkType);
+		buffer.writeBytes(payload);
+		return buffer;
+	}
+	
+	/**
+	 * Appends a nailgun text chunk to the passed buffer
+	 * @param buffer The buffer to write to
+	 * @param chunkType The chunk type
+	 * @param text The chunk text
+	 * @return the buffer
+	 */
+	public static ChannelBuffer chunk(ChannelBuffer buffer, byte chunkType, String text) {
+		return chunk(buffer, chunkType, text.getBytes());
+	}
+	
+	/**
+	 * Builds the header chunks of a nailgun request the way the ng client sends them
+	 * @param command The command
+	 * @param envCount The number of environment variables to send
+	 * @param args The arguments
+	 * @return a buffer containing the request
+	 */
+	public static ChannelBuffer request(String command, int envCount, String...args) {
+		ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+		for(String arg: args) {
+			chunk(buffer, NailgunConstants.CHUNKTYPE_ARGUMENT, arg);
+		}
+		for(int i = 0; i < envCount; i++) {
+			chunk(buffer, NailgunConstants.CHUNKTYPE_ENVIRONMENT, "VAR_" + i + "=value-" + i);
+		}
+		chunk(buffer, NailgunConstants.CHUNKTYPE_WORKINGDIRECTORY, "/home/nailgun");
+		chunk(buffer, NailgunConstants.CHUNKTYPE_COMMAND, command);
+		return buffer;
+	}
+	
+	/**
+	 * Validates a request delivered in a single buffer
+	 */
+	@Test
+	public void testDecodeSingleBuffer() {
+		DecoderEmbedder<DefaultNailgunRequestImpl> embedder = new DecoderEmbedder<DefaultNailgunRequestImpl>(new NailgunRequestDecoder());
+		embedder.offer(request("jmxattr", 100, "java.lang:type=Memory", "HeapMemoryUsage"));
+		DefaultNailgunRequestImpl request = embedder.poll();
+		assertNotNull("No request decoded", request);
+		assertEquals("jmxattr", request.getCommand());
+		assertEquals("/home/nailgun", request.getWorkingDirectory());
+		assertArrayEquals(new String[]{"java.lang:type=Memory", "HeapMemoryUsage"}, request.getArguments());
+		assertEquals(100, request.getEnvironment().size());
+		assertEquals("value-42", request.getEnvironment().getProperty("VAR_42"));
+		assertNull("Unexpected extra message", embedder.poll());
+	}
+	
+	/**
+	 * Validates a request delivered one byte per read so that every chunk is split across reads
+	 */
+	@Test
+	public void testDecodeFragmented() {
+		DecoderEmbedder<DefaultNailgunRequestImpl> embedder = new DecoderEmbedder<DefaultNailgunRequestImpl>(new NailgunRequestDecoder());
+		ChannelBuffer request = request("jmxattr", 10, "arg1", "", "arg3");
+		while(request.readable()) {
+			assertNull("Request decoded early", embedder.poll());
+			embedder.offer(request.readSlice(1));
+		}
+		DefaultNailgunRequestImpl decoded = embedder.poll();
+		assertNotNull("No request decoded", decoded);
+		assertEquals("jmxattr", decoded.getCommand());
+		assertArrayEquals(new String[]{"arg1", "", "arg3"}, decoded.getArguments());
+		assertEquals(10, decoded.getEnvironment().size());
+		assertEquals("value-9", decoded.getEnvironment().getProperty("VAR_9"));
+	}
+	
+	/**
+	 * Validates that single variables can be read from an unparsed environment and that
+	 * the parsed environment matches the eagerly decoded one
+	 */
+	@Test
+	public void testLazyEnvironment() {
+		ChannelBuffer request = request("jmxattr", 50);
+		chunk(request, NailgunConstants.CHUNKTYPE_ENVIRONMENT, "VAR_7=overridden");
+		DecoderEmbedder<DefaultNailgunRequestImpl> lazy = new DecoderEmbedder<DefaultNailgunRequestImpl>(new NailgunRequestDecoder(new DefaultChannelGroup(), true));
+		DecoderEmbedder<DefaultNailgunRequestImpl> eager = new DecoderEmbedder<DefaultNailgunRequestImpl>(new NailgunRequestDecoder(new DefaultChannelGroup(), false));
+		lazy.offer(request.duplicate());
+		eager.offer(request.duplicate());
+		DefaultNailgunRequestImpl lazyRequest = lazy.poll();
+		DefaultNailgunRequestImpl eagerRequest = eager.poll();
+		assertEquals("value-49", lazyRequest.getEnv("VAR_49"));
+		assertEquals("overridden", lazyRequest.getEnv("VAR_7"));
+		assertNull(lazyRequest.getEnv("VAR_50"));
+		assertNull(lazyRequest.getEnv("VAR"));
+		assertEquals(eagerRequest.getEnvironment(), lazyRequest.getEnvironment());
+		assertEquals("overridden", lazyRequest.getEnv("VAR_7"));
+		assertEquals("value-0", eagerRequest.getEnv("VAR_0"));
+	}
+	
+	/**
+	 * Validates that variables set outside the raw environment are found while the raw environment is unparsed, 
+	 * and that the request reports the size of the unparsed environment
+	 */
+	@Test
+	public void testLazyEnvironmentFallback() {
+		Properties preset = new Properties();
+		preset.setProperty("PRESET", "from-constructor");
+		preset.setProperty("VAR_3", "shadowed");
+		DefaultNailgunRequestImpl request = new DefaultNailgunRequestImpl("jmxattr", "/", preset);
+		ChannelBuffer chunks = ChannelBuffers.dynamicBuffer();
+		for(String line: new String[]{"VAR_3=raw", "VAR_4=raw"}) {
+			chunks.writeBytes(line.getBytes());
+			request.addToEnvironment(chunks, line.length());
+		}
+		assertTrue(request.toString(), request.toString().contains("environment:4 properties"));
+		assertEquals("from-constructor", request.getEnv("PRESET"));
+		assertEquals("raw", request.getEnv("VAR_3"));
+		assertNull(request.getEnv("VAR_5"));
+		assertEquals(3, request.getEnvironment().size());
+		assertEquals("raw", request.getEnv("VAR_3"));
+		assertTrue(request.toString(), request.toString().contains("environment:3 properties"));
+	}
+	
+	/**
+	 * Streams many MB of STDIN in 64KB chunks, delivered in socket sized reads, to a handler thread and validates 
+	 * that every byte is received in order followed by the end of the stream
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testStreamedStdIn() throws Exception {
+		final int chunkSize = 65536, chunks = 512;
+		DecoderEmbedder<DefaultNailgunRequestImpl> embedder = new DecoderEmbedder<DefaultNailgunRequestImpl>(new NailgunRequestDecoder());
+		embedder.offer(request("cat", 5));
+		DefaultNailgunRequestImpl request = embedder.poll();
+		assertNotNull("No request decoded", request);
+		final InputStream in = request.getStdIn();
+		final AtomicLong received = new AtomicLong(0);
+		final AtomicReference<String> failure = new AtomicReference<String>(null);
+		Thread handler = new Thread("StdInHandler") {
+			public void run() {
+				try {
+					byte[] buffer = new byte[8192];
+					long offset = 0;
+					int read = 0;
+					while((read = in.read(buffer))!=-1) {
+						for(int i = 0; i < read; i++, offset++) {
+							if((buffer[i] & 0xFF)!=offset % 251) throw new Exception("Unexpected byte at offset " + offset);
+						}
+					}
+					received.set(offset);
+				} catch (Exception e) {
+					failure.set(e.toString());
+				}
+			}
+		};
+		handler.setDaemon(true);
+		handler.start();
+		long start = System.nanoTime();
+		ChannelBuffer stream = ChannelBuffers.dynamicBuffer(chunkSize + 5);
+		long offset = 0;
+		for(int c = 0; c < chunks; c++) {
+			byte[] payload = new byte[chunkSize];
+			for(int i = 0; i < chunkSize; i++, offset++) payload[i] = (byte)(offset % 251);
+			chunk(stream, NailgunConstants.CHUNKTYPE_STDIN, payload);
+			// deliver what is buffered in socket sized reads, leaving a partial read for the next chunk
+			while(stream.readableBytes() >= 16384) {
+				embedder.offer(stream.readBytes(16384));
+			}
+			stream.discardReadBytes();
+		}
+		chunk(stream, NailgunConstants.CHUNKTYPE_STDIN_EOF, new byte[0]);
+		embedder.offer(stream.readBytes(stream.readableBytes()));
+		handler.join(30000);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertNull(failure.get());
+		assertEquals((long)chunks * chunkSize, received.get());
+		log("Streamed " + (received.get() >> 20) + " MB of STDIN in " + elapsed + " ms");
+	}
+	
+	/**
+	 * Out logger
+	 * @param msg the message to log
+	 */
+	public static void log(Object msg) {
+		System.out.println(msg);
+	}
+
+}
@@ -0,0 +1,336 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.codecs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.nailgun.DefaultNailgunRequestImpl;
+import org.helios.nailgun.NailgunConstants;
+import org.helios.nailgun.NailgunRequest;
+import org.helios.nailgun.execution.ExecutionPool;
+import org.helios.nailgun.execution.ExecutionStage;
+import org.helios.nailgun.execution.ExecutorStrategy;
+import org.helios.nailgun.handler.CommandBulkhead;
+import org.helios.nailgun.handler.NailgunRequestHandler;
+import org.helios.nailgun.handler.RequestHandlerRegistry;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * <p>Title: NailgunRequestDispatcherTestCase</p>
+ * <p>Description: Test cases for {@link NailgunRequestDispatcher} command bulkheads</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.codecs.NailgunRequestDispatcherTestCase</code></p>
+ */
+
+public class NailgunRequestDispatcherTestCase {
+	/** The UTF-8 charset */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** The test command name */
+	private static final String COMMAND = "bulkhead-test";
+	/** The number of requests the test handler has received */
+	private int received = 0;
+	/** Indicates if the test handler should fail */
+	private boolean failing = false;
+	
+	/**
+	 * Removes the test handler and its limits
+	 */
+	@After
+	public void tearDown() {
+		RequestHandlerRegistry.getInstance().remove(COMMAND);
+		RequestHandlerRegistry.getInstance().removeLimits(COMMAND);
+	}
+	
+	/**
+	 * Dispatches a request for the test command on a new embedded channel
+	 * @param arguments The request arguments
+	 * @return the embedder
+	 */
+	private static DecoderEmbedder<ChannelBuffer> dispatch(String...arguments) {
+		return dispatch(new NailgunRequestDispatcher(), arguments);
+	}
+	
+	/**
+	 * Dispatches a request for the test command on a new embedded channel through the passed dispatcher
+	 * @param dispatcher The request dispatcher
+	 * @param arguments The request arguments
+	 * @return the embedder
+	 */
+	private static DecoderEmbedder<ChannelBuffer> dispatch(NailgunRequestDispatcher dispatcher, String...arguments) {
+		DecoderEmbedder<ChannelBuffer> embedder = new DecoderEmbedder<ChannelBuffer>(dispatcher);
+		DefaultNailgunRequestImpl request = (DefaultNailgunRequestImpl)DefaultNailgunRequestImpl.newInstance(COMMAND, "/", new Properties(), arguments);
+		request.setChannel(embedder.getPipeline().getChannel());
+		embedder.offer(request);
+		return embedder;
+	}
+	
+	/**
+	 * Validates that a saturated command refuses requests with the busy exit code, 
+	 * and that a request whose handler fails returns its permit
+	 */
+	@Test
+	public void testSaturatedCommand() {
+		RequestHandlerRegistry registry = RequestHandlerRegistry.getInstance();
+		registry.register(new NailgunRequestHandler() {
+			public void onNailgunRequest(NailgunRequest request) {
+				// leaves the request open so the permit is held
+				received++;
+				if(failing) throw new IllegalStateException("Handler failure");
+			}
+			public String getCommandName() {
+				return COMMAND;
+			}
+		});
+		CommandBulkhead bulkhead = registry.setLimits(COMMAND, 1, 0);
+		DecoderEmbedder<ChannelBuffer> holder = dispatch();
+		assertEquals(1, received);
+		assertEquals(1, bulkhead.getActive());
+		
+		DecoderEmbedder<ChannelBuffer> refused = dispatch();
+		assertEquals(1, received);
+		assertEquals(1, bulkhead.getRejected());
+		StringBuilder err = new StringBuilder();
+		String exit = null;
+		ChannelBuffer buffer = null;
+		while((buffer = refused.poll())!=null) {
+			while(buffer.readable()) {
+				int length = buffer.readInt();
+				byte type = buffer.readByte();
+				String payload = buffer.readSlice(length).toString(UTF8);
+				if(type==NailgunConstants.CHUNKTYPE_EXIT) exit = payload;
+				else if(type==NailgunConstants.CHUNKTYPE_STDERR) err.append(payload);
+			}
+		}
+		assertTrue(err.toString(), err.toString().startsWith("Server busy"));
+		assertEquals(NailgunConstants.EXIT_SERVER_BUSY + "\n", exit);
+		
+		assertEquals(1, bulkhead.getActive());
+		holder.finish();
+		
+		registry.setLimits(COMMAND, 2, 0);
+		failing = true;
+		try {
+			dispatch();
+		} catch (RuntimeException expected) {
+			/* No Op */
+		}
+		assertEquals(2, received);
+		assertEquals("Failed request did not return its permit", 1, bulkhead.getActive());
+	}
+	
+	/**
+	 * Validates that requests over the concurrency limit are queued without blocking the dispatching thread, 
+	 * that a freed permit hands the oldest queued request off to another thread, and that a full queue refuses
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=10000)
+	public void testQueuedRequests() throws Exception {
+		final Map<String, String> handledBy = new ConcurrentHashMap<String, String>();
+		RequestHandlerRegistry registry = RequestHandlerRegistry.getInstance();
+		registry.register(new NailgunRequestHandler() {
+			public void onNailgunRequest(NailgunRequest request) {
+				handledBy.put(request.getArguments().length==0 ? "holder" : request.getArguments()[0], Thread.currentThread().getName());
+			}
+			public String getCommandName() {
+				return COMMAND;
+			}
+		});
+		CommandBulkhead bulkhead = registry.setLimits(COMMAND, 1, 20);
+		dispatch();
+		assertEquals(Thread.currentThread().getName(), handledBy.get("holder"));
+		for(int i = 0; i < 20; i++) {
+			// would park the test thread if the dispatcher waited for a permit
+			dispatch("queued-" + i);
+		}
+		assertEquals(20, bulkhead.getQueued());
+		assertEquals(1, bulkhead.getActive());
+		assertEquals(1, handledBy.size());
+		dispatch("refused");
+		assertEquals(1, bulkhead.getRejected());
+		
+		bulkhead.release();
+		long deadline = System.currentTimeMillis() + 5000;
+		while(!handledBy.containsKey("queued-0") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue("Queued request not run", handledBy.containsKey("queued-0"));
+		assertFalse("Queued request run on the releasing thread", Thread.currentThread().getName().equals(handledBy.get("queued-0")));
+		assertEquals(2, handledBy.size());
+		assertEquals(19, bulkhead.getQueued());
+		assertEquals(1, bulkhead.getActive());
+	}
+	
+	/**
+	 * Validates that a queued request is run on the command's execution pool and counted in its metrics
+	 * @throws Exception thrown on any error
+	 */
+	@Test(timeout=10000)
+	public void testQueuedRequestPoolMetrics() throws Exception {
+		final CountDownLatch queuedRun = new CountDownLatch(1);
+		RequestHandlerRegistry registry = RequestHandlerRegistry.getInstance();
+		registry.register(new NailgunRequestHandler() {
+			public void onNailgunRequest(NailgunRequest request) {
+				if(request.getArguments().length > 0) queuedRun.countDown();
+			}
+			public String getCommandName() {
+				return COMMAND;
+			}
+		});
+		ExecutionStage stage = new ExecutionStage();
+		try {
+			NailgunRequestDispatcher dispatcher = new NailgunRequestDispatcher(stage);
+			CommandBulkhead bulkhead = registry.setLimits(COMMAND, 1, 1);
+			ExecutionPool pool = stage.getPool(COMMAND);
+			dispatch(dispatcher);
+			dispatch(dispatcher, "queued");
+			assertEquals(1, bulkhead.getQueued());
+			bulkhead.release();
+			assertTrue("Queued request not run", queuedRun.await(5, TimeUnit.SECONDS));
+			assertEquals(1, pool.getSubmittedCount());
+			long deadline = System.currentTimeMillis() + 5000;
+			while(pool.getCompletedCount() < 1 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, pool.getCompletedCount());
+		} finally {
+			stage.releaseExternalResources();
+		}
+	}
+	
+	/**
+	 * Validates that a queued request refused by its execution pool returns its permit and is told the server is busy
+	 */
+	@Test
+	public void testQueuedRequestRefusedByPool() {
+		RequestHandlerRegistry registry = RequestHandlerRegistry.getInstance();
+		registry.register(new NailgunRequestHandler() {
+			public void onNailgunRequest(NailgunRequest request) {
+				received++;
+			}
+			public String getCommandName() {
+				return COMMAND;
+			}
+		});
+		ExecutionStage stage = new ExecutionStage();
+		try {
+			// unlike the memory aware pools, which run refused tasks on a new thread, a fork join pool refuses once shut down
+			ExecutionPool pool = stage.addCommandPool(COMMAND, ExecutorStrategy.FORK_JOIN, 1);
+			NailgunRequestDispatcher dispatcher = new NailgunRequestDispatcher(stage);
+			CommandBulkhead bulkhead = registry.setLimits(COMMAND, 1, 1);
+			dispatch(dispatcher);
+			DecoderEmbedder<ChannelBuffer> queued = dispatch(dispatcher, "queued");
+			assertEquals(1, bulkhead.getQueued());
+			pool.shutdown();
+			
+			bulkhead.release();
+			assertEquals(1, pool.getRejectedCount());
+			assertEquals(1, received);
+			assertEquals("Refused request kept its permit", 0, bulkhead.getActive());
+			assertEquals(0, bulkhead.getQueued());
+			String exit = null;
+			ChannelBuffer buffer = null;
+			while((buffer = queued.poll())!=null) {
+				while(buffer.readable()) {
+					int length = buffer.readInt();
+					byte type = buffer.readByte();
+					String payload = buffer.readSlice(length).toString(UTF8);
+					if(type==NailgunConstants.CHUNKTYPE_EXIT) exit = payload;
+				}
+			}
+			assertEquals(NailgunConstants.EXIT_SERVER_BUSY + "\n", exit);
+		} finally {
+			stage.releaseExternalResources();
+		}
+	}
+	
+	/**
+	 * Validates that raising a command's limits at runtime starts queued requests, and that a cancelled request gives up its place
+	 */
+	@Test
+	public void testRuntimeLimitChange() {
+		final CommandBulkhead bulkhead = RequestHandlerRegistry.getInstance().setLimits(COMMAND, 1, 2);
+		final List<String> started = new CopyOnWriteArrayList<String>();
+		assertEquals(CommandBulkhead.Admission.ADMITTED, bulkhead.submit(new Recorder(started, "first")));
+		Runnable cancelled = new Recorder(started, "cancelled");
+		assertEquals(CommandBulkhead.Admission.QUEUED, bulkhead.submit(cancelled));
+		assertEquals(CommandBulkhead.Admission.QUEUED, bulkhead.submit(new Recorder(started, "waiter")));
+		assertEquals(2, bulkhead.getQueued());
+		assertEquals("Queue limit was not enforced", CommandBulkhead.Admission.REJECTED, bulkhead.submit(new Recorder(started, "refused")));
+		assertFalse(bulkhead.tryAcquire());
+		assertTrue(bulkhead.cancel(cancelled));
+		assertTrue("Nothing started before the limit was raised", started.isEmpty());
+		RequestHandlerRegistry.getInstance().setLimits(COMMAND, 2, 2);
+		assertEquals(Arrays.asList("waiter"), started);
+		assertEquals(2, bulkhead.getActive());
+		assertEquals(0, bulkhead.getQueued());
+		assertFalse(bulkhead.cancel(cancelled));
+	}
+	
+	/**
+	 * <p>Title: Recorder</p>
+	 * <p>Description: A dispatch task that records its name when started</p> 
+	 */
+	private static class Recorder implements Runnable {
+		/** The started task names */
+		private final List<String> started;
+		/** The task name */
+		private final String name;
+		
+		/**
+		 * Creates a new Recorder
+		 * @param started The started task names
+		 * @param name The task name
+		 */
+		Recorder(List<String> started, String name) {
+			this.started = started;
+			this.name = name;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+			started.add(name);
+		}
+	}
+
+}
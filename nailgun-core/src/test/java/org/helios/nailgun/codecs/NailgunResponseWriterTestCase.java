@@ -0,0 +1,204 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.codecs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.helios.nailgun.NailgunConstants;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Title: NailgunResponseWriterTestCase</p>
+ * <p>Description: Test cases for {@link NailgunResponseWriter}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.codecs.NailgunResponseWriterTestCase</code></p>
+ */
+
+public class NailgunResponseWriterTestCase {
+	/** The UTF-8 charset */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** The embedder collecting the written buffers */
+	private EncoderEmbedder<ChannelBuffer> embedder;
+	
+	/**
+	 * Creates a new embedder for each test
+	 */
+	@Before
+	public void setUp() {
+		embedder = new EncoderEmbedder<ChannelBuffer>(new SimpleChannelDownstreamHandler());
+	}
+	
+	/**
+	 * Creates a writer on the embedder's channel
+	 * @return a new writer
+	 */
+	private NailgunResponseWriter writer() {
+		return new NailgunResponseWriter(embedder.getPipeline().getChannel(), UTF8, NailgunConstants.DEFAULT_MAX_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Validates that a 10k line response is gathered into a few writes, that the interleaving of 
+	 * stdout and stderr is kept, and that ending the response flushes the remainder
+	 */
+	@Test
+	public void testCoalescedOrderedOutput() {
+		NailgunResponseWriter writer = writer().setFlushTime(0, TimeUnit.MILLISECONDS);
+		StringBuilder expected = new StringBuilder();
+		for(int i = 0; i < 10000; i++) {
+			String line = "java.lang:type=GarbageCollector,name=Collector" + i + "\n";
+			if(i%1000==999) {
+				writer.err(line);
+				expected.append("2:").append(line);
+			} else {
+				writer.out(line);
+				expected.append("1:").append(line);
+			}
+		}
+		writer.end(0);
+		StringBuilder actual = new StringBuilder();
+		int writes = 0;
+		String exit = null;
+		ChannelBuffer buffer = null;
+		while((buffer = embedder.poll())!=null) {
+			writes++;
+			while(buffer.readable()) {
+				int length = buffer.readInt();
+				byte type = buffer.readByte();
+				String payload = buffer.readSlice(length).toString(UTF8);
+				if(type==NailgunConstants.CHUNKTYPE_EXIT) {
+					exit = payload;
+				} else {
+					// split merged chunks back into lines to compare the stream of each line
+					for(String line: payload.split("(?<=\n)")) {
+						actual.append((char)type).append(":").append(line);
+					}
+				}
+			}
+		}
+		assertEquals(expected.toString(), actual.toString());
+		assertEquals("0\n", exit);
+		assertTrue("Expected coalesced writes but got " + writes, writes < 100);
+	}
+	
+	/**
+	 * Validates that buffered output is flushed once the flush time elapses
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testTimedFlush() throws Exception {
+		NailgunResponseWriter writer = writer().setFlushTime(20, TimeUnit.MILLISECONDS);
+		writer.out("Hello\n");
+		assertNull("Output was not buffered", embedder.poll());
+		ChannelBuffer buffer = null;
+		for(int i = 0; i < 100 && buffer==null; i++) {
+			Thread.sleep(10);
+			buffer = embedder.poll();
+		}
+		assertNotNull("Output was not flushed", buffer);
+		assertEquals(6, buffer.readInt());
+		assertEquals(NailgunConstants.CHUNKTYPE_STDOUT, buffer.readByte());
+	}
+	
+	/**
+	 * Validates that output is rejected once the response has ended
+	 */
+	@Test(expected=IllegalStateException.class)
+	public void testWriteAfterEnd() {
+		NailgunResponseWriter writer = writer();
+		writer.end(1);
+		writer.out("Too late");
+	}
+
+	
+	/**
+	 * Validates that a max chunk size too small for one encoded character is refused, and that the smallest valid 
+	 * size carries surrogate pairs whole across frames
+	 */
+	@Test
+	public void testMinimumChunkSize() {
+		try {
+			new NailgunResponseWriter(embedder.getPipeline().getChannel(), UTF8, 3);
+			fail("A chunk size too small for a surrogate pair was accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+		String message = "a\u00e9\u20ac" + new String(Character.toChars(0x1F600)) + "z";
+		new NailgunResponseWriter(embedder.getPipeline().getChannel(), UTF8, 4).out(message).end(0);
+		ChannelBuffer payloads = ChannelBuffers.dynamicBuffer();
+		ChannelBuffer buffer = null;
+		while((buffer = embedder.poll())!=null) {
+			while(buffer.readable()) {
+				int length = buffer.readInt();
+				byte type = buffer.readByte();
+				assertTrue("Frame exceeded max size:" + length, length <= 4);
+				if(type==NailgunConstants.CHUNKTYPE_STDOUT) payloads.writeBytes(buffer, length);
+				else buffer.skipBytes(length);
+			}
+		}
+		assertEquals(message, payloads.toString(UTF8));
+	}
+	
+	/**
+	 * Validates that a message many times the flush size is streamed out in bounded writes rather than buffered whole
+	 */
+	@Test
+	public void testLargeMessageStreamed() {
+		NailgunResponseWriter writer = writer().setFlushTime(0, TimeUnit.MILLISECONDS);
+		int maxChunkSize = NailgunConstants.DEFAULT_MAX_CHUNK_SIZE;
+		StringBuilder message = new StringBuilder();
+		while(message.length() < maxChunkSize * 8) {
+			message.append("java.lang:type=MemoryPool,name=Metaspace\u00e9\n");
+		}
+		writer.out(message).end(0);
+		int limit = writer.getFlushSize() + maxChunkSize + NailgunConstants.CHUNK_HEADER_SIZE;
+		ChannelBuffer payloads = ChannelBuffers.dynamicBuffer();
+		int writes = 0;
+		ChannelBuffer buffer = null;
+		while((buffer = embedder.poll())!=null) {
+			writes++;
+			assertTrue("Write exceeded flush size plus one chunk:" + buffer.readableBytes(), buffer.readableBytes() <= limit);
+			while(buffer.readable()) {
+				int length = buffer.readInt();
+				byte type = buffer.readByte();
+				if(type==NailgunConstants.CHUNKTYPE_STDOUT) payloads.writeBytes(buffer, length);
+				else buffer.skipBytes(length);
+			}
+		}
+		assertTrue("Message was not streamed:" + writes, writes > 8);
+		assertEquals(message.toString(), payloads.toString(UTF8));
+	}
+}
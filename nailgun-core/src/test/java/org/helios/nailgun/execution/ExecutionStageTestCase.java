@@ -0,0 +1,162 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.execution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.helios.nailgun.DefaultNailgunRequestImpl;
+import org.helios.nailgun.NailgunRequest;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Title: ExecutionStageTestCase</p>
+ * <p>Description: Test cases for {@link ExecutionStage} and {@link ExecutionPool}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.execution.ExecutionStageTestCase</code></p>
+ */
+
+public class ExecutionStageTestCase {
+	/** The stage under test */
+	private ExecutionStage stage;
+	/** Released to let the slow requests complete */
+	private final CountDownLatch release = new CountDownLatch(1);
+	/** Counted down when the first slow request starts */
+	private final CountDownLatch slowStarted = new CountDownLatch(1);
+	/** Counted down by each fast request */
+	private final CountDownLatch fastDone = new CountDownLatch(10);
+	
+	/**
+	 * Creates a stage with a single threaded pool for the slow command
+	 */
+	@Before
+	public void setUp() {
+		stage = new ExecutionStage(new ExecutionPool("test-default", ExecutorStrategy.UNORDERED, 2));
+		stage.addCommandPool("slow", ExecutorStrategy.UNORDERED, 1);
+	}
+	
+	/**
+	 * Shuts down the stage
+	 */
+	@After
+	public void tearDown() {
+		release.countDown();
+		stage.releaseExternalResources();
+	}
+	
+	/**
+	 * Creates a request for the passed command
+	 * @param command The command
+	 * @return the request
+	 */
+	private static NailgunRequest request(String command) {
+		return DefaultNailgunRequestImpl.newInstance(command, "/", new Properties());
+	}
+	
+	/**
+	 * Validates that requests for a command blocked in its own pool do not hold up other commands,
+	 * and that the blocked pool reports its active and queued requests
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCommandIsolation() throws Exception {
+		DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(stage, new SimpleChannelUpstreamHandler(){
+			@Override
+			public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+				NailgunRequest request = (NailgunRequest)e.getMessage();
+				if("slow".equals(request.getCommand())) {
+					slowStarted.countDown();
+					release.await(10, TimeUnit.SECONDS);
+				} else {
+					fastDone.countDown();
+				}
+			}
+		});
+		// channel state events from the embedder also run in the default pool
+		long stateEvents = stage.getDefaultPool().getSubmittedCount();
+		for(int i = 0; i < 5; i++) {
+			embedder.offer(request("slow"));
+		}
+		for(int i = 0; i < 10; i++) {
+			embedder.offer(request("fast"));
+		}
+		assertTrue("Fast requests were starved", fastDone.await(5, TimeUnit.SECONDS));
+		assertTrue("Slow request did not start", slowStarted.await(5, TimeUnit.SECONDS));
+		ExecutionPool slow = stage.getPool("slow");
+		assertEquals(1, slow.getActiveCount());
+		assertEquals(4, slow.getQueueLength());
+		assertEquals(5, slow.getSubmittedCount());
+		ExecutionPool fast = stage.getPool("fast");
+		assertEquals("test-default", fast.getName());
+		assertEquals(stateEvents + 10, fast.getSubmittedCount());
+		assertEquals(4L, ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName("org.helios.nailgun:service=ExecutionPool,name=\"slow\""), "QueueLength"));
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while(slow.getCompletedCount() < 5 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(5, slow.getCompletedCount());
+		assertEquals(0, slow.getQueueLength());
+		assertTrue(slow.getMaxWaitTime() > 0);
+	}
+	
+	/**
+	 * Validates that every strategy runs requests, falling back when the JVM does not support it
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testStrategies() throws Exception {
+		for(ExecutorStrategy strategy: ExecutorStrategy.values()) {
+			ExecutionPool pool = stage.addCommandPool("fast", strategy, 2);
+			final CountDownLatch done = new CountDownLatch(3);
+			DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(stage, new SimpleChannelUpstreamHandler(){
+				@Override
+				public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+					done.countDown();
+				}
+			});
+			for(int i = 0; i < 3; i++) {
+				embedder.offer(request("fast"));
+			}
+			assertTrue("Strategy [" + strategy + "] did not run the requests", done.await(5, TimeUnit.SECONDS));
+			assertEquals(3, pool.getSubmittedCount());
+		}
+	}
+
+}
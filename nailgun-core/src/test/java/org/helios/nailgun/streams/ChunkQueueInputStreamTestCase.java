@@ -0,0 +1,202 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package org.helios.nailgun.streams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Test;
+
+/**
+ * <p>Title: ChunkQueueInputStreamTestCase</p>
+ * <p>Description: Test cases for {@link ChunkQueueInputStream}</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>org.helios.nailgun.streams.ChunkQueueInputStreamTestCase</code></p>
+ */
+
+public class ChunkQueueInputStreamTestCase {
+	
+	/**
+	 * Creates a chunk whose bytes continue a repeating 0-250 sequence from the passed offset
+	 * @param offset The stream offset of the chunk
+	 * @param size The size of the chunk
+	 * @return the chunk
+	 */
+	private static ChannelBuffer chunk(long offset, int size) {
+		ChannelBuffer chunk = ChannelBuffers.buffer(size);
+		for(int i = 0; i < size; i++) {
+			chunk.writeByte((int)((offset + i) % 251));
+		}
+		return chunk;
+	}
+	
+	/**
+	 * Validates that every byte offered by a producer thread is read in order, then the end of the stream
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testProducerConsumer() throws Exception {
+		final ChunkQueueInputStream in = new ChunkQueueInputStream(5, TimeUnit.SECONDS);
+		final int chunks = 500, chunkSize = 8191;
+		Thread producer = new Thread("ChunkQueueProducer") {
+			public void run() {
+				for(int i = 0; i < chunks; i++) {
+					in.offer(chunk((long)i * chunkSize, chunkSize));
+					if(i%50==0) Thread.yield();
+				}
+				in.end();
+			}
+		};
+		producer.setDaemon(true);
+		producer.start();
+		byte[] buffer = new byte[4096];
+		long offset = 0;
+		int read = 0;
+		while((read = in.read(buffer, 0, buffer.length))!=-1) {
+			for(int i = 0; i < read; i++, offset++) {
+				if((buffer[i] & 0xFF)!=offset % 251) fail("Unexpected byte at offset " + offset);
+			}
+		}
+		assertEquals((long)chunks * chunkSize, offset);
+		assertEquals(-1, in.read());
+	}
+	
+	/**
+	 * Validates that a read fails once the connect timeout elapses without input
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConnectTimeout() throws Exception {
+		ChunkQueueInputStream in = new ChunkQueueInputStream(100, TimeUnit.MILLISECONDS);
+		long start = System.nanoTime();
+		try {
+			in.read();
+			fail("Read did not time out");
+		} catch (SocketTimeoutException ste) {
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue("Timed out early after " + elapsed + " ms", elapsed >= 90);
+		}
+	}
+	
+	/**
+	 * Validates that a reader blocked after the client started sending is woken by the end of the stream
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testEndWakesReader() throws Exception {
+		final ChunkQueueInputStream in = new ChunkQueueInputStream(100, TimeUnit.MILLISECONDS);
+		in.offer(chunk(0, 10));
+		assertEquals(10, in.read(new byte[20]));
+		final AtomicInteger result = new AtomicInteger(0);
+		Thread reader = new Thread("ChunkQueueReader") {
+			public void run() {
+				try {
+					result.set(in.read());
+				} catch (Exception e) {
+					result.set(-2);
+				}
+			}
+		};
+		reader.start();
+		// longer than the connect timeout, which no longer applies once input has started
+		Thread.sleep(300);
+		assertTrue("Reader did not block", reader.isAlive());
+		long start = System.nanoTime();
+		in.end();
+		reader.join(2000);
+		assertEquals(-1, result.get());
+		assertTrue("Reader was not woken promptly", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+	}
+	
+	/**
+	 * Pipes a large input into a deliberately slow consumer and validates that the channel is suspended at the high 
+	 * water mark, resumed at the low water mark, that the buffered bytes stay bounded and that every byte arrives
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFlowControlSlowConsumer() throws Exception {
+		final AtomicBoolean readable = new AtomicBoolean(true);
+		final AtomicInteger suspensions = new AtomicInteger(0);
+		// stands in for the socket, recording the interest ops changes the stream requests
+		EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(new SimpleChannelDownstreamHandler(){
+			@Override
+			public void setInterestOpsRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+				boolean read = (((Integer)e.getValue()) & Channel.OP_READ)!=0;
+				if(!read) suspensions.incrementAndGet();
+				readable.set(read);
+				e.getFuture().setSuccess();
+			}
+		});
+		final int chunkSize = 16384, chunks = 256;
+		final long high = 262144, low = 65536;
+		final ChunkQueueInputStream in = new ChunkQueueInputStream(5, TimeUnit.SECONDS);
+		in.setFlowControl(embedder.getPipeline().getChannel(), high, low);
+		final AtomicLong maxBuffered = new AtomicLong(0);
+		Thread producer = new Thread("ChunkQueueProducer") {
+			public void run() {
+				for(int i = 0; i < chunks; i++) {
+					// the I/O worker does not read a suspended channel
+					while(!readable.get()) LockSupport.parkNanos(100000);
+					in.offer(chunk((long)i * chunkSize, chunkSize));
+					long buffered = in.getBufferedBytes();
+					if(buffered > maxBuffered.get()) maxBuffered.set(buffered);
+				}
+				in.end();
+			}
+		};
+		producer.setDaemon(true);
+		producer.start();
+		byte[] buffer = new byte[4096];
+		long offset = 0;
+		int read = 0, reads = 0;
+		while((read = in.read(buffer, 0, buffer.length))!=-1) {
+			for(int i = 0; i < read; i++, offset++) {
+				if((buffer[i] & 0xFF)!=offset % 251) fail("Unexpected byte at offset " + offset);
+			}
+			if(++reads % 32==0) Thread.sleep(1);
+		}
+		assertEquals((long)chunks * chunkSize, offset);
+		assertTrue("Channel was never suspended", suspensions.get() > 0);
+		assertTrue("Buffered bytes exceeded the high water mark: " + maxBuffered.get(), maxBuffered.get() < high + chunkSize);
+		assertTrue("Channel was left suspended", readable.get());
+	}
+
+}
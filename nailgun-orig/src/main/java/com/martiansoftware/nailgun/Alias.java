@@ -40,9 +40,15 @@ public class Alias implements Comparable {
 	private String description;
 	
 	/**
-	 * The class providing a <code>main()</code> or <code>nailMain()</code> method
+	 * The name of the class providing a <code>main()</code> or <code>nailMain()</code> method
 	 */
-	private Class clazz;
+	private String className;
+	
+	/**
+	 * The class providing a <code>main()</code> or <code>nailMain()</code> method,
+	 * or null until it is first used
+	 */
+	private volatile Class clazz;
 	
 	/**
 	 * Creates a new Alias with the specified properties.
@@ -58,16 +64,63 @@ public class Alias implements Comparable {
 		if (clazz == null) throw (new IllegalArgumentException("Alias must have an associated class."));
 		this.description = description;
 		this.clazz = clazz;
+		this.className = clazz.getName();
+	}
+	
+	/**
+	 * Creates a new Alias for a class that is not loaded until the alias
+	 * is first used.
+	 * @param name the alias name (short command)
+	 * @param description a description of the command
+	 * @param className the name of the class implementing the command
+	 */
+	public Alias(String name, String description, String className) {
+		if (name == null) throw (new IllegalArgumentException("Alias must have a name."));
+		this.name = name.trim();
+		if (this.name.length() == 0) throw (new IllegalArgumentException("Alias must have a name."));
+		
+		if (className == null || className.trim().length() == 0) throw (new IllegalArgumentException("Alias must have an associated class."));
+		this.description = description;
+		this.className = className.trim();
 	}
 	
 	/**
 	 * Returns the <code>Class</code> object providing a static <code>main()</code> or <code>nailMain()</code> method
 	 * for this command.
 	 * @return the <code>Class</code> object providing a static <code>main()</code> or <code>nailMain()</code> method
-	 * for this command.
+	 * for this command.  The class is loaded on the first call.
+	 * @throws NoClassDefFoundError if the class cannot be found
 	 */
 	public Class getAliasedClass() {
-		return(clazz);
+		Class result = clazz;
+		if (result == null) {
+			try {
+				result = Class.forName(className);
+			} catch (ClassNotFoundException e) {
+				System.err.println("Unable to locate class " + className + " for alias " + name);
+				NoClassDefFoundError error = new NoClassDefFoundError(className);
+				error.initCause(e);
+				throw (error);
+			}
+			clazz = result;
+		}
+		return(result);
+	}
+	
+	/**
+	 * Returns the name of the class implementing this command, without loading it
+	 * @return the name of the class implementing this command
+	 */
+	public String getAliasedClassName() {
+		return (className);
+	}
+	
+	/**
+	 * Returns true iff the class implementing this command has been loaded
+	 * @return true iff the aliased class is loaded
+	 */
+	public boolean isBound() {
+		return (clazz != null);
 	}
 	
 	/**
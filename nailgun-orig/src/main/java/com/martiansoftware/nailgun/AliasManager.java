@@ -19,6 +19,8 @@
 package com.martiansoftware.nailgun;
 
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
@@ -33,9 +35,20 @@ import java.util.Set;
 public class AliasManager {
 	
 	/**
-	 * actual alias storage
+	 * actual alias storage: an immutable snapshot that is replaced on each
+	 * change, so lookups take no lock
 	 */
-	private Map aliases;
+	private volatile Map aliases = Collections.EMPTY_MAP;
+	
+	/**
+	 * serializes changes to the alias snapshot
+	 */
+	private final Object lock = new Object();
+	
+	/**
+	 * incremented each time an Alias is added or removed
+	 */
+	private volatile long version = 0;
 	
 	/**
 	 * Creates a new AliasManager, populating it with
@@ -70,31 +83,49 @@ public class AliasManager {
 	 * <pre><code>myprog=com.mydomain.myapp.MyProg
 	 *myprog.desc=Runs my program.
 	 * </code></pre>
+	 * 
+	 * <code>[name].limit</code> properties are nail limits, and are
+	 * loaded by <a href="NGNailLimits.html">NGNailLimits</a>.
+	 * <code>[name].warmup</code> properties are warm-up arguments, and
+	 * are loaded by <a href="NGWarmup.html">NGWarmup</a>.
 	 * @param properties the Properties to load.
 	 */
 	public void loadFromProperties(java.util.Properties properties) {
-		for (Iterator i = properties.keySet().iterator(); i.hasNext();) {
-			String key = (String) i.next();
-			if (!key.endsWith(".desc")) {
-				try {
-					Class clazz = Class.forName(properties.getProperty(key));
+		synchronized (lock) {
+			Map updated = new HashMap(aliases);
+			for (Iterator i = properties.keySet().iterator(); i.hasNext();) {
+				String key = (String) i.next();
+				if (!key.endsWith(".desc") && !key.endsWith(NGNailLimits.LIMIT_SUFFIX)
+						&& !key.endsWith(NGWarmup.WARMUP_SUFFIX)) {
 					String desc = properties.getProperty(key + ".desc", "");
-					addAlias(new Alias(key, desc, clazz));
-				} catch (ClassNotFoundException e) {
-					System.err.println("Unable to locate class " + properties.getProperty(key));
+					// the class is loaded when the alias is first used
+					Alias alias = new Alias(key, desc, properties.getProperty(key));
+					updated.put(alias.getName(), alias);
 				}
 			}
+			publish(updated);
 		}
 	}
 	
+	/**
+	 * Replaces the alias snapshot.  Must be called holding the lock.
+	 * @param updated the new alias map
+	 */
+	private void publish(Map updated) {
+		aliases = Collections.unmodifiableMap(updated);
+		version++;
+	}
+	
 	/**
 	 * Adds an Alias, replacing any previous entries with the
 	 * same name.
 	 * @param alias the Alias to add
 	 */
 	public void addAlias(Alias alias) {
-		synchronized (aliases) {
-			aliases.put(alias.getName(), alias);
+		synchronized (lock) {
+			Map updated = new HashMap(aliases);
+			updated.put(alias.getName(), alias);
+			publish(updated);
 		}
 	}
 	
@@ -106,9 +137,7 @@ public class AliasManager {
 	 */
 	public Set getAliases() {
 		Set result = new java.util.TreeSet();
-		synchronized(aliases) {
-			result.addAll(aliases.values());
-		}
+		result.addAll(aliases.values());
 		return (result);
 	}
 
@@ -118,11 +147,24 @@ public class AliasManager {
 	 * @param aliasName the name of the Alias to remove
 	 */
 	public void removeAlias(String aliasName) {
-		synchronized (aliases) {
-			aliases.remove(aliasName);
+		synchronized (lock) {
+			if (aliases.containsKey(aliasName)) {
+				Map updated = new HashMap(aliases);
+				updated.remove(aliasName);
+				publish(updated);
+			}
 		}
 	}
 
+	/**
+	 * Returns a number that changes each time an Alias is added or removed,
+	 * so that caches derived from the aliases can tell they are stale
+	 * @return the current version of the Alias list
+	 */
+	public long getVersion() {
+		return (version);
+	}
+	
 	/**
 	 * Returns the Alias with the specified name
 	 * @param aliasName the name of the Alias to retrieve
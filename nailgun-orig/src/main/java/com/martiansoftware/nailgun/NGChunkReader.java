@@ -0,0 +1,284 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads NailGun chunks from a client connection through one reusable
+ * buffer.  The same reader parses the request chunks up to the command
+ * and then the stdin chunks, so bytes read ahead past the command are
+ * not lost.  Headers and request strings are parsed straight out of the
+ * buffer, and a stdin read that is at least as large as the buffer goes
+ * directly from the socket into the nail's array.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGChunkReader {
+
+	/**
+	 * The default size of the read buffer
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	
+	/**
+	 * The size of a chunk header: the payload length and the chunk type
+	 */
+	private static final int HEADER_SIZE = 5;
+	
+	/**
+	 * The charset of the request chunks
+	 */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	
+	/**
+	 * The socket input stream
+	 */
+	private InputStream in;
+	
+	/**
+	 * The read buffer
+	 */
+	private byte[] buffer;
+	
+	/**
+	 * The size the read buffer was created with
+	 */
+	private final int bufferSize;
+	
+	/**
+	 * The offset of the next unread byte in the buffer
+	 */
+	private int pos = 0;
+	
+	/**
+	 * The offset past the last valid byte in the buffer
+	 */
+	private int limit = 0;
+	
+	/**
+	 * The payload length of the last chunk header read
+	 */
+	private int chunkLength = 0;
+	
+	/**
+	 * The type of the last chunk header read
+	 */
+	private byte chunkType = 0;
+	
+	/**
+	 * The number of payload bytes returned by the read methods
+	 */
+	private long payloadBytes = 0;
+
+	/**
+	 * Creates a new NGChunkReader with the default buffer size
+	 * @param in the socket input stream
+	 */
+	public NGChunkReader(InputStream in) {
+		this(in, DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Creates a new NGChunkReader
+	 * @param in the socket input stream
+	 * @param bufferSize the size of the read buffer
+	 */
+	public NGChunkReader(InputStream in, int bufferSize) {
+		if (in == null) throw new IllegalArgumentException("The input stream was null");
+		this.in = in;
+		this.bufferSize = Math.max(HEADER_SIZE, bufferSize);
+		this.buffer = new byte[this.bufferSize];
+	}
+	
+	/**
+	 * Prepares this reader for a new connection, discarding any unread
+	 * bytes.  A buffer grown for a long request string is shrunk back.
+	 * @param in the socket input stream of the new connection
+	 */
+	void reset(InputStream in) {
+		if (in == null) throw new IllegalArgumentException("The input stream was null");
+		this.in = in;
+		if (buffer.length > bufferSize) buffer = new byte[bufferSize];
+		pos = 0;
+		limit = 0;
+		chunkLength = 0;
+		chunkType = 0;
+		payloadBytes = 0;
+	}
+	
+	/**
+	 * Creates a new NGChunkReader that first returns bytes already read from
+	 * the socket
+	 * @param in the socket input stream
+	 * @param prefetched bytes read from the socket ahead of the stream
+	 * @param offset the offset of the first prefetched byte
+	 * @param len the number of prefetched bytes
+	 */
+	public NGChunkReader(InputStream in, byte[] prefetched, int offset, int len) {
+		this(in, Math.max(DEFAULT_BUFFER_SIZE, len));
+		System.arraycopy(prefetched, offset, buffer, 0, len);
+		limit = len;
+	}
+	
+	/**
+	 * Reads the next chunk header.  The payload is left unread.
+	 * @throws IOException if thrown by the socket, or EOFException if the
+	 * connection ends before a complete header
+	 */
+	public void readHeader() throws IOException {
+		fill(HEADER_SIZE);
+		chunkLength = ((buffer[pos] & 0xff) << 24) | ((buffer[pos + 1] & 0xff) << 16) 
+				| ((buffer[pos + 2] & 0xff) << 8) | (buffer[pos + 3] & 0xff);
+		chunkType = buffer[pos + 4];
+		pos += HEADER_SIZE;
+	}
+	
+	/**
+	 * Returns the payload length of the last chunk header read
+	 * @return the payload length
+	 */
+	public int getChunkLength() {
+		return (chunkLength);
+	}
+	
+	/**
+	 * Returns the type of the last chunk header read
+	 * @return the chunk type
+	 */
+	public byte getChunkType() {
+		return (chunkType);
+	}
+	
+	/**
+	 * Reads a payload of the specified length as an US-ASCII string
+	 * @param len the payload length
+	 * @return the payload string
+	 * @throws IOException if thrown by the socket, or EOFException if the
+	 * connection ends before the complete payload
+	 */
+	public String readString(int len) throws IOException {
+		if (len > buffer.length) {
+			byte[] larger = new byte[len];
+			System.arraycopy(buffer, pos, larger, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+			buffer = larger;
+		}
+		fill(len);
+		String result = new String(buffer, pos, len, ASCII);
+		pos += len;
+		return (result);
+	}
+	
+	/**
+	 * Reads a single payload byte
+	 * @return the byte, or -1 if the connection has ended
+	 * @throws IOException if thrown by the socket
+	 */
+	public int read() throws IOException {
+		if (pos == limit && readSome() == -1) return (-1);
+		++payloadBytes;
+		return (buffer[pos++] & 0xff);
+	}
+	
+	/**
+	 * Reads up to <code>len</code> payload bytes.  Buffered bytes are copied
+	 * out first.  If none are buffered and <code>len</code> is at least the
+	 * buffer size, the socket is read directly into <code>b</code>.
+	 * @param b the array to read into
+	 * @param offset the offset in <code>b</code> of the first byte
+	 * @param len the maximum number of bytes to read
+	 * @return the number of bytes read, or -1 if the connection has ended
+	 * @throws IOException if thrown by the socket
+	 */
+	public int read(byte[] b, int offset, int len) throws IOException {
+		if (len == 0) return (0);
+		if (pos == limit) {
+			if (len >= buffer.length) {
+				int n = in.read(b, offset, len);
+				if (n > 0) payloadBytes += n;
+				return (n);
+			}
+			if (readSome() == -1) return (-1);
+		}
+		int n = Math.min(len, limit - pos);
+		System.arraycopy(buffer, pos, b, offset, n);
+		pos += n;
+		payloadBytes += n;
+		return (n);
+	}
+	
+	/**
+	 * Returns the number of payload bytes returned by the read methods so
+	 * far.  Strings read with <code>readString</code> are not included, so
+	 * once the command has been read this counts the client's stdin.
+	 * @return the number of payload bytes read
+	 */
+	public long getPayloadBytes() {
+		return (payloadBytes);
+	}
+	
+	/**
+	 * Returns the number of bytes that can be read without blocking,
+	 * including chunk headers
+	 * @return the number of available bytes
+	 * @throws IOException if thrown by the socket
+	 */
+	public int available() throws IOException {
+		return ((limit - pos) + in.available());
+	}
+	
+	/**
+	 * Reads from the socket until at least <code>n</code> unread bytes are buffered
+	 * @param n the number of bytes required
+	 * @throws IOException if thrown by the socket, or EOFException if the
+	 * connection ends first
+	 */
+	private void fill(int n) throws IOException {
+		if (limit - pos >= n) return;
+		if (pos + n > buffer.length) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		while (limit - pos < n) {
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read == -1) throw new EOFException();
+			limit += read;
+		}
+	}
+	
+	/**
+	 * Reads whatever the socket has into an empty buffer, blocking until
+	 * at least one byte arrives
+	 * @return the number of bytes read, or -1 if the connection has ended
+	 * @throws IOException if thrown by the socket
+	 */
+	private int readSome() throws IOException {
+		pos = 0;
+		limit = 0;
+		int read = in.read(buffer, 0, buffer.length);
+		if (read > 0) limit = read;
+		return (read);
+	}
+}
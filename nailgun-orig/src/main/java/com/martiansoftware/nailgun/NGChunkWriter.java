@@ -0,0 +1,405 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames NailGun chunks for all of the streams of one client connection
+ * into a single reusable buffer.  Each chunk's header and payload are
+ * built in the buffer and sent to the socket together, and a write on the
+ * same stream as the last buffered chunk is merged into that chunk.  The
+ * buffer is sent when it reaches the flush size, when the flush time
+ * passes after the first unsent write, when <code>flush()</code> is
+ * called, or when a chunk that must be sent immediately (exit or
+ * startinput) is written.  Since every stream of the connection shares
+ * the one buffer, chunks reach the client in the order they were written.
+ * A timed flush is scheduled on a shared timer thread that never writes to
+ * a socket itself: it hands the flush to a pool thread, so a client that
+ * stops reading only holds up its own connection.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGChunkWriter {
+
+	/**
+	 * The default number of buffered bytes at which the buffer is sent
+	 */
+	public static final int DEFAULT_FLUSH_SIZE = 8192;
+	
+	/**
+	 * The default time in milliseconds unsent output is held before it is sent
+	 */
+	public static final long DEFAULT_FLUSH_TIME = 10;
+	
+	/**
+	 * The size of a chunk header: the payload length and the chunk type
+	 */
+	private static final int HEADER_SIZE = 5;
+	
+	/**
+	 * The time in seconds an idle flusher thread waits for another flush
+	 * before exiting
+	 */
+	private static final long FLUSHER_KEEP_ALIVE = 60;
+	
+	/**
+	 * Hands held output to the flushers when its flush time passes.  Shared
+	 * by all writers.
+	 */
+	private static final ScheduledExecutorService flushTimer = 
+		new ScheduledThreadPoolExecutor(1, new FlusherThreadFactory("NGChunkWriter Flush Timer"));
+	
+	/**
+	 * Sends held output to the sockets.  A thread is created whenever all
+	 * are busy, so a stalled socket never delays another connection's flush.
+	 */
+	private static final ExecutorService flushers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 
+			FLUSHER_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue(), new FlusherThreadFactory("NGChunkWriter Flusher"));
+	
+	/**
+	 * The socket output stream
+	 */
+	private OutputStream out;
+	
+	/**
+	 * The number of buffered bytes at which the buffer is sent
+	 */
+	private final int flushSize;
+	
+	/**
+	 * The time in milliseconds unsent output is held before it is sent
+	 */
+	private final long flushTime;
+	
+	/**
+	 * The chunk buffer
+	 */
+	private byte[] buffer;
+	
+	/**
+	 * The number of bytes in the buffer
+	 */
+	private int count = 0;
+	
+	/**
+	 * The offset of the header of the last chunk in the buffer, or -1 if
+	 * the buffer is empty
+	 */
+	private int lastChunk = -1;
+	
+	/**
+	 * The pending timed flush, or null if none is scheduled.  Read by the
+	 * flush timer without the writer lock.
+	 */
+	private volatile Runnable pendingFlush = null;
+	
+	/**
+	 * The exception raised by a timed flush, thrown to the next writer
+	 */
+	private IOException flushFailure = null;
+	
+	/**
+	 * True once the writer has been closed
+	 */
+	private boolean closed = false;
+	
+	/**
+	 * The number of stdout and stderr payload bytes written
+	 */
+	private long outputBytes = 0;
+
+	/**
+	 * Creates a new NGChunkWriter with the default flush size and time
+	 * @param out the socket output stream
+	 */
+	public NGChunkWriter(OutputStream out) {
+		this(out, DEFAULT_FLUSH_SIZE, DEFAULT_FLUSH_TIME);
+	}
+	
+	/**
+	 * Creates a new NGChunkWriter
+	 * @param out the socket output stream
+	 * @param flushSize the number of buffered bytes at which the buffer is sent
+	 * @param flushTime the time in milliseconds unsent output is held before
+	 * it is sent.  Zero or less sends each write immediately.
+	 */
+	public NGChunkWriter(OutputStream out, int flushSize, long flushTime) {
+		if (out == null) throw new IllegalArgumentException("The output stream was null");
+		this.out = out;
+		this.flushSize = Math.max(HEADER_SIZE + 1, flushSize);
+		this.flushTime = flushTime;
+		this.buffer = new byte[this.flushSize + HEADER_SIZE];
+	}
+	
+	/**
+	 * Prepares this writer, which must be closed, for a new connection.  A
+	 * buffer grown for a large write is shrunk back.
+	 * @param out the socket output stream of the new connection
+	 */
+	synchronized void reset(OutputStream out) {
+		if (out == null) throw new IllegalArgumentException("The output stream was null");
+		if (!closed) throw new IllegalStateException("The writer is still open");
+		this.out = out;
+		if (buffer.length > flushSize + HEADER_SIZE) buffer = new byte[flushSize + HEADER_SIZE];
+		count = 0;
+		lastChunk = -1;
+		pendingFlush = null;
+		flushFailure = null;
+		outputBytes = 0;
+		closed = false;
+	}
+	
+	/**
+	 * Returns an OutputStream that writes to the specified stream of this writer
+	 * @param streamCode the NailGun chunk code of the stream
+	 * (i.e., '1' for stdout, '2' for stderr)
+	 * @return an output stream
+	 */
+	public OutputStream newOutputStream(byte streamCode) {
+		return (new NGOutputStream(this, streamCode));
+	}
+	
+	/**
+	 * Writes a single byte to the specified stream
+	 * @param streamCode the NailGun chunk code of the stream
+	 * @param b the byte to write
+	 * @throws IOException if the buffer could not be sent
+	 */
+	public synchronized void write(byte streamCode, int b) throws IOException {
+		ensureOpen();
+		if (appendable(streamCode, 1)) {
+			buffer[count++] = (byte) b;
+			addPayload(1);
+		} else {
+			startChunk(streamCode, 1);
+			buffer[count++] = (byte) b;
+		}
+		counted(streamCode, 1);
+		written(streamCode);
+	}
+	
+	/**
+	 * Writes bytes to the specified stream
+	 * @param streamCode the NailGun chunk code of the stream
+	 * @param b the bytes to write
+	 * @param offset the offset of the first byte to write
+	 * @param len the number of bytes to write
+	 * @throws IOException if the buffer could not be sent
+	 */
+	public synchronized void write(byte streamCode, byte[] b, int offset, int len) throws IOException {
+		ensureOpen();
+		if (len == 0 && !immediate(streamCode)) return;
+		if (appendable(streamCode, len)) {
+			System.arraycopy(b, offset, buffer, count, len);
+			count += len;
+			addPayload(len);
+		} else {
+			startChunk(streamCode, len);
+			System.arraycopy(b, offset, buffer, count, len);
+			count += len;
+		}
+		counted(streamCode, len);
+		written(streamCode);
+	}
+	
+	/**
+	 * Sends all buffered chunks to the client
+	 * @throws IOException if the buffer could not be sent
+	 */
+	public synchronized void flush() throws IOException {
+		pendingFlush = null;
+		if (count > 0) {
+			int len = count;
+			count = 0;
+			lastChunk = -1;
+			out.write(buffer, 0, len);
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Returns the number of stdout and stderr payload bytes written so far,
+	 * whether or not they have been sent
+	 * @return the number of output bytes written
+	 */
+	public synchronized long getOutputBytes() {
+		return (outputBytes);
+	}
+	
+	/**
+	 * Adds a write to the output byte count if it is to stdout or stderr
+	 * @param streamCode the NailGun chunk code of the stream
+	 * @param len the number of bytes written
+	 */
+	private void counted(byte streamCode, int len) {
+		if (streamCode == NGConstants.CHUNKTYPE_STDOUT || streamCode == NGConstants.CHUNKTYPE_STDERR) {
+			outputBytes += len;
+		}
+	}
+	
+	/**
+	 * Sends all buffered chunks and rejects further writes.  The socket
+	 * output stream is not closed.
+	 * @throws IOException if the buffer could not be sent
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) return;
+		try {
+			flush();
+		} finally {
+			closed = true;
+		}
+	}
+	
+	/**
+	 * Throws if the writer is closed or a timed flush failed
+	 * @throws IOException if the writer cannot be written to
+	 */
+	private void ensureOpen() throws IOException {
+		if (flushFailure != null) {
+			IOException e = flushFailure;
+			flushFailure = null;
+			throw e;
+		}
+		if (closed) throw new IOException("Stream closed");
+	}
+	
+	/**
+	 * Returns true iff the chunk type must reach the client right away
+	 * @param streamCode the NailGun chunk code
+	 * @return true iff the chunk must not be held
+	 */
+	private static boolean immediate(byte streamCode) {
+		return (streamCode == NGConstants.CHUNKTYPE_EXIT || streamCode == NGConstants.CHUNKTYPE_STARTINPUT);
+	}
+	
+	/**
+	 * Returns true iff the payload can be merged into the last buffered chunk
+	 * @param streamCode the NailGun chunk code of the payload
+	 * @param len the payload length
+	 * @return true iff the payload can be appended to the last chunk
+	 */
+	private boolean appendable(byte streamCode, int len) {
+		return (lastChunk >= 0 
+				&& buffer[lastChunk + 4] == streamCode 
+				&& !immediate(streamCode)
+				&& count + len <= buffer.length);
+	}
+	
+	/**
+	 * Starts a new chunk in the buffer, sending or growing the buffer if the
+	 * chunk does not fit
+	 * @param streamCode the NailGun chunk code
+	 * @param len the payload length
+	 * @throws IOException if the buffer could not be sent
+	 */
+	private void startChunk(byte streamCode, int len) throws IOException {
+		if (count + HEADER_SIZE + len > buffer.length) {
+			flush();
+			if (HEADER_SIZE + len > buffer.length) {
+				buffer = new byte[HEADER_SIZE + len];
+			}
+		}
+		lastChunk = count;
+		buffer[count++] = (byte) (len >>> 24);
+		buffer[count++] = (byte) (len >>> 16);
+		buffer[count++] = (byte) (len >>> 8);
+		buffer[count++] = (byte) len;
+		buffer[count++] = streamCode;
+	}
+	
+	/**
+	 * Adds to the payload length of the last chunk
+	 * @param len the number of bytes appended to the payload
+	 */
+	private void addPayload(int len) {
+		int i = lastChunk;
+		int total = ((buffer[i] & 0xff) << 24) | ((buffer[i + 1] & 0xff) << 16) 
+				| ((buffer[i + 2] & 0xff) << 8) | (buffer[i + 3] & 0xff);
+		total += len;
+		buffer[i] = (byte) (total >>> 24);
+		buffer[i + 1] = (byte) (total >>> 16);
+		buffer[i + 2] = (byte) (total >>> 8);
+		buffer[i + 3] = (byte) total;
+	}
+	
+	/**
+	 * Sends the buffer if the chunk must be sent now or the buffer is full,
+	 * otherwise makes sure a timed flush is scheduled
+	 * @param streamCode the NailGun chunk code just written
+	 * @throws IOException if the buffer could not be sent
+	 */
+	private void written(byte streamCode) throws IOException {
+		if (immediate(streamCode) || count >= flushSize || flushTime <= 0) {
+			flush();
+		} else if (pendingFlush == null) {
+			final Runnable timedFlush = new Runnable() {
+				public void run() {
+					synchronized (NGChunkWriter.this) {
+						if (pendingFlush != this) return;
+						pendingFlush = null;
+						try {
+							flush();
+						} catch (IOException e) {
+							flushFailure = e;
+						} catch (RuntimeException e) {
+							IOException failure = new IOException("Timed flush failed: " + e);
+							failure.initCause(e);
+							flushFailure = failure;
+						}
+					}
+				}
+			};
+			pendingFlush = timedFlush;
+			flushTimer.schedule(new Runnable() {
+				public void run() {
+					// only hands off: the timer thread never waits on a writer or a socket
+					if (pendingFlush == timedFlush) flushers.execute(timedFlush);
+				}
+			}, flushTime, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Creates daemon threads for the flush timer and the flushers
+	 */
+	private static class FlusherThreadFactory implements ThreadFactory {
+		private final String name;
+		private int serial = 0;
+		
+		FlusherThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, name + " " + (++serial));
+			t.setDaemon(true);
+			return (t);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.SecureClassLoader;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Loads nail classes from the jars of a named nail classpath.  The entries
+ * of all its jars are merged into a single map when the loader is created,
+ * so finding a class or resource is one lookup however many jars the
+ * classpath has.  Loaders are created, shared and unloaded by
+ * <code>NGClasspaths</code>.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+class NGClassLoader extends SecureClassLoader {
+
+	/**
+	 * The canonical paths of the jars, identifying the loader
+	 */
+	final String key;
+	
+	/**
+	 * The jars, in classpath order
+	 */
+	private final NGJarIndex[] jars;
+	
+	/**
+	 * The jar providing each entry name; earlier jars win
+	 */
+	private final Map index = new java.util.HashMap();
+	
+	/**
+	 * The number of named classpaths using this loader, guarded by the
+	 * owning <code>NGClasspaths</code>
+	 */
+	int refs = 0;
+	
+	/**
+	 * Creates a new NGClassLoader
+	 * @param key the canonical paths of the jars
+	 * @param parent the parent class loader
+	 * @param jars the jars, in classpath order
+	 */
+	NGClassLoader(String key, ClassLoader parent, NGJarIndex[] jars) {
+		super(parent);
+		this.key = key;
+		this.jars = jars;
+		for (int i = 0; i < jars.length; ++i) {
+			for (Iterator e = jars[i].entries(); e.hasNext();) {
+				Object name = e.next();
+				if (!index.containsKey(name)) {
+					index.put(name, jars[i]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the indexes of this loader's jars
+	 * @return the jar indexes, in classpath order
+	 */
+	NGJarIndex[] getJars() {
+		return (jars);
+	}
+	
+	/**
+	 * Returns the jars of this loader
+	 * @return the canonical jar files and directories, in classpath order
+	 */
+	File[] getFiles() {
+		File[] result = new File[jars.length];
+		for (int i = 0; i < jars.length; ++i) {
+			result[i] = jars[i].getFile();
+		}
+		return (result);
+	}
+	
+	protected Class findClass(String name) throws ClassNotFoundException {
+		String path = name.replace('.', '/').concat(".class");
+		NGJarIndex jar = (NGJarIndex) index.get(path);
+		if (jar == null) {
+			throw new ClassNotFoundException(name);
+		}
+		byte[] b;
+		try {
+			b = jar.read(path);
+		} catch (IOException e) {
+			throw new ClassNotFoundException(name, e);
+		}
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			String packageName = name.substring(0, dot);
+			if (getPackage(packageName) == null) {
+				try {
+					definePackage(packageName, null, null, null, null, null, null, null);
+				} catch (IllegalArgumentException definedMeanwhile) {}
+			}
+		}
+		return (defineClass(name, b, 0, b.length, jar.getCodeSource()));
+	}
+	
+	protected URL findResource(String name) {
+		NGJarIndex jar = (NGJarIndex) index.get(name);
+		try {
+			return ((jar == null) ? null : jar.getResource(name));
+		} catch (MalformedURLException e) {
+			return (null);
+		}
+	}
+	
+	protected Enumeration findResources(String name) throws IOException {
+		java.util.Vector result = new java.util.Vector();
+		if (index.containsKey(name)) {
+			for (int i = 0; i < jars.length; ++i) {
+				if (jars[i].contains(name)) {
+					result.add(jars[i].getResource(name));
+				}
+			}
+		}
+		return (result.elements());
+	}
+	
+	public String toString() {
+		return ("NGClassLoader[" + key + "]");
+	}
+}
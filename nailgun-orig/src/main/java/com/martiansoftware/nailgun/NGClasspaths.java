@@ -0,0 +1,243 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Named nail classpaths, each backed by its own isolated class loader.
+ * A nail on a named classpath is run with the command
+ * <code>name:fully.qualified.ClassName</code>.</p>
+ * 
+ * <p>Class loaders are cached by their jar set: classpaths naming the same
+ * jars in the same order share a loader.  Each jar is indexed once, however
+ * many loaders use it, and a jar that has changed on disk is indexed
+ * afresh for classpaths added afterwards.  When the last classpath using a
+ * loader is removed, its nails are dropped from the server's caches,
+ * pools, statistics and aliases and its jars are closed, so that the loader
+ * and its classes can be unloaded.  Nails from the loader that are still
+ * running may fail to load further classes.</p>
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGClasspaths {
+
+	/**
+	 * Separates the classpath name from the class name in a command
+	 */
+	public static final char SEPARATOR = ':';
+	
+	/**
+	 * The server whose nails are loaded
+	 */
+	private final NGServer server;
+	
+	/**
+	 * The class loaders by classpath name
+	 */
+	private final Map classpaths = new java.util.TreeMap();
+	
+	/**
+	 * The class loaders by jar set
+	 */
+	private final Map loaders = new java.util.HashMap();
+	
+	/**
+	 * The current jar indexes by canonical path
+	 */
+	private final Map jars = new java.util.HashMap();
+	
+	/**
+	 * Creates a new, empty NGClasspaths
+	 * @param server the server whose nails are loaded
+	 */
+	NGClasspaths(NGServer server) {
+		this.server = server;
+	}
+	
+	/**
+	 * Adds a named classpath, replacing any classpath of the same name
+	 * @param name the classpath name
+	 * @param files the jars and directories, in lookup order
+	 * @throws IOException if a jar cannot be read
+	 */
+	public synchronized void add(String name, File[] files) throws IOException {
+		if (name.length() == 0 || name.indexOf(SEPARATOR) >= 0) {
+			throw new IllegalArgumentException("Invalid classpath name [" + name + "]");
+		}
+		File[] canonical = new File[files.length];
+		StringBuffer key = new StringBuffer();
+		for (int i = 0; i < files.length; ++i) {
+			canonical[i] = files[i].getCanonicalFile();
+			if (!canonical[i].exists()) {
+				throw new IOException(files[i] + " does not exist");
+			}
+			if (i > 0) key.append(File.pathSeparatorChar);
+			key.append(canonical[i].getPath());
+		}
+		
+		NGClassLoader loader = (NGClassLoader) loaders.get(key.toString());
+		if (loader == null) {
+			NGJarIndex[] indexes = new NGJarIndex[canonical.length];
+			try {
+				for (int i = 0; i < canonical.length; ++i) {
+					indexes[i] = acquire(canonical[i]);
+				}
+			} catch (IOException e) {
+				for (int i = 0; i < indexes.length && indexes[i] != null; ++i) {
+					release(indexes[i]);
+				}
+				throw e;
+			}
+			loader = new NGClassLoader(key.toString(), NGServer.class.getClassLoader(), indexes);
+			loaders.put(loader.key, loader);
+		}
+		++loader.refs;
+		
+		NGClassLoader previous = (NGClassLoader) classpaths.put(name, loader);
+		if (previous != null) {
+			release(previous);
+		}
+		// commands on this classpath may have failed to resolve before
+		server.invalidateNailCache();
+	}
+	
+	/**
+	 * Removes a named classpath, unloading its class loader if no other
+	 * classpath uses it
+	 * @param name the classpath name
+	 * @return true iff the classpath existed
+	 */
+	public synchronized boolean remove(String name) {
+		NGClassLoader loader = (NGClassLoader) classpaths.remove(name);
+		if (loader == null) return (false);
+		release(loader);
+		return (true);
+	}
+	
+	/**
+	 * Returns the names of the classpaths
+	 * @return the sorted classpath names
+	 */
+	public synchronized Set getNames() {
+		return (new java.util.TreeSet(classpaths.keySet()));
+	}
+	
+	/**
+	 * Returns the jars of a named classpath
+	 * @param name the classpath name
+	 * @return the canonical jar files and directories, or null if there is no such classpath
+	 */
+	public synchronized File[] getFiles(String name) {
+		NGClassLoader loader = (NGClassLoader) classpaths.get(name);
+		return ((loader == null) ? null : loader.getFiles());
+	}
+	
+	/**
+	 * Returns the class loader of a named classpath
+	 * @param name the classpath name
+	 * @return the class loader, or null if there is no such classpath
+	 */
+	public synchronized ClassLoader getClassLoader(String name) {
+		return ((ClassLoader) classpaths.get(name));
+	}
+	
+	/**
+	 * Returns the name of a classpath backed by a class loader.  Classpaths
+	 * sharing the loader all run the same classes, so the first name in
+	 * sort order stands for them.
+	 * @param loader the class loader
+	 * @return the first classpath name using the loader, or null if none does
+	 */
+	public synchronized String getName(ClassLoader loader) {
+		for (Iterator i = classpaths.entrySet().iterator(); i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			if (entry.getValue() == loader) return ((String) entry.getKey());
+		}
+		return (null);
+	}
+	
+	/**
+	 * Loads the class named by a command: <code>name:className</code> from the
+	 * named classpath, or a plain class name from the server's class loader
+	 * @param command the class name, optionally prefixed by a classpath name
+	 * @return the class
+	 * @throws ClassNotFoundException if there is no such classpath or class
+	 */
+	public Class loadClass(String command) throws ClassNotFoundException {
+		int separator = command.indexOf(SEPARATOR);
+		if (separator < 0) {
+			return (Class.forName(command));
+		}
+		String name = command.substring(0, separator);
+		ClassLoader loader = getClassLoader(name);
+		if (loader == null) {
+			throw new ClassNotFoundException(command + " (no nail classpath named " + name + ")");
+		}
+		return (Class.forName(command.substring(separator + 1), true, loader));
+	}
+	
+	/**
+	 * Removes all classpaths.  Called when the server shuts down.
+	 */
+	synchronized void close() {
+		for (Iterator i = getNames().iterator(); i.hasNext();) {
+			remove((String) i.next());
+		}
+	}
+	
+	/**
+	 * Returns the current index of a jar, building it if the jar has not
+	 * been indexed or has changed, and counts a reference to it
+	 * @param file the canonical jar file or directory
+	 * @return the index
+	 * @throws IOException if the jar cannot be read
+	 */
+	private NGJarIndex acquire(File file) throws IOException {
+		NGJarIndex index = (NGJarIndex) jars.get(file);
+		if (index == null || !index.isCurrent()) {
+			index = new NGJarIndex(file);
+			jars.put(file, index);
+		}
+		++index.refs;
+		return (index);
+	}
+	
+	private void release(NGJarIndex index) {
+		if (--index.refs > 0) return;
+		if (jars.get(index.getFile()) == index) {
+			jars.remove(index.getFile());
+		}
+		index.close();
+	}
+	
+	private void release(NGClassLoader loader) {
+		if (--loader.refs > 0) return;
+		loaders.remove(loader.key);
+		server.unloadNails(loader);
+		NGJarIndex[] indexes = loader.getJars();
+		for (int i = 0; i < indexes.length; ++i) {
+			release(indexes[i]);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves a client's command to the nail class to run: an alias, a
+ * class name if the server allows nails by class name, or otherwise the
+ * server's default nail.  Class names are resolved through a bounded
+ * cache, and names that are not found are remembered for a limited time
+ * so that repeated typos or probes do not each pay for a full classpath
+ * search.  Hit and miss counts are shown by <code>ng-stats</code>.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGCommandResolver {
+
+	/**
+	 * The default maximum number of cached class names
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 1024;
+	
+	/**
+	 * The default time in milliseconds a class name that was not found is remembered
+	 */
+	public static final long DEFAULT_NEGATIVE_TTL = 5000;
+	
+	/**
+	 * The server the commands are resolved for
+	 */
+	private final NGServer server;
+	
+	/**
+	 * Cached resolutions keyed by class name.  Values are the resolved
+	 * Class, or a Long holding the expiry time of a failed resolution.
+	 */
+	private final Map classes = new ConcurrentHashMap();
+	
+	/**
+	 * The maximum number of cached class names
+	 */
+	private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+	
+	/**
+	 * The time in milliseconds a class name that was not found is remembered
+	 */
+	private volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+	
+	/**
+	 * The number of class names resolved from the cache
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	
+	/**
+	 * The number of class names rejected from the cache
+	 */
+	private final AtomicLong negativeHits = new AtomicLong();
+	
+	/**
+	 * The number of class names that had to be loaded
+	 */
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * The number of cached class names evicted to stay within the bound
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates a new NGCommandResolver
+	 * @param server the server the commands are resolved for
+	 */
+	NGCommandResolver(NGServer server) {
+		this.server = server;
+	}
+	
+	/**
+	 * Resolves a command to the nail class to run
+	 * @param command the alias or class name sent by the client
+	 * @return the nail class
+	 * @throws ClassNotFoundException if the command names a class that
+	 * cannot be found, now or within the negative TTL
+	 */
+	public Class resolve(String command) throws ClassNotFoundException {
+		Alias alias = server.getAliasManager().getAlias(command);
+		if (alias != null) {
+			return (alias.getAliasedClass());
+		}
+		if (!server.allowsNailsByClassName()) {
+			return (server.getDefaultNailClass());
+		}
+		Object cached = classes.get(command);
+		if (cached instanceof Class) {
+			hits.incrementAndGet();
+			return ((Class) cached);
+		}
+		if (cached != null) {
+			if (((Long) cached).longValue() > System.currentTimeMillis()) {
+				negativeHits.incrementAndGet();
+				throw new ClassNotFoundException(command);
+			}
+			classes.remove(command);
+		}
+		misses.incrementAndGet();
+		try {
+			Class result = server.getNailClasspaths().loadClass(command);
+			put(command, result);
+			return (result);
+		} catch (ClassNotFoundException e) {
+			if (negativeTtl > 0) {
+				put(command, Long.valueOf(System.currentTimeMillis() + negativeTtl));
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Caches a resolution, evicting entries to stay within the maximum
+	 * @param command the class name
+	 * @param value the resolved Class, or the expiry time of a failed resolution
+	 */
+	private void put(String command, Object value) {
+		if (classes.size() >= maxEntries) {
+			evict();
+		}
+		classes.put(command, value);
+	}
+	
+	/**
+	 * Makes room in the cache: expired and failed resolutions go first,
+	 * then arbitrary entries until the cache is below its maximum
+	 */
+	private void evict() {
+		long now = System.currentTimeMillis();
+		for (Iterator i = classes.values().iterator(); i.hasNext();) {
+			Object value = i.next();
+			if (value instanceof Long && ((Long) value).longValue() <= now) {
+				i.remove();
+				evictions.incrementAndGet();
+			}
+		}
+		for (Iterator i = classes.values().iterator(); i.hasNext() && classes.size() >= maxEntries;) {
+			Object value = i.next();
+			if (value instanceof Long) {
+				i.remove();
+				evictions.incrementAndGet();
+			}
+		}
+		for (Iterator i = classes.keySet().iterator(); i.hasNext() && classes.size() >= maxEntries;) {
+			i.next();
+			i.remove();
+			evictions.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Discards all cached resolutions.  Called when the classpath changes.
+	 */
+	public void clear() {
+		classes.clear();
+	}
+	
+	/**
+	 * Sets the maximum number of cached class names
+	 * @param maxEntries the maximum number of cached class names
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = Math.max(1, maxEntries);
+	}
+	
+	/**
+	 * Returns the maximum number of cached class names
+	 * @return the maximum number of cached class names
+	 */
+	public int getMaxEntries() {
+		return (maxEntries);
+	}
+	
+	/**
+	 * Sets the time a class name that was not found is remembered
+	 * @param negativeTtl the time in milliseconds, or zero to not remember failures
+	 */
+	public void setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = Math.max(0, negativeTtl);
+	}
+	
+	/**
+	 * Returns the time a class name that was not found is remembered
+	 * @return the time in milliseconds
+	 */
+	public long getNegativeTtl() {
+		return (negativeTtl);
+	}
+	
+	/**
+	 * Returns the number of class names resolved from the cache
+	 * @return the number of cache hits
+	 */
+	public long getHits() {
+		return (hits.get());
+	}
+	
+	/**
+	 * Returns the number of class names rejected from the cache
+	 * @return the number of negative cache hits
+	 */
+	public long getNegativeHits() {
+		return (negativeHits.get());
+	}
+	
+	/**
+	 * Returns the number of class names that had to be loaded
+	 * @return the number of cache misses
+	 */
+	public long getMisses() {
+		return (misses.get());
+	}
+	
+	/**
+	 * Returns the number of cached class names evicted to stay within the bound
+	 * @return the number of evictions
+	 */
+	public long getEvictions() {
+		return (evictions.get());
+	}
+	
+	/**
+	 * Returns the number of cached class names
+	 * @return the cache size
+	 */
+	public int size() {
+		return (classes.size());
+	}
+	
+	/**
+	 * Returns a one line summary of the cache counters
+	 * @return the cache counters
+	 */
+	public String toString() {
+		return ("command cache: " + size() + "/" + maxEntries + " entries, " 
+				+ getHits() + " hits, " + getNegativeHits() + " negative hits, " 
+				+ getMisses() + " misses, " + getEvictions() + " evictions");
+	}
+}
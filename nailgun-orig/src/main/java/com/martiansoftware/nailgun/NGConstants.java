@@ -41,6 +41,18 @@ public class NGConstants {
 	 * The exit code sent to clients if an invalid command is sent
 	 */
 	public static final int EXIT_NOSUCHCOMMAND = 898;
+	
+	/**
+	 * The exit code sent to clients whose nail was at its concurrency limit
+	 * with a full wait queue
+	 */
+	public static final int EXIT_SERVER_BUSY = 897;
+	
+	/**
+	 * The exit code sent to clients whose nails were still running when a
+	 * draining server shutdown ran out of time
+	 */
+	public static final int EXIT_SERVER_SHUTDOWN = 896;
 
 	/**
 	 * Chunk type marker for command line arguments
@@ -0,0 +1,81 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * <p>Java agent that lets the server trap nail exits without installing
+ * <code>NGSecurityManager</code>.  With the security manager in place,
+ * every permission check in the JVM goes through it, slowing file access,
+ * reflection and class loading for everything in-process.</p>
+ * 
+ * <p>The agent registers an <code>NGExitTransformer</code>, which redirects
+ * the <code>System.exit</code> and <code>Runtime.exit</code> calls of
+ * application classes to <code>NGExitInterceptor</code>.  Start the JVM
+ * with <code>-javaagent:nailgun.jar</code>; an <code>NGServer</code> then
+ * relies on the agent instead of the security manager.  When attached to
+ * a running JVM, only classes loaded afterwards are rewritten.</p>
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGExitAgent {
+
+	/**
+	 * Set once the transformer is registered
+	 */
+	private static volatile boolean installed = false;
+	
+	/**
+	 * Called when the agent is loaded at JVM startup
+	 * @param args the agent arguments (ignored)
+	 * @param inst the instrumentation instance
+	 */
+	public static void premain(String args, Instrumentation inst) {
+		install(inst);
+	}
+	
+	/**
+	 * Called when the agent is attached to a running JVM
+	 * @param args the agent arguments (ignored)
+	 * @param inst the instrumentation instance
+	 */
+	public static void agentmain(String args, Instrumentation inst) {
+		install(inst);
+	}
+	
+	/**
+	 * Registers the transformer once
+	 * @param inst the instrumentation instance
+	 */
+	public static synchronized void install(Instrumentation inst) {
+		if (installed) return;
+		inst.addTransformer(new NGExitTransformer());
+		installed = true;
+	}
+	
+	/**
+	 * Returns true iff the agent is installed, so that exits are trapped
+	 * without a security manager
+	 * @return true iff the agent is installed
+	 */
+	public static boolean isInstalled() {
+		return (installed);
+	}
+}
@@ -0,0 +1,96 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.PrintStream;
+
+/**
+ * Receives the <code>System.exit</code> and <code>Runtime.exit</code>
+ * calls of classes rewritten by <code>NGExitAgent</code>.  While a server
+ * relying on the agent is running, an exit is reported to the client
+ * and turned into an <code>NGExitException</code>, exactly as
+ * <code>NGSecurityManager.checkExit</code> does; otherwise the JVM exits.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public final class NGExitInterceptor {
+
+	/**
+	 * The number of running servers trapping exits through this class
+	 */
+	private static int servers = 0;
+	
+	private NGExitInterceptor() {
+	}
+	
+	/**
+	 * Called in place of <code>System.exit(status)</code>
+	 * @param status the exit status
+	 */
+	public static void exit(int status) {
+		trap(status);
+		System.exit(status);
+	}
+	
+	/**
+	 * Called in place of <code>runtime.exit(status)</code>
+	 * @param runtime the runtime the exit was called on
+	 * @param status the exit status
+	 */
+	public static void exit(Runtime runtime, int status) {
+		trap(status);
+		runtime.exit(status);
+	}
+	
+	/**
+	 * Throws an NGExitException if a server is trapping exits
+	 * @param status the exit status
+	 */
+	private static void trap(int status) {
+		if (isTrapping()) {
+			PrintStream exit = NGSecurityManager.getExit();
+			if (exit != null) {
+				exit.println(status);
+			}
+			throw new NGExitException(status);
+		}
+	}
+	
+	/**
+	 * Returns true iff a server is trapping exits through this class
+	 * @return true iff exits are trapped
+	 */
+	static synchronized boolean isTrapping() {
+		return (servers > 0);
+	}
+	
+	/**
+	 * Called when a server relying on the agent starts
+	 */
+	static synchronized void serverStarted() {
+		++servers;
+	}
+	
+	/**
+	 * Called when a server relying on the agent stops
+	 */
+	static synchronized void serverStopped() {
+		--servers;
+	}
+}
@@ -0,0 +1,318 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+
+/**
+ * <p>Redirects the <code>System.exit(int)</code> and
+ * <code>Runtime.exit(int)</code> calls of application classes to
+ * <code>NGExitInterceptor</code> as they are loaded.</p>
+ * 
+ * <p>The <code>System.exit</code> method reference in the constant pool
+ * is simply pointed at the interceptor, which has a method of the same
+ * name and descriptor; this also covers method handles such as
+ * <code>System::exit</code>.  Each <code>invokevirtual</code> of
+ * <code>Runtime.exit</code> becomes an <code>invokestatic</code> of
+ * <code>NGExitInterceptor.exit(Runtime, int)</code>, which consumes the same
+ * operands, so no instruction moves and no stack map changes.  Classes that
+ * call neither are returned untouched, as are JDK classes and the
+ * server's own, in the <code>com.martiansoftware.nailgun</code> package
+ * itself.  Nails in its subpackages, such as the examples, are rewritten.</p>
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+class NGExitTransformer implements ClassFileTransformer {
+
+	/**
+	 * Internal name of the class exits are redirected to
+	 */
+	private static final String INTERCEPTOR = "com/martiansoftware/nailgun/NGExitInterceptor";
+	
+	/**
+	 * Prefixes of classes that are never rewritten
+	 */
+	private static final String[] EXCLUDED = {"java/", "javax/", "jdk/", "sun/", "com/sun/"};
+	
+	/**
+	 * The package of the server's own classes, which are never rewritten.
+	 * Its subpackages hold nails (builtins and examples) and are rewritten.
+	 */
+	private static final String SERVER_PACKAGE = "com/martiansoftware/nailgun/";
+	
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAMEANDTYPE = 12;
+	
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESTATIC = 0xb8;
+	private static final int TABLESWITCH = 0xaa;
+	private static final int LOOKUPSWITCH = 0xab;
+	private static final int WIDE = 0xc4;
+	private static final int IINC = 0x84;
+	
+	/**
+	 * Instruction lengths by opcode, except for the switches and wide
+	 */
+	private static final byte[] LENGTHS = new byte[256];
+	
+	static {
+		java.util.Arrays.fill(LENGTHS, (byte) 1);
+		setLengths(2, new int[] {0x10, 0x12, 0x15, 0x16, 0x17, 0x18, 0x19, 0x36, 0x37, 0x38, 0x39, 0x3a, 0xa9, 0xbc});
+		setLengths(3, new int[] {0x11, 0x13, 0x14, IINC, 0xb2, 0xb3, 0xb4, 0xb5, INVOKEVIRTUAL, 0xb7, INVOKESTATIC,
+				0xbb, 0xbd, 0xc0, 0xc1, 0xc6, 0xc7});
+		for (int op = 0x99; op <= 0xa8; ++op) {
+			LENGTHS[op] = 3;		// conditional branches, goto and jsr
+		}
+		setLengths(4, new int[] {0xc5});
+		setLengths(5, new int[] {0xb9, 0xba, 0xc8, 0xc9});
+	}
+	
+	private static void setLengths(int length, int[] opcodes) {
+		for (int i = 0; i < opcodes.length; ++i) {
+			LENGTHS[opcodes[i]] = (byte) length;
+		}
+	}
+	
+	public byte[] transform(ClassLoader loader, String className, Class classBeingRedefined,
+			ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+		if (loader == null || className == null) return (null);
+		for (int i = 0; i < EXCLUDED.length; ++i) {
+			if (className.startsWith(EXCLUDED[i])) return (null);
+		}
+		if (isServerClass(className)) return (null);
+		try {
+			byte[] result = rewrite(classfileBuffer);
+			// a class that cannot see the interceptor must keep its exits
+			if (result != null && !seesInterceptor(loader)) return (null);
+			return (result);
+		} catch (RuntimeException e) {
+			// leave anything we cannot parse to the JVM
+			return (null);
+		}
+	}
+	
+	/**
+	 * Returns true iff the class is one of the server's own, in the server
+	 * package itself rather than one of its subpackages
+	 * @param className the internal name of the class
+	 * @return true iff the class must keep its exits
+	 */
+	static boolean isServerClass(String className) {
+		return (className.startsWith(SERVER_PACKAGE) && className.indexOf('/', SERVER_PACKAGE.length()) < 0);
+	}
+	
+	/**
+	 * Returns true iff the specified loader resolves the interceptor to this one
+	 * @param loader the class loader
+	 * @return true iff the loader sees the interceptor
+	 */
+	private static boolean seesInterceptor(ClassLoader loader) {
+		try {
+			return (Class.forName(NGExitInterceptor.class.getName(), false, loader) == NGExitInterceptor.class);
+		} catch (ClassNotFoundException e) {
+			return (false);
+		} catch (LinkageError e) {
+			return (false);
+		}
+	}
+	
+	/**
+	 * Rewrites the exit calls of a class file
+	 * @param b the class file
+	 * @return the rewritten class file, or null if the class makes no exit calls
+	 */
+	static byte[] rewrite(byte[] b) {
+		int count = u2(b, 8);
+		int[] offsets = new int[count];
+		int pos = 10;
+		for (int i = 1; i < count; ++i) {
+			offsets[i] = pos;
+			int tag = b[pos] & 0xff;
+			switch (tag) {
+				case CONSTANT_UTF8:			pos += 3 + u2(b, pos + 1); break;
+				case 5: case 6:				pos += 9; ++i; break;	// long and double take two slots
+				case 3: case 4: case 9: case CONSTANT_METHODREF: case 11:
+				case CONSTANT_NAMEANDTYPE: case 17: case 18:
+											pos += 5; break;
+				case CONSTANT_CLASS: case 8: case 16: case 19: case 20:
+											pos += 3; break;
+				case 15:					pos += 4; break;
+				default:					throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+			}
+		}
+		int poolEnd = pos;
+		
+		boolean[] runtimeExits = new boolean[count];
+		int[] systemExits = new int[count];
+		int systemExitCount = 0;
+		int runtimeExitCount = 0;
+		int exitName = 0;
+		for (int i = 1; i < count; ++i) {
+			int off = offsets[i];
+			if (off == 0 || (b[off] & 0xff) != CONSTANT_METHODREF) continue;
+			int nat = offsets[u2(b, off + 3)];
+			if (!utf8Equals(b, offsets, u2(b, nat + 1), "exit")
+					|| !utf8Equals(b, offsets, u2(b, nat + 3), "(I)V")) continue;
+			int owner = u2(b, offsets[u2(b, off + 1)] + 1);
+			if (utf8Equals(b, offsets, owner, "java/lang/System")) {
+				systemExits[systemExitCount++] = i;
+			} else if (utf8Equals(b, offsets, owner, "java/lang/Runtime")) {
+				runtimeExits[i] = true;
+				++runtimeExitCount;
+				exitName = u2(b, nat + 1);
+			}
+		}
+		if (systemExitCount == 0 && runtimeExitCount == 0) return (null);
+		
+		byte[] result = (byte[]) b.clone();
+		ByteArrayOutputStream added = new ByteArrayOutputStream();
+		int next = count;
+		writeUtf8(added, INTERCEPTOR);
+		int interceptor = next + 1;
+		writeEntry(added, CONSTANT_CLASS, next, -1);
+		next += 2;
+		for (int i = 0; i < systemExitCount; ++i) {
+			put2(result, offsets[systemExits[i]] + 1, interceptor);
+		}
+		if (runtimeExitCount > 0) {
+			writeUtf8(added, "(Ljava/lang/Runtime;I)V");
+			writeEntry(added, CONSTANT_NAMEANDTYPE, exitName, next);
+			writeEntry(added, CONSTANT_METHODREF, interceptor, next + 1);
+			rewriteInvocations(result, poolEnd, offsets, runtimeExits, next + 2);
+			next += 3;
+		}
+		if (next > 0xffff) return (null);
+		
+		byte[] pool = added.toByteArray();
+		byte[] out = new byte[result.length + pool.length];
+		System.arraycopy(result, 0, out, 0, poolEnd);
+		put2(out, 8, next);
+		System.arraycopy(pool, 0, out, poolEnd, pool.length);
+		System.arraycopy(result, poolEnd, out, poolEnd + pool.length, result.length - poolEnd);
+		return (out);
+	}
+	
+	/**
+	 * Turns each <code>invokevirtual</code> of a <code>Runtime.exit</code>
+	 * reference into an <code>invokestatic</code> of the interceptor
+	 * @param b the class file, rewritten in place
+	 * @param pos the offset of the end of the constant pool
+	 * @param offsets the offsets of the constant pool entries
+	 * @param runtimeExits flags the <code>Runtime.exit</code> references
+	 * @param interceptorExit the interceptor method reference
+	 */
+	private static void rewriteInvocations(byte[] b, int pos, int[] offsets, boolean[] runtimeExits, int interceptorExit) {
+		pos += 6;						// access flags, this and super class
+		pos += 2 + 2 * u2(b, pos);		// interfaces
+		for (int member = 0; member < 2; ++member) {
+			int members = u2(b, pos);
+			pos += 2;
+			for (int m = 0; m < members; ++m) {
+				pos += 6;				// access flags, name and descriptor
+				int attributes = u2(b, pos);
+				pos += 2;
+				for (int a = 0; a < attributes; ++a) {
+					int length = u4(b, pos + 2);
+					if (member == 1 && utf8Equals(b, offsets, u2(b, pos), "Code")) {
+						// skip the name, length, max stack and max locals
+						int start = pos + 14;
+						int end = start + u4(b, pos + 10);
+						for (int pc = start; pc < end; pc += instructionLength(b, start, pc)) {
+							if ((b[pc] & 0xff) == INVOKEVIRTUAL && runtimeExits[u2(b, pc + 1)]) {
+								b[pc] = (byte) INVOKESTATIC;
+								put2(b, pc + 1, interceptorExit);
+							}
+						}
+					}
+					pos += 6 + length;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the length of an instruction
+	 * @param b the class file
+	 * @param start the offset of the method's code
+	 * @param pc the offset of the instruction
+	 * @return the instruction length
+	 */
+	private static int instructionLength(byte[] b, int start, int pc) {
+		int op = b[pc] & 0xff;
+		if (op == TABLESWITCH || op == LOOKUPSWITCH) {
+			// operands are aligned to four bytes from the start of the code
+			int operands = pc + 1 + ((3 - (pc - start)) & 3);
+			if (op == TABLESWITCH) {
+				int low = u4(b, operands + 4);
+				int high = u4(b, operands + 8);
+				return (operands + 12 + 4 * (high - low + 1) - pc);
+			}
+			return (operands + 8 + 8 * u4(b, operands + 4) - pc);
+		}
+		if (op == WIDE) {
+			return (((b[pc + 1] & 0xff) == IINC) ? 6 : 4);
+		}
+		return (LENGTHS[op]);
+	}
+	
+	private static boolean utf8Equals(byte[] b, int[] offsets, int index, String s) {
+		int off = offsets[index];
+		if ((b[off] & 0xff) != CONSTANT_UTF8 || u2(b, off + 1) != s.length()) return (false);
+		for (int i = 0; i < s.length(); ++i) {
+			if (b[off + 3 + i] != s.charAt(i)) return (false);
+		}
+		return (true);
+	}
+	
+	private static void writeUtf8(ByteArrayOutputStream out, String s) {
+		out.write(CONSTANT_UTF8);
+		out.write(s.length() >> 8);
+		out.write(s.length());
+		for (int i = 0; i < s.length(); ++i) {
+			out.write(s.charAt(i));
+		}
+	}
+	
+	private static void writeEntry(ByteArrayOutputStream out, int tag, int first, int second) {
+		out.write(tag);
+		out.write(first >> 8);
+		out.write(first);
+		if (second >= 0) {
+			out.write(second >> 8);
+			out.write(second);
+		}
+	}
+	
+	private static int u2(byte[] b, int off) {
+		return (((b[off] & 0xff) << 8) | (b[off + 1] & 0xff));
+	}
+	
+	private static int u4(byte[] b, int off) {
+		return (((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff));
+	}
+	
+	private static void put2(byte[] b, int off, int value) {
+		b[off] = (byte) (value >> 8);
+		b[off + 1] = (byte) value;
+	}
+}
@@ -18,38 +18,53 @@
 
 package com.martiansoftware.nailgun;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
- * A FilterInputStream that is able to read the chunked stdin stream
+ * An InputStream that is able to read the chunked stdin stream
  * from a NailGun client.
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
-class NGInputStream extends FilterInputStream {
+class NGInputStream extends InputStream {
 
-    private DataInputStream din;
+	/**
+	 * The payload of the STARTINPUT chunk
+	 */
+	private static final byte[] NO_BYTES = new byte[0];
+
+    private NGChunkReader in;
 	private boolean eof = false;
 	private long remaining = 0;
-    private byte[] oneByteBuffer = null;
-    private final DataOutputStream out;
+    private final NGChunkWriter out;
     private boolean started = false;
         
 	/**
-	 * Creates a new NGInputStream wrapping the specified InputStream
-	 * @param in the InputStream to wrap
-         * @param out the OutputStream to which a STARTINPUT chunk should
+	 * Creates a new NGInputStream reading the stdin chunks of a client
+	 * @param in the chunk reader of the client connection, positioned
+	 * after the command chunk
+         * @param out the chunk writer to which a STARTINPUT chunk should
          * be sent prior to the first read.
 	 */
-	public NGInputStream(java.io.InputStream in, DataOutputStream out) {
-		super(in);
-        din = (DataInputStream) this.in;
+	public NGInputStream(NGChunkReader in, NGChunkWriter out) {
+        this.in = in;
         this.out = out;
 	}
 
+	/**
+	 * Prepares this stream for the stdin of a new request on the same
+	 * chunk writer
+	 * @param in the chunk reader of the new connection, positioned
+	 * after the command chunk
+	 */
+	void reset(NGChunkReader in) {
+		this.in = in;
+		eof = false;
+		remaining = 0;
+		started = false;
+	}
+
 	/**
 	 * Reads a NailGun chunk header from the underlying InputStream.
 	 * 
@@ -59,18 +74,17 @@ class NGInputStream extends FilterInputStream {
 	private void readHeader() throws IOException {
 		if (eof) return;
 
-        int hlen = din.readInt();
-        byte chunkType = din.readByte();
-		switch(chunkType) {
+        in.readHeader();
+		switch(in.getChunkType()) {
 			case NGConstants.CHUNKTYPE_STDIN:
-						remaining = hlen;
+						remaining = in.getChunkLength();
 						break;
 						
 			case NGConstants.CHUNKTYPE_STDIN_EOF:
 						eof = true;
 						break;
 						
-			default:	throw(new IOException("Unknown stream type: " + (char) chunkType));
+			default:	throw(new IOException("Unknown stream type: " + (char) in.getChunkType()));
 		}		
 	}
 	
@@ -79,7 +93,7 @@ class NGInputStream extends FilterInputStream {
 	 */
 	public int available() throws IOException {
 		if (eof) return(0);
-		if (remaining > 0) return (in.available());
+		if (remaining > 0) return ((int) Math.min(remaining, in.available()));
 		return (Math.max(0, in.available() - 5));
 	}
 	
@@ -94,8 +108,10 @@ class NGInputStream extends FilterInputStream {
 	 * @see java.io.InputStream#read()
 	 */
 	public int read() throws IOException {
-        if (oneByteBuffer == null) oneByteBuffer = new byte[1];
-        return((read(oneByteBuffer, 0, 1) == -1) ? -1 : (int) oneByteBuffer[0]);
+		if (!next()) return (-1);
+		int result = in.read();
+		if (result != -1) --remaining;
+		return (result);
 	}
 	
 	/**
@@ -109,21 +125,33 @@ class NGInputStream extends FilterInputStream {
 	 * @see java.io.InputStream.read(byte[],offset,length)
 	 */
 	public int read(byte[] b, int offset, int length) throws IOException {
-        if (!started) {
-            synchronized(out) {
-                out.writeInt(0);
-                out.writeByte(NGConstants.CHUNKTYPE_STARTINPUT);
-                out.flush();
-                started = true;
-            }
-        }
-		if (remaining == 0) readHeader();
-		if (eof) return(-1);
-
-		int bytesToRead = Math.min((int) remaining, length);
+		if (length == 0) return (0);
+		if (!next()) return (-1);
+		int bytesToRead = (int) Math.min(remaining, length);
 		int result = in.read(b, offset, bytesToRead);
-		remaining -= result;
+		if (result > 0) remaining -= result;
 		return (result);
 	}
+	
+	/**
+	 * Requests stdin from the client on the first read, and moves to the
+	 * next stdin chunk when the current one has been read.  Empty stdin
+	 * chunks are skipped.
+	 * @return true if there are stdin bytes to read, false at the end of stdin
+	 * @throws IOException if thrown by the underlying InputStream
+	 */
+	private boolean next() throws IOException {
+        if (!started) {
+            // also sends any output held for the connection
+            out.write(NGConstants.CHUNKTYPE_STARTINPUT, NO_BYTES, 0, 0);
+            started = true;
+        }
+		while (remaining == 0 && !eof) {
+			// don't leave a prompt held while blocking for the client's input
+			out.flush();
+			readHeader();
+		}
+		return (!eof);
+	}
 
 }
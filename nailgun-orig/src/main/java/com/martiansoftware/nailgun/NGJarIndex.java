@@ -0,0 +1,215 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.cert.Certificate;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * The names of the entries in one jar or directory of a nail classpath,
+ * read once when the index is built, and the means to read them.  An index
+ * is shared by every <code>NGClassLoader</code> whose classpath includes
+ * its jar, so no jar is scanned twice.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+class NGJarIndex {
+
+	/**
+	 * The canonical jar file or directory
+	 */
+	private final File file;
+	
+	/**
+	 * The open jar, or null for a directory
+	 */
+	private final JarFile jar;
+	
+	/**
+	 * The names of all files in the jar or directory, '/' separated
+	 */
+	private final Set entries = new java.util.HashSet();
+	
+	/**
+	 * The code source of classes defined from this jar
+	 */
+	private final CodeSource codeSource;
+	
+	/**
+	 * The modification time of the file when it was indexed
+	 */
+	private final long lastModified;
+	
+	/**
+	 * The length of the file when it was indexed
+	 */
+	private final long length;
+	
+	/**
+	 * The number of class loaders using this index, guarded by the
+	 * owning <code>NGClasspaths</code>
+	 */
+	int refs = 0;
+	
+	/**
+	 * Indexes a jar file or directory
+	 * @param file the canonical jar file or directory
+	 * @throws IOException if the jar cannot be read
+	 */
+	NGJarIndex(File file) throws IOException {
+		this.file = file;
+		this.lastModified = file.lastModified();
+		this.length = file.length();
+		if (file.isDirectory()) {
+			jar = null;
+			indexDirectory(file, "");
+		} else {
+			jar = new JarFile(file);
+			for (Enumeration e = jar.entries(); e.hasMoreElements();) {
+				JarEntry entry = (JarEntry) e.nextElement();
+				if (!entry.isDirectory()) {
+					entries.add(entry.getName());
+				}
+			}
+		}
+		codeSource = new CodeSource(file.toURI().toURL(), (Certificate[]) null);
+	}
+	
+	private void indexDirectory(File dir, String prefix) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (int i = 0; i < files.length; ++i) {
+			String name = prefix + files[i].getName();
+			if (files[i].isDirectory()) {
+				indexDirectory(files[i], name + "/");
+			} else {
+				entries.add(name);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the indexed jar file or directory
+	 * @return the canonical jar file or directory
+	 */
+	File getFile() {
+		return (file);
+	}
+	
+	/**
+	 * Returns true iff the file has not changed since it was indexed
+	 * @return true iff the index is current
+	 */
+	boolean isCurrent() {
+		return (file.lastModified() == lastModified && file.length() == length);
+	}
+	
+	/**
+	 * Returns true iff the jar contains the specified entry
+	 * @param name the '/' separated entry name
+	 * @return true iff the entry exists
+	 */
+	boolean contains(String name) {
+		return (entries.contains(name));
+	}
+	
+	/**
+	 * Returns the names of all entries
+	 * @return an iterator over the entry names
+	 */
+	Iterator entries() {
+		return (entries.iterator());
+	}
+	
+	/**
+	 * Returns the code source of classes defined from this jar
+	 * @return the code source
+	 */
+	CodeSource getCodeSource() {
+		return (codeSource);
+	}
+	
+	/**
+	 * Reads an entry
+	 * @param name the '/' separated entry name
+	 * @return the entry's bytes
+	 * @throws IOException if the entry cannot be read
+	 */
+	byte[] read(String name) throws IOException {
+		InputStream in;
+		int size = -1;
+		if (jar == null) {
+			File f = new File(file, name.replace('/', File.separatorChar));
+			size = (int) f.length();
+			in = new FileInputStream(f);
+		} else {
+			JarEntry entry = jar.getJarEntry(name);
+			if (entry == null) throw new IOException(name + " not found in " + file);
+			size = (int) entry.getSize();
+			in = jar.getInputStream(entry);
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(size, 512));
+			byte[] buf = new byte[4096];
+			int count;
+			while ((count = in.read(buf)) != -1) {
+				out.write(buf, 0, count);
+			}
+			return (out.toByteArray());
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Returns the URL of an entry
+	 * @param name the '/' separated entry name
+	 * @return the entry URL
+	 * @throws MalformedURLException never, in practice
+	 */
+	URL getResource(String name) throws MalformedURLException {
+		if (jar == null) {
+			return (new File(file, name.replace('/', File.separatorChar)).toURI().toURL());
+		}
+		return (new URL("jar:" + file.toURI().toURL() + "!/" + name));
+	}
+	
+	/**
+	 * Closes the jar
+	 */
+	void close() {
+		if (jar != null) {
+			try {
+				jar.close();
+			} catch (IOException toDiscard) {}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.tools.ant.ExitException;
+
+/**
+ * Invokes the entry point of a nail class: <code>Nail.run(NGContext)</code>
+ * on a pooled instance if the class implements <code>Nail</code>, otherwise
+ * <code>nailMain(NGContext)</code> if the class has one, otherwise
+ * <code>main(String[])</code>.  The entry
+ * point is resolved once per class and kept in an <code>NGNailInvoker.Cache</code>,
+ * including the failure for classes that have neither method, so
+ * repeated requests do no method lookups and throw no exceptions before
+ * the nail runs.  The resolved method is made accessible up front, so
+ * invocations skip the access check.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+class NGNailInvoker {
+
+	/**
+	 * signature of main(String[]) for reflection operations
+	 */
+	private static final Class[] mainSignature = new Class[] {String[].class};
+
+	/**
+	 * signature of nailMain(NGContext) for reflection operations
+	 */
+	private static final Class[] nailMainSignature = new Class[] {NGContext.class};
+	
+	/**
+	 * The nail class
+	 */
+	private final Class nailClass;
+	
+	/**
+	 * The resolved entry point, or null if the class has none
+	 */
+	private final Method method;
+	
+	/**
+	 * True if the entry point is nailMain(NGContext) or Nail.run(NGContext)
+	 */
+	private final boolean takesContext;
+	
+	/**
+	 * True if the class implements Nail and runs on pooled instances
+	 */
+	private final boolean instanceNail;
+	
+	/**
+	 * Resolves the entry point of a nail class
+	 * @param nailClass the nail class
+	 */
+	private NGNailInvoker(Class nailClass) {
+		this.nailClass = nailClass;
+		this.instanceNail = Nail.class.isAssignableFrom(nailClass)
+				&& !Modifier.isAbstract(nailClass.getModifiers());
+		Method m = null;
+		boolean context = instanceNail;
+		if (!instanceNail) try {
+			m = nailClass.getMethod("nailMain", nailMainSignature);
+			context = true;
+		} catch (NoSuchMethodException toDiscard) {
+			// that's ok - we'll just try main(String[]) next.
+			try {
+				m = nailClass.getMethod("main", mainSignature);
+			} catch (NoSuchMethodException noEntryPoint) {
+				m = null;
+			}
+		}
+		if (m != null) {
+			try {
+				m.setAccessible(true);
+			} catch (SecurityException toDiscard) {
+				// invoke with the access check
+			}
+		}
+		this.method = m;
+		this.takesContext = context;
+	}
+	
+	/**
+	 * Returns true iff the nail's entry point is <code>nailMain(NGContext)</code>
+	 * @return true iff the nail takes an NGContext
+	 */
+	boolean takesContext() {
+		return (takesContext);
+	}
+	
+	/**
+	 * Returns the nail class
+	 * @return the nail class
+	 */
+	Class getNailClass() {
+		return (nailClass);
+	}
+	
+	/**
+	 * Runs the nail
+	 * @param context the context passed to <code>nailMain</code> or <code>Nail.run</code>
+	 * @param args the arguments passed to <code>main</code>
+	 * @throws Throwable anything thrown by the nail
+	 */
+	void invoke(NGContext context, String[] args) throws Throwable {
+		if (instanceNail) {
+			NGNailPool pool = context.getNGServer().getNailPool(nailClass);
+			Nail nail = pool.borrow();
+			boolean reusable = false;
+			try {
+				nail.run(context);
+				reusable = true;
+			} catch (ExitException exitEx) {
+				// System.exit() is a normal way for a nail to finish
+				reusable = true;
+				throw exitEx;
+			} finally {
+				pool.release(nail, reusable);
+			}
+			return;
+		}
+		try {
+			method.invoke(null, new Object[] {takesContext ? (Object) context : (Object) args});
+		} catch (InvocationTargetException ite) {
+			throw(ite.getCause());
+		}
+	}
+	
+	/**
+	 * A cache of invokers keyed by nail class.  The cache is cleared when
+	 * the server's aliases change or when it is invalidated, for example
+	 * after the classpath changes.
+	 */
+	static class Cache {
+		
+		/**
+		 * The invokers keyed by nail class
+		 */
+		private final Map invokers = new ConcurrentHashMap();
+		
+		/**
+		 * The alias manager whose changes clear the cache
+		 */
+		private final AliasManager aliasManager;
+		
+		/**
+		 * The alias manager version the cached invokers were resolved under
+		 */
+		private volatile long aliasVersion;
+		
+		/**
+		 * Creates a new Cache
+		 * @param aliasManager the alias manager whose changes clear the cache
+		 */
+		Cache(AliasManager aliasManager) {
+			this.aliasManager = aliasManager;
+			this.aliasVersion = aliasManager.getVersion();
+		}
+		
+		/**
+		 * Returns the invoker for the specified nail class
+		 * @param nailClass the nail class
+		 * @return the invoker
+		 * @throws NoSuchMethodException if the class has neither
+		 * <code>nailMain(NGContext)</code> nor <code>main(String[])</code>
+		 */
+		NGNailInvoker get(Class nailClass) throws NoSuchMethodException {
+			long version = aliasManager.getVersion();
+			if (version != aliasVersion) {
+				invokers.clear();
+				aliasVersion = version;
+			}
+			NGNailInvoker invoker = (NGNailInvoker) invokers.get(nailClass);
+			if (invoker == null) {
+				invoker = new NGNailInvoker(nailClass);
+				invokers.put(nailClass, invoker);
+			}
+			if (invoker.method == null && !invoker.instanceNail) {
+				throw new NoSuchMethodException(nailClass.getName() + " is not a Nail and has neither nailMain(NGContext) nor main(String[])");
+			}
+			return (invoker);
+		}
+		
+		/**
+		 * Discards all cached invokers
+		 */
+		void clear() {
+			invokers.clear();
+		}
+	}
+}
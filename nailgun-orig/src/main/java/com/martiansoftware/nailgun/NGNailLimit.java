@@ -0,0 +1,181 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+/**
+ * Bounds the number of concurrent and queued runs of one alias or nail
+ * class.  Runs beyond the concurrency limit wait on the session's thread
+ * for a permit, and runs beyond the queue limit are refused so the client
+ * fails fast with <code>NGConstants.EXIT_SERVER_BUSY</code>.  Both limits
+ * can be changed at any time.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGNailLimit {
+
+	/**
+	 * The alias or class name this limit applies to
+	 */
+	private final String name;
+	
+	/**
+	 * The maximum number of concurrent runs
+	 */
+	private int maxConcurrent;
+	
+	/**
+	 * The maximum number of runs waiting for a permit
+	 */
+	private int maxQueued;
+	
+	/**
+	 * The number of runs holding a permit
+	 */
+	private int active = 0;
+	
+	/**
+	 * The number of runs waiting for a permit
+	 */
+	private int queued = 0;
+	
+	/**
+	 * The number of refused runs
+	 */
+	private long rejected = 0;
+	
+	/**
+	 * Creates a new NGNailLimit
+	 * @param name the alias or class name the limit applies to
+	 * @param maxConcurrent the maximum number of concurrent runs
+	 * @param maxQueued the maximum number of runs waiting for a permit
+	 */
+	NGNailLimit(String name, int maxConcurrent, int maxQueued) {
+		this.name = name;
+		setLimits(maxConcurrent, maxQueued);
+	}
+	
+	/**
+	 * Changes the limits.  Raising the concurrency limit releases waiting
+	 * runs immediately.  Lowering it lets running nails finish, and new runs
+	 * wait until the active count drops below the new limit.
+	 * @param maxConcurrent the maximum number of concurrent runs, at least 1
+	 * @param maxQueued the maximum number of runs waiting for a permit, at least 0
+	 */
+	public synchronized void setLimits(int maxConcurrent, int maxQueued) {
+		if (maxConcurrent < 1) throw new IllegalArgumentException("Invalid max concurrent [" + maxConcurrent + "] for [" + name + "]");
+		if (maxQueued < 0) throw new IllegalArgumentException("Invalid max queued [" + maxQueued + "] for [" + name + "]");
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		notifyAll();
+	}
+	
+	/**
+	 * Acquires a permit to run, waiting if the concurrency limit has been
+	 * reached and the queue has room.  A successful acquire must be matched
+	 * by exactly one call to <code>release()</code>.
+	 * @return true if a permit was acquired, false if the queue was full
+	 * and the run was refused
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	synchronized boolean acquire() throws InterruptedException {
+		if (active < maxConcurrent) {
+			++active;
+			return (true);
+		}
+		if (queued >= maxQueued) {
+			++rejected;
+			return (false);
+		}
+		++queued;
+		try {
+			while (active >= maxConcurrent) {
+				wait();
+			}
+			++active;
+			return (true);
+		} finally {
+			--queued;
+		}
+	}
+	
+	/**
+	 * Returns a permit
+	 */
+	synchronized void release() {
+		if (active > 0) --active;
+		notifyAll();
+	}
+	
+	/**
+	 * Returns the alias or class name this limit applies to
+	 * @return the alias or class name
+	 */
+	public String getName() {
+		return (name);
+	}
+	
+	/**
+	 * Returns the maximum number of concurrent runs
+	 * @return the maximum number of concurrent runs
+	 */
+	public synchronized int getMaxConcurrent() {
+		return (maxConcurrent);
+	}
+	
+	/**
+	 * Returns the maximum number of runs waiting for a permit
+	 * @return the maximum number of queued runs
+	 */
+	public synchronized int getMaxQueued() {
+		return (maxQueued);
+	}
+	
+	/**
+	 * Returns the number of runs holding a permit
+	 * @return the number of in-flight runs
+	 */
+	public synchronized int getActive() {
+		return (active);
+	}
+	
+	/**
+	 * Returns the number of runs waiting for a permit
+	 * @return the number of queued runs
+	 */
+	public synchronized int getQueued() {
+		return (queued);
+	}
+	
+	/**
+	 * Returns the number of runs refused because the queue was full
+	 * @return the number of refused runs
+	 */
+	public synchronized long getRejected() {
+		return (rejected);
+	}
+	
+	/**
+	 * Returns a String representation of this limit, in the form
+	 * "name: active a/max, queued q/max, rejected r".
+	 * @return a String representation of this limit
+	 */
+	public synchronized String toString() {
+		return (name + ": active " + active + "/" + maxConcurrent + ", queued " + queued + "/" + maxQueued + ", rejected " + rejected);
+	}
+}
@@ -0,0 +1,180 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Limits on the number of concurrent runs of aliases and nail classes.
+ * A limit is set for a name, which is either the command as the client
+ * sends it (an alias, or a class name) or the fully qualified name of the
+ * nail class.  A run takes a permit from the limit of its command and from
+ * the limit of its class, so a class limit also covers every alias of the
+ * class.  Runs over a limit wait in its queue; when the queue is full the
+ * client is sent <code>NGConstants.EXIT_SERVER_BUSY</code> at once.</p>
+ * 
+ * <p>Limits can be loaded from properties in the format of
+ * <code>builtins.properties</code>, as:
+ * <pre><code>[alias or class name].limit=[max concurrent][,max queued]</code></pre>
+ * If the queue size is omitted, no runs wait.</p>
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGNailLimits {
+
+	/**
+	 * The suffix of limit property names
+	 */
+	public static final String LIMIT_SUFFIX = ".limit";
+	
+	/**
+	 * Returned by <code>acquire()</code> when no limit applies
+	 */
+	private static final NGNailLimit[] NO_LIMITS = new NGNailLimit[0];
+	
+	/**
+	 * The limits by name
+	 */
+	private final ConcurrentHashMap limits = new ConcurrentHashMap();
+	
+	/**
+	 * Creates a new NGNailLimits with no limits
+	 */
+	NGNailLimits() {
+		super();
+	}
+	
+	/**
+	 * Sets the limits for an alias or class name, replacing the limits of
+	 * any existing <code>NGNailLimit</code> for the name
+	 * @param name the alias or class name
+	 * @param maxConcurrent the maximum number of concurrent runs, at least 1
+	 * @param maxQueued the maximum number of runs waiting for a permit, at least 0
+	 * @return the name's limit
+	 */
+	public NGNailLimit set(String name, int maxConcurrent, int maxQueued) {
+		if (name == null || name.trim().length() == 0) throw new IllegalArgumentException("The limit name was empty or null");
+		name = name.trim();
+		synchronized (limits) {
+			NGNailLimit limit = (NGNailLimit) limits.get(name);
+			if (limit == null) {
+				limit = new NGNailLimit(name, maxConcurrent, maxQueued);
+				limits.put(name, limit);
+			} else {
+				limit.setLimits(maxConcurrent, maxQueued);
+			}
+			return (limit);
+		}
+	}
+	
+	/**
+	 * Removes the limit for an alias or class name.  Runs holding or
+	 * waiting for its permits are not affected.
+	 * @param name the alias or class name
+	 * @return true iff the name had a limit
+	 */
+	public boolean remove(String name) {
+		return (name != null && limits.remove(name.trim()) != null);
+	}
+	
+	/**
+	 * Returns the limit for an alias or class name
+	 * @param name the alias or class name
+	 * @return the name's limit, or null if it has none
+	 */
+	public NGNailLimit get(String name) {
+		return ((name == null) ? null : (NGNailLimit) limits.get(name));
+	}
+	
+	/**
+	 * Returns a snapshot of the limits, keyed by name
+	 * @return a sorted map of names to <code>NGNailLimit</code>s
+	 */
+	public Map getLimits() {
+		return (new java.util.TreeMap(limits));
+	}
+	
+	/**
+	 * Sets the limits defined by <code>[name].limit</code> properties.
+	 * Other properties are ignored.
+	 * @param properties the properties to load
+	 * @throws IllegalArgumentException if a limit is malformed
+	 */
+	public void loadFromProperties(Properties properties) {
+		for (Iterator i = properties.keySet().iterator(); i.hasNext();) {
+			String key = (String) i.next();
+			if (!key.endsWith(LIMIT_SUFFIX)) continue;
+			String name = key.substring(0, key.length() - LIMIT_SUFFIX.length());
+			String value = properties.getProperty(key).trim();
+			int comma = value.indexOf(',');
+			try {
+				if (comma == -1) {
+					set(name, Integer.parseInt(value), 0);
+				} else {
+					set(name, Integer.parseInt(value.substring(0, comma).trim()), 
+							Integer.parseInt(value.substring(comma + 1).trim()));
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid limit [" + key + "=" + value + "], expected max concurrent[,max queued]");
+			}
+		}
+	}
+	
+	/**
+	 * Acquires permits for a run from the limits of its command and its class
+	 * @param command the command sent by the client
+	 * @param nailClass the nail class the command resolved to
+	 * @return the limits whose permits were taken, to be passed to
+	 * <code>release()</code>, or null if a queue was full and the run was refused
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	NGNailLimit[] acquire(String command, Class nailClass) throws InterruptedException {
+		if (limits.isEmpty()) return (NO_LIMITS);
+		NGNailLimit commandLimit = (NGNailLimit) limits.get(command);
+		NGNailLimit classLimit = (NGNailLimit) limits.get(nailClass.getName());
+		if (classLimit == commandLimit) classLimit = null;
+		if (commandLimit == null && classLimit == null) return (NO_LIMITS);
+		
+		if (commandLimit != null && !commandLimit.acquire()) return (null);
+		boolean acquired = false;
+		try {
+			acquired = (classLimit == null) || classLimit.acquire();
+		} finally {
+			// refused or interrupted: hand back the command's permit
+			if (!acquired && commandLimit != null) commandLimit.release();
+		}
+		if (!acquired) return (null);
+		if (commandLimit == null) return (new NGNailLimit[] {classLimit});
+		if (classLimit == null) return (new NGNailLimit[] {commandLimit});
+		return (new NGNailLimit[] {commandLimit, classLimit});
+	}
+	
+	/**
+	 * Returns the permits taken by <code>acquire()</code>
+	 * @param acquired the limits returned by <code>acquire()</code>
+	 */
+	static void release(NGNailLimit[] acquired) {
+		for (int i = acquired.length - 1; i >= 0; --i) {
+			acquired[i].release();
+		}
+	}
+}
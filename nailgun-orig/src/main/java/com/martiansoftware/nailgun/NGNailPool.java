@@ -0,0 +1,281 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of initialized instances of one <code>Nail</code> class.  Instances
+ * are created and initialized on demand, so a pool never makes a request
+ * wait for another to finish.  Up to <code>maxIdle</code> instances are kept
+ * between requests, most recently used first, and instances left idle for
+ * longer than the idle timeout are destroyed.  Expired instances are
+ * evicted whenever the pool is used, and by a sweep that runs every idle
+ * timeout while the pool holds idle instances, so an instance of a nail
+ * that is no longer called is destroyed within two idle timeouts.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+class NGNailPool {
+
+	/**
+	 * Runs the idle sweeps of all pools
+	 */
+	private static final ScheduledExecutorService sweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "NGNailPool Sweeper");
+			t.setDaemon(true);
+			return (t);
+		}
+	});
+	
+	/**
+	 * The nail class
+	 */
+	private final Class nailClass;
+	
+	/**
+	 * The server passed to <code>Nail.init()</code>
+	 */
+	private final NGServer server;
+	
+	/**
+	 * The maximum number of idle instances kept
+	 */
+	private final int maxIdle;
+	
+	/**
+	 * The time in milliseconds an idle instance is kept, or zero to keep it
+	 * until shutdown
+	 */
+	private final long idleTimeout;
+	
+	/**
+	 * The idle instances, most recently used first
+	 */
+	private final LinkedList idle = new LinkedList();
+	
+	/**
+	 * The scheduled idle sweep, or null while the pool has no idle instances
+	 */
+	private ScheduledFuture sweep = null;
+	
+	/**
+	 * The number of instances created
+	 */
+	private long created = 0;
+	
+	/**
+	 * True once the pool has been closed
+	 */
+	private boolean closed = false;
+	
+	/**
+	 * Creates a new NGNailPool
+	 * @param nailClass the nail class, which must implement <code>Nail</code>
+	 * @param server the server passed to <code>Nail.init()</code>
+	 * @param maxIdle the maximum number of idle instances kept
+	 * @param idleTimeout the time in milliseconds an idle instance is kept,
+	 * or zero to keep it until shutdown
+	 */
+	NGNailPool(Class nailClass, NGServer server, int maxIdle, long idleTimeout) {
+		this.nailClass = nailClass;
+		this.server = server;
+		this.maxIdle = Math.max(0, maxIdle);
+		this.idleTimeout = Math.max(0, idleTimeout);
+	}
+	
+	/**
+	 * Takes an idle instance, or creates and initializes a new one
+	 * @return an initialized instance
+	 * @throws Exception if a new instance cannot be created or initialized
+	 */
+	Nail borrow() throws Exception {
+		List expired = null;
+		Nail result = null;
+		synchronized(idle) {
+			if (closed) throw new IllegalStateException("The pool for " + nailClass.getName() + " is closed");
+			expired = evictExpired();
+			if (!idle.isEmpty()) {
+				result = ((IdleNail) idle.removeFirst()).nail;
+			} else {
+				created++;
+			}
+		}
+		destroyAll(expired);
+		if (result == null) {
+			result = (Nail) nailClass.newInstance();
+			try {
+				result.init(server);
+			} catch (Exception e) {
+				destroy(result);
+				throw e;
+			}
+		}
+		return (result);
+	}
+	
+	/**
+	 * Returns an instance after a request
+	 * @param nail the instance
+	 * @param reusable false if the instance must not be reused, for example
+	 * because its request failed
+	 */
+	void release(Nail nail, boolean reusable) {
+		List expired = null;
+		boolean keep = false;
+		synchronized(idle) {
+			expired = evictExpired();
+			if (reusable && !closed && idle.size() < maxIdle) {
+				idle.addFirst(new IdleNail(nail));
+				keep = true;
+				if (sweep == null && idleTimeout > 0) {
+					sweep = sweeper.scheduleWithFixedDelay(new Runnable() {
+						public void run() {
+							sweep();
+						}
+					}, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		destroyAll(expired);
+		if (!keep) destroy(nail);
+	}
+	
+	/**
+	 * Destroys the idle instances and makes the pool destroy in-use
+	 * instances as they are released
+	 */
+	void close() {
+		List all = new ArrayList();
+		synchronized(idle) {
+			closed = true;
+			cancelSweep();
+			for (Iterator i = idle.iterator(); i.hasNext();) {
+				all.add(((IdleNail) i.next()).nail);
+			}
+			idle.clear();
+		}
+		destroyAll(all);
+	}
+	
+	/**
+	 * Returns the number of idle instances
+	 * @return the number of idle instances
+	 */
+	int getIdleCount() {
+		synchronized(idle) {
+			return (idle.size());
+		}
+	}
+	
+	/**
+	 * Returns the number of instances created
+	 * @return the number of instances created
+	 */
+	long getCreatedCount() {
+		synchronized(idle) {
+			return (created);
+		}
+	}
+	
+	/**
+	 * Destroys the instances idle for longer than the timeout, and stops
+	 * sweeping once none are left
+	 */
+	private void sweep() {
+		List expired = null;
+		synchronized(idle) {
+			expired = evictExpired();
+			if (idle.isEmpty()) cancelSweep();
+		}
+		destroyAll(expired);
+	}
+	
+	/**
+	 * Cancels the scheduled idle sweep, if any.  Must be called holding the
+	 * idle lock.
+	 */
+	private void cancelSweep() {
+		if (sweep != null) {
+			sweep.cancel(false);
+			sweep = null;
+		}
+	}
+	
+	/**
+	 * Removes the instances idle for longer than the timeout.  Must be
+	 * called holding the idle lock.
+	 * @return the removed instances, or null if there are none
+	 */
+	private List evictExpired() {
+		if (idleTimeout == 0 || idle.isEmpty()) return (null);
+		long cutoff = System.currentTimeMillis() - idleTimeout;
+		List expired = null;
+		// the least recently used instances are at the end
+		while (!idle.isEmpty() && ((IdleNail) idle.getLast()).since < cutoff) {
+			if (expired == null) expired = new ArrayList();
+			expired.add(((IdleNail) idle.removeLast()).nail);
+		}
+		return (expired);
+	}
+	
+	/**
+	 * Destroys instances
+	 * @param nails the instances, may be null
+	 */
+	private void destroyAll(List nails) {
+		if (nails == null) return;
+		for (Iterator i = nails.iterator(); i.hasNext();) {
+			destroy((Nail) i.next());
+		}
+	}
+	
+	/**
+	 * Destroys an instance, reporting any failure on the server's stderr
+	 * @param nail the instance
+	 */
+	private void destroy(Nail nail) {
+		try {
+			nail.destroy();
+		} catch (Throwable t) {
+			server.err.println("Failed to destroy " + nailClass.getName() + " instance: " + t);
+		}
+	}
+	
+	/**
+	 * An idle instance and the time it was released
+	 */
+	private static class IdleNail {
+		final Nail nail;
+		final long since = System.currentTimeMillis();
+		
+		IdleNail(Nail nail) {
+			this.nail = nail;
+		}
+	}
+}
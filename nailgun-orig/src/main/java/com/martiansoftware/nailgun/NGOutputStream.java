@@ -21,30 +21,27 @@ package com.martiansoftware.nailgun;
 import java.io.IOException;
 
 /**
- * Wraps an OutputStream to send writes in NailGun chunks.  Because
- * multiple NGOutputStreams wrap the same OutputStream (that is, 
- * the OutputStream obtained from the Socket connection with
- * the client), writes are synchronized on the underlying OutputStream.
- * If this were not the case, write interleaving could completely
- * break the NailGun protocol.
+ * Sends writes to one stream of a client connection (stdout, stderr or
+ * exit) as NailGun chunks.  Because multiple NGOutputStreams share the
+ * connection, they all write through the connection's NGChunkWriter,
+ * which frames, merges and orders the chunks of every stream.
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
-class NGOutputStream extends java.io.DataOutputStream {
+class NGOutputStream extends java.io.OutputStream {
 
-	private final Object lock;
-    private byte streamCode;
+	private final NGChunkWriter writer;
+    private final byte streamCode;
 
 	/**
-	 * Creates a new NGOutputStream wrapping the specified
-	 * OutputStream and using the specified Nailgun chunk code.
-	 * @param out the OutputStream to wrap
+	 * Creates a new NGOutputStream writing through the specified
+	 * NGChunkWriter and using the specified Nailgun chunk code.
+	 * @param writer the chunk writer of the client connection
 	 * @param streamCode the NailGun chunk code associated with this
 	 * stream (i.e., '1' for stdout, '2' for stderr).
 	 */
-	public NGOutputStream(java.io.OutputStream out, byte streamCode) {
-		super(out);
-        this.lock = out;
+	public NGOutputStream(NGChunkWriter writer, byte streamCode) {
+        this.writer = writer;
         this.streamCode = streamCode;
 	}
 	
@@ -59,19 +56,21 @@ class NGOutputStream extends java.io.DataOutputStream {
 	 * @see java.io.OutputStream.write(int)
 	 */
 	public void write(int b) throws IOException {
-		byte[] b2 = {(byte) b};
-		write(b2, 0, 1);
+		writer.write(streamCode, b);
 	}
 	
 	/**
 	 * @see java.io.OutputStream.write(byte[],int,int)
 	 */
 	public void write(byte[] b, int offset, int len) throws IOException {
-		synchronized(lock) {
-            writeInt(len);
-            writeByte(streamCode);
-			out.write(b, offset, len);
-		}
-		flush();
+		writer.write(streamCode, b, offset, len);
+	}
+	
+	/**
+	 * Sends all output buffered for the connection
+	 * @see java.io.OutputStream.flush()
+	 */
+	public void flush() throws IOException {
+		writer.flush();
 	}
 }
@@ -0,0 +1,110 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Collects the chunks a client sends ahead of its stdin: arguments,
+ * environment, working directory and finally the command.  Filled by the
+ * session worker when it reads the socket itself, or by the selector
+ * front end before it hands the connection to a worker.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+class NGRequestHeaders {
+
+	/**
+	 * command line arguments
+	 */
+	final List remoteArgs = new java.util.ArrayList();
+	
+	/**
+	 * client environment
+	 */
+	final Properties remoteEnv = new Properties();
+	
+	/**
+	 * working directory
+	 */
+	String cwd = null;
+	
+	/**
+	 * alias or class name
+	 */
+	String command = null;
+	
+	/**
+	 * Adds a chunk received from the client
+	 * @param chunkType the chunk type
+	 * @param line the chunk payload
+	 * @return true iff the command has been received, ending the headers
+	 */
+	boolean add(byte chunkType, String line) {
+		switch(chunkType) {
+						
+			case NGConstants.CHUNKTYPE_ARGUMENT:
+						//	command line argument
+						remoteArgs.add(line);
+						break;
+
+			case NGConstants.CHUNKTYPE_ENVIRONMENT:
+						//	parse environment into property
+						int equalsIndex = line.indexOf('=');
+						if (equalsIndex > 0) {
+							remoteEnv.setProperty(
+									line.substring(0, equalsIndex),
+									line.substring(equalsIndex + 1));
+						}
+						break;
+						
+			case NGConstants.CHUNKTYPE_COMMAND:
+						// 	command (alias or classname)
+						command = line;
+						break;
+						
+			case NGConstants.CHUNKTYPE_WORKINGDIRECTORY:
+						//	client working directory
+						cwd = line;
+						break;
+						
+			default:	// freakout?
+		}
+		return (isComplete());
+	}
+	
+	/**
+	 * Clears the headers for reuse by another request
+	 */
+	void reset() {
+		remoteArgs.clear();
+		remoteEnv.clear();
+		cwd = null;
+		command = null;
+	}
+	
+	/**
+	 * Returns true iff the command has been received
+	 * @return true iff the headers are complete
+	 */
+	boolean isComplete() {
+		return (command != null);
+	}
+}
@@ -47,7 +47,7 @@ public class NGSecurityManager extends SecurityManager {
                         base.checkExit(status);
                 }
                 
-                final PrintStream exit = (PrintStream)EXIT.get();
+                final PrintStream exit = getExit();
                 
                 if (exit != null) {
                         exit.println(status);
@@ -71,4 +71,15 @@ public class NGSecurityManager extends SecurityManager {
         public static void setExit (PrintStream exit) {
                 EXIT.set(exit);
         }
+        
+        /**
+         * Returns the exit stream of the nail running on this thread: the
+         * exit stream of its stream scope, or else the one set by setExit().
+         * @return the exit stream, or null if none has been set.
+         */
+        static PrintStream getExit () {
+                NGStreamScope scope = NGStreamScope.current();
+                if (scope != null) return scope.getExit();
+                return (PrintStream)EXIT.get();
+        }
 }
\ No newline at end of file
@@ -0,0 +1,345 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Accepts client connections and reads their argument, environment,
+ * working directory and command chunks on a single selector thread without
+ * blocking.  Only a connection whose command has arrived is handed to a
+ * session worker, so clients that are slow to send their headers hold a
+ * buffer rather than a thread.  The worker then runs the nail on the
+ * connection in blocking mode, exactly as if it had read the headers itself.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+class NGSelectorFrontEnd implements Runnable {
+
+	/**
+	 * System property that selects the front end for <code>NGServer.main</code>:
+	 * <code>nio</code> for this front end, anything else for a blocking accept loop
+	 */
+	static final String FRONTEND_PROPERTY = "nailgun.frontend";
+	
+	/**
+	 * The largest header chunk accepted; a client sending more is disconnected
+	 */
+	static final int MAX_HEADER_CHUNK = 1024 * 1024;
+	
+	/**
+	 * The initial size of each connection's header buffer
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+	
+	/**
+	 * The server to run sessions for
+	 */
+	private final NGServer server;
+	
+	/**
+	 * Runs session workers once their headers are read
+	 */
+	private final Executor workers;
+	
+	/**
+	 * The selector watching the listening and the pending channels
+	 */
+	private final Selector selector;
+	
+	/**
+	 * The listening channel
+	 */
+	private final ServerSocketChannel serverChannel;
+	
+	/**
+	 * Set when the front end is closed
+	 */
+	private volatile boolean closed = false;
+	
+	/**
+	 * Creates a new NGSelectorFrontEnd and binds it
+	 * @param server the server to run sessions for
+	 * @param workers runs the session workers
+	 * @param addr the address to listen on, or null for all addresses
+	 * @param port the port to listen on
+	 * @param backlog the maximum length of the connection queue, or zero for the default
+	 * @throws IOException if the channel cannot be opened or bound
+	 */
+	NGSelectorFrontEnd(NGServer server, Executor workers, InetAddress addr, int port, int backlog) throws IOException {
+		this.server = server;
+		this.workers = workers;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.socket().bind(new InetSocketAddress(addr, port), backlog);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			serverChannel.close();
+			selector.close();
+			throw (e);
+		}
+	}
+	
+	/**
+	 * Returns the listening socket
+	 * @return the listening socket
+	 */
+	ServerSocket getServerSocket() {
+		return (serverChannel.socket());
+	}
+	
+	/**
+	 * Stops accepting connections and disconnects clients whose headers
+	 * have not yet arrived.  Sessions already handed to workers are unaffected.
+	 */
+	void close() {
+		closed = true;
+		selector.wakeup();
+	}
+	
+	/**
+	 * Runs the selector loop until the front end is closed
+	 */
+	public void run() {
+		List ready = new java.util.ArrayList();
+		try {
+			while (!closed) {
+				selector.select();
+				for (Iterator i = selector.selectedKeys().iterator(); i.hasNext();) {
+					SelectionKey key = (SelectionKey) i.next();
+					i.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						PendingSession pending = (PendingSession) key.attachment();
+						if (pending.read()) {
+							key.cancel();
+							ready.add(pending);
+						}
+					}
+				}
+				if (!ready.isEmpty()) {
+					// flush the cancelled keys so the channels can block again
+					selector.selectNow();
+					for (Iterator i = ready.iterator(); i.hasNext();) {
+						((PendingSession) i.next()).dispatch();
+					}
+					ready.clear();
+				}
+			}
+		} catch (ClosedSelectorException e) {
+		} catch (IOException e) {
+			if (!closed) e.printStackTrace();
+		} finally {
+			closeAll();
+		}
+	}
+	
+	/**
+	 * Accepts all pending connections and watches them for headers
+	 * @throws IOException if the listening channel fails
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			try {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, new PendingSession(channel));
+			} catch (IOException e) {
+				closeQuietly(channel);
+			}
+		}
+	}
+	
+	/**
+	 * Closes the selector, the listening channel and every pending connection
+	 */
+	private void closeAll() {
+		try {
+			for (Iterator i = selector.keys().iterator(); i.hasNext();) {
+				SelectionKey key = (SelectionKey) i.next();
+				if (key.attachment() != null) {
+					closeQuietly((SocketChannel) key.channel());
+				}
+			}
+			selector.close();
+		} catch (Exception toDiscard) {}
+		try {
+			serverChannel.close();
+		} catch (IOException toDiscard) {}
+	}
+	
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException toDiscard) {}
+	}
+	
+	/**
+	 * A connection whose headers are still arriving
+	 */
+	private class PendingSession {
+		
+		private final SocketChannel channel;
+		
+		private final NGRequestHeaders headers = new NGRequestHeaders();
+		
+		/**
+		 * Bytes received and not yet parsed, kept ready for reading
+		 */
+		private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		
+		PendingSession(SocketChannel channel) {
+			this.channel = channel;
+			buffer.flip();
+		}
+		
+		/**
+		 * Reads what the client has sent and parses every complete chunk.
+		 * Closes the connection if the client goes away or misbehaves.
+		 * @return true iff the command has been received
+		 */
+		boolean read() {
+			try {
+				buffer.compact();
+				int count = channel.read(buffer);
+				buffer.flip();
+				if (count < 0) {
+					channel.close();
+					return (false);
+				}
+				while (buffer.remaining() >= 5) {
+					int pos = buffer.position();
+					int len = buffer.getInt(pos);
+					if (len < 0 || len > MAX_HEADER_CHUNK) {
+						channel.close();
+						return (false);
+					}
+					if (buffer.remaining() < 5 + len) {
+						if (buffer.capacity() < 5 + len) {
+							ByteBuffer larger = ByteBuffer.allocate(5 + len);
+							larger.put(buffer);
+							larger.flip();
+							buffer = larger;
+						}
+						break;
+					}
+					byte chunkType = buffer.get(pos + 4);
+					String line = new String(buffer.array(), buffer.arrayOffset() + pos + 5, len, "US-ASCII");
+					buffer.position(pos + 5 + len);
+					if (headers.add(chunkType, line)) return (true);
+				}
+			} catch (IOException e) {
+				closeQuietly(channel);
+			}
+			return (false);
+		}
+		
+		/**
+		 * Hands the connection, with any stdin bytes already read, to a worker
+		 */
+		void dispatch() {
+			try {
+				channel.configureBlocking(true);
+				NGChunkReader reader = new NGChunkReader(new ChannelInputStream(channel),
+						buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				workers.execute(new NGSessionWorker(server, channel.socket(), "NGSession",
+						headers, reader, new ChannelOutputStream(channel)));
+			} catch (IOException e) {
+				closeQuietly(channel);
+			} catch (RejectedExecutionException e) {
+				closeQuietly(channel);
+			}
+		}
+	}
+	
+	/**
+	 * Reads a blocking channel directly.  The socket adaptor's stream is
+	 * not used because it holds the channel's blocking lock while waiting
+	 * for input, which would stall a concurrent write of nail output.
+	 */
+	private static class ChannelInputStream extends InputStream {
+		
+		private final SocketChannel channel;
+		
+		ChannelInputStream(SocketChannel channel) {
+			this.channel = channel;
+		}
+		
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int count = read(b, 0, 1);
+			return ((count < 0) ? -1 : (b[0] & 0xff));
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return (0);
+			return (channel.read(ByteBuffer.wrap(b, off, len)));
+		}
+		
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Writes a blocking channel directly; see <code>ChannelInputStream</code>.
+	 */
+	private static class ChannelOutputStream extends OutputStream {
+		
+		private final SocketChannel channel;
+		
+		ChannelOutputStream(SocketChannel channel) {
+			this.channel = channel;
+		}
+		
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+		}
+		
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -17,6 +17,8 @@
 */
 
 package com.martiansoftware.nailgun;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Method;
@@ -25,7 +27,12 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.martiansoftware.nailgun.builtins.DefaultNail;
 
@@ -37,6 +44,11 @@ import com.martiansoftware.nailgun.builtins.DefaultNail;
  * within larger applications as a means of providing command-line
  * interaction with the application.</p>
  * 
+ * <p>While running, the server traps <code>System.exit</code> calls from
+ * nails by installing an <code>NGSecurityManager</code>, or, if the JVM was
+ * started with <code>-javaagent</code> pointing at the nailgun jar, by
+ * having <code>NGExitAgent</code> rewrite them as nail classes load.</p>
+ * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 public class NGServer implements Runnable {
@@ -46,6 +58,40 @@ public class NGServer implements Runnable {
          */
         public static final int DEFAULT_SESSIONPOOLSIZE = 10;
         
+	/**
+	 * Default maximum number of idle instances kept per <code>Nail</code> class
+	 */
+	public static final int DEFAULT_NAILPOOLSIZE = 10;
+	
+	/**
+	 * Default time in milliseconds an idle <code>Nail</code> instance is kept
+	 */
+	public static final long DEFAULT_NAILIDLETIMEOUT = 300000;
+	
+	/**
+	 * Default time in milliseconds a draining shutdown lets running nails finish
+	 */
+	public static final long DEFAULT_DRAIN_TIMEOUT = 10000;
+	
+	/**
+	 * The system property read by <code>main()</code> naming a properties
+	 * file of aliases, nail limits and warm-up arguments, in the format of
+	 * <code>builtins.properties</code>
+	 */
+	public static final String CONFIG_PROPERTY = "nailgun.config";
+	
+	/**
+	 * The system property read by <code>main()</code>: <code>true</code>
+	 * turns on the recycling of per-request objects by session threads
+	 */
+	public static final String RECYCLE_PROPERTY = "nailgun.recycle";
+	
+	/**
+	 * The system property read by <code>main()</code>: <code>false</code>
+	 * turns off the loading of the aliased classes before the server starts
+	 */
+	public static final String PRELOAD_PROPERTY = "nailgun.preload";
+        
 	/**
 	 * The address on which to listen, or null to listen on all
 	 * local addresses
@@ -57,6 +103,12 @@ public class NGServer implements Runnable {
 	 */
 	private int port = 0;
 	
+	/**
+	 * The maximum length of the queue of incoming connections, or zero
+	 * for the platform default
+	 */
+	private int backlog = 0;
+	
 	/**
 	 * The socket doing the listening
 	 */
@@ -93,6 +145,85 @@ public class NGServer implements Runnable {
 	 */
 	private NGSessionPool sessionPool = null;
 	
+	/**
+	 * The resolved nail entry points, keyed by nail class
+	 */
+	private NGNailInvoker.Cache nailInvokers = null;
+	
+	/**
+	 * Pools of <code>Nail</code> instances, keyed by nail class
+	 */
+	private final ConcurrentHashMap nailPools = new ConcurrentHashMap();
+	
+	/**
+	 * The maximum number of idle instances kept per <code>Nail</code> class
+	 */
+	private int nailPoolSize = DEFAULT_NAILPOOLSIZE;
+	
+	/**
+	 * The time in milliseconds an idle <code>Nail</code> instance is kept
+	 */
+	private long nailIdleTimeout = DEFAULT_NAILIDLETIMEOUT;
+	
+	/**
+	 * Resolves commands to nail classes
+	 */
+	private NGCommandResolver commandResolver = null;
+	
+	/**
+	 * The running sessions, keyed by the thread running them.  Used as the
+	 * monitor a draining shutdown waits on.
+	 */
+	private final Map activeSessions = new java.util.HashMap();
+	
+	/**
+	 * The named nail classpaths
+	 */
+	private NGClasspaths nailClasspaths = null;
+	
+	/**
+	 * The limits on concurrent runs of aliases and nail classes
+	 */
+	private final NGNailLimits nailLimits = new NGNailLimits();
+	
+	/**
+	 * If set, client sessions are run as tasks on this executor instead
+	 * of on NGSessions from the session pool
+	 */
+	private ExecutorService sessionExecutor = null;
+	
+	/**
+	 * True if nail exits are trapped by <code>NGExitAgent</code> rather
+	 * than by an <code>NGSecurityManager</code>
+	 */
+	private boolean exitAgent = false;
+	
+	/**
+	 * If true, connections are accepted and their headers read by a
+	 * selector front end rather than by the session threads
+	 */
+	private boolean selectorFrontEnd = false;
+	
+	/**
+	 * If true, session threads reuse their per-request objects
+	 */
+	private volatile boolean recycleSessionObjects = false;
+	
+	/**
+	 * The warm-up run before the server accepts connections
+	 */
+	private final NGWarmup warmup = new NGWarmup();
+	
+	/**
+	 * True once the server has been warmed up and is accepting connections
+	 */
+	private volatile boolean ready = false;
+	
+	/**
+	 * The selector front end while it is running
+	 */
+	private volatile NGSelectorFrontEnd frontEnd = null;
+	
 	/**
 	 * <code>System.out</code> at the time of the NGServer's creation
 	 */
@@ -111,7 +242,7 @@ public class NGServer implements Runnable {
 	/**
 	 * a collection of all classes executed by this server so far
 	 */
-	private Map allNailStats = null;
+	private final ConcurrentHashMap allNailStats = new ConcurrentHashMap();
 	
 	/**
 	 * Remember the security manager we start with so we can restore it later
@@ -170,12 +301,215 @@ public class NGServer implements Runnable {
 		this.port = port;
 		
 		this.aliasManager = new AliasManager();
-		allNailStats = new java.util.HashMap();
+		this.nailInvokers = new NGNailInvoker.Cache(aliasManager);
+		this.commandResolver = new NGCommandResolver(this);
+		this.nailClasspaths = new NGClasspaths(this);
 		// allow a maximum of 10 idle threads.  probably too high a number
 		// and definitely should be configurable in the future
 		sessionPool = new NGSessionPool(this, sessionPoolSize);
 	}
 
+	/**
+	 * Runs client sessions as tasks on the specified executor instead of on
+	 * the threads of the session pool.  See <code>NGSessionExecutors</code>
+	 * for virtual thread and pooled executors.  Must be called before the
+	 * server is started.  The executor is shut down with the server.
+	 * 
+	 * @param sessionExecutor the executor to run sessions on, or <code>null</code>
+	 * to use the session pool
+	 */
+	public void setSessionExecutor(ExecutorService sessionExecutor) {
+		if (running) throw new IllegalStateException("The session executor cannot be changed while the server is running");
+		this.sessionExecutor = sessionExecutor;
+	}
+	
+	/**
+	 * Sets the maximum length of the queue of incoming connections.  The
+	 * platform default (typically 50) drops connection attempts from large
+	 * bursts of clients, which then wait out a TCP retransmit.  Must be
+	 * called before the server is started.
+	 * 
+	 * @param backlog the maximum length of the connection queue, or zero
+	 * for the platform default
+	 */
+	public void setBacklog(int backlog) {
+		if (running) throw new IllegalStateException("The backlog cannot be changed while the server is running");
+		this.backlog = Math.max(0, backlog);
+	}
+	
+	/**
+	 * Accepts connections and reads each client's arguments, environment,
+	 * working directory and command on a single non-blocking selector
+	 * thread, handing only complete requests to the session executor.
+	 * Clients that are slow to send their headers then no longer tie up a
+	 * session thread each.  If no session executor has been set, a pooled
+	 * one keeping the default session pool size of idle threads is used.  Must be called
+	 * before the server is started.
+	 * 
+	 * @param selectorFrontEnd true to use the selector front end, false
+	 * for a blocking accept loop
+	 */
+	public void setSelectorFrontEnd(boolean selectorFrontEnd) {
+		if (running) throw new IllegalStateException("The front end cannot be changed while the server is running");
+		this.selectorFrontEnd = selectorFrontEnd;
+	}
+	
+	/**
+	 * Sets whether the threads of the session pool reuse their streams,
+	 * buffers, request headers and <code>NGContext</code> across the
+	 * requests they serve (see <code>NGSessionState</code>).  Off by default.
+	 * Only turn it on if no nail keeps using its streams or context after
+	 * returning, since recycled objects would then be shared with a later request.
+	 * 
+	 * @param recycleSessionObjects true to reuse per-request objects, false
+	 * to create them for each request
+	 */
+	public void setRecycleSessionObjects(boolean recycleSessionObjects) {
+		this.recycleSessionObjects = recycleSessionObjects;
+	}
+	
+	/**
+	 * Returns true iff session threads reuse their per-request objects
+	 * @return true iff per-request objects are recycled
+	 */
+	public boolean isRecycleSessionObjects() {
+		return (recycleSessionObjects);
+	}
+	
+	/**
+	 * Returns the executor client sessions are run on
+	 * @return the session executor, or <code>null</code> if the session pool is used
+	 */
+	public ExecutorService getSessionExecutor() {
+		return (sessionExecutor);
+	}
+
+	/**
+	 * Discards the cached nail entry points, so they are resolved again on
+	 * the next request for each nail.  Call this after changing the
+	 * classpath; alias changes are picked up automatically.
+	 */
+	public void invalidateNailCache() {
+		nailInvokers.clear();
+		commandResolver.clear();
+	}
+	
+	/**
+	 * Returns the resolver that maps client commands to nail classes,
+	 * for its cache settings and counters
+	 * @return the command resolver
+	 */
+	public NGCommandResolver getCommandResolver() {
+		return (commandResolver);
+	}
+	
+	/**
+	 * Returns the named nail classpaths, whose nails are run with the
+	 * command <code>name:className</code>
+	 * @return the named nail classpaths
+	 */
+	public NGClasspaths getNailClasspaths() {
+		return (nailClasspaths);
+	}
+	
+	/**
+	 * Returns the limits on concurrent runs of aliases and nail classes
+	 * @return the nail limits
+	 */
+	public NGNailLimits getNailLimits() {
+		return (nailLimits);
+	}
+	
+	/**
+	 * Returns the warm-up run before the server accepts connections
+	 * @return the warm-up
+	 */
+	public NGWarmup getWarmup() {
+		return (warmup);
+	}
+	
+	/**
+	 * Loads aliases, nail limits and warm-up arguments from properties in
+	 * the format of <code>builtins.properties</code>.  See
+	 * <code>AliasManager.loadFromProperties()</code>,
+	 * <code>NGNailLimits.loadFromProperties()</code> and
+	 * <code>NGWarmup.loadFromProperties()</code>.
+	 * @param properties the properties to load
+	 */
+	public void loadFromProperties(Properties properties) {
+		nailLimits.loadFromProperties(properties);
+		warmup.loadFromProperties(properties);
+		aliasManager.loadFromProperties(properties);
+	}
+	
+	/**
+	 * Forgets every nail class defined by the specified class loader, so
+	 * that the loader can be unloaded: their aliases, instance pools and
+	 * statistics are removed and the nail caches are cleared
+	 * @param loader the class loader being discarded
+	 */
+	void unloadNails(ClassLoader loader) {
+		for (Iterator i = aliasManager.getAliases().iterator(); i.hasNext();) {
+			Alias alias = (Alias) i.next();
+			if (alias.isBound() && alias.getAliasedClass().getClassLoader() == loader) {
+				aliasManager.removeAlias(alias.getName());
+			}
+		}
+		for (Iterator i = nailPools.keySet().iterator(); i.hasNext();) {
+			Class nailClass = (Class) i.next();
+			if (nailClass.getClassLoader() == loader) {
+				NGNailPool pool = (NGNailPool) nailPools.remove(nailClass);
+				if (pool != null) pool.close();
+			}
+		}
+		for (Iterator i = allNailStats.keySet().iterator(); i.hasNext();) {
+			if (((Class) i.next()).getClassLoader() == loader) {
+				i.remove();
+			}
+		}
+		invalidateNailCache();
+	}
+	
+	/**
+	 * Sets the maximum number of idle instances kept per <code>Nail</code>
+	 * class, and the time an idle instance is kept before it is destroyed.
+	 * Applies to pools created after the call, so set it before the server
+	 * is started.
+	 * @param nailPoolSize the maximum number of idle instances per class
+	 * @param nailIdleTimeout the idle time in milliseconds, or zero to keep
+	 * idle instances until shutdown
+	 */
+	public void setNailPool(int nailPoolSize, long nailIdleTimeout) {
+		this.nailPoolSize = Math.max(0, nailPoolSize);
+		this.nailIdleTimeout = Math.max(0, nailIdleTimeout);
+	}
+	
+	/**
+	 * Returns the instance pool for the specified <code>Nail</code> class,
+	 * creating it on first use
+	 * @param nailClass the nail class
+	 * @return the pool
+	 */
+	NGNailPool getNailPool(Class nailClass) {
+		NGNailPool pool = (NGNailPool) nailPools.get(nailClass);
+		if (pool == null) {
+			NGNailPool created = new NGNailPool(nailClass, this, nailPoolSize, nailIdleTimeout);
+			pool = (NGNailPool) nailPools.putIfAbsent(nailClass, created);
+			if (pool == null) pool = created;
+		}
+		return (pool);
+	}
+	
+	/**
+	 * Returns the invoker for the specified nail class
+	 * @param nailClass the nail class
+	 * @return the invoker
+	 * @throws NoSuchMethodException if the class has no nail entry point
+	 */
+	NGNailInvoker getNailInvoker(Class nailClass) throws NoSuchMethodException {
+		return (nailInvokers.get(nailClass));
+	}
+
 	/**
 	 * Sets a flag that determines whether Nails can be executed by class name.
 	 * If this is false, Nails can only be run via aliases (and you should
@@ -227,13 +561,11 @@ public class NGServer implements Runnable {
 	 * @return a NailStats object for the specified class
 	 */
 	private NailStats getOrCreateStatsFor(Class nailClass) {
-		NailStats result = null;
-		synchronized(allNailStats) {
-			result = (NailStats) allNailStats.get(nailClass);
-			if (result == null) {
-				result = new NailStats(nailClass);
-				allNailStats.put(nailClass, result);
-			}
+		NailStats result = (NailStats) allNailStats.get(nailClass);
+		if (result == null) {
+			NailStats created = new NailStats(nailClass);
+			result = (NailStats) allNailStats.putIfAbsent(nailClass, created);
+			if (result == null) result = created;
 		}
 		return (result);
 	}
@@ -251,32 +583,114 @@ public class NGServer implements Runnable {
 	
 	/**
 	 * Provides a means for an NGSession to register the completion of
-	 * a nails execution with the server.
+	 * a nails execution with the server, along with how it went.
 	 * 
 	 * @param nailClass the nail class that finished
+	 * @param latency the time the nail ran, in microseconds
+	 * @param exitCode the exit code sent to the client
+	 * @param bytesIn the number of stdin bytes read from the client
+	 * @param bytesOut the number of stdout and stderr bytes written to the client
 	 */
-	void nailFinished(Class nailClass) {
+	void nailFinished(Class nailClass, long latency, int exitCode, long bytesIn, long bytesOut) {
 		NailStats stats = (NailStats) allNailStats.get(nailClass);
-		stats.nailFinished();
+		// null if the nail's classpath was removed while it ran
+		if (stats != null) stats.nailFinished(latency, exitCode, bytesIn, bytesOut);
 	}
 	
 	/**
 	 * Returns a snapshot of this NGServer's nail statistics.  The result is a <code>java.util.Map</code>,
-	 * keyed by class name, with <a href="NailStats.html">NailStats</a> objects as values.
+	 * keyed by the command the nail runs under, with <a href="NailStats.html">NailStats</a> objects as values:
+	 * <code>name:className</code> for a nail on a named classpath and the class name otherwise, so
+	 * that same-named classes from different classpaths are counted apart.
 	 * 
 	 * @return a snapshot of this NGServer's nail statistics.
 	 */
 	public Map getNailStats() {
 		Map result = new java.util.TreeMap();
-		synchronized(allNailStats) {
-			for (Iterator i = allNailStats.keySet().iterator(); i.hasNext();) {
-				Class nailclass = (Class) i.next();
-				result.put(nailclass.getName(), ((NailStats) allNailStats.get(nailclass)).clone());
-			}
+		for (Iterator i = allNailStats.values().iterator(); i.hasNext();) {
+			NailStats stats = (NailStats) i.next();
+			result.put(getStatsKey(stats.getNailClass()), stats.clone());
 		}
 		return (result);
 	}
 	
+	/**
+	 * Returns the key of a nail class in the statistics snapshot
+	 * @param nailClass the nail class
+	 * @return <code>name:className</code> if the class comes from a named classpath, else the class name
+	 */
+	private String getStatsKey(Class nailClass) {
+		String name = nailClasspaths.getName(nailClass.getClassLoader());
+		if (name == null && nailClass.getClassLoader() instanceof NGClassLoader) {
+			// the classpath was removed after the snapshot was started
+			name = "@" + Integer.toHexString(System.identityHashCode(nailClass.getClassLoader()));
+		}
+		return ((name == null) ? nailClass.getName() : name + NGClasspaths.SEPARATOR + nailClass.getName());
+	}
+	
+	/**
+	 * Registers the session running on the current thread
+	 * @param session the session
+	 */
+	void sessionStarted(NGSessionWorker session) {
+		synchronized(activeSessions) {
+			activeSessions.put(Thread.currentThread(), session);
+		}
+	}
+	
+	/**
+	 * Unregisters the session running on the current thread
+	 */
+	void sessionFinished() {
+		synchronized(activeSessions) {
+			activeSessions.remove(Thread.currentThread());
+			activeSessions.notifyAll();
+		}
+	}
+	
+	/**
+	 * Returns the number of client sessions currently running
+	 * @return the number of running sessions
+	 */
+	public int getActiveSessionCount() {
+		synchronized(activeSessions) {
+			return (activeSessions.size());
+		}
+	}
+	
+	/**
+	 * Waits for running sessions to finish, then sends the stragglers
+	 * <code>NGConstants.EXIT_SERVER_SHUTDOWN</code> and disconnects them.
+	 * The session calling this, if any, is neither waited for nor aborted.
+	 * @param timeout the time in milliseconds to wait
+	 * @return the number of sessions aborted
+	 */
+	private int drain(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		List stragglers = new java.util.ArrayList();
+		synchronized(activeSessions) {
+			Thread self = Thread.currentThread();
+			long remaining;
+			while (activeSessions.size() > (activeSessions.containsKey(self) ? 1 : 0)
+					&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					activeSessions.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			for (Iterator i = activeSessions.entrySet().iterator(); i.hasNext();) {
+				Map.Entry entry = (Map.Entry) i.next();
+				if (entry.getKey() != self) stragglers.add(entry.getValue());
+			}
+		}
+		for (Iterator i = stragglers.iterator(); i.hasNext();) {
+			((NGSessionWorker) i.next()).abort(NGConstants.EXIT_SERVER_SHUTDOWN);
+		}
+		return (stragglers.size());
+	}
+	
 	/**
 	 * Returns the AliasManager in use by this NGServer.
 	 * @return the AliasManager in use by this NGServer.
@@ -302,16 +716,53 @@ public class NGServer implements Runnable {
 	 * implicitly launched by your nails.
 	 */
 	public void shutdown(boolean exitVM) {
+		shutdown(exitVM, -1);
+	}
+	
+	/**
+	 * <p>Shuts down the server, draining it first.  The server stops
+	 * listening at once, then waits for running nails to finish for up to
+	 * <code>drainTimeout</code> milliseconds.  Clients of nails still running
+	 * after that are sent <code>NGConstants.EXIT_SERVER_SHUTDOWN</code> and
+	 * disconnected, so they can tell the server went away from a failure of
+	 * their command.  The shutdown then proceeds as for
+	 * <code>shutdown(boolean)</code>.</p>
+	 * 
+	 * <p>A nail calling this, such as <code>ng-stop</code>, is not waited for.</p>
+	 * 
+	 * @param exitVM if true, exit the JVM once shut down
+	 * @param drainTimeout the time in milliseconds to let running nails
+	 * finish, or a negative value to leave them running without waiting
+	 * @return true iff no running nail had to be aborted; false also if the
+	 * server was already shut down
+	 */
+	public boolean shutdown(boolean exitVM, long drainTimeout) {
 		synchronized(this) {
-			if (shutdown) return;
+			if (shutdown) return (false);
 			shutdown = true;
 		}
 		
+		if (frontEnd != null) {
+			frontEnd.close();
+		}
 		try {
 			serversocket.close();
 		} catch (Throwable toDiscard) {}
 		
 		sessionPool.shutdown();
+		if (sessionExecutor != null) {
+			sessionExecutor.shutdown();
+		}
+		
+		boolean drained = true;
+		if (drainTimeout >= 0) {
+			drained = (drain(drainTimeout) == 0);
+		}
+		
+		// instance nails are destroyed through their pools
+		for (Iterator i = nailPools.values().iterator(); i.hasNext();) {
+			((NGNailPool) i.next()).close();
+		}
 		
 		Class[] argTypes = new Class[1];
 		argTypes[0] = NGServer.class;
@@ -322,33 +773,42 @@ public class NGServer implements Runnable {
 		// so they can be shut down.
 		for (Iterator i = getAliasManager().getAliases().iterator(); i.hasNext();) {
 			Alias alias = (Alias) i.next();
-			getOrCreateStatsFor(alias.getAliasedClass());
+			try {
+				getOrCreateStatsFor(alias.getAliasedClass());
+			} catch (NoClassDefFoundError toDiscard) {}
 		}
 		
-		synchronized(allNailStats) {
-			for (Iterator i = allNailStats.values().iterator(); i.hasNext();) {
-				NailStats ns = (NailStats) i.next();
-				Class nailClass = ns.getNailClass();
-				
-				// yes, I know this is lazy, relying upon the exception
-				// to handle the case of no nailShutdown method.
-				try {
-					Method nailShutdown = nailClass.getMethod("nailShutdown", argTypes);
-					nailShutdown.invoke(null, argValues);
-				} catch (Throwable toDiscard) {}
-			}
+		for (Iterator i = allNailStats.values().iterator(); i.hasNext();) {
+			NailStats ns = (NailStats) i.next();
+			Class nailClass = ns.getNailClass();
+			if (Nail.class.isAssignableFrom(nailClass)) continue;
+			
+			// yes, I know this is lazy, relying upon the exception
+			// to handle the case of no nailShutdown method.
+			try {
+				Method nailShutdown = nailClass.getMethod("nailShutdown", argTypes);
+				nailShutdown.invoke(null, argValues);
+			} catch (Throwable toDiscard) {}
 		}
 		
+		// let the named classpaths' loaders go
+		nailClasspaths.close();
+		
 		// restore system streams
 		System.setIn(in);
 		System.setOut(out);
 		System.setErr(err);
 		
-		System.setSecurityManager(originalSecurityManager);
+		if (exitAgent) {
+			NGExitInterceptor.serverStopped();
+		} else {
+			System.setSecurityManager(originalSecurityManager);
+		}
 		
 		if (exitVM) {
 			System.exit(0);
 		}
+		return (drained);
 	}
 	
 	/**
@@ -359,6 +819,15 @@ public class NGServer implements Runnable {
 		return (running);
 	}
 	
+	/**
+	 * Returns true iff the server has been warmed up and is accepting
+	 * connections.
+	 * @return true iff the server is ready.
+	 */
+	public boolean isReady() {
+		return (ready);
+	}
+	
 	/**
 	 * Returns the port on which this server is (or will be) listening.
 	 * @return the port on which this server is (or will be) listening.
@@ -367,6 +836,14 @@ public class NGServer implements Runnable {
 		return ((serversocket == null) ? port : serversocket.getLocalPort());
 	}
 	
+	/**
+	 * Returns true once the server has been told to shut down
+	 * @return true iff <code>shutdown()</code> has been called
+	 */
+	private synchronized boolean isShutdown() {
+		return (shutdown);
+	}
+	
 	/**
 	 * Listens for new connections and launches NGSession threads
 	 * to process them.
@@ -375,31 +852,86 @@ public class NGServer implements Runnable {
 		running = true;
 		NGSession sessionOnDeck = null;
 		
-		originalSecurityManager = System.getSecurityManager();
-        System.setSecurityManager(
-                new NGSecurityManager(
-                        originalSecurityManager));
+		// with the exit agent loaded, nail exits are trapped without a security manager
+		exitAgent = NGExitAgent.isInstalled();
+		if (exitAgent) {
+			NGExitInterceptor.serverStarted();
+		} else {
+			originalSecurityManager = System.getSecurityManager();
+	        System.setSecurityManager(
+	                new NGSecurityManager(
+	                        originalSecurityManager));
+		}
   
 
 		synchronized(System.in) {
 			if (!(System.in instanceof ThreadLocalInputStream)) {
 				System.setIn(new ThreadLocalInputStream(in));
-				System.setOut(new ThreadLocalPrintStream(out));
-				System.setErr(new ThreadLocalPrintStream(err));				
+				System.setOut(new ThreadLocalPrintStream(out, false));
+				System.setErr(new ThreadLocalPrintStream(err, true));
 			}
 		}
 		
+		// warm up before listening, so clients never meet a cold nail
+		if (!isShutdown()) warmup.run(this);
+		if (isShutdown()) {
+			// shut down during the warm-up: there is nothing to listen on or close
+			running = false;
+			return;
+		}
+		
 		try {
-			if (addr == null) {
-				serversocket = new ServerSocket(port);
+			NGSelectorFrontEnd selector = null;
+			ServerSocket listener = null;
+			if (selectorFrontEnd) {
+				if (sessionExecutor == null) {
+					sessionExecutor = NGSessionExecutors.newSessionExecutor(DEFAULT_SESSIONPOOLSIZE);
+				}
+				selector = new NGSelectorFrontEnd(this, sessionExecutor, addr, port, backlog);
+				listener = selector.getServerSocket();
+			} else if (addr == null) {
+				listener = new ServerSocket(port, backlog);
 			} else {
-				serversocket = new ServerSocket(port, 0, addr);
+				listener = new ServerSocket(port, backlog, addr);
+			}
+			boolean stopped;
+			synchronized(this) {
+				// published under the lock, so either shutdown() sees and closes the listener, or we see the shutdown
+				stopped = shutdown;
+				serversocket = listener;
+				frontEnd = selector;
 			}
+			if (stopped) {
+				if (selector != null) {
+					// a closed front end's run() only releases its selector and channel
+					selector.close();
+					selector.run();
+				} else {
+					listener.close();
+				}
+				running = false;
+				return;
+			}
+			ready = true;
 			
-			while (!shutdown) {
-				sessionOnDeck = sessionPool.take();
-				Socket socket = serversocket.accept();
-				sessionOnDeck.run(socket);
+			if (selectorFrontEnd) {
+				selector.run();
+				// the front end has returned after shutdown
+			} else if (sessionExecutor != null) {
+				while (!shutdown) {
+					Socket socket = serversocket.accept();
+					try {
+						sessionExecutor.execute(new NGSessionWorker(this, socket, "NGSession"));
+					} catch (RejectedExecutionException e) {
+						socket.close();
+					}
+				}
+			} else {
+				while (!shutdown) {
+					sessionOnDeck = sessionPool.take();
+					Socket socket = serversocket.accept();
+					sessionOnDeck.run(socket);
+				}
 			}
 
 		} catch (Throwable t) {
@@ -409,10 +941,18 @@ public class NGServer implements Runnable {
 			if (!shutdown) {
 				t.printStackTrace();
 			}
+		} finally {
+			if (isShutdown() && serversocket != null) {
+				// closing again is harmless, and a listener bound as shutdown() ran is never left open
+				try {
+					serversocket.close();
+				} catch (IOException toDiscard) {}
+			}
 		}
 		if (sessionOnDeck != null) {
 			sessionOnDeck.shutdown();
 		}
+		ready = false;
 		running = false;
 	}
 	
@@ -466,20 +1006,40 @@ public class NGServer implements Runnable {
 		}
 
 		NGServer server = new NGServer(serverAddress, port, DEFAULT_SESSIONPOOLSIZE);
+		server.setSessionExecutor(NGSessionExecutors.fromSystemProperty(DEFAULT_SESSIONPOOLSIZE));
+		server.setSelectorFrontEnd("nio".equals(System.getProperty(NGSelectorFrontEnd.FRONTEND_PROPERTY)));
+		server.setRecycleSessionObjects("true".equals(System.getProperty(RECYCLE_PROPERTY)));
+		server.getWarmup().setPreloadAliases(!"false".equals(System.getProperty(PRELOAD_PROPERTY)));
+		String config = System.getProperty(CONFIG_PROPERTY);
+		if (config != null) {
+			try {
+				Properties props = new Properties();
+				InputStream is = new FileInputStream(config);
+				try {
+					props.load(is);
+				} finally {
+					is.close();
+				}
+				server.loadFromProperties(props);
+			} catch (IOException e) {
+				System.err.println("Unable to load " + config + ": " + e.getMessage());
+				return;
+			}
+		}
 		Thread t = new Thread(server);
 		t.setName("NGServer(" + serverAddress + ", " + port + ")");
 		t.start();
 
 		Runtime.getRuntime().addShutdownHook(new NGServerShutdowner(server));
 		
-		// if the port is 0, it will be automatically determined.
-		// add this little wait so the ServerSocket can fully
-		// initialize and we can see what port it chose.
-		int runningPort = server.getPort();
-		while (runningPort == 0) {
+		// wait for the warm-up to finish and the ServerSocket to
+		// initialize, so we can see what port it chose if the
+		// port is 0.
+		while (!server.isReady() && t.isAlive()) {
 			try { Thread.sleep(50); } catch (Throwable toIgnore) {}
-			runningPort = server.getPort();
 		}
+		if (!server.isReady()) return;
+		int runningPort = server.getPort();
 		
 		System.out.println("NGServer started on "
 							+ ((serverAddress == null) 
@@ -507,7 +1067,7 @@ public class NGServer implements Runnable {
 		public void run() {
 			
 			int count = 0;
-			server.shutdown(false);
+			server.shutdown(false, DEFAULT_DRAIN_TIMEOUT);
 			
 			// give the server up to five seconds to stop.  is that enough?
 			// remember that the shutdown will call nailShutdown in any
@@ -18,23 +18,13 @@
 
 package com.martiansoftware.nailgun;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.InputStream;
-import java.io.PrintStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.Socket;
-import java.util.List;
-import java.util.Properties;
-
-import org.apache.tools.ant.ExitException;
 
 /**
- * Reads the NailGun stream from the client through the command,
- * then hands off processing to the appropriate class.  The NGSession
- * obtains its sockets from an NGSessionPool, which created this
- * NGSession.
+ * A pooled thread that runs an <code>NGSessionWorker</code> for each
+ * socket it is handed.  The NGSession obtains its sockets from an
+ * NGSessionPool, which created this NGSession.  Unless the server has
+ * turned recycling off, the workers share the thread's <code>NGSessionState</code>.
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
@@ -74,6 +64,11 @@ class NGSession extends Thread {
 	 */
 	private long instanceNumber = 0;
 
+	/**
+	 * The per-request objects this thread reuses, created on first use
+	 */
+	private NGSessionState state = null;
+
 	/**
 	 * A lock shared among all NGSessions
 	 */
@@ -84,25 +79,6 @@ class NGSession extends Thread {
 	 */
 	private static long instanceCounter = 0;
 	
-	/**
-	 * signature of main(String[]) for reflection operations
-	 */
-	private static Class[] mainSignature;
-
-	/**
-	 * signature of nailMain(NGContext) for reflection operations
-	 */
-	private static Class[] nailMainSignature;
-	
-	static {
-		// initialize the signatures
-		mainSignature = new Class[1];
-		mainSignature[0] = String[].class;
-		
-		nailMainSignature = new Class[1];
-		nailMainSignature[0] = NGContext.class;
-	}
-	
 	/**
 	 * Creates a new NGSession running for the specified NGSessionPool and
 	 * NGServer.
@@ -179,146 +155,14 @@ class NGSession extends Thread {
 		
 		Socket socket = nextSocket();
 		while (socket != null) {
-			try {
-				DataInputStream sockin = new DataInputStream(socket.getInputStream());
-				DataOutputStream sockout = new DataOutputStream(socket.getOutputStream());
-	
-				// client info - command line arguments and environment
-				List remoteArgs = new java.util.ArrayList();
-				Properties remoteEnv = new Properties();
-				
-				String cwd = null;			// working directory
-				String command = null;		// alias or class name
-				
-				// read everything from the client up to and including the command
-				while (command == null) {
-                    int bytesToRead = sockin.readInt();
-                    byte chunkType = sockin.readByte();
-					
-					byte[] b = new byte[(int) bytesToRead];
-					sockin.readFully(b);
-					String line = new String(b, "US-ASCII");
-	
-					switch(chunkType) {
-									
-						case NGConstants.CHUNKTYPE_ARGUMENT:
-									//	command line argument
-									remoteArgs.add(line);
-									break;
-
-						case NGConstants.CHUNKTYPE_ENVIRONMENT:
-									//	parse environment into property
-									int equalsIndex = line.indexOf('=');
-									if (equalsIndex > 0) {
-										remoteEnv.setProperty(
-												line.substring(0, equalsIndex),
-												line.substring(equalsIndex + 1));
-									}
-									String key = line.substring(0, equalsIndex);
-									break;
-									
-						case NGConstants.CHUNKTYPE_COMMAND:
-									// 	command (alias or classname)
-									command = line;
-									break;
-									
-						case NGConstants.CHUNKTYPE_WORKINGDIRECTORY:
-									//	client working directory
-									cwd = line;
-									break;
-									
-						default:	// freakout?
-					}
-				}
-	
-				updateThreadName(socket.getInetAddress().getHostAddress() + ": " + command);
-				
-				// can't create NGInputStream until we've received a command, because at
-				// that point the stream from the client will only include stdin and stdin-eof
-				// chunks
-				InputStream in = new NGInputStream(sockin, sockout);
-				PrintStream out = new PrintStream(new NGOutputStream(sockout, NGConstants.CHUNKTYPE_STDOUT));
-				PrintStream err = new PrintStream(new NGOutputStream(sockout, NGConstants.CHUNKTYPE_STDERR));
-				PrintStream exit = new PrintStream(new NGOutputStream(sockout, NGConstants.CHUNKTYPE_EXIT));
-	
-				// ThreadLocal streams for System.in/out/err redirection
-				((ThreadLocalInputStream) System.in).init(in);
-				((ThreadLocalPrintStream) System.out).init(out);
-				((ThreadLocalPrintStream) System.err).init(err);
-				
-				try {
-					Alias alias = server.getAliasManager().getAlias(command);
-					Class cmdclass = null;
-					if (alias != null) {
-						cmdclass = alias.getAliasedClass();
-					} else if (server.allowsNailsByClassName()) {
-						cmdclass = Class.forName(command);
-					} else {
-						cmdclass = server.getDefaultNailClass();
-					}
-
-					Object[] methodArgs = new Object[1];
-					Method mainMethod = null; // will be either main(String[]) or nailMain(NGContext)
-					String[] cmdlineArgs = (String[]) remoteArgs.toArray(new String[remoteArgs.size()]);
-					
-					try {
-						mainMethod = cmdclass.getMethod("nailMain", nailMainSignature);
-						NGContext context = new NGContext();
-						context.setArgs(cmdlineArgs);
-						context.in = in;
-						context.out = out;
-						context.err = err;
-						context.setCommand(command);
-						context.setExitStream(exit);
-						context.setNGServer(server);
-						context.setEnv(remoteEnv);
-						context.setInetAddress(socket.getInetAddress());
-						context.setPort(socket.getPort());
-						context.setWorkingDirectory(cwd);
-						methodArgs[0] = context;
-					} catch (NoSuchMethodException toDiscard) {
-						// that's ok - we'll just try main(String[]) next.
-					}
-					
-					if (mainMethod == null) {
-						mainMethod = cmdclass.getMethod("main", mainSignature);
-						methodArgs[0] = cmdlineArgs;
-					}
-					
-					if (mainMethod != null) {
-						server.nailStarted(cmdclass);
-                        NGSecurityManager.setExit(exit);
-
-						try {
-							mainMethod.invoke(null, methodArgs);
-						} catch (InvocationTargetException ite) {
-							throw(ite.getCause());
-						} catch (Throwable t) {
-							throw(t);
-						} finally {
-							server.nailFinished(cmdclass);
-						}
-						exit.println(0);
-					}
-
-				} catch (ExitException exitEx) {
-                    exit.println(exitEx.getStatus());
-                    server.out.println(Thread.currentThread().getName() + " exited with status " + exitEx.getStatus());
-				} catch (Throwable t) {
-					t.printStackTrace();
-					exit.println(NGConstants.EXIT_EXCEPTION); // remote exception constant
-				}
-
-                sockout.flush();
-				socket.close();
-	
-			} catch (Throwable t) {
-				t.printStackTrace();
+			NGSessionState reused = null;
+			if (server.isRecycleSessionObjects()) {
+				if (state == null) state = new NGSessionState();
+				reused = state;
+			} else {
+				state = null;
 			}
-
-			((ThreadLocalInputStream) System.in).init(null);
-			((ThreadLocalPrintStream) System.out).init(null);
-			((ThreadLocalPrintStream) System.err).init(null);
+			new NGSessionWorker(server, socket, "NGSession " + instanceNumber, reused).run();
 			
 			updateThreadName(null);
 			sessionPool.give(this);
@@ -0,0 +1,162 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates <code>ExecutorService</code>s that an <code>NGServer</code> can
+ * run client sessions on in place of its <code>NGSessionPool</code> (see
+ * <code>NGServer.setSessionExecutor()</code>).  Each connection is run as
+ * an <code>NGSessionWorker</code> task, either on its own virtual thread
+ * when the JVM supports them, or on a reusable pool of platform threads.
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGSessionExecutors {
+
+	/**
+	 * The system property read by <code>NGServer.main()</code> to select the
+	 * session executor: <code>virtual</code>, <code>pool</code> or
+	 * <code>auto</code> (virtual threads if available, otherwise a pool).
+	 * <code>virtual</code> on a JVM without virtual threads warns and falls
+	 * back to a pool.  If unset, the legacy <code>NGSessionPool</code> is used.
+	 */
+	public static final String SESSION_EXECUTOR_PROPERTY = "nailgun.sessions";
+	
+	/**
+	 * The time in seconds an idle pooled thread above the core size waits
+	 * for a new session before exiting
+	 */
+	public static final long POOL_KEEP_ALIVE = 60;
+	
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor(), or null if this JVM
+	 * does not have virtual threads
+	 */
+	private static final Method newVirtualThreadPerTaskExecutor = virtualFactory();
+	
+	private NGSessionExecutors() {}
+	
+	/**
+	 * Looks up the virtual thread executor factory
+	 * @return the factory method, or null if it is not available
+	 */
+	private static Method virtualFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class[0]);
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns true iff this JVM can run sessions on virtual threads
+	 * @return true iff virtual threads are available
+	 */
+	public static boolean virtualThreadsAvailable() {
+		return (newVirtualThreadPerTaskExecutor != null);
+	}
+	
+	/**
+	 * Creates an executor that runs each session on a new virtual thread.
+	 * <code>NGStreamScope</code> redirection keeps working since virtual
+	 * threads carry their own thread locals.
+	 * @return a virtual thread per task executor
+	 * @throws UnsupportedOperationException if this JVM does not have virtual threads
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		if (newVirtualThreadPerTaskExecutor == null) {
+			throw new UnsupportedOperationException("Virtual threads are not available in this JVM (" + System.getProperty("java.version") + ")");
+		}
+		try {
+			return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null, new Object[0]);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Failed to create virtual thread executor: " + e);
+		}
+	}
+	
+	/**
+	 * Creates an executor that reuses platform threads across sessions.
+	 * <code>idleThreads</code> threads are kept between sessions; more are
+	 * created on demand so a blocking session never waits for another to
+	 * finish, and the extra threads exit after <code>POOL_KEEP_ALIVE</code>
+	 * idle seconds.
+	 * @param idleThreads the number of threads kept while idle
+	 * @return a pooled session executor
+	 */
+	public static ExecutorService newPooledExecutor(int idleThreads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(0, idleThreads), Integer.MAX_VALUE,
+				POOL_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue(), new SessionThreadFactory());
+		executor.prestartAllCoreThreads();
+		return (executor);
+	}
+	
+	/**
+	 * Creates a virtual thread executor if the JVM supports it, otherwise
+	 * a pooled executor
+	 * @param idleThreads the number of threads a pooled executor keeps while idle
+	 * @return a session executor
+	 */
+	public static ExecutorService newSessionExecutor(int idleThreads) {
+		return (virtualThreadsAvailable() ? newVirtualThreadExecutor() : newPooledExecutor(idleThreads));
+	}
+	
+	/**
+	 * Creates the session executor named by the <code>nailgun.sessions</code>
+	 * system property
+	 * @param idleThreads the number of threads a pooled executor keeps while idle
+	 * @return a session executor, or null if the property is unset and the
+	 * legacy <code>NGSessionPool</code> should be used.  A pool is returned
+	 * for <code>virtual</code> if this JVM does not have virtual threads.
+	 */
+	static ExecutorService fromSystemProperty(int idleThreads) {
+		String mode = System.getProperty(SESSION_EXECUTOR_PROPERTY);
+		if (mode == null || mode.trim().length() == 0) return (null);
+		mode = mode.trim().toLowerCase();
+		if (mode.equals("virtual")) {
+			if (virtualThreadsAvailable()) return (newVirtualThreadExecutor());
+			System.err.println("Virtual threads are not available in this JVM (" + System.getProperty("java.version")
+					+ "), running sessions on a thread pool");
+			return (newPooledExecutor(idleThreads));
+		}
+		if (mode.equals("pool")) return (newPooledExecutor(idleThreads));
+		if (mode.equals("auto")) return (newSessionExecutor(idleThreads));
+		throw new IllegalArgumentException("Invalid " + SESSION_EXECUTOR_PROPERTY + " [" + mode + "], expected virtual, pool or auto");
+	}
+	
+	/**
+	 * Creates daemon session threads for the pooled executor
+	 */
+	private static class SessionThreadFactory implements ThreadFactory {
+		private int serial = 0;
+		
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "NGSession " + (++serial) + ": (idle)");
+			t.setDaemon(true);
+			return (t);
+		}
+	}
+}
@@ -67,7 +67,7 @@ class NGSessionPool {
 	 */
 	NGSessionPool(NGServer server, int poolsize) {
 		this.server = server;
-		this.poolSize = Math.min(0, poolsize);
+		this.poolSize = Math.max(0, poolsize);
 	
 		pool = new NGSession[poolSize];
 		poolEntries = 0;
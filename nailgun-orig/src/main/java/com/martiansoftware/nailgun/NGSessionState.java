@@ -0,0 +1,172 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * The per-request objects of a session thread, kept and reset for each
+ * request it serves instead of being created afresh: the chunk reader and
+ * writer with their buffers, the request headers, the stdin stream, the
+ * stdout, stderr and exit <code>PrintStream</code>s and the
+ * <code>NGContext</code>.  Each <code>PrintStream</code> carries a charset
+ * encoder and its buffers, making them the bulk of a request's garbage.
+ * 
+ * <p>Since the streams, environment and context handed to a nail are
+ * reused, a nail must not use them once it has returned.  Between
+ * requests the writer is closed, so late writes fail as they always have,
+ * but writes made after the thread has taken its next request reach the
+ * new client.  Recycling is therefore off unless it is turned on with
+ * <code>NGServer.setRecycleSessionObjects(true)</code> or
+ * <code>-Dnailgun.recycle=true</code>, which should only be done when no
+ * nail outlives its request.</p>
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+class NGSessionState {
+
+	private NGChunkReader reader = null;
+	private final NGRequestHeaders headers = new NGRequestHeaders();
+	private NGChunkWriter writer = null;
+	private NGInputStream in = null;
+	private SessionPrintStream out = null;
+	private SessionPrintStream err = null;
+	private SessionPrintStream exit = null;
+	private NGContext context = null;
+	
+	/**
+	 * Returns the chunk reader, reset for a new connection
+	 * @param socketIn the socket input stream of the connection
+	 * @return the chunk reader
+	 */
+	NGChunkReader getReader(InputStream socketIn) {
+		if (reader == null) {
+			reader = new NGChunkReader(socketIn);
+		} else {
+			reader.reset(socketIn);
+		}
+		return (reader);
+	}
+	
+	/**
+	 * Returns the request headers, cleared
+	 * @return the request headers
+	 */
+	NGRequestHeaders getHeaders() {
+		headers.reset();
+		return (headers);
+	}
+	
+	/**
+	 * Returns the chunk writer, reset for a new connection.  The writer
+	 * must have been closed at the end of the previous request.
+	 * @param socketOut the socket output stream of the connection
+	 * @return the chunk writer
+	 */
+	NGChunkWriter getWriter(OutputStream socketOut) {
+		if (writer == null) {
+			writer = new NGChunkWriter(socketOut);
+			out = new SessionPrintStream(writer.newOutputStream(NGConstants.CHUNKTYPE_STDOUT));
+			err = new SessionPrintStream(writer.newOutputStream(NGConstants.CHUNKTYPE_STDERR));
+			exit = new SessionPrintStream(writer.newOutputStream(NGConstants.CHUNKTYPE_EXIT));
+		} else {
+			writer.reset(socketOut);
+			out.reset();
+			err.reset();
+			exit.reset();
+		}
+		return (writer);
+	}
+	
+	/**
+	 * Returns the stdin stream, reset to read from the specified reader.
+	 * Must be called after <code>getWriter()</code>.
+	 * @param sockin the chunk reader of the connection, positioned after the command
+	 * @return the stdin stream
+	 */
+	NGInputStream getIn(NGChunkReader sockin) {
+		if (in == null) {
+			in = new NGInputStream(sockin, writer);
+		} else {
+			in.reset(sockin);
+		}
+		return (in);
+	}
+	
+	/**
+	 * Returns the stdout stream.  Must be called after <code>getWriter()</code>.
+	 * @return the stdout stream
+	 */
+	PrintStream getOut() {
+		return (out);
+	}
+	
+	/**
+	 * Returns the stderr stream.  Must be called after <code>getWriter()</code>.
+	 * @return the stderr stream
+	 */
+	PrintStream getErr() {
+		return (err);
+	}
+	
+	/**
+	 * Returns the exit stream.  Must be called after <code>getWriter()</code>.
+	 * @return the exit stream
+	 */
+	PrintStream getExit() {
+		return (exit);
+	}
+	
+	/**
+	 * Returns the context.  The caller sets all of its fields.
+	 * @return the context
+	 */
+	NGContext getContext() {
+		if (context == null) context = new NGContext();
+		return (context);
+	}
+	
+	/**
+	 * A PrintStream that survives <code>close()</code> and can be cleared
+	 * of errors, so that it can serve the next request
+	 */
+	private static class SessionPrintStream extends PrintStream {
+		
+		SessionPrintStream(OutputStream out) {
+			super(out);
+		}
+		
+		/**
+		 * Flushes the stream.  The connection is closed by the session,
+		 * and the stream is kept open for its next request.
+		 */
+		public void close() {
+			flush();
+		}
+		
+		/**
+		 * Clears the error state left by the previous request
+		 */
+		void reset() {
+			clearError();
+		}
+	}
+}
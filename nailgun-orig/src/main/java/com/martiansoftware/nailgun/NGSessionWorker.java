@@ -0,0 +1,293 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.tools.ant.ExitException;
+
+/**
+ * Runs a single client connection: reads the NailGun stream from the client
+ * through the command, redirects <code>System.in/out/err</code> for the
+ * current thread and invokes the nail.  A worker carries no thread of its
+ * own, so it can be run by a pooled <code>NGSession</code> or submitted to
+ * any <code>Executor</code> (see <code>NGSessionExecutors</code>).
+ * 
+ * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
+ */
+class NGSessionWorker implements Runnable {
+
+	/**
+	 * The server this worker is running for
+	 */
+	private final NGServer server;
+	
+	/**
+	 * The socket (connected to a client) to process
+	 */
+	private final Socket socket;
+	
+	/**
+	 * The thread name prefix used while the worker is running
+	 */
+	private final String threadName;
+
+	/**
+	 * The request headers already read by the selector front end, or null
+	 * if the worker reads them
+	 */
+	private final NGRequestHeaders headers;
+	
+	/**
+	 * The chunk reader for the rest of the request, or null to read the socket
+	 */
+	private final NGChunkReader reader;
+	
+	/**
+	 * The stream to write chunks to, or null to write to the socket
+	 */
+	private final OutputStream sockout;
+	
+	/**
+	 * The recycled objects of the session thread, or null to create them
+	 * for this request
+	 */
+	private final NGSessionState state;
+	
+	/**
+	 * The chunk writer once the command has been received
+	 */
+	private volatile NGChunkWriter writer = null;
+	
+	/**
+	 * Set when the session is aborted by a draining shutdown
+	 */
+	private volatile boolean aborted = false;
+	
+	/**
+	 * Creates a new NGSessionWorker that reads the whole request from the socket
+	 * @param server the server to run for
+	 * @param socket the socket (connected to a client) to process
+	 * @param threadName the thread name prefix used while the worker is running
+	 */
+	NGSessionWorker(NGServer server, Socket socket, String threadName) {
+		this(server, socket, threadName, null, null, null, null);
+	}
+	
+	/**
+	 * Creates a new NGSessionWorker that reads the whole request from the
+	 * socket, reusing the objects of its session thread
+	 * @param server the server to run for
+	 * @param socket the socket (connected to a client) to process
+	 * @param threadName the thread name prefix used while the worker is running
+	 * @param state the recycled objects of the session thread, or null
+	 */
+	NGSessionWorker(NGServer server, Socket socket, String threadName, NGSessionState state) {
+		this(server, socket, threadName, state, null, null, null);
+	}
+	
+	/**
+	 * Creates a new NGSessionWorker for a connection whose headers have been read
+	 * @param server the server to run for
+	 * @param socket the socket (connected to a client) to process
+	 * @param threadName the thread name prefix used while the worker is running
+	 * @param headers the request headers, or null to read them from the reader
+	 * @param reader the chunk reader for the rest of the request
+	 * @param sockout the stream to write chunks to
+	 */
+	NGSessionWorker(NGServer server, Socket socket, String threadName, NGRequestHeaders headers, NGChunkReader reader, OutputStream sockout) {
+		this(server, socket, threadName, null, headers, reader, sockout);
+	}
+	
+	private NGSessionWorker(NGServer server, Socket socket, String threadName, NGSessionState state, 
+			NGRequestHeaders headers, NGChunkReader reader, OutputStream sockout) {
+		this.server = server;
+		this.socket = socket;
+		this.threadName = threadName;
+		this.state = (state != null) ? state : new NGSessionState();
+		this.headers = headers;
+		this.reader = reader;
+		this.sockout = sockout;
+	}
+	
+	/**
+	 * Processes the socket, runs the nail and closes the socket.  The
+	 * thread's stream redirection and name are restored when done.
+	 */
+	public void run() {
+		String priorName = Thread.currentThread().getName();
+		server.sessionStarted(this);
+		NGStreamScope scope = null;
+		NGStreamScope priorScope = null;
+		try {
+			NGChunkReader sockin = (reader != null) ? reader : state.getReader(socket.getInputStream());
+			OutputStream sockout = (this.sockout != null) ? this.sockout : socket.getOutputStream();
+
+			// client info - command line arguments and environment
+			NGRequestHeaders request = (headers != null) ? headers : state.getHeaders();
+			
+			// read everything from the client up to and including the command
+			while (!request.isComplete()) {
+				sockin.readHeader();
+				request.add(sockin.getChunkType(), sockin.readString(sockin.getChunkLength()));
+			}
+			List remoteArgs = request.remoteArgs;
+			Properties remoteEnv = request.remoteEnv;
+			String cwd = request.cwd;			// working directory
+			String command = request.command;	// alias or class name
+
+			updateThreadName(socket.getInetAddress().getHostAddress() + ": " + command);
+			
+			// can't create NGInputStream until we've received a command, because at
+			// that point the stream from the client will only include stdin and stdin-eof
+			// chunks
+			NGChunkWriter writer = state.getWriter(sockout);
+			this.writer = writer;
+			InputStream in = state.getIn(sockin);
+			PrintStream out = state.getOut();
+			PrintStream err = state.getErr();
+			PrintStream exit = state.getExit();
+
+			// System.in/out/err resolve through the scope bound to this thread
+			scope = new NGStreamScope(in, out, err, exit);
+			priorScope = scope.bind();
+			
+			Class cmdclass = null;
+			boolean running = false;
+			long started = 0;
+			int exitCode = 0;
+			try {
+				cmdclass = server.getCommandResolver().resolve(command);
+
+				NGNailInvoker invoker = server.getNailInvoker(cmdclass);
+				String[] cmdlineArgs = (String[]) remoteArgs.toArray(new String[remoteArgs.size()]);
+				
+				NGContext context = null;
+				if (invoker.takesContext()) {
+					context = state.getContext();
+					context.setArgs(cmdlineArgs);
+					context.in = in;
+					context.out = out;
+					context.err = err;
+					context.setCommand(command);
+					context.setExitStream(exit);
+					context.setNGServer(server);
+					context.setEnv(remoteEnv);
+					context.setInetAddress(socket.getInetAddress());
+					context.setPort(socket.getPort());
+					context.setWorkingDirectory(cwd);
+				}
+				
+				// wait for a permit if the nail is limited, or fail fast if its queue is full
+				NGNailLimit[] limits = server.getNailLimits().acquire(command, cmdclass);
+				if (limits == null) {
+					err.println(command + ": too many concurrent runs, try again later");
+					exitCode = NGConstants.EXIT_SERVER_BUSY;
+				} else {
+					try {
+						server.nailStarted(cmdclass);
+						running = true;
+						started = System.nanoTime();
+
+						// nails on a named classpath find their resources through it
+						Thread current = Thread.currentThread();
+						ClassLoader priorLoader = current.getContextClassLoader();
+						current.setContextClassLoader(cmdclass.getClassLoader());
+						try {
+							invoker.invoke(context, cmdlineArgs);
+						} finally {
+							current.setContextClassLoader(priorLoader);
+						}
+					} finally {
+						NGNailLimits.release(limits);
+					}
+				}
+
+			} catch (ExitException exitEx) {
+                    exitCode = exitEx.getStatus();
+                    server.out.println(Thread.currentThread().getName() + " exited with status " + exitEx.getStatus());
+			} catch (Throwable t) {
+				t.printStackTrace();
+				exitCode = NGConstants.EXIT_EXCEPTION; // remote exception constant
+			}
+			
+			if (running) {
+				server.nailFinished(cmdclass, (System.nanoTime() - started) / 1000, exitCode, 
+						sockin.getPayloadBytes(), writer.getOutputBytes());
+			}
+			exit.println(exitCode);
+
+                writer.close();
+			socket.close();
+
+		} catch (Throwable t) {
+			// an aborted session finds its socket closed
+			if (!aborted) t.printStackTrace();
+		} finally {
+			// threads the nail left running fall back to the server's streams
+			if (scope != null) {
+				scope.close();
+				NGStreamScope.restore(priorScope);
+			}
+			// a failed session leaves the recycled writer open
+			NGChunkWriter w = writer;
+			if (w != null) {
+				try {
+					w.close();
+				} catch (IOException toDiscard) {}
+			}
+			server.sessionFinished();
+		}
+		
+		Thread.currentThread().setName(priorName);
+	}
+	
+	/**
+	 * Ends the session from another thread: sends the client the specified
+	 * exit code and closes the connection.  The nail is not stopped, but
+	 * fails on its next use of the client's streams.
+	 * @param exitCode the exit code to send
+	 */
+	void abort(int exitCode) {
+		aborted = true;
+		NGChunkWriter w = writer;
+		if (w != null) {
+			try {
+				byte[] code = (exitCode + "\n").getBytes("US-ASCII");
+				w.write(NGConstants.CHUNKTYPE_EXIT, code, 0, code.length);
+			} catch (IOException toDiscard) {}
+		}
+		try {
+			socket.close();
+		} catch (IOException toDiscard) {}
+	}
+	
+	/**
+	 * Updates the current thread name (useful for debugging).
+	 */
+	private void updateThreadName(String detail) {
+		Thread.currentThread().setName(threadName + ": " + detail);
+	}
+}
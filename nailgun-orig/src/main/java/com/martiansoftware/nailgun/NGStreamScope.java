@@ -0,0 +1,263 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The client streams of one request.  A session worker creates a scope
+ * when it receives a command, binds it to its thread while the nail runs,
+ * and closes it when the nail ends.  <code>System.in</code>,
+ * <code>System.out</code> and <code>System.err</code> (and the exit
+ * stream used to report <code>System.exit()</code>) resolve through the
+ * scope bound to the calling thread, falling back to the server's own
+ * streams.
+ * 
+ * <p>Threads started by a nail while its request runs inherit its scope.
+ * Once the scope is closed they fall back to the server's streams instead
+ * of writing to a finished client.  Tasks handed to threads that already
+ * exist, such as a shared executor, must carry the scope explicitly: see
+ * <code>wrap()</code> and <code>propagating()</code>.</p>
+ * 
+ * <p>While no scope is open anywhere in the server, stream lookups
+ * return the server's streams without touching a thread local.</p>
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public final class NGStreamScope {
+
+	/**
+	 * The scope bound to each thread.  Inherited by threads a nail starts.
+	 */
+	private static final ThreadLocal current = new InheritableThreadLocal();
+	
+	/**
+	 * The number of scopes created and not yet closed
+	 */
+	private static final AtomicInteger openScopes = new AtomicInteger();
+	
+	private final InputStream in;
+	private final PrintStream out;
+	private final PrintStream err;
+	private final PrintStream exit;
+	
+	/**
+	 * True until the scope is closed
+	 */
+	private volatile boolean open = true;
+	
+	/**
+	 * Creates a new, open scope
+	 * @param in the client's stdin
+	 * @param out the client's stdout
+	 * @param err the client's stderr
+	 * @param exit the stream the client's exit code is written to
+	 */
+	NGStreamScope(InputStream in, PrintStream out, PrintStream err, PrintStream exit) {
+		this.in = in;
+		this.out = out;
+		this.err = err;
+		this.exit = exit;
+		openScopes.incrementAndGet();
+	}
+	
+	/**
+	 * Returns the open scope bound to the current thread
+	 * @return the current scope, or null if the thread has none or its
+	 * scope is closed
+	 */
+	public static NGStreamScope current() {
+		if (openScopes.get() == 0) return (null);
+		NGStreamScope result = (NGStreamScope) current.get();
+		return ((result == null || !result.open) ? null : result);
+	}
+	
+	/**
+	 * Binds this scope to the current thread
+	 * @return the scope previously bound to the thread, to be passed to
+	 * <code>restore()</code>
+	 */
+	NGStreamScope bind() {
+		NGStreamScope prior = (NGStreamScope) current.get();
+		current.set(this);
+		return (prior);
+	}
+	
+	/**
+	 * Rebinds the scope that was bound to the current thread before <code>bind()</code>
+	 * @param prior the scope returned by <code>bind()</code>
+	 */
+	static void restore(NGStreamScope prior) {
+		if (prior == null) {
+			current.remove();
+		} else {
+			current.set(prior);
+		}
+	}
+	
+	/**
+	 * Closes this scope.  Threads still bound to it use the server's streams.
+	 */
+	synchronized void close() {
+		if (open) {
+			open = false;
+			openScopes.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Returns true until this scope is closed
+	 * @return true iff this scope is open
+	 */
+	public boolean isOpen() {
+		return (open);
+	}
+	
+	/**
+	 * Returns the client's stdin
+	 * @return the client's stdin
+	 */
+	public InputStream getIn() {
+		return (in);
+	}
+	
+	/**
+	 * Returns the client's stdout
+	 * @return the client's stdout
+	 */
+	public PrintStream getOut() {
+		return (out);
+	}
+	
+	/**
+	 * Returns the client's stderr
+	 * @return the client's stderr
+	 */
+	public PrintStream getErr() {
+		return (err);
+	}
+	
+	/**
+	 * Returns the stream the client's exit code is written to
+	 * @return the exit stream
+	 */
+	PrintStream getExit() {
+		return (exit);
+	}
+	
+	/**
+	 * Returns a task that runs the specified task with the current thread's
+	 * scope bound, so that it uses the client's streams wherever it runs
+	 * @param task the task to wrap
+	 * @return the wrapped task, or <code>task</code> itself if the current
+	 * thread has no open scope
+	 */
+	public static Runnable wrap(final Runnable task) {
+		final NGStreamScope scope = current();
+		if (scope == null) return (task);
+		return (new Runnable() {
+			public void run() {
+				NGStreamScope prior = scope.bind();
+				try {
+					task.run();
+				} finally {
+					restore(prior);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Returns a task that calls the specified task with the current thread's
+	 * scope bound, so that it uses the client's streams wherever it runs
+	 * @param task the task to wrap
+	 * @return the wrapped task, or <code>task</code> itself if the current
+	 * thread has no open scope
+	 */
+	public static Callable wrap(final Callable task) {
+		final NGStreamScope scope = current();
+		if (scope == null) return (task);
+		return (new Callable() {
+			public Object call() throws Exception {
+				NGStreamScope prior = scope.bind();
+				try {
+					return (task.call());
+				} finally {
+					restore(prior);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Returns an executor that runs each task with the scope of the thread
+	 * that submitted it.  Shutting down the returned executor shuts down
+	 * <code>executor</code>.
+	 * @param executor the executor to run tasks on
+	 * @return the propagating executor
+	 */
+	public static ExecutorService propagating(ExecutorService executor) {
+		if (executor == null) throw new IllegalArgumentException("The executor was null");
+		return (new PropagatingExecutor(executor));
+	}
+	
+	/**
+	 * Wraps each task submitted to an executor in the submitter's scope.
+	 * <code>AbstractExecutorService</code> routes <code>submit()</code> and
+	 * <code>invokeAll()</code> through <code>execute()</code>.
+	 */
+	private static class PropagatingExecutor extends AbstractExecutorService {
+		private final ExecutorService executor;
+		
+		PropagatingExecutor(ExecutorService executor) {
+			this.executor = executor;
+		}
+		
+		public void execute(Runnable command) {
+			executor.execute(wrap(command));
+		}
+		
+		public void shutdown() {
+			executor.shutdown();
+		}
+		
+		public List shutdownNow() {
+			return (executor.shutdownNow());
+		}
+		
+		public boolean isShutdown() {
+			return (executor.isShutdown());
+		}
+		
+		public boolean isTerminated() {
+			return (executor.isTerminated());
+		}
+		
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return (executor.awaitTermination(timeout, unit));
+		}
+	}
+}
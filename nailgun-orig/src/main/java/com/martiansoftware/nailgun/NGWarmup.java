@@ -0,0 +1,327 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.tools.ant.ExitException;
+
+/**
+ * <p>Warms up a server before it accepts connections, so that the first
+ * clients after a start are not served by interpreted code.  The classes
+ * of the server's aliases are loaded and their entry points resolved, then
+ * each nail given argument sets is run with them in turn, in batches, until
+ * its latency settles: until the median run time of a batch is within the
+ * tolerance of the previous batch's, or the maximum number of runs is
+ * reached.  A warm-up run has no client.  Its stdin is empty, its stdout,
+ * stderr and exit streams are discarded, and it is not counted in the
+ * nail statistics or limits.  A nail that throws anything other than
+ * <code>System.exit()</code> is not run again.</p>
+ * 
+ * <p>Only nails that are given argument sets are run, since running a nail
+ * may have side effects.  Argument sets are only ever configured, with
+ * <code>addArguments()</code> or from properties: client requests are
+ * never captured to replay them.  They can be loaded from properties in
+ * the format of <code>builtins.properties</code>, as:
+ * <pre><code>[alias or class name].warmup=[args][;args...]</code></pre>
+ * where each argument set is a whitespace separated list.</p>
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGWarmup {
+
+	/**
+	 * The suffix of warm-up property names
+	 */
+	public static final String WARMUP_SUFFIX = ".warmup";
+	
+	/**
+	 * The default number of runs over which the median run time is measured
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 50;
+	
+	/**
+	 * The default maximum number of runs per nail
+	 */
+	public static final int DEFAULT_MAX_RUNS = 2000;
+	
+	/**
+	 * The default relative change in median run time between two batches
+	 * under which a nail is settled
+	 */
+	public static final double DEFAULT_TOLERANCE = 0.1;
+	
+	/**
+	 * The stream the output of warm-up runs is discarded to
+	 */
+	private static final PrintStream NULL = new PrintStream(new OutputStream() {
+		public void write(int b) {}
+		public void write(byte[] b, int off, int len) {}
+	});
+	
+	/**
+	 * The argument sets (lists of <code>String[]</code>) keyed by command
+	 */
+	private final Map argumentSets = new java.util.LinkedHashMap();
+	
+	/**
+	 * If true, the classes of the server's aliases are loaded
+	 */
+	private volatile boolean preloadAliases = false;
+	
+	/**
+	 * The number of runs per batch
+	 */
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	
+	/**
+	 * The maximum number of runs per nail
+	 */
+	private volatile int maxRuns = DEFAULT_MAX_RUNS;
+	
+	/**
+	 * The relative change in median run time under which a nail is settled
+	 */
+	private volatile double tolerance = DEFAULT_TOLERANCE;
+	
+	/**
+	 * Creates a new NGWarmup that runs no nails
+	 */
+	NGWarmup() {
+		super();
+	}
+	
+	/**
+	 * Adds an argument set to run a command with
+	 * @param command the alias or class name
+	 * @param args the arguments of one run
+	 */
+	public void addArguments(String command, String[] args) {
+		if (command == null || command.trim().length() == 0) throw new IllegalArgumentException("The command was empty or null");
+		command = command.trim();
+		synchronized (argumentSets) {
+			List sets = (List) argumentSets.get(command);
+			if (sets == null) {
+				sets = new ArrayList();
+				argumentSets.put(command, sets);
+			}
+			sets.add((args == null) ? new String[0] : (String[]) args.clone());
+		}
+	}
+	
+	/**
+	 * Removes the argument sets of a command, so it is not run
+	 * @param command the alias or class name
+	 */
+	public void removeArguments(String command) {
+		if (command == null) return;
+		synchronized (argumentSets) {
+			argumentSets.remove(command.trim());
+		}
+	}
+	
+	/**
+	 * Returns a snapshot of the argument sets, keyed by command
+	 * @return a map of commands to lists of <code>String[]</code>
+	 */
+	public Map getArguments() {
+		synchronized (argumentSets) {
+			Map result = new java.util.LinkedHashMap();
+			for (Iterator i = argumentSets.entrySet().iterator(); i.hasNext();) {
+				Map.Entry entry = (Map.Entry) i.next();
+				result.put(entry.getKey(), new ArrayList((List) entry.getValue()));
+			}
+			return (result);
+		}
+	}
+	
+	/**
+	 * Adds the argument sets defined by <code>[name].warmup</code>
+	 * properties.  Other properties are ignored.
+	 * @param properties the properties to load
+	 */
+	public void loadFromProperties(Properties properties) {
+		for (Iterator i = properties.keySet().iterator(); i.hasNext();) {
+			String key = (String) i.next();
+			if (!key.endsWith(WARMUP_SUFFIX)) continue;
+			String command = key.substring(0, key.length() - WARMUP_SUFFIX.length());
+			String[] sets = properties.getProperty(key).split(";");
+			for (int s = 0; s < sets.length; ++s) {
+				String set = sets[s].trim();
+				addArguments(command, (set.length() == 0) ? new String[0] : set.split("\\s+"));
+			}
+		}
+	}
+	
+	/**
+	 * Sets whether the classes of the server's aliases are loaded, even
+	 * those of nails that are not run
+	 * @param preloadAliases true to load the aliased classes
+	 */
+	public void setPreloadAliases(boolean preloadAliases) {
+		this.preloadAliases = preloadAliases;
+	}
+	
+	/**
+	 * Returns true iff the classes of the server's aliases are loaded
+	 * @return true iff the aliased classes are loaded
+	 */
+	public boolean isPreloadAliases() {
+		return (preloadAliases);
+	}
+	
+	/**
+	 * Sets how long each nail is run
+	 * @param batchSize the number of runs over which the median run time
+	 * is measured, at least 1
+	 * @param maxRuns the maximum number of runs per nail
+	 * @param tolerance the relative change in median run time between two
+	 * batches under which a nail is settled
+	 */
+	public void setRuns(int batchSize, int maxRuns, double tolerance) {
+		if (batchSize < 1) throw new IllegalArgumentException("Invalid batch size " + batchSize);
+		this.batchSize = batchSize;
+		this.maxRuns = Math.max(0, maxRuns);
+		this.tolerance = Math.max(0, tolerance);
+	}
+	
+	/**
+	 * Loads the aliased classes and runs the nails.  Called by the server
+	 * thread once exits are trapped and <code>System.in/out/err</code> are
+	 * redirected, before the server accepts connections.
+	 * @param server the server being started
+	 */
+	void run(NGServer server) {
+		if (preloadAliases) {
+			int loaded = 0;
+			for (Iterator i = server.getAliasManager().getAliases().iterator(); i.hasNext();) {
+				Alias alias = (Alias) i.next();
+				try {
+					server.getNailInvoker(alias.getAliasedClass());
+					++loaded;
+				} catch (Throwable t) {
+					// a missing class has been reported by the alias
+					if (!(t instanceof NoClassDefFoundError)) {
+						server.err.println("Unable to preload alias " + alias.getName() + ": " + t);
+					}
+				}
+			}
+			server.out.println("NGServer preloaded " + loaded + " aliased classes.");
+		}
+		for (Iterator i = getArguments().entrySet().iterator(); i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			server.out.println(warmUp(server, (String) entry.getKey(), (List) entry.getValue()));
+		}
+	}
+	
+	/**
+	 * Runs one nail until its run time settles
+	 * @param server the server being started
+	 * @param command the alias or class name
+	 * @param sets the argument sets to run the nail with in turn
+	 * @return a line describing the outcome
+	 */
+	private String warmUp(NGServer server, String command, List sets) {
+		NGNailInvoker invoker = null;
+		try {
+			invoker = server.getNailInvoker(server.getCommandResolver().resolve(command));
+		} catch (Throwable t) {
+			return ("NGServer could not warm up " + command + ": " + t);
+		}
+		int batch = batchSize;
+		int max = maxRuns;
+		long[] times = new long[batch];
+		long priorMedian = -1;
+		int runs = 0;
+		boolean settled = false;
+		while (runs < max && !settled) {
+			int size = Math.min(batch, max - runs);
+			for (int i = 0; i < size; ++i, ++runs) {
+				try {
+					times[i] = invoke(server, invoker, command, (String[]) sets.get(runs % sets.size()));
+				} catch (Throwable t) {
+					return ("NGServer stopped warming up " + command + " after " + runs + " runs: " + t);
+				}
+			}
+			if (size < batch) break;
+			Arrays.sort(times);
+			long median = times[batch / 2];
+			settled = (priorMedian >= 0 && Math.abs(median - priorMedian) <= priorMedian * tolerance);
+			priorMedian = median;
+		}
+		return ("NGServer warmed up " + command + ": " + runs + " runs, median " 
+				+ ((priorMedian < 0) ? "n/a" : (priorMedian / 1000) + "us") 
+				+ (settled ? ", settled." : ", not settled."));
+	}
+	
+	/**
+	 * Runs a nail once against the null streams
+	 * @param server the server being started
+	 * @param invoker the nail's invoker
+	 * @param command the alias or class name
+	 * @param args the arguments
+	 * @return the run time in nanoseconds
+	 * @throws Throwable anything other than an exit thrown by the nail
+	 */
+	private long invoke(NGServer server, NGNailInvoker invoker, String command, String[] args) throws Throwable {
+		// nails may keep or consume their arguments and stdin
+		args = (String[]) args.clone();
+		ByteArrayInputStream in = new ByteArrayInputStream(new byte[0]);
+		NGContext context = null;
+		if (invoker.takesContext()) {
+			context = new NGContext();
+			context.setArgs(args);
+			context.in = in;
+			context.out = NULL;
+			context.err = NULL;
+			context.setCommand(command);
+			context.setExitStream(NULL);
+			context.setNGServer(server);
+			context.setEnv(new Properties());
+			context.setInetAddress(InetAddress.getByName("127.0.0.1"));
+			context.setPort(0);
+			context.setWorkingDirectory(System.getProperty("user.dir"));
+		}
+		NGStreamScope scope = new NGStreamScope(in, NULL, NULL, NULL);
+		NGStreamScope priorScope = scope.bind();
+		Thread current = Thread.currentThread();
+		ClassLoader priorLoader = current.getContextClassLoader();
+		current.setContextClassLoader(invoker.getNailClass().getClassLoader());
+		long started = System.nanoTime();
+		try {
+			invoker.invoke(context, args);
+		} catch (ExitException exitEx) {
+			// System.exit() is a normal way for a nail to finish
+		} finally {
+			current.setContextClassLoader(priorLoader);
+			scope.close();
+			NGStreamScope.restore(priorScope);
+		}
+		return (System.nanoTime() - started);
+	}
+}
@@ -0,0 +1,60 @@
+/*   
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+/**
+ * An instance-based nail.  Unlike static <code>nailMain(NGContext)</code> and
+ * <code>main(String[])</code> nails, a class implementing <code>Nail</code> is
+ * instantiated by the server and initialized once, then kept in a per-class
+ * pool and reused for later requests.  Expensive setup (parsers, compiled
+ * patterns, connections) belongs in <code>init()</code>.
+ * 
+ * <p>An instance runs one request at a time: concurrent requests for the
+ * same nail each get their own instance, so instance state needs no
+ * locking.  Idle instances beyond the pool size, instances idle for longer
+ * than the pool's idle timeout, and all pooled instances at server
+ * shutdown are passed to <code>destroy()</code>.  An instance whose
+ * <code>run()</code> throws is destroyed rather than reused.</p>
+ * 
+ * <p>Implementations must have a public no-argument constructor.</p>
+ * 
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public interface Nail {
+
+	/**
+	 * Prepares a new instance for use.  Called once, before the first <code>run()</code>.
+	 * @param server the server the nail runs in
+	 * @throws Exception if the instance cannot be initialized.  The request
+	 * that needed it fails.
+	 */
+	void init(NGServer server) throws Exception;
+	
+	/**
+	 * Handles one client request
+	 * @param context the request context
+	 * @throws Exception if the request fails
+	 */
+	void run(NGContext context) throws Exception;
+	
+	/**
+	 * Releases the instance's resources.  The instance is not used again.
+	 */
+	void destroy();
+}
@@ -18,18 +18,70 @@
 
 package com.martiansoftware.nailgun;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
  * <p>Collects and provides statistics on a nail.</p>
  * 
+ * <p>Besides run and reference counts, each nail keeps a latency histogram,
+ * the bytes its sessions read from and wrote to the client, and the exit
+ * codes it returned.  Nothing is locked or allocated when a run is recorded:
+ * the counters are spread over per-thread stripes of an
+ * <code>AtomicLongArray</code> and summed when read, and the latency
+ * histogram is a fixed array of log-linear buckets, eight per power of two,
+ * so a reported percentile is within 1/8 of the true value.</p>
+ * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 
 public class NailStats implements Cloneable {
 
+	/**
+	 * The number of counter stripes.  A power of two.
+	 */
+	private static final int STRIPES = 16;
+	
+	/**
+	 * The number of longs between stripes, so each stripe has its own cache line
+	 */
+	private static final int STRIPE_WIDTH = 8;
+	
+	/**
+	 * Stripe offsets of the counters
+	 */
+	private static final int RUNS = 0;
+	private static final int FINISHES = 1;
+	private static final int ERRORS = 2;
+	private static final int BYTES_IN = 3;
+	private static final int BYTES_OUT = 4;
+	private static final int TOTAL_LATENCY = 5;
+	
+	/**
+	 * The number of histogram buckets per power of two, as a shift
+	 */
+	private static final int SUB_BITS = 3;
+	
+	/**
+	 * The number of histogram buckets per power of two
+	 */
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	
+	/**
+	 * The number of histogram buckets, enough for any positive long
+	 */
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+	
+	/**
+	 * The number of exit codes counted individually.  Other codes share one count.
+	 */
+	private static final int EXIT_CODES = 256;
+	
 	private Class nailclass;
-	private long runCounter;
-	private long refCounter;
-	private Object lock;
+	private AtomicLongArray counters;
+	private AtomicLongArray latencies;
+	private AtomicLong maxLatency;
+	private AtomicLongArray exitCodes;
 	
 	/**
 	 * Creates a new NailStats object for the specified class
@@ -37,28 +89,42 @@ public class NailStats implements Cloneable {
 	 */
 	NailStats(Class nailclass) {
 		this.nailclass = nailclass;
-		runCounter = 0;
-		refCounter = 0;
-		lock = new Object();
+		counters = new AtomicLongArray(STRIPES * STRIPE_WIDTH);
+		latencies = new AtomicLongArray(BUCKETS);
+		maxLatency = new AtomicLong();
+		exitCodes = new AtomicLongArray(EXIT_CODES + 1);
 	}
 
 	/**
 	 * Logs the fact that an instance of this nail has started
 	 */
 	void nailStarted() {
-		synchronized(lock) {
-			++runCounter;
-			++refCounter;
-		}
+		counters.incrementAndGet(stripe() + RUNS);
 	}
 	
 	/**
-	 * Logs the fact that an instance of this nail has finished
+	 * Logs the fact that an instance of this nail has finished, and how it went
+	 * @param latency the time the nail ran, in microseconds
+	 * @param exitCode the exit code sent to the client
+	 * @param bytesIn the number of stdin bytes read from the client
+	 * @param bytesOut the number of stdout and stderr bytes written to the client
 	 */
-	void nailFinished() {
-		synchronized(lock) {
-			--refCounter;
+	void nailFinished(long latency, int exitCode, long bytesIn, long bytesOut) {
+		int stripe = stripe();
+		counters.incrementAndGet(stripe + FINISHES);
+		if (exitCode == NGConstants.EXIT_EXCEPTION) counters.incrementAndGet(stripe + ERRORS);
+		counters.addAndGet(stripe + BYTES_IN, bytesIn);
+		counters.addAndGet(stripe + BYTES_OUT, bytesOut);
+		
+		if (latency < 0) latency = 0;
+		counters.addAndGet(stripe + TOTAL_LATENCY, latency);
+		latencies.incrementAndGet(bucketFor(latency));
+		long max = maxLatency.get();
+		while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+			max = maxLatency.get();
 		}
+		
+		exitCodes.incrementAndGet((exitCode >= 0 && exitCode < EXIT_CODES) ? exitCode : EXIT_CODES);
 	}
 
 	/**
@@ -68,7 +134,7 @@ public class NailStats implements Cloneable {
 	 * @return the number of times this nail has been run.
 	 */
 	public long getRunCount() {
-		return (runCounter);
+		return (sum(RUNS));
 	}
 	
 	/**
@@ -76,7 +142,91 @@ public class NailStats implements Cloneable {
 	 * @return the number of sessions currently running this nail. 
 	 */
 	public long getRefCount() {
-		return (refCounter);
+		return (sum(RUNS) - sum(FINISHES));
+	}
+	
+	/**
+	 * Returns the number of runs that ended with an uncaught exception
+	 * @return the number of runs that ended with an uncaught exception
+	 */
+	public long getErrorCount() {
+		return (sum(ERRORS));
+	}
+	
+	/**
+	 * Returns the number of stdin bytes this nail has read from clients
+	 * @return the number of stdin bytes read
+	 */
+	public long getBytesIn() {
+		return (sum(BYTES_IN));
+	}
+	
+	/**
+	 * Returns the number of stdout and stderr bytes this nail has written to clients
+	 * @return the number of stdout and stderr bytes written
+	 */
+	public long getBytesOut() {
+		return (sum(BYTES_OUT));
+	}
+	
+	/**
+	 * Returns the number of finished runs that returned the specified exit code
+	 * @param exitCode the exit code
+	 * @return the number of runs that returned the exit code.  Codes outside
+	 * 0-255 are not counted individually, and all return the count of runs
+	 * that returned any code outside that range.
+	 */
+	public long getExitCount(int exitCode) {
+		return (exitCodes.get((exitCode >= 0 && exitCode < EXIT_CODES) ? exitCode : EXIT_CODES));
+	}
+	
+	/**
+	 * Returns the number of runs whose latency has been recorded
+	 * @return the number of recorded runs
+	 */
+	public long getLatencyCount() {
+		long result = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			result += latencies.get(i);
+		}
+		return (result);
+	}
+	
+	/**
+	 * Returns the mean latency of the recorded runs
+	 * @return the mean latency in microseconds, or 0 if no run has been recorded
+	 */
+	public long getMeanLatency() {
+		long count = getLatencyCount();
+		return ((count == 0) ? 0 : sum(TOTAL_LATENCY) / count);
+	}
+	
+	/**
+	 * Returns the longest latency recorded
+	 * @return the longest latency in microseconds
+	 */
+	public long getMaxLatency() {
+		return (maxLatency.get());
+	}
+	
+	/**
+	 * Returns the latency that the specified fraction of the recorded runs
+	 * did not exceed.  The value is the upper bound of the histogram bucket
+	 * the percentile falls in, but never more than the longest latency.
+	 * @param fraction the percentile as a fraction, e.g. 0.99 for p99
+	 * @return the latency in microseconds, or 0 if no run has been recorded
+	 */
+	public long getLatencyPercentile(double fraction) {
+		long count = getLatencyCount();
+		if (count == 0) return (0);
+		long rank = (long) Math.ceil(fraction * count);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += latencies.get(i);
+			if (seen >= rank) return (Math.min(bucketLimit(i), getMaxLatency()));
+		}
+		return (getMaxLatency());
 	}
 	
 	/**
@@ -107,13 +257,18 @@ public class NailStats implements Cloneable {
 	}
 	
 	/**
-	 * Creates a copy of this <code>NailStats</code> object.
+	 * Creates a copy of this <code>NailStats</code> object.  The copy
+	 * does not change as further runs are recorded.
 	 * @return a copy of this <code>NailStats</code> object.
 	 */
 	public Object clone() {
-		Object result = null;
+		NailStats result = null;
 		try {
-			result = super.clone();
+			result = (NailStats) super.clone();
+			result.counters = copy(counters);
+			result.latencies = copy(latencies);
+			result.maxLatency = new AtomicLong(maxLatency.get());
+			result.exitCodes = copy(exitCodes);
 		} catch (CloneNotSupportedException toDiscard) {}
 		return (result);
 	}
@@ -127,4 +282,65 @@ public class NailStats implements Cloneable {
 	public String toString() {
 		return (nailclass.getName() + ": " + getRunCount() + "/" + getRefCount());
 	}
+	
+	/**
+	 * Returns the offset of the current thread's counter stripe
+	 * @return the stripe offset
+	 */
+	private static int stripe() {
+		return (((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_WIDTH);
+	}
+	
+	/**
+	 * Sums one counter over all stripes
+	 * @param counter the stripe offset of the counter
+	 * @return the counter's total
+	 */
+	private long sum(int counter) {
+		long result = 0;
+		for (int i = counter; i < counters.length(); i += STRIPE_WIDTH) {
+			result += counters.get(i);
+		}
+		return (result);
+	}
+	
+	/**
+	 * Returns the histogram bucket of a latency.  Values below
+	 * <code>SUB_COUNT</code> have a bucket each; above that, each power of
+	 * two is split into <code>SUB_COUNT</code> buckets.
+	 * @param value the latency, not negative
+	 * @return the bucket index
+	 */
+	static int bucketFor(long value) {
+		if (value < SUB_COUNT) return ((int) value);
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1);
+		return ((magnitude - SUB_BITS + 1) * SUB_COUNT + sub);
+	}
+	
+	/**
+	 * Returns the largest latency that falls in the specified bucket
+	 * @param bucket the bucket index
+	 * @return the bucket's largest value
+	 */
+	static long bucketLimit(int bucket) {
+		if (bucket < SUB_COUNT) return (bucket);
+		int shift = bucket / SUB_COUNT - 1;
+		long lower = ((long) (SUB_COUNT + bucket % SUB_COUNT)) << shift;
+		long limit = lower + (1L << shift) - 1;
+		return ((limit < 0) ? Long.MAX_VALUE : limit);
+	}
+	
+	/**
+	 * Copies an <code>AtomicLongArray</code>
+	 * @param array the array to copy
+	 * @return the copy
+	 */
+	private static AtomicLongArray copy(AtomicLongArray array) {
+		long[] values = new long[array.length()];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = array.get(i);
+		}
+		return (new AtomicLongArray(values));
+	}
 }
@@ -26,38 +26,23 @@ import java.io.InputStream;
  * much like a FilterInputStream, but with the wrapped InputStream
  * being local to the current Thread.  By setting System.in to a
  * ThreadLocalInputStream, different Threads can read from different
- * InputStreams simply by using System.in.  Of course, the init()
- * method must be called by the Thread that wishes to use the 
- * wrapped stream.
+ * InputStreams simply by using System.in.  The wrapped stream is the
+ * stdin of the <a href="NGStreamScope.html">NGStreamScope</a> bound to
+ * the current thread, or the default stream if there is none.
  *  
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 class ThreadLocalInputStream extends InputStream {
 
-    /**
-     * The InputStreams for the various threads
-     */
-    private InheritableThreadLocal streams = null;
-
     private InputStream defaultInputStream = null;
     
     /**
      * @param defaultInputStream the InputStream that will be used if the
-     * current thread has not called init()
+     * current thread has no open stream scope
      */
     ThreadLocalInputStream(InputStream defaultInputStream) {
         super();
-        streams = new InheritableThreadLocal();
         this.defaultInputStream = defaultInputStream;
-        init(null);
-    }
-
-    /**
-     * Sets the InputStream for the current thread
-     * @param streamForCurrentThread the InputStream for the current thread
-     */
-    void init(InputStream streamForCurrentThread) {
-        streams.set(streamForCurrentThread);
     }
 
     /**
@@ -65,8 +50,8 @@ class ThreadLocalInputStream extends InputStream {
      * @return this thread's InputStream
      */
     InputStream getInputStream() {
-    	InputStream result = (InputStream) streams.get();
-    	return ((result == null) ? defaultInputStream : result);
+    	NGStreamScope scope = NGStreamScope.current();
+    	return ((scope == null) ? defaultInputStream : scope.getIn());
     }
 
 //  BEGIN delegated java.io.InputStream methods
@@ -26,39 +26,31 @@ import java.io.PrintStream;
  * much like a FilterOutputStream, but with the wrapped PrintStream
  * being local to the current Thread.  By setting System.out to a
  * ThreadLocalPrintStream, different Threads can write to different
- * PrintStreams simply by using System.out.  Of course, the init()
- * method must be called by the Thread that wishes to use the 
- * wrapped stream.
+ * PrintStreams simply by using System.out.  The wrapped stream is the
+ * stdout or stderr of the <a href="NGStreamScope.html">NGStreamScope</a>
+ * bound to the current thread, or the default stream if there is none.
  *  
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 class ThreadLocalPrintStream extends PrintStream {
 
     /**
-     * The PrintStreams for the various threads
+     * True to wrap the scope's stderr rather than its stdout
      */
-    private InheritableThreadLocal streams = null;
+    private final boolean stderr;
 
     private PrintStream defaultPrintStream = null;
     
     /**
-     * Creates a new InheritedThreadLocalPrintStream
+     * Creates a new ThreadLocalPrintStream
      * @param defaultPrintStream the PrintStream that will be used if the
-     * current thread has not called init()
+     * current thread has no open stream scope
+     * @param stderr true to use the scope's stderr, false for its stdout
      */
-    public ThreadLocalPrintStream(PrintStream defaultPrintStream) {
+    public ThreadLocalPrintStream(PrintStream defaultPrintStream, boolean stderr) {
         super(defaultPrintStream);
-        streams = new InheritableThreadLocal();
+        this.stderr = stderr;
         this.defaultPrintStream = defaultPrintStream;
-        init(null);
-    }
-
-    /**
-     * Sets the PrintStream for the current thread
-     * @param streamForCurrentThread the PrintStream for the current thread
-     */
-    void init(PrintStream streamForCurrentThread) {
-        streams.set(streamForCurrentThread);
     }
 
     /**
@@ -66,8 +58,9 @@ class ThreadLocalPrintStream extends PrintStream {
      * @return this thread's PrintStream
      */
     PrintStream getPrintStream() {
-    	PrintStream result = (PrintStream) streams.get();
-    	return ((result == null) ? defaultPrintStream : result);
+    	NGStreamScope scope = NGStreamScope.current();
+    	if (scope == null) return (defaultPrintStream);
+    	return (stderr ? scope.getErr() : scope.getOut());
     }
 
 //  BEGIN delegated java.io.PrintStream methods
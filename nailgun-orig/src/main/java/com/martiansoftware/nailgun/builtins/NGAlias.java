@@ -23,6 +23,7 @@ import java.util.Set;
 
 import com.martiansoftware.nailgun.Alias;
 import com.martiansoftware.nailgun.NGContext;
+import com.martiansoftware.nailgun.NGNailLimit;
 import com.martiansoftware.nailgun.NGServer;
 
 /**
@@ -38,7 +39,13 @@ import com.martiansoftware.nailgun.NGServer;
  * 
  * <p><b>To add or replace an alias</b>, issue the command:
  * <pre><code>ng-alias [alias name] [fully qualified aliased class name]</code></pre>
- * </p>
+ * The class name may be prefixed by the name of a nail classpath and a
+ * colon, as in <code>tools:com.example.Tool</code>.</p>
+ * 
+ * <p><b>To limit the concurrent runs</b> of an alias or nail class, issue the command:
+ * <pre><code>ng-alias -l [alias or class name] [max concurrent] [max queued]</code></pre>
+ * Runs over the limit wait, up to the queue size (zero if omitted), and
+ * further runs fail at once.  A max concurrent of zero removes the limit.</p>
  * 
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
@@ -65,18 +72,27 @@ public class NGAlias {
 			for (Iterator i = aliases.iterator(); i.hasNext();) {
 				Alias alias = (Alias) i.next();
 				maxAliasLength = Math.max(maxAliasLength, alias.getName().length());
-				maxClassnameLength = Math.max(maxClassnameLength, alias.getAliasedClass().getName().length());
+				maxClassnameLength = Math.max(maxClassnameLength, alias.getAliasedClassName().length());
 			}
 			for (Iterator i = aliases.iterator(); i.hasNext();) {
 				Alias alias = (Alias) i.next();
 				context.out.println(padl(alias.getName(), maxAliasLength) 
 										+ "\t" 
-										+ padl(alias.getAliasedClass().getName(), maxClassnameLength));
+										+ padl(alias.getAliasedClassName(), maxClassnameLength));
 				context.out.println(padl("", maxAliasLength) + "\t" + alias.getDescription());
+				NGNailLimit limit = server.getNailLimits().get(alias.getName());
+				if (limit != null) context.out.println(padl("", maxAliasLength) + "\t" + limit);
 				context.out.println();
 			}
+		} else if (args[0].equals("-l") && (args.length == 3 || args.length == 4)) {
+			int maxConcurrent = Integer.parseInt(args[2]);
+			if (maxConcurrent == 0) {
+				server.getNailLimits().remove(args[1]);
+			} else {
+				server.getNailLimits().set(args[1], maxConcurrent, (args.length == 4) ? Integer.parseInt(args[3]) : 0);
+			}
 		} else if (args.length == 2) {
-			server.getAliasManager().addAlias(new Alias(args[0], "", Class.forName(args[1])));
+			server.getAliasManager().addAlias(new Alias(args[0], "", server.getNailClasspaths().loadClass(args[1])));
 		}
 	}
 }
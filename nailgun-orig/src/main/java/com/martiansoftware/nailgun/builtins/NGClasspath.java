@@ -21,15 +21,29 @@ package com.martiansoftware.nailgun.builtins;
 import java.io.File;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Iterator;
+import java.util.StringTokenizer;
 
+import com.martiansoftware.nailgun.NGClasspaths;
 import com.martiansoftware.nailgun.NGContext;
 
 /**
- * <p>Provides a means to display and add to the system classpath at runtime.
- * If called with no arguments, the classpath is displayed.  Otherwise, each
- * argument is turned into a java.io.File and added to the classpath.  Relative
- * paths will be resolved relative to the directory in which the nailgun server
- * is running.  This is very likely to change in the future.</p>
+ * <p>Provides a means to display and add to the classpath at runtime.
+ * If called with no arguments, the system classpath and the named nail
+ * classpaths are displayed.  Relative paths will be resolved relative to
+ * the directory in which the nailgun server is running.  This is very
+ * likely to change in the future.</p>
+ * 
+ * <p><b>To add or replace a named nail classpath</b>, issue the command:
+ * <pre><code>ng-cp -n [name] [jar or directory]...</code></pre>
+ * Its nails are then run as <code>[name]:[fully qualified class name]</code>,
+ * from a class loader of their own.  <b>To remove it</b>, and unload its
+ * classes once no other named classpath uses the same jars, issue:
+ * <pre><code>ng-cp -r [name]</code></pre></p>
+ * 
+ * <p>Otherwise, each argument is turned into a java.io.File and added to
+ * the system classpath.  This only works where the system class loader is
+ * a URLClassLoader, which is not the case from Java 9 on.</p>
  * 
  * <p>This is aliased by default to the command "<code>ng-cp</code>".</p>
  * 
@@ -47,10 +61,12 @@ public class NGClasspath {
 	 * System classpath 
 	 * @throws Exception if anything goes wrong.  The most likely culprit, should
 	 * this ever arise, would be that your VM is not using a URLClassLoader as the
-	 * System ClassLoader.  This would result in a ClassClastException that you
-	 * probably can't do much about.
+	 * System ClassLoader.
 	 */
 	private static void addToSystemClassLoader(URL url) throws Exception {
+		if (!(ClassLoader.getSystemClassLoader() instanceof URLClassLoader)) {
+			throw new IllegalStateException("The system classpath cannot be extended on this VM; use ng-cp -n [name] [path]...");
+		}
 		URLClassLoader sysloader = (URLClassLoader) ClassLoader.getSystemClassLoader();
 		Class sysclass = URLClassLoader.class;
 
@@ -61,17 +77,48 @@ public class NGClasspath {
 	
 	public static void nailMain(NGContext context) throws Exception {
 		String[] args = context.getArgs();
+		NGClasspaths classpaths = context.getNGServer().getNailClasspaths();
 		if (args.length == 0) {
-			URLClassLoader sysLoader = (URLClassLoader) ClassLoader.getSystemClassLoader();
-			URL[] urls = sysLoader.getURLs();
-			for (int i = 0; i < urls.length; ++i) {
-				context.out.println(urls[i]);
+			if (ClassLoader.getSystemClassLoader() instanceof URLClassLoader) {
+				URLClassLoader sysLoader = (URLClassLoader) ClassLoader.getSystemClassLoader();
+				URL[] urls = sysLoader.getURLs();
+				for (int i = 0; i < urls.length; ++i) {
+					context.out.println(urls[i]);
+				}
+			} else {
+				StringTokenizer st = new StringTokenizer(System.getProperty("java.class.path"), File.pathSeparator);
+				while (st.hasMoreTokens()) {
+					context.out.println(new File(st.nextToken()).toURI().toURL());
+				}
+			}
+			for (Iterator i = classpaths.getNames().iterator(); i.hasNext();) {
+				String name = (String) i.next();
+				File[] files = classpaths.getFiles(name);
+				if (files == null) continue;
+				context.out.println();
+				context.out.println(name + NGClasspaths.SEPARATOR);
+				for (int f = 0; f < files.length; ++f) {
+					context.out.println("\t" + files[f].toURI().toURL());
+				}
+			}
+		} else if (args[0].equals("-n") && args.length > 2) {
+			File[] files = new File[args.length - 2];
+			for (int i = 0; i < files.length; ++i) {
+				files[i] = new File(args[i + 2]);
+			}
+			classpaths.add(args[1], files);
+		} else if (args[0].equals("-r") && args.length == 2) {
+			if (!classpaths.remove(args[1])) {
+				context.err.println("No nail classpath named " + args[1]);
+				context.exit(1);
 			}
 		} else {
 			for (int i = 0; i < args.length; ++i) {
 				File file = new File(args[i]);
 				addToSystemClassLoader(file.toURL());
 			}
+			// nails that failed to resolve may now be found
+			context.getNGServer().invalidateNailCache();
 		}
 	}
 }
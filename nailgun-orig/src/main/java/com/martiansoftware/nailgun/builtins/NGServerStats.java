@@ -23,6 +23,7 @@ import java.util.Map;
 
 import com.martiansoftware.nailgun.NGServer;
 import com.martiansoftware.nailgun.NGContext;
+import com.martiansoftware.nailgun.NailStats;
 
 /**
  * <p>Displays all <a href="NailStats.html">NailStats</a> tracked by the server.</p>
@@ -30,6 +31,11 @@ import com.martiansoftware.nailgun.NGContext;
  * <p>This can be run standalone with no arguments.  It will also run automatically
  * upon <code>NGServer</code> shutdown, sending its output to the server's <code>System.out</code>.</p>
  * 
+ * <p>Each nail is listed with its run and reference counts, followed by its latency
+ * percentiles, the bytes it read and wrote, and the exit codes it returned.  Each
+ * <a href="../NGNailLimit.html">nail limit</a> is then listed with its in-flight,
+ * queued and refused runs.</p>
+ * 
  * <p>This is aliased by default to the command "<code>ng-stats</code>".</p>
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
@@ -46,9 +52,38 @@ public class NGServerStats {
 
 	private static void dumpStats(NGServer server, java.io.PrintStream out) {
 		Map stats = server.getNailStats();
-		for (Iterator i = stats.values().iterator(); i.hasNext();) {
-			out.println(i.next());
+		for (Iterator i = stats.entrySet().iterator(); i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			NailStats ns = (NailStats) entry.getValue();
+			out.println(entry.getKey() + ": " + ns.getRunCount() + "/" + ns.getRefCount());
+			out.println("    latency (us): n=" + ns.getLatencyCount()
+					+ " mean=" + ns.getMeanLatency()
+					+ " p50=" + ns.getLatencyPercentile(0.5)
+					+ " p99=" + ns.getLatencyPercentile(0.99)
+					+ " p999=" + ns.getLatencyPercentile(0.999)
+					+ " max=" + ns.getMaxLatency());
+			out.println("    bytes: in=" + ns.getBytesIn() + " out=" + ns.getBytesOut());
+			out.println("    errors=" + ns.getErrorCount() + " exits:" + exitCounts(ns));
+		}
+		Map limits = server.getNailLimits().getLimits();
+		for (Iterator i = limits.values().iterator(); i.hasNext();) {
+			out.println("limit " + i.next());
+		}
+		out.println(server.getCommandResolver());
+	}
+	
+	/**
+	 * Lists the exit codes a nail has returned, with their counts
+	 */
+	private static String exitCounts(NailStats ns) {
+		StringBuffer buf = new StringBuffer();
+		for (int code = 0; code < 256; ++code) {
+			long count = ns.getExitCount(code);
+			if (count > 0) buf.append(" " + code + "=" + count);
 		}
+		long other = ns.getExitCount(-1);
+		if (other > 0) buf.append(" other=" + other);
+		return (buf.toString());
 	}
 
 }
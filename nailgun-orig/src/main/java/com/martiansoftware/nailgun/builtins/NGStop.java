@@ -19,9 +19,12 @@
 package com.martiansoftware.nailgun.builtins;
 
 import com.martiansoftware.nailgun.NGContext;
+import com.martiansoftware.nailgun.NGServer;
 
 /**
- * <p>Shuts down the currently running server.</p>  
+ * <p>Shuts down the currently running server.  Running nails are given
+ * <code>NGServer.DEFAULT_DRAIN_TIMEOUT</code> milliseconds, or the number
+ * of milliseconds given as the only argument, to finish.</p>  
  * 
  * <p>This is aliased by default to the command "<code>ng-stop</code>".</p>
  * 
@@ -30,7 +33,9 @@ import com.martiansoftware.nailgun.NGContext;
 public class NGStop {
 
 	public static void nailMain(NGContext context) {
-		context.getNGServer().shutdown(true);
+		String[] args = context.getArgs();
+		long drainTimeout = (args.length > 0) ? Long.parseLong(args[0]) : NGServer.DEFAULT_DRAIN_TIMEOUT;
+		context.getNGServer().shutdown(true, drainTimeout);
 	}
 
 }
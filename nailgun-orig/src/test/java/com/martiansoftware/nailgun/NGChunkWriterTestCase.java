@@ -0,0 +1,245 @@
+/*
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test cases for <code>NGChunkWriter</code>.  The bytes sent to the socket
+ * are parsed back into chunks, so each test checks the framing as well as
+ * the payloads.
+ *
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGChunkWriterTestCase {
+
+	/**
+	 * A flush time long enough that no timed flush fires during a test
+	 */
+	private static final long NEVER = 60000;
+
+	/**
+	 * Validates that consecutive writes to a stream are merged into one
+	 * chunk, whose length is rewritten as it grows past a byte
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testMergedWrites() throws Exception {
+		RecordingStream out = new RecordingStream();
+		NGChunkWriter writer = new NGChunkWriter(out, 1024, NEVER);
+		writer.write(NGConstants.CHUNKTYPE_STDOUT, fill('a', 200), 0, 200);
+		writer.write(NGConstants.CHUNKTYPE_STDOUT, 'b');
+		writer.write(NGConstants.CHUNKTYPE_STDOUT, fill('c', 99), 0, 99);
+		assertEquals("Output sent before flush", 0, out.writes.size());
+		writer.flush();
+
+		assertEquals(1, out.writes.size());
+		List chunks = parse(out.toByteArray());
+		assertEquals(1, chunks.size());
+		assertChunk(chunks.get(0), NGConstants.CHUNKTYPE_STDOUT,
+				new String(fill('a', 200)) + "b" + new String(fill('c', 99)));
+		assertEquals(300, writer.getOutputBytes());
+	}
+
+	/**
+	 * Validates that a write larger than the flush size is sent as a
+	 * single chunk after the buffered output, and that the writer keeps
+	 * merging small writes afterwards
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLargeWrite() throws Exception {
+		RecordingStream out = new RecordingStream();
+		NGChunkWriter writer = new NGChunkWriter(out, 16, NEVER);
+		writer.write(NGConstants.CHUNKTYPE_STDOUT, 'x');
+		writer.write(NGConstants.CHUNKTYPE_STDOUT, fill('y', 100), 0, 100);
+		assertEquals(2, out.writes.size());
+		assertEquals(6, ((byte[]) out.writes.get(0)).length);
+		assertEquals(105, ((byte[]) out.writes.get(1)).length);
+
+		writer.write(NGConstants.CHUNKTYPE_STDERR, fill('z', 3), 0, 3);
+		writer.write(NGConstants.CHUNKTYPE_STDERR, fill('z', 3), 0, 3);
+		assertEquals("Small writes not held", 2, out.writes.size());
+		writer.close();
+
+		List chunks = parse(out.toByteArray());
+		assertEquals(3, chunks.size());
+		assertChunk(chunks.get(0), NGConstants.CHUNKTYPE_STDOUT, "x");
+		assertChunk(chunks.get(1), NGConstants.CHUNKTYPE_STDOUT, new String(fill('y', 100)));
+		assertChunk(chunks.get(2), NGConstants.CHUNKTYPE_STDERR, "zzzzzz");
+	}
+
+	/**
+	 * Validates that interleaved stdout and stderr writes keep their order,
+	 * that only writes to the same stream as the last chunk are merged, and
+	 * that an exit chunk sends everything at once, last
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testStreamOrder() throws Exception {
+		RecordingStream out = new RecordingStream();
+		NGChunkWriter writer = new NGChunkWriter(out, 1024, NEVER);
+		writer.write(NGConstants.CHUNKTYPE_STDOUT, 'a');
+		writer.write(NGConstants.CHUNKTYPE_STDERR, 'b');
+		writer.write(NGConstants.CHUNKTYPE_STDOUT, 'c');
+		writer.write(NGConstants.CHUNKTYPE_STDOUT, 'd');
+		writer.write(NGConstants.CHUNKTYPE_STDERR, "ef".getBytes("US-ASCII"), 0, 2);
+		assertEquals("Output sent before exit", 0, out.writes.size());
+		writer.write(NGConstants.CHUNKTYPE_EXIT, "0\n".getBytes("US-ASCII"), 0, 2);
+
+		assertEquals(1, out.writes.size());
+		List chunks = parse(out.toByteArray());
+		assertEquals(5, chunks.size());
+		assertChunk(chunks.get(0), NGConstants.CHUNKTYPE_STDOUT, "a");
+		assertChunk(chunks.get(1), NGConstants.CHUNKTYPE_STDERR, "b");
+		assertChunk(chunks.get(2), NGConstants.CHUNKTYPE_STDOUT, "cd");
+		assertChunk(chunks.get(3), NGConstants.CHUNKTYPE_STDERR, "ef");
+		assertChunk(chunks.get(4), NGConstants.CHUNKTYPE_EXIT, "0\n");
+		assertEquals(6, writer.getOutputBytes());
+	}
+
+	/**
+	 * Validates that held output is sent once the flush time passes, and
+	 * that a timed flush failure is thrown to the next write, once
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testTimedFlushFailure() throws Exception {
+		RecordingStream out = new RecordingStream();
+		NGChunkWriter writer = new NGChunkWriter(out, 1024, 1);
+		writer.write(NGConstants.CHUNKTYPE_STDOUT, 'a');
+		assertTrue("Timed flush not run", out.written.await(10, TimeUnit.SECONDS));
+		assertChunk(parse(out.toByteArray()).get(0), NGConstants.CHUNKTYPE_STDOUT, "a");
+
+		IOException failure = new IOException("client gone");
+		assertSame(failure, timedFlushFailure(failure));
+
+		IllegalStateException error = new IllegalStateException("socket closed");
+		assertSame(error, timedFlushFailure(error).getCause());
+	}
+
+	/**
+	 * Runs a timed flush on a stream that throws, and returns what the next
+	 * write throws
+	 * @param failure the exception the stream throws
+	 * @return the exception thrown by the next write
+	 * @throws Exception thrown on any error
+	 */
+	private static IOException timedFlushFailure(Exception failure) throws Exception {
+		RecordingStream out = new RecordingStream();
+		out.failure = failure;
+		NGChunkWriter writer = new NGChunkWriter(out, 1024, 1);
+		writer.write(NGConstants.CHUNKTYPE_STDOUT, 'a');
+		assertTrue("Timed flush not run", out.written.await(10, TimeUnit.SECONDS));
+		IOException thrown = null;
+		try {
+			// waits for the timed flush, which holds the writer, to finish
+			writer.write(NGConstants.CHUNKTYPE_STDOUT, 'b');
+			fail("Timed flush failure not thrown");
+		} catch (IOException e) {
+			thrown = e;
+		}
+		out.failure = null;
+		writer.write(NGConstants.CHUNKTYPE_STDOUT, 'c');
+		writer.flush();
+		assertChunk(parse(out.toByteArray()).get(0), NGConstants.CHUNKTYPE_STDOUT, "c");
+		return (thrown);
+	}
+
+	private static void assertChunk(Object chunk, byte streamCode, String payload) throws IOException {
+		byte[] b = (byte[]) chunk;
+		assertEquals("Chunk type", (char) streamCode, (char) b[0]);
+		assertEquals(payload, new String(b, 1, b.length - 1, "US-ASCII"));
+	}
+
+	/**
+	 * Splits sent bytes into chunks, checking that they end on a chunk boundary
+	 * @param b the sent bytes
+	 * @return each chunk's type byte followed by its payload
+	 */
+	private static List parse(byte[] b) {
+		List result = new java.util.ArrayList();
+		int pos = 0;
+		while (pos < b.length) {
+			assertTrue("Truncated chunk header", pos + 5 <= b.length);
+			int len = ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16)
+					| ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+			assertTrue("Truncated chunk payload", pos + 5 + len <= b.length);
+			byte[] chunk = new byte[len + 1];
+			System.arraycopy(b, pos + 4, chunk, 0, len + 1);
+			result.add(chunk);
+			pos += 5 + len;
+		}
+		return (result);
+	}
+
+	private static byte[] fill(char c, int len) {
+		byte[] b = new byte[len];
+		java.util.Arrays.fill(b, (byte) c);
+		return (b);
+	}
+
+	/**
+	 * Records each write it is sent, or throws a set failure
+	 */
+	private static class RecordingStream extends OutputStream {
+		final List writes = new java.util.Vector();
+		final CountDownLatch written = new CountDownLatch(1);
+		volatile Exception failure = null;
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				if (failure instanceof IOException) throw (IOException) failure;
+				if (failure != null) throw (RuntimeException) failure;
+				byte[] copy = new byte[len];
+				System.arraycopy(b, off, copy, 0, len);
+				writes.add(copy);
+			} finally {
+				written.countDown();
+			}
+		}
+
+		byte[] toByteArray() {
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			synchronized (writes) {
+				for (int i = 0; i < writes.size(); ++i) {
+					byte[] b = (byte[]) writes.get(i);
+					result.write(b, 0, b.length);
+				}
+			}
+			return (result.toByteArray());
+		}
+	}
+}
@@ -0,0 +1,282 @@
+/*
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for <code>NGExitTransformer</code>.  Every rewritten class is
+ * defined by its own class loader, so the JVM verifies it, and run with
+ * exits trapped: an exit that was not redirected would end the test JVM.
+ *
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGExitTransformerTestCase {
+
+	private final NGExitTransformer transformer = new NGExitTransformer();
+
+	@Before
+	public void setUp() {
+		NGExitInterceptor.serverStarted();
+	}
+
+	@After
+	public void tearDown() {
+		NGExitInterceptor.serverStopped();
+	}
+
+	/**
+	 * Validates that a <code>System.exit</code> call is redirected
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSystemExit() throws Exception {
+		byte[] rewritten = NGExitTransformer.rewrite(classBytes(SystemExit.class));
+		assertNotNull("System.exit not rewritten", rewritten);
+		assertExitTrapped(define(SystemExit.class.getName(), rewritten), 7);
+	}
+
+	/**
+	 * Validates that a <code>Runtime.exit</code> call is redirected in a
+	 * method that also has switches, a wide instruction and long and double
+	 * constants for the rewriter to step over
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRuntimeExit() throws Exception {
+		byte[] rewritten = NGExitTransformer.rewrite(classBytes(RuntimeExit.class));
+		assertNotNull("Runtime.exit not rewritten", rewritten);
+		Class rewrittenClass = define(RuntimeExit.class.getName(), rewritten);
+		assertEquals(1001L, run(rewrittenClass, 1));
+		assertEquals(20003L, run(rewrittenClass, 20));
+		assertExitTrapped(rewrittenClass, 3);
+	}
+
+	/**
+	 * Validates that a class without exit calls is left untouched
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testNoExit() throws Exception {
+		byte[] original = classBytes(NoExit.class);
+		byte[] copy = (byte[]) original.clone();
+		assertNull(NGExitTransformer.rewrite(original));
+		assertNull(transformer.transform(getClass().getClassLoader(), "org/example/NoExit", null, null, original));
+		assertArrayEquals("Class file modified", copy, original);
+		assertEquals(6L, run(define(NoExit.class.getName(), original), 3));
+	}
+
+	/**
+	 * Validates that exits are redirected in a class whose constant pool
+	 * needs two byte indices above 32767, and that a class whose pool has
+	 * no room left for the interceptor entries is left untouched
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLargeConstantPool() throws Exception {
+		byte[] large = padConstantPool(classBytes(RuntimeExit.class), 40000);
+		byte[] rewritten = NGExitTransformer.rewrite(large);
+		assertNotNull("Large class not rewritten", rewritten);
+		Class rewrittenClass = define(RuntimeExit.class.getName(), rewritten);
+		assertEquals(1001L, run(rewrittenClass, 1));
+		assertExitTrapped(rewrittenClass, 4);
+
+		byte[] full = classBytes(SystemExit.class);
+		full = padConstantPool(full, 0xffff - u2(full, 8));
+		assertEquals(0xffff, u2(full, 8));
+		assertNull("Full constant pool overflowed", NGExitTransformer.rewrite(full));
+	}
+
+	/**
+	 * Validates that the example nails are rewritten, while the server's
+	 * own classes are not
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testExamplesRewritten() throws Exception {
+		String name = "com.martiansoftware.nailgun.examples.Exit";
+		byte[] original = classBytes(Class.forName(name));
+		ClassLoader loader = getClass().getClassLoader();
+		byte[] rewritten = transformer.transform(loader, name.replace('.', '/'), null, null, original);
+		assertNotNull("Example nail not rewritten", rewritten);
+		Method main = define(name, rewritten).getMethod("main", new Class[] {String[].class});
+		try {
+			main.invoke(null, new Object[] {new String[] {"3"}});
+			fail("Exit not trapped");
+		} catch (InvocationTargetException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof NGExitException);
+			assertEquals(3, ((NGExitException) e.getCause()).getStatus());
+		}
+
+		assertTrue(NGExitTransformer.isServerClass("com/martiansoftware/nailgun/NGServer"));
+		assertTrue(!NGExitTransformer.isServerClass("com/martiansoftware/nailgun/builtins/NGStop"));
+		assertNull("Server class rewritten", transformer.transform(loader, "com/martiansoftware/nailgun/NGServer",
+				null, null, classBytes(NGServer.class)));
+	}
+
+	/**
+	 * Runs a fixture's exit method and checks the exit was trapped
+	 * @param fixture the rewritten fixture class
+	 * @param status the exit status to pass
+	 * @throws Exception thrown on any error
+	 */
+	private static void assertExitTrapped(Class fixture, int status) throws Exception {
+		try {
+			run(fixture, status);
+			fail("Exit not trapped");
+		} catch (InvocationTargetException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof NGExitException);
+			assertEquals(status, ((NGExitException) e.getCause()).getStatus());
+		}
+	}
+
+	private static Object run(Class fixture, int arg) throws Exception {
+		return (fixture.getMethod("run", new Class[] {int.class}).invoke(null, new Object[] {Integer.valueOf(arg)}));
+	}
+
+	/**
+	 * Defines a class from the specified class file in a new class loader,
+	 * which delegates every other class to the test's loader
+	 * @param name the class name
+	 * @param b the class file
+	 * @return the initialized class
+	 * @throws Exception thrown on any error
+	 */
+	private static Class define(final String name, final byte[] b) throws Exception {
+		ClassLoader loader = new ClassLoader(NGExitTransformerTestCase.class.getClassLoader()) {
+			protected synchronized Class loadClass(String className, boolean resolve) throws ClassNotFoundException {
+				if (!className.equals(name)) return (super.loadClass(className, resolve));
+				Class result = findLoadedClass(className);
+				if (result == null) result = defineClass(className, b, 0, b.length);
+				if (resolve) resolveClass(result);
+				return (result);
+			}
+		};
+		return (Class.forName(name, true, loader));
+	}
+
+	private static byte[] classBytes(Class clazz) throws IOException {
+		InputStream in = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read = 0;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return (out.toByteArray());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Appends unused UTF8 entries to the constant pool of a class file
+	 * @param b the class file
+	 * @param entries the number of entries to append
+	 * @return the padded class file
+	 */
+	private static byte[] padConstantPool(byte[] b, int entries) {
+		int count = u2(b, 8);
+		int pos = 10;
+		for (int i = 1; i < count; ++i) {
+			int tag = b[pos] & 0xff;
+			switch (tag) {
+				case 1:						pos += 3 + u2(b, pos + 1); break;
+				case 5: case 6:				pos += 9; ++i; break;
+				case 7: case 8: case 16: case 19: case 20:
+											pos += 3; break;
+				case 15:					pos += 4; break;
+				default:					pos += 5; break;
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(b, 0, pos);
+		for (int i = 0; i < entries; ++i) {
+			String s = "pad" + i;
+			out.write(1);
+			out.write(s.length() >> 8);
+			out.write(s.length());
+			for (int c = 0; c < s.length(); ++c) {
+				out.write(s.charAt(c));
+			}
+		}
+		out.write(b, pos, b.length - pos);
+		byte[] result = out.toByteArray();
+		result[8] = (byte) ((count + entries) >> 8);
+		result[9] = (byte) (count + entries);
+		return (result);
+	}
+
+	private static int u2(byte[] b, int off) {
+		return (((b[off] & 0xff) << 8) | (b[off + 1] & 0xff));
+	}
+
+	public static class SystemExit {
+		public static void run(int status) {
+			System.exit(status);
+		}
+	}
+
+	public static class RuntimeExit {
+		public static long run(int status) {
+			long total = status * 1000L;
+			double scale = 1.5d;
+			switch (status) {
+				case 1: total += 1; break;
+				case 2: total += 2; break;
+				case 3: total += 3; break;
+				default: break;
+			}
+			switch (status) {
+				case 20: total += 3; break;
+				case 3000: total += 1; break;
+				default: break;
+			}
+			int wide = status;
+			// an increment over a byte is a wide iinc
+			wide += 1000;
+			if (wide == 1003 || wide == 1004) {
+				Runtime.getRuntime().exit(status);
+			}
+			return ((long) (total * scale / scale));
+		}
+	}
+
+	public static class NoExit {
+		public static long run(int status) {
+			return (status * 2L);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test cases for <code>NGSessionExecutors</code>
+ *
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NGSessionExecutorsTestCase {
+
+	@After
+	public void tearDown() {
+		System.clearProperty(NGSessionExecutors.SESSION_EXECUTOR_PROPERTY);
+	}
+
+	/**
+	 * Validates that each <code>nailgun.sessions</code> mode creates a
+	 * working executor, and that <code>virtual</code> falls back to a pool
+	 * on a JVM without virtual threads
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFromSystemProperty() throws Exception {
+		assertNull(NGSessionExecutors.fromSystemProperty(2));
+
+		String[] modes = {"virtual", " Pool ", "auto"};
+		for (int i = 0; i < modes.length; ++i) {
+			System.setProperty(NGSessionExecutors.SESSION_EXECUTOR_PROPERTY, modes[i]);
+			ExecutorService executor = NGSessionExecutors.fromSystemProperty(2);
+			try {
+				if (i == 1 || !NGSessionExecutors.virtualThreadsAvailable()) {
+					assertTrue(modes[i] + " is not a pool", executor instanceof ThreadPoolExecutor);
+					assertEquals(2, ((ThreadPoolExecutor) executor).getPoolSize());
+				}
+				assertEquals("ran", executor.submit(new Runnable() {
+					public void run() {}
+				}, "ran").get());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Validates that an unknown mode is rejected
+	 * @throws Exception thrown on any error
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidMode() throws Exception {
+		System.setProperty(NGSessionExecutors.SESSION_EXECUTOR_PROPERTY, "threads");
+		NGSessionExecutors.fromSystemProperty(2);
+	}
+}
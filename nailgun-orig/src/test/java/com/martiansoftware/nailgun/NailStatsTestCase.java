@@ -0,0 +1,180 @@
+/*
+
+  Copyright 2004, Martian Software, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+
+*/
+
+package com.martiansoftware.nailgun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test cases for <code>NailStats</code>: the latency histogram's buckets,
+ * the percentiles read from it, and snapshots.
+ *
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ */
+public class NailStatsTestCase {
+
+	/**
+	 * Validates that every bucket's limit falls in the bucket and the next
+	 * value in the next bucket, so the buckets tile the longs without gaps
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBucketBoundaries() throws Exception {
+		int last = NailStats.bucketFor(Long.MAX_VALUE);
+		for (int bucket = 0; bucket < last; ++bucket) {
+			long limit = NailStats.bucketLimit(bucket);
+			assertEquals("Limit of bucket " + bucket, bucket, NailStats.bucketFor(limit));
+			assertEquals("Value after bucket " + bucket, bucket + 1, NailStats.bucketFor(limit + 1));
+		}
+	}
+
+	/**
+	 * Validates that a value's bucket limit is never below the value and
+	 * at most 1/8 above it
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBucketPrecision() throws Exception {
+		for (long value = 0; value < 100000; ++value) {
+			assertBucketPrecision(value);
+		}
+		for (int bit = 4; bit < 63; ++bit) {
+			long power = 1L << bit;
+			assertBucketPrecision(power - 1);
+			assertBucketPrecision(power);
+			assertBucketPrecision(power + 1);
+			assertBucketPrecision(power + power / 16);
+			assertBucketPrecision(power + power / 8 - 1);
+		}
+	}
+
+	/**
+	 * Validates that the largest latency has a bucket and is reported
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLongMaxValue() throws Exception {
+		assertEquals(Long.MAX_VALUE, NailStats.bucketLimit(NailStats.bucketFor(Long.MAX_VALUE)));
+		assertEquals(NailStats.bucketFor(Long.MAX_VALUE), NailStats.bucketFor(Long.MAX_VALUE - Long.MAX_VALUE / 16));
+
+		NailStats stats = new NailStats(Object.class);
+		stats.nailFinished(Long.MAX_VALUE, 0, 0, 0);
+		assertEquals(1, stats.getLatencyCount());
+		assertEquals(Long.MAX_VALUE, stats.getMaxLatency());
+		assertEquals(Long.MAX_VALUE, stats.getLatencyPercentile(0.5));
+		assertEquals(Long.MAX_VALUE, stats.getMeanLatency());
+	}
+
+	/**
+	 * Validates percentiles over known distributions
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPercentiles() throws Exception {
+		NailStats stats = new NailStats(Object.class);
+		assertEquals(0, stats.getLatencyPercentile(0.99));
+
+		// small latencies have a bucket each, so are exact
+		for (long latency = 0; latency < 8; ++latency) {
+			stats.nailFinished(latency, 0, 0, 0);
+		}
+		assertEquals(0, stats.getLatencyPercentile(0));
+		assertEquals(3, stats.getLatencyPercentile(0.5));
+		assertEquals(7, stats.getLatencyPercentile(1));
+
+		// 1..1000: each percentile is within 1/8 of the exact rank
+		stats = new NailStats(Object.class);
+		for (long latency = 1; latency <= 1000; ++latency) {
+			stats.nailFinished(latency, 0, 0, 0);
+		}
+		assertEquals(1000, stats.getLatencyCount());
+		assertEquals(500, stats.getMeanLatency());
+		assertPercentile(stats, 0.5, 500);
+		assertPercentile(stats, 0.9, 900);
+		assertPercentile(stats, 0.99, 990);
+		assertEquals("Percentile above the longest latency", 1000, stats.getLatencyPercentile(0.999));
+		assertEquals(1000, stats.getLatencyPercentile(1));
+
+		// a slow tail: 990 runs of 100us and 10 of 10000us
+		stats = new NailStats(Object.class);
+		for (int i = 0; i < 990; ++i) {
+			stats.nailFinished(100, 0, 0, 0);
+		}
+		for (int i = 0; i < 10; ++i) {
+			stats.nailFinished(10000, 0, 0, 0);
+		}
+		assertEquals(199, stats.getMeanLatency());
+		assertPercentile(stats, 0.5, 100);
+		assertPercentile(stats, 0.99, 100);
+		assertEquals(10000, stats.getLatencyPercentile(0.999));
+		assertEquals(10000, stats.getMaxLatency());
+	}
+
+	/**
+	 * Validates that a clone does not change as further runs are recorded
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCloneSnapshot() throws Exception {
+		NailStats stats = new NailStats(Object.class);
+		stats.nailStarted();
+		stats.nailStarted();
+		stats.nailFinished(10, 0, 5, 7);
+		NailStats snapshot = (NailStats) stats.clone();
+
+		stats.nailStarted();
+		stats.nailFinished(5000, NGConstants.EXIT_EXCEPTION, 100, 200);
+		stats.nailFinished(20, 3, 0, 0);
+
+		assertEquals(2, snapshot.getRunCount());
+		assertEquals(1, snapshot.getRefCount());
+		assertEquals(0, snapshot.getErrorCount());
+		assertEquals(5, snapshot.getBytesIn());
+		assertEquals(7, snapshot.getBytesOut());
+		assertEquals(1, snapshot.getLatencyCount());
+		assertEquals(10, snapshot.getMaxLatency());
+		assertEquals(10, snapshot.getLatencyPercentile(1));
+		assertEquals(1, snapshot.getExitCount(0));
+		assertEquals(0, snapshot.getExitCount(3));
+		assertEquals(0, snapshot.getExitCount(NGConstants.EXIT_EXCEPTION));
+
+		assertEquals(3, stats.getRunCount());
+		assertEquals(0, stats.getRefCount());
+		assertEquals(1, stats.getErrorCount());
+		assertEquals(105, stats.getBytesIn());
+		assertEquals(207, stats.getBytesOut());
+		assertEquals(3, stats.getLatencyCount());
+		assertEquals(5000, stats.getMaxLatency());
+		assertEquals(1, stats.getExitCount(3));
+		assertEquals(1, stats.getExitCount(NGConstants.EXIT_EXCEPTION));
+	}
+
+	private static void assertBucketPrecision(long value) {
+		long limit = NailStats.bucketLimit(NailStats.bucketFor(value));
+		assertTrue("Limit " + limit + " below " + value, limit >= value);
+		assertTrue("Limit " + limit + " too far above " + value, limit - value <= value / 8);
+	}
+
+	private static void assertPercentile(NailStats stats, double fraction, long exact) {
+		long reported = stats.getLatencyPercentile(fraction);
+		assertTrue("p" + fraction + " = " + reported + ", expected " + exact, reported >= exact && reported - exact <= exact / 8);
+	}
+}